@@ -35,6 +35,7 @@ import com.bumptech.glide.Glide;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 
 /**
  * Display available {@link Pinger}s.
@@ -82,6 +83,22 @@ public class PingerAdapter extends BaseAdapter {
         notifyDataSetChanged();
     }
 
+    /**
+     * Remove the pingers with the given registration tokens, e.g. after the server expired them.
+     */
+    public void removePingers(Collection<String> pingerTokens) {
+        boolean removed = false;
+        for (Iterator<Pinger> iterator = mPingers.iterator(); iterator.hasNext(); ) {
+            if (pingerTokens.contains(iterator.next().getRegistrationToken())) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            notifyDataSetChanged();
+        }
+    }
+
     /**
      * Move a pinger to the top of the list.
      */
@@ -26,8 +26,13 @@ public class PingerKeys {
     public static final String NAME = "name";
     public static final String PICTURE_URL = "profile_picture_url";
     public static final String REGISTRATION_TOKEN = "registration_token";
+    public static final String REGION = "region";
+    public static final String CLIENT_LIST_FORMAT = "client_list_format";
+    public static final String CLIENTS = "clients";
+    public static final String COMPACT_CLIENTS = "compact_clients";
 
     public static final String ACTION = "action";
     public static final String SENDER = "sender";
     public static final String TO = "to";
+    public static final String TOPIC = "topic";
 }
@@ -31,4 +31,14 @@ public class RegistrationConstants {
     public static final String REGISTRATION_COMPLETE = "registrationComplete";
 
     public static final String TOKEN = "token";
+
+    /**
+     * The new client topic this client is subscribed to, as chosen by the server.
+     */
+    public static final String TOPIC = "topic";
+
+    /**
+     * The topic all clients were subscribed to before the server segmented topics.
+     */
+    public static final String NEW_CLIENT_TOPIC = "/topics/newclient";
 }
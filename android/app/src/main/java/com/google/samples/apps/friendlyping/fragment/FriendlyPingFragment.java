@@ -113,6 +113,7 @@ public class FriendlyPingFragment extends Fragment {
         filter.addAction(RegistrationConstants.REGISTRATION_COMPLETE);
         filter.addAction(GcmAction.SEND_CLIENT_LIST);
         filter.addAction(GcmAction.BROADCAST_NEW_CLIENT);
+        filter.addAction(GcmAction.BROADCAST_REMOVED_CLIENTS);
         filter.addAction(GcmAction.PING_CLIENT);
         LocalBroadcastManager.getInstance(getActivity())
                 .registerReceiver(mRegistrationBroadcastReceiver, filter);
@@ -238,6 +239,11 @@ public class FriendlyPingFragment extends Fragment {
                         mPingerAdapter.addPinger(pinger);
                     }
                     break;
+                case GcmAction.BROADCAST_REMOVED_CLIENTS:
+                    final ArrayList<String> removedTokens = intent
+                            .getStringArrayListExtra(IntentExtras.REMOVED_PINGER_TOKENS);
+                    mPingerAdapter.removePingers(removedTokens);
+                    break;
                 case GcmAction.PING_CLIENT:
                     Ping ping = intent.getParcelableExtra(IntentExtras.NEW_PING);
                     mPingerAdapter.moveToTop(ping.getFrom());
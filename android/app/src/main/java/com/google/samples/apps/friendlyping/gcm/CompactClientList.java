@@ -0,0 +1,123 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.friendlyping.gcm;
+
+import android.util.Base64;
+import android.util.JsonReader;
+
+import com.google.samples.apps.friendlyping.model.Pinger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes the compact client list the server sends in place of the JSON one when asked to at
+ * registration. The clients are a deflated, base64 encoded JSON array of objects with the short
+ * keys n (name), t (registration token) and p (picture URL), where u is the index of a prefix in
+ * {@link #URL_PREFIXES} left out of p. The array is inflated and parsed as a stream, so neither
+ * the inflated JSON nor a tree of it is held in memory.
+ */
+public class CompactClientList {
+
+    /**
+     * Format asked for at registration, matching the server's.
+     */
+    public static final String FORMAT = "compact-1";
+
+    /**
+     * URL prefixes in the order the server numbers them. Must match the server's copy.
+     */
+    private static final String[] URL_PREFIXES = {
+            "https://lh3.googleusercontent.com/",
+            "https://lh4.googleusercontent.com/",
+            "https://lh5.googleusercontent.com/",
+            "https://lh6.googleusercontent.com/",
+            "http://placekitten.com/",
+            "https://",
+            "http://"
+    };
+
+    private CompactClientList() {
+    }
+
+    /**
+     * Decodes a compact client list.
+     *
+     * @param encoded The compact_clients field of a client list.
+     * @return The clients of the list.
+     * @throws IOException If the list is not a valid compact client list.
+     */
+    public static ArrayList<Pinger> decode(String encoded) throws IOException {
+        final byte[] compressed;
+        try {
+            compressed = Base64.decode(encoded, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid base64 in compact client list");
+        }
+        ArrayList<Pinger> pingers = new ArrayList<>();
+        JsonReader reader = new JsonReader(new InputStreamReader(
+                new InflaterInputStream(new ByteArrayInputStream(compressed)), "UTF-8"));
+        try {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                pingers.add(readPinger(reader));
+            }
+            reader.endArray();
+        } catch (IllegalStateException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed compact client list: " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+        return pingers;
+    }
+
+    private static Pinger readPinger(JsonReader reader) throws IOException {
+        String name = null;
+        String token = null;
+        String pictureUrl = null;
+        int prefix = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "n":
+                    name = reader.nextString();
+                    break;
+                case "t":
+                    token = reader.nextString();
+                    break;
+                case "p":
+                    pictureUrl = reader.nextString();
+                    break;
+                case "u":
+                    prefix = reader.nextInt();
+                    break;
+                default:
+                    // Added by a later version of the format.
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (prefix >= 0 && pictureUrl != null) {
+            pictureUrl = URL_PREFIXES[prefix] + pictureUrl;
+        }
+        return new Pinger(name, pictureUrl, token);
+    }
+}
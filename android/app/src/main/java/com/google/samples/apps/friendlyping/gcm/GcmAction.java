@@ -26,5 +26,6 @@ public class GcmAction {
     public static final String REGISTER_NEW_CLIENT = "register_new_client";
     public static final String BROADCAST_NEW_CLIENT = "broadcast_new_client";
     public static final String SEND_CLIENT_LIST = "send_client_list";
+    public static final String BROADCAST_REMOVED_CLIENTS = "broadcast_removed_clients";
     public static final String PING_CLIENT = "ping_client";
 }
@@ -17,13 +17,18 @@
 package com.google.samples.apps.friendlyping.gcm;
 
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import com.google.android.gms.gcm.GcmListenerService;
+import com.google.android.gms.gcm.GcmPubSub;
 import com.google.samples.apps.friendlyping.constants.IntentExtras;
 import com.google.samples.apps.friendlyping.constants.PingKeys;
+import com.google.samples.apps.friendlyping.constants.PingerKeys;
+import com.google.samples.apps.friendlyping.constants.RegistrationConstants;
 import com.google.samples.apps.friendlyping.model.Ping;
 import com.google.samples.apps.friendlyping.model.Pinger;
 
@@ -31,6 +36,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -64,6 +70,7 @@ public class MyGcmListenerService extends GcmListenerService {
         Intent broadcastIntent = new Intent(action);
         switch (action) {
             case GcmAction.SEND_CLIENT_LIST:
+                subscribeToNewClientTopic(data.getString(PingerKeys.TOPIC));
                 final ArrayList<Pinger> pingers = getPingers(data);
                 broadcastIntent.putParcelableArrayListExtra(IntentExtras.PINGERS, pingers);
                 break;
@@ -71,16 +78,72 @@ public class MyGcmListenerService extends GcmListenerService {
                 Pinger newPinger = getNewPinger(data);
                 broadcastIntent.putExtra(IntentExtras.NEW_PINGER, newPinger);
                 break;
+            case GcmAction.BROADCAST_REMOVED_CLIENTS:
+                final ArrayList<String> removedTokens = getRemovedTokens(data);
+                broadcastIntent.putStringArrayListExtra(IntentExtras.REMOVED_PINGER_TOKENS,
+                        removedTokens);
+                break;
             case GcmAction.PING_CLIENT:
                 Ping newPing = getNewPing(data);
+                if (isOwnPing(newPing)) {
+                    // Group pings sent to a notification key reach the sender too.
+                    return;
+                }
                 broadcastIntent.putExtra(IntentExtras.NEW_PING, newPing);
                 break;
         }
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcastIntent);
     }
 
+    /**
+     * Subscribes to the new client topic of this client's segment, and unsubscribes from the one
+     * it was subscribed to at registration or before if that is a different one.
+     *
+     * @param topic The topic named by the server, null if the server does not segment topics.
+     */
+    private void subscribeToNewClientTopic(String topic) {
+        if (topic == null) {
+            topic = RegistrationConstants.NEW_CLIENT_TOPIC;
+        }
+        final SharedPreferences sharedPreferences = PreferenceManager
+                .getDefaultSharedPreferences(this);
+        final String token = sharedPreferences.getString(RegistrationConstants.TOKEN, null);
+        if (token == null) {
+            Log.w(TAG, "Not registered yet, unable to subscribe to " + topic);
+            return;
+        }
+        // Installs from before topics were segmented are subscribed to the global topic.
+        final String oldTopic = sharedPreferences.getString(RegistrationConstants.TOPIC,
+                RegistrationConstants.NEW_CLIENT_TOPIC);
+        final GcmPubSub pubSub = GcmPubSub.getInstance(this);
+        try {
+            pubSub.subscribe(token, topic, null);
+            if (!oldTopic.equals(topic)) {
+                pubSub.unsubscribe(token, oldTopic);
+            }
+            sharedPreferences.edit().putString(RegistrationConstants.TOPIC, topic).apply();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to subscribe to " + topic, e);
+        }
+    }
+
+    private boolean isOwnPing(Ping ping) {
+        final String token = PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(RegistrationConstants.TOKEN, null);
+        return token != null && token.equals(ping.getFrom());
+    }
+
     private ArrayList<Pinger> getPingers(Bundle data) throws JSONException {
-        final JSONArray clients = new JSONArray(data.getString("clients"));
+        final String compactClients = data.getString(PingerKeys.COMPACT_CLIENTS);
+        if (compactClients != null) {
+            try {
+                return CompactClientList.decode(compactClients);
+            } catch (IOException e) {
+                throw new JSONException("Could not decode compact client list: "
+                        + e.getMessage());
+            }
+        }
+        final JSONArray clients = new JSONArray(data.getString(PingerKeys.CLIENTS));
         ArrayList<Pinger> pingers = new ArrayList<>(clients.length());
         for (int i = 0; i < clients.length(); i++) {
             JSONObject jsonPinger = clients.getJSONObject(i);
@@ -89,6 +152,15 @@ public class MyGcmListenerService extends GcmListenerService {
         return pingers;
     }
 
+    private ArrayList<String> getRemovedTokens(Bundle data) throws JSONException {
+        final JSONArray clients = new JSONArray(data.getString("clients"));
+        ArrayList<String> tokens = new ArrayList<>(clients.length());
+        for (int i = 0; i < clients.length(); i++) {
+            tokens.add(clients.getString(i));
+        }
+        return tokens;
+    }
+
     private Pinger getNewPinger(Bundle data) throws JSONException {
         final JSONObject client = new JSONObject(data.getString("client"));
         return Pinger.fromJson(client);
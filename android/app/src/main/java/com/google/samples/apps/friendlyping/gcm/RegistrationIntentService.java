@@ -36,6 +36,7 @@ import com.google.samples.apps.friendlyping.constants.RegistrationConstants;
 import com.google.samples.apps.friendlyping.util.FriendlyPingUtil;
 
 import java.io.IOException;
+import java.util.Locale;
 
 /**
  * Deal with registration of the user with the GCM instance.
@@ -61,15 +62,21 @@ public class RegistrationIntentService extends IntentService {
                         GoogleCloudMessaging.INSTANCE_ID_SCOPE, null);
                 Log.d(TAG, "GCM registration token: " + token);
 
-                // Register to the server and subscribe to the topic of interest.
+                // Subscribe to the new client topic this client last knew of, or to the global
+                // one, so new clients reach it even if the client list never does. The server
+                // answers the registration with the client list, which names the topic of this
+                // client's segment to switch to with this token, so the token is stored first.
+                final String topic = sharedPreferences.getString(RegistrationConstants.TOPIC,
+                        RegistrationConstants.NEW_CLIENT_TOPIC);
+                GcmPubSub.getInstance(this).subscribe(token, topic, null);
+                sharedPreferences.edit()
+                        .putString(RegistrationConstants.TOKEN, token)
+                        .putString(RegistrationConstants.TOPIC, topic)
+                        .commit();
                 sendRegistrationToServer(token);
-                // The list of topics we can subscribe to is being implemented within the server.
-                GcmPubSub.getInstance(this).subscribe(token, "/topics/newclient", null);
 
-                final SharedPreferences.Editor editor = sharedPreferences.edit();
-                editor.putBoolean(RegistrationConstants.SENT_TOKEN_TO_SERVER, true);
-                editor.putString(RegistrationConstants.TOKEN, token);
-                editor.apply();
+                sharedPreferences.edit()
+                        .putBoolean(RegistrationConstants.SENT_TOKEN_TO_SERVER, true).apply();
             }
         } catch (IOException e) {
             Log.d(TAG, "Failed to complete token refresh", e);
@@ -132,6 +139,10 @@ public class RegistrationIntentService extends IntentService {
         registration.putString(PingerKeys.ACTION, GcmAction.REGISTER_NEW_CLIENT);
         registration.putString(PingerKeys.NAME, displayName);
         registration.putString(PingerKeys.PICTURE_URL, profilePictureUrl);
+        // The server may segment new client broadcasts by region.
+        registration.putString(PingerKeys.REGION, Locale.getDefault().getCountry());
+        // About twice as many clients fit in a client list in the compact format.
+        registration.putString(PingerKeys.CLIENT_LIST_FORMAT, CompactClientList.FORMAT);
         return registration;
     }
 
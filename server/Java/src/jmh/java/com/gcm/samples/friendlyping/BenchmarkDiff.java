@@ -0,0 +1,119 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Compare two JMH JSON result files, for example from two commits, and report the change in
+ * throughput and in bytes allocated per operation for every benchmark present in both.
+ *
+ * Usage: BenchmarkDiff baseline.json current.json [max-regression-percent]
+ *
+ * When a maximum regression is given the exit code is 1 if any benchmark lost more throughput or
+ * allocates more per operation than that percentage.
+ */
+public class BenchmarkDiff {
+
+  private static final String ALLOC_METRIC = "\u00b7gc.alloc.rate.norm";
+
+  private static class Result {
+    double score;
+    String unit;
+    double allocatedBytes = Double.NaN;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: BenchmarkDiff baseline.json current.json [max-regression-%]");
+      System.exit(2);
+    }
+    Map<String, Result> baseline = load(args[0]);
+    Map<String, Result> current = load(args[1]);
+    double maxRegression = args.length > 2 ? Double.parseDouble(args[2]) : Double.NaN;
+
+    boolean regressed = false;
+    System.out.printf("%-70s %14s %8s %12s %8s%n", "Benchmark", "Score", "Change", "B/op",
+        "Change");
+    for (Entry<String, Result> entry : current.entrySet()) {
+      Result before = baseline.get(entry.getKey());
+      Result after = entry.getValue();
+      if (before == null) {
+        System.out.printf("%-70s %14.1f %8s %12.1f %8s%n", entry.getKey(), after.score, "new",
+            after.allocatedBytes, "new");
+        continue;
+      }
+      double scoreChange = percentChange(before.score, after.score);
+      double allocChange = percentChange(before.allocatedBytes, after.allocatedBytes);
+      System.out.printf("%-70s %14.1f %+7.1f%% %12.1f %+7.1f%%%n", entry.getKey(), after.score,
+          scoreChange, after.allocatedBytes, allocChange);
+      // Lower is better for average time modes, higher is better for throughput.
+      boolean lowerIsBetter = after.unit.contains("/op");
+      double scoreRegression = lowerIsBetter ? scoreChange : -scoreChange;
+      if (scoreRegression > maxRegression || allocChange > maxRegression) {
+        regressed = true;
+      }
+    }
+    if (regressed) {
+      System.out.printf("Regression larger than %.1f%% detected.%n", maxRegression);
+      System.exit(1);
+    }
+  }
+
+  private static double percentChange(double before, double after) {
+    return before == 0 ? 0 : 100 * (after - before) / before;
+  }
+
+  /**
+   * Load a JMH JSON result file keyed by benchmark name and parameters.
+   */
+  private static Map<String, Result> load(String fileName) throws IOException {
+    Map<String, Result> results = new LinkedHashMap<String, Result>();
+    try (Reader reader = new FileReader(fileName)) {
+      JsonArray jResults = new JsonParser().parse(reader).getAsJsonArray();
+      for (JsonElement element : jResults) {
+        JsonObject jResult = element.getAsJsonObject();
+        String key = jResult.get("benchmark").getAsString()
+            .replace(BenchmarkDiff.class.getPackage().getName() + ".", "");
+        if (jResult.has("params")) {
+          key += jResult.get("params").toString().replace("\"", "");
+        }
+        Result result = new Result();
+        JsonObject jPrimary = jResult.getAsJsonObject("primaryMetric");
+        result.score = jPrimary.get("score").getAsDouble();
+        result.unit = jPrimary.get("scoreUnit").getAsString();
+        JsonObject jSecondary = jResult.getAsJsonObject("secondaryMetrics");
+        if (jSecondary != null && jSecondary.has(ALLOC_METRIC)) {
+          result.allocatedBytes =
+              jSecondary.getAsJsonObject(ALLOC_METRIC).get("score").getAsDouble();
+        }
+        results.put(key, result);
+      }
+    }
+    return results;
+  }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import com.gcm.samples.friendlyping.FriendlyPingServer.Client;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compares the JSON client list with the compact one of CompactClientList: the cost of sending
+ * a client list from the server, and the cost of decoding it the way the Android app does, with
+ * a tree of the JSON list or by streaming the compact one. Clients have tokens and picture URLs
+ * shaped like real ones, since those dominate the size.
+ *
+ * The size of each list, and how many clients of that size fit in a 4 KB payload, is printed
+ * during setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientListBenchmark {
+
+  private static final String TOKEN_ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+  private static final String[] FIRST_NAMES =
+      {"Larry", "Sergey", "Ada", "Grace", "Alan", "Barbara", "Edsger", "Frances"};
+  private static final String[] LAST_NAMES =
+      {"Page", "Brin", "Lovelace", "Hopper", "Turing", "Liskov", "Dijkstra", "Allen"};
+  private static final int MAX_PAYLOAD_BYTES = 4096;
+
+  @Param({"json", "compact"})
+  public String format;
+
+  @Param({"10", "100", "1000"})
+  public int clients;
+
+  private DiscardingCcsClient ccsClient;
+  private FriendlyPingServer server;
+  private Client newClient;
+  // The clients field of the list, a JSON array or a compact list.
+  private String encoded;
+
+  @Setup
+  public void setUp() {
+    Logger.getLogger("GcmServer").setLevel(Level.OFF);
+    Logger.getLogger("FriendlyPingServer").setLevel(Level.OFF);
+
+    ccsClient = new DiscardingCcsClient();
+    server = new FriendlyPingServer(ccsClient);
+    ccsClient.ackTo(server.getGcmServer());
+    Random random = new Random(42);
+    Gson gson = new Gson();
+    StringBuilder jClients = new StringBuilder("[");
+    StringBuilder jCompactClients = new StringBuilder("[");
+    // The server client is in every list.
+    for (int i = 1; i < clients; i++) {
+      Client client = createClient(random);
+      server.addClient(client);
+      if (i > 1) {
+        jClients.append(',');
+        jCompactClients.append(',');
+      }
+      jClients.append(gson.toJson(client));
+      jCompactClients.append(CompactClientList.clientJson(client.name, client.registrationToken,
+          client.profilePictureUrl));
+    }
+    jClients.append(']');
+    jCompactClients.append(']');
+    encoded = format.equals("compact")
+        ? CompactClientList.encode(jCompactClients.toString()) : jClients.toString();
+
+    newClient = createClient(random);
+    newClient.compactClientList = format.equals("compact");
+    server.addClient(newClient);
+    long before = ccsClient.getBytesSent();
+    server.sendClientList(newClient);
+    long stanzaBytes = ccsClient.getBytesSent() - before;
+    System.out.printf("%n%s list of %d clients: %d bytes of clients, %d byte stanza, "
+            + "%d clients per %d bytes%n", format, clients, encoded.length(), stanzaBytes,
+        (long) MAX_PAYLOAD_BYTES * (clients - 1) / encoded.length(), MAX_PAYLOAD_BYTES);
+  }
+
+  private static Client createClient(Random random) {
+    Client client = new Client();
+    client.name = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+        + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+    client.registrationToken = "APA91b" + randomString(random, 146);
+    client.profilePictureUrl = "https://lh3.googleusercontent.com/-" + randomString(random, 11)
+        + "/AAAAAAAAAAI/AAAAAAAAAAA/" + randomString(random, 11) + "/photo.jpg?sz=50";
+    return client;
+  }
+
+  private static String randomString(Random random, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = TOKEN_ALPHABET.charAt(random.nextInt(TOKEN_ALPHABET.length()));
+    }
+    return new String(chars);
+  }
+
+  @Benchmark
+  public long sendClientList() {
+    server.sendClientList(newClient);
+    return ccsClient.getBytesSent();
+  }
+
+  @Benchmark
+  public List<String[]> decode() throws IOException {
+    return format.equals("compact") ? decodeCompact(encoded) : decodeJson(encoded);
+  }
+
+  /**
+   * Decode a JSON list into a tree first, like MyGcmListenerService does with org.json.
+   */
+  private static List<String[]> decodeJson(String jClients) {
+    JsonArray jArray = new JsonParser().parse(jClients).getAsJsonArray();
+    List<String[]> decoded = new ArrayList<String[]>(jArray.size());
+    for (JsonElement jElement : jArray) {
+      JsonObject jClient = jElement.getAsJsonObject();
+      decoded.add(new String[] {jClient.get("name").getAsString(),
+          jClient.get("profile_picture_url").getAsString(),
+          jClient.get("registration_token").getAsString()});
+    }
+    return decoded;
+  }
+
+  /**
+   * Decode a compact list by streaming, like the app's CompactClientList does with
+   * android.util.JsonReader, which Gson's JsonReader mirrors.
+   */
+  private static List<String[]> decodeCompact(String compact) throws IOException {
+    byte[] compressed = Base64.getDecoder().decode(compact);
+    List<String[]> decoded = new ArrayList<String[]>();
+    try (JsonReader reader = new JsonReader(new InputStreamReader(
+        new InflaterInputStream(new ByteArrayInputStream(compressed)),
+        StandardCharsets.UTF_8))) {
+      reader.beginArray();
+      while (reader.hasNext()) {
+        String name = null;
+        String token = null;
+        String pictureUrl = null;
+        int prefix = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+          switch (reader.nextName()) {
+            case "n":
+              name = reader.nextString();
+              break;
+            case "t":
+              token = reader.nextString();
+              break;
+            case "p":
+              pictureUrl = reader.nextString();
+              break;
+            case "u":
+              prefix = reader.nextInt();
+              break;
+            default:
+              reader.skipValue();
+              break;
+          }
+        }
+        reader.endObject();
+        if (prefix >= 0 && pictureUrl != null) {
+          pictureUrl = CompactClientList.URL_PREFIXES[prefix] + pictureUrl;
+        }
+        decoded.add(new String[] {name, pictureUrl, token});
+      }
+      reader.endArray();
+    }
+    return decoded;
+  }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import org.jivesoftware.smack.packet.Stanza;
+
+import javax.net.SocketFactory;
+
+/**
+ * SmackCcsClient that never connects. Sent stanzas are serialized exactly as Smack would before
+ * writing them and then discarded, so benchmarks measure serialization but no network I/O.
+ * Downstream messages are acked immediately, as CCS would, so that they leave the in-flight
+ * window and benchmarks cover the full send cycle.
+ */
+class DiscardingCcsClient extends SmackCcsClient {
+
+  private long bytesSent;
+  private GcmServer gcmServer;
+
+  DiscardingCcsClient() {
+    super("benchmark-key", "benchmark@" + GcmServer.GCM_HOST, "benchmark", "localhost", 0,
+        SocketFactory.getDefault());
+  }
+
+  @Override
+  public boolean sendStanza(Stanza stanza) {
+    String xml = stanza.toXML().toString();
+    bytesSent += xml.length();
+    // Acks sent by the server carry a message_type, downstream messages do not.
+    if (gcmServer != null && !xml.contains("\"message_type\"")) {
+      gcmServer.handleGcmMessage("{\"from\":\"benchmark\",\"message_id\":\""
+          + stanza.getStanzaId() + "\",\"message_type\":\"ack\"}");
+    }
+    return true;
+  }
+
+  /**
+   * Set the server to deliver acks for downstream messages to.
+   */
+  void ackTo(GcmServer gcmServer) {
+    this.gcmServer = gcmServer;
+  }
+
+  /**
+   * @return Total number of characters serialized, consumed by benchmarks so that the work of
+   * serializing is not optimized away.
+   */
+  long getBytesSent() {
+    return bytesSent;
+  }
+}
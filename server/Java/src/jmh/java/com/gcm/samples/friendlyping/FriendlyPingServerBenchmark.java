@@ -0,0 +1,109 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import com.gcm.samples.friendlyping.FriendlyPingServer.Client;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Benchmarks for the FriendlyPingServer handlers at different registry sizes. Downstream
+ * messages are serialized but not sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FriendlyPingServerBenchmark {
+
+  @Param({"10", "1000", "100000", "1000000"})
+  public int registrySize;
+
+  private DiscardingCcsClient ccsClient;
+  private FriendlyPingServer server;
+  private JsonObject registration;
+  private Client newClient;
+
+  @Setup
+  public void setUp() {
+    Logger.getLogger("GcmServer").setLevel(Level.OFF);
+    Logger.getLogger("FriendlyPingServer").setLevel(Level.OFF);
+
+    ccsClient = new DiscardingCcsClient();
+    server = new FriendlyPingServer(ccsClient);
+    ccsClient.ackTo(server.getGcmServer());
+    // The server client and the new client below count towards the registry size.
+    for (int i = 1; i < registrySize - 1; i++) {
+      server.addClient(createClient("client-" + i));
+    }
+
+    // Registering the same client repeatedly keeps the registry size constant.
+    newClient = createClient("client-new");
+    registration = new JsonObject();
+    registration.addProperty("name", newClient.name);
+    registration.addProperty("registration_token", newClient.registrationToken);
+    registration.addProperty("profile_picture_url", newClient.profilePictureUrl);
+    server.addClient(newClient);
+  }
+
+  private static Client createClient(String token) {
+    Client client = new Client();
+    client.name = "Name of " + token;
+    client.registrationToken = token;
+    client.profilePictureUrl = "https://lh3.googleusercontent.com/" + token + "/photo.jpg?sz=50";
+    return client;
+  }
+
+  @Benchmark
+  public long registerNewClient() {
+    server.registerNewClient(registration);
+    return ccsClient.getBytesSent();
+  }
+
+  @Benchmark
+  public long sendClientList() {
+    server.sendClientList(newClient);
+    return ccsClient.getBytesSent();
+  }
+
+  @Benchmark
+  public Object searchClients() {
+    // Every client name starts with "Name of client-", this prefix matches a page of them.
+    return server.searchClients(newClient.registrationToken, "name of client-1", null);
+  }
+
+  @Benchmark
+  public Object pingClient() {
+    return server.pingClient("client-1", newClient.registrationToken);
+  }
+}
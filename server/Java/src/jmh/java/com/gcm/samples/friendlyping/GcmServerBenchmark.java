@@ -0,0 +1,138 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import com.gcm.samples.friendlyping.GcmServer.GcmPacketExtension;
+import com.gcm.samples.friendlyping.GcmServer.GcmPacketExtensionProvider;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Benchmarks for the GcmServer codec: parsing gcm elements, decoding incoming GCM messages and
+ * serializing downstream messages and acks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GcmServerBenchmark {
+
+  private static final String UPSTREAM_JSON = "{\"category\":\"com.google.samples.apps"
+      + ".friendlyping\",\"data\":{\"action\":\"ping_client\",\"to\":\"token-recipient\","
+      + "\"sender\":\"token-sender\"},\"message_id\":\"up-1\",\"from\":\"token-sender\"}";
+  private static final String ACK_JSON = "{\"from\":\"token-recipient\",\"message_id\":"
+      + "\"1430923125000\",\"message_type\":\"ack\"}";
+  private static final String NACK_JSON = "{\"from\":\"token-recipient\",\"message_id\":"
+      + "\"1430923125000\",\"message_type\":\"nack\",\"error\":\"DEVICE_UNREGISTERED\"}";
+
+  /**
+   * Message decoded by the decode benchmark.
+   */
+  @State(Scope.Thread)
+  public static class DecodeInput {
+    @Param({"upstream", "ack", "nack"})
+    public String messageType;
+
+    private String json;
+
+    @Setup
+    public void setUp() {
+      if (messageType.equals("upstream")) {
+        json = UPSTREAM_JSON;
+      } else if (messageType.equals("ack")) {
+        json = ACK_JSON;
+      } else {
+        json = NACK_JSON;
+      }
+    }
+  }
+
+  private DiscardingCcsClient ccsClient;
+  private GcmServer gcmServer;
+  private GcmPacketExtensionProvider provider;
+  private XmlPullParser parser;
+  private String gcmElement;
+
+  @Setup
+  public void setUp() throws Exception {
+    // Per message logging is not what is being measured.
+    Logger.getLogger("GcmServer").setLevel(Level.OFF);
+
+    ccsClient = new DiscardingCcsClient();
+    gcmServer = new GcmServer(ccsClient) {
+      @Override
+      public void onMessage(String from, JsonObject jData) {
+      }
+    };
+    ccsClient.ackTo(gcmServer);
+    provider = new GcmPacketExtensionProvider();
+    XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+    factory.setNamespaceAware(true);
+    parser = factory.newPullParser();
+    gcmElement = new GcmPacketExtension(UPSTREAM_JSON).toXML().toString();
+  }
+
+  @Benchmark
+  public GcmPacketExtension parseExtension() throws Exception {
+    parser.setInput(new StringReader(gcmElement));
+    parser.next();
+    return provider.parse(parser, parser.getDepth());
+  }
+
+  @Benchmark
+  public long decode(DecodeInput input) {
+    // Upstream messages are acked, so their cost includes serializing the ack.
+    gcmServer.handleGcmMessage(input.json);
+    return ccsClient.getBytesSent();
+  }
+
+  @Benchmark
+  public long send() {
+    JsonObject jMessage = new JsonObject();
+    JsonObject jData = new JsonObject();
+    jData.addProperty("action", "ping_client");
+    jData.addProperty("sender", "token-sender");
+    jMessage.add("data", jData);
+    gcmServer.send("token-recipient", jMessage);
+    return ccsClient.getBytesSent();
+  }
+
+  @Benchmark
+  public long sendAck() {
+    gcmServer.sendAck("token-sender", "up-1");
+    return ccsClient.getBytesSent();
+  }
+}
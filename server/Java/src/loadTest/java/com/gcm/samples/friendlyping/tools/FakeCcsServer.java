@@ -0,0 +1,937 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping.tools;
+
+import com.gcm.samples.friendlyping.GcmServer;
+import com.gcm.samples.friendlyping.LatencyHistogram;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FakeCcsServer is a local stand-in for GCM Cloud Connection Server. It speaks just enough XMPP
+ * (plain TCP, SASL PLAIN and resource binding) for SmackCcsClient to connect and log in, acks
+ * every downstream message it receives and lets a test driver inject upstream messages as if
+ * they came from devices. It is meant for load and performance testing only.
+ *
+ * CCS does not offer XEP-0198 stream management, and by default neither does the stand-in. It can
+ * be told to offer stanza acknowledgement alone, or acknowledgement and stream resumption, so that
+ * recovering from a lost connection can be compared with and without them.
+ */
+public class FakeCcsServer implements Closeable {
+
+  /**
+   * How much of XEP-0198 stream management is offered.
+   */
+  public enum StreamManagement {
+    // Not offered, like CCS. Stanzas in transit when a connection is lost are lost with it.
+    OFF,
+    // Stanzas are acknowledged, the client sends unacknowledged ones again on a new connection.
+    ACK,
+    // Stanzas are acknowledged and a lost connection's stream can be resumed on a new one.
+    RESUME
+  }
+
+  /**
+   * Receives downstream messages sent by the server under test.
+   */
+  public interface Listener {
+
+    /**
+     * Called on the connection's reader thread for every downstream message, before it is acked.
+     *
+     * @param to Recipient of the message, a registration token or a topic.
+     * @param message The complete downstream JSON message.
+     */
+    void onDownstream(String to, JsonObject message);
+  }
+
+  private static final Logger logger = Logger.getLogger("FakeCcsServer");
+
+  private static final String STREAM_NAMESPACE = "http://etherx.jabber.org/streams";
+  private static final String SASL_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-sasl";
+  private static final String BIND_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-bind";
+  private static final String SM_NAMESPACE = "urn:xmpp:sm:3";
+  private static final String STANZAS_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-stanzas";
+  // How long a lost connection's stream can be resumed for.
+  private static final int RESUMPTION_TIMEOUT_SECONDS = 60;
+  // Ask the client to acknowledge what it received after this many stanzas.
+  private static final int ACK_REQUEST_INTERVAL = 50;
+  // How many recent downstream message IDs are remembered to detect messages sent twice.
+  private static final int RECENT_DOWNSTREAM_IDS = 1 << 16;
+  // CCS rejects messages whose payload is larger than 4096 bytes.
+  private static final int DEFAULT_MAX_PAYLOAD_BYTES = 4096;
+  // CCS sends at most this many unacked upstream messages on a connection.
+  private static final int MAX_UNACKED_UPSTREAM = 100;
+
+  private final int requestedPort;
+  private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+  private final AtomicInteger nextSession = new AtomicInteger();
+  private final AtomicLong nextMessageId = new AtomicLong();
+  private final AtomicLong downstreamCount = new AtomicLong();
+  private final AtomicLong nackCount = new AtomicLong();
+  private final AtomicLong upstreamCount = new AtomicLong();
+  private final AtomicLong upstreamAckCount = new AtomicLong();
+  private final AtomicLong upstreamRedeliveryCount = new AtomicLong();
+  private final AtomicLong duplicateDownstreamCount = new AtomicLong();
+  private final AtomicLong resumedCount = new AtomicLong();
+  private final AtomicLong failedResumptionCount = new AtomicLong();
+  private final AtomicLong resentStanzaCount = new AtomicLong();
+  // Microseconds from sendUpstream until the server acked the message.
+  private final LatencyHistogram upstreamAckLatency = new LatencyHistogram();
+  // Errors to nack downstream messages with, keyed by recipient.
+  private final Map<String, String> nackedRecipients = new ConcurrentHashMap<String, String>();
+  // Upstream messages not yet acked, keyed by message ID. Like CCS, messages are held while the
+  // server is not connected or its connections have too many unacked messages, and messages sent
+  // on a connection that closes before acking them are sent again on another one.
+  private final Map<String, Upstream> unackedUpstream = new ConcurrentHashMap<String, Upstream>();
+  // Upstream messages waiting for a connection, oldest first. Guarded by this.
+  private final ArrayDeque<Upstream> heldUpstream = new ArrayDeque<Upstream>();
+  // Managed streams that can be resumed, keyed by stream ID.
+  private final Map<String, StreamState> resumableStreams =
+      new ConcurrentHashMap<String, StreamState>();
+  // Message IDs of recent downstream messages, oldest first. Guarded by itself.
+  private final Map<String, Boolean> recentDownstreamIds =
+      new LinkedHashMap<String, Boolean>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > RECENT_DOWNSTREAM_IDS;
+        }
+      };
+  private final ScheduledExecutorService resumptionExecutor;
+  private final Gson gson = new GsonBuilder().create();
+  private final JsonParser jsonParser = new JsonParser();
+  private final XmlPullParserFactory parserFactory;
+
+  private volatile Listener listener;
+  private volatile int maxPayloadBytes = DEFAULT_MAX_PAYLOAD_BYTES;
+  private volatile StreamManagement streamManagement = StreamManagement.OFF;
+  private volatile ServerSocket serverSocket;
+  private volatile boolean closed;
+  private int port;
+
+  /**
+   * @param port Port to listen on, or 0 to pick a free port.
+   */
+  public FakeCcsServer(int port) {
+    requestedPort = port;
+    try {
+      parserFactory = XmlPullParserFactory.newInstance();
+      parserFactory.setNamespaceAware(true);
+    } catch (XmlPullParserException e) {
+      throw new IllegalStateException("No XmlPullParser implementation available.", e);
+    }
+    resumptionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "FakeCcsServer-resumption");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Start accepting connections on the loopback interface.
+   */
+  public void start() throws IOException {
+    listen(requestedPort);
+    port = serverSocket.getLocalPort();
+    logger.info("Fake CCS listening on port " + port);
+  }
+
+  private void listen(int listenPort) throws IOException {
+    final ServerSocket listening = new ServerSocket();
+    listening.setReuseAddress(true);
+    listening.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), listenPort), 50);
+    serverSocket = listening;
+    Thread acceptThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        acceptLoop(listening);
+      }
+    }, "FakeCcsServer-accept");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Downstream messages with a data or notification payload larger than this are nacked, as CCS
+   * does.
+   */
+  public void setMaxPayloadBytes(int maxPayloadBytes) {
+    this.maxPayloadBytes = maxPayloadBytes;
+  }
+
+  /**
+   * Nack every downstream message to the given recipient from now on with the given error, for
+   * example DEVICE_UNREGISTERED for a device that uninstalled the app.
+   */
+  public void nackDownstreamTo(String to, String error) {
+    nackedRecipients.put(to, error);
+  }
+
+  /**
+   * Set how much of stream management is offered to connections made from now on.
+   */
+  public void setStreamManagement(StreamManagement streamManagement) {
+    this.streamManagement = streamManagement;
+  }
+
+  /**
+   * @return Number of authenticated connections from the server under test.
+   */
+  public int getSessionCount() {
+    int count = 0;
+    for (Session session : sessions) {
+      if (session.bound) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public long getDownstreamCount() {
+    return downstreamCount.get();
+  }
+
+  public long getNackCount() {
+    return nackCount.get();
+  }
+
+  public long getUpstreamCount() {
+    return upstreamCount.get();
+  }
+
+  public long getUpstreamAckCount() {
+    return upstreamAckCount.get();
+  }
+
+  /**
+   * @return Microseconds from sendUpstream until the server acked each message, including any
+   * time it was held waiting for a connection.
+   */
+  public LatencyHistogram getUpstreamAckLatency() {
+    return upstreamAckLatency;
+  }
+
+  /**
+   * @return Number of upstream messages sent again because their connection closed unacked.
+   */
+  public long getUpstreamRedeliveryCount() {
+    return upstreamRedeliveryCount.get();
+  }
+
+  /**
+   * @return Number of downstream messages received again with a message ID seen recently.
+   */
+  public long getDuplicateDownstreamCount() {
+    return duplicateDownstreamCount.get();
+  }
+
+  /**
+   * @return Number of lost connections whose stream was resumed.
+   */
+  public long getResumedCount() {
+    return resumedCount.get();
+  }
+
+  /**
+   * @return Number of attempts to resume a stream that could not be resumed.
+   */
+  public long getFailedResumptionCount() {
+    return failedResumptionCount.get();
+  }
+
+  /**
+   * @return Number of unacknowledged stanzas sent again to clients that resumed their stream.
+   */
+  public long getResentStanzaCount() {
+    return resentStanzaCount.get();
+  }
+
+  /**
+   * Send an upstream message to the server under test as if it came from a device. Connections
+   * are used round robin. If the server is not connected the message is held until it connects.
+   *
+   * @param from Registration token of the simulated device.
+   * @param data Data payload of the upstream message.
+   * @return The message ID used.
+   */
+  public String sendUpstream(String from, JsonObject data) {
+    String messageId = "up-" + nextMessageId.incrementAndGet();
+    JsonObject jMessage = new JsonObject();
+    jMessage.addProperty("category", "com.google.samples.apps.friendlyping");
+    jMessage.add("data", data);
+    jMessage.addProperty("message_id", messageId);
+    jMessage.addProperty("from", from);
+    Upstream upstream = new Upstream(gson.toJson(jMessage));
+    unackedUpstream.put(messageId, upstream);
+    upstreamCount.incrementAndGet();
+    synchronized (this) {
+      heldUpstream.addLast(upstream);
+      sendHeldUpstream();
+    }
+    return messageId;
+  }
+
+  /**
+   * Send held upstream messages, round robin over the connections with room for more unacked
+   * messages.
+   */
+  private synchronized void sendHeldUpstream() {
+    while (!heldUpstream.isEmpty()) {
+      List<Session> available = new ArrayList<Session>();
+      for (Session session : sessions) {
+        if (session.bound && session.unackedUpstream < MAX_UNACKED_UPSTREAM) {
+          available.add(session);
+        }
+      }
+      if (available.isEmpty()) {
+        return;
+      }
+      Session session =
+          available.get((nextSession.getAndIncrement() & Integer.MAX_VALUE) % available.size());
+      Upstream upstream = heldUpstream.pollFirst();
+      upstream.session = session;
+      session.unackedUpstream++;
+      // If the write fails the session is closed, which holds the message again.
+      session.writeGcm(upstream.json);
+    }
+  }
+
+  /**
+   * Hold the unacked upstream messages of a closed connection so they are sent again.
+   */
+  private synchronized void holdUpstreamOf(Session session) {
+    List<Upstream> orphaned = new ArrayList<Upstream>();
+    for (Upstream upstream : unackedUpstream.values()) {
+      if (upstream.session == session) {
+        upstream.session = null;
+        orphaned.add(upstream);
+      }
+    }
+    for (int i = orphaned.size() - 1; i >= 0; i--) {
+      heldUpstream.addFirst(orphaned.get(i));
+    }
+    upstreamRedeliveryCount.addAndGet(orphaned.size());
+    session.unackedUpstream = 0;
+  }
+
+  /**
+   * Move the unacked upstream messages of a connection whose stream was resumed to the connection
+   * it was resumed on. The stream sends them again if they were lost in transit.
+   */
+  private synchronized void moveUpstream(Session from, Session to) {
+    for (Upstream upstream : unackedUpstream.values()) {
+      if (upstream.session == from) {
+        upstream.session = to;
+      }
+    }
+    to.unackedUpstream += from.unackedUpstream;
+    from.unackedUpstream = 0;
+  }
+
+  /**
+   * Keep the stream of a lost connection for the client to resume. If it is not resumed in time
+   * its unacked upstream messages are sent again on another connection.
+   */
+  private void detach(final StreamState stream, final Session session) {
+    final int detachment;
+    synchronized (stream) {
+      if (stream.session != session) {
+        return;
+      }
+      stream.session = null;
+      stream.detachedFrom = session;
+      detachment = ++stream.detachments;
+    }
+    resumptionExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (stream) {
+          if (stream.session != null || stream.detachments != detachment) {
+            return;
+          }
+          stream.expired = true;
+        }
+        resumableStreams.remove(stream.id, stream);
+        holdUpstreamOf(session);
+        sendHeldUpstream();
+      }
+    }, RESUMPTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Simulate a network failure by closing every connection without ending its stream, and
+   * refusing new connections for the given time. Managed streams can be resumed afterwards.
+   *
+   * @param outageMillis How long to refuse connections for, 0 to accept them again at once.
+   */
+  public void dropConnections(final long outageMillis) {
+    if (outageMillis > 0) {
+      closeServerSocket();
+    }
+    for (Session session : sessions) {
+      session.close();
+    }
+    if (outageMillis > 0) {
+      Thread restart = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(outageMillis);
+            if (!closed) {
+              listen(port);
+            }
+          } catch (InterruptedException | IOException e) {
+            logger.log(Level.WARNING, "Unable to listen again after outage.", e);
+          }
+        }
+      }, "FakeCcsServer-outage");
+      restart.setDaemon(true);
+      restart.start();
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    closeServerSocket();
+    for (Session session : sessions) {
+      session.close();
+    }
+    resumptionExecutor.shutdownNow();
+  }
+
+  private void closeServerSocket() {
+    try {
+      if (serverSocket != null) {
+        serverSocket.close();
+      }
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Error closing server socket.", e);
+    }
+  }
+
+  private void acceptLoop(ServerSocket listening) {
+    while (!listening.isClosed()) {
+      try {
+        Socket socket = listening.accept();
+        socket.setTcpNoDelay(true);
+        final Session session = new Session(socket);
+        sessions.add(session);
+        Thread reader = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            session.run();
+          }
+        }, "FakeCcsServer-session");
+        reader.setDaemon(true);
+        reader.start();
+      } catch (IOException e) {
+        if (!listening.isClosed()) {
+          logger.log(Level.WARNING, "Error accepting connection.", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Handle a downstream message or an ack for an upstream message from the server under test.
+   */
+  private void onGcmMessage(Session session, String json) {
+    JsonObject jMessage = jsonParser.parse(json).getAsJsonObject();
+    if (jMessage.has("message_type")) {
+      if ("ack".equals(jMessage.get("message_type").getAsString())) {
+        String messageId = jMessage.get("message_id").getAsString();
+        Upstream upstream = unackedUpstream.remove(messageId);
+        if (upstream != null) {
+          upstreamAckCount.incrementAndGet();
+          upstreamAckLatency.record(
+              TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - upstream.createdNanos));
+          synchronized (this) {
+            if (upstream.session != null) {
+              upstream.session.unackedUpstream--;
+              upstream.session = null;
+            }
+            sendHeldUpstream();
+          }
+        }
+      }
+      return;
+    }
+    downstreamCount.incrementAndGet();
+    String to = jMessage.has("to") ? jMessage.get("to").getAsString() : null;
+    String messageId = jMessage.has("message_id") ? jMessage.get("message_id").getAsString() : null;
+    if (messageId != null) {
+      synchronized (recentDownstreamIds) {
+        if (recentDownstreamIds.put(messageId, Boolean.TRUE) != null) {
+          duplicateDownstreamCount.incrementAndGet();
+        }
+      }
+    }
+
+    Listener currentListener = listener;
+    if (currentListener != null) {
+      currentListener.onDownstream(to, jMessage);
+    }
+
+    JsonObject jReply = new JsonObject();
+    jReply.addProperty("from", to);
+    jReply.addProperty("message_id", messageId);
+    String nackError = to != null ? nackedRecipients.get(to) : null;
+    if (nackError != null) {
+      nackCount.incrementAndGet();
+      jReply.addProperty("message_type", "nack");
+      jReply.addProperty("error", nackError);
+    } else if (payloadSize(jMessage) > maxPayloadBytes) {
+      nackCount.incrementAndGet();
+      jReply.addProperty("message_type", "nack");
+      jReply.addProperty("error", "INVALID_JSON");
+      jReply.addProperty("error_description", "Message too big");
+    } else {
+      jReply.addProperty("message_type", "ack");
+    }
+    session.writeGcm(gson.toJson(jReply));
+  }
+
+  private int payloadSize(JsonObject jMessage) {
+    int size = 0;
+    if (jMessage.has("data")) {
+      size += gson.toJson(jMessage.get("data")).length();
+    }
+    if (jMessage.has("notification")) {
+      size += gson.toJson(jMessage.get("notification")).length();
+    }
+    return size;
+  }
+
+  /**
+   * An upstream message and the connection it is waiting for an ack on, null while held.
+   */
+  private static class Upstream {
+    final String json;
+    final long createdNanos = System.nanoTime();
+    Session session;
+
+    Upstream(String json) {
+      this.json = json;
+    }
+  }
+
+  /**
+   * Stream management state of a stream, which outlives its connection while it can be resumed.
+   * Guarded by itself. A session's lock is taken before its stream's.
+   */
+  private static class StreamState {
+    // Null if the stream cannot be resumed.
+    final String id;
+    // Stanzas received from the client.
+    long inbound;
+    // Stanzas sent to the client, and those of them not yet acknowledged, oldest first.
+    long outbound;
+    final ArrayDeque<String> unacked = new ArrayDeque<String>();
+    // Connection the stream is on, null while waiting to be resumed.
+    Session session;
+    Session detachedFrom;
+    int detachments;
+    boolean expired;
+
+    StreamState(String id, Session session) {
+      this.id = id;
+      this.session = session;
+    }
+
+    /**
+     * Forget the stanzas the client has acknowledged.
+     *
+     * @param handled Number of stanzas the client reported handling.
+     */
+    void acknowledge(long handled) {
+      long acknowledged = outbound - unacked.size();
+      while (acknowledged < handled && !unacked.isEmpty()) {
+        unacked.pollFirst();
+        acknowledged++;
+      }
+    }
+  }
+
+  /**
+   * A minimal XML element read from the stream, just enough to answer the stanzas Smack sends.
+   */
+  private static class Element {
+    final String name;
+    final Map<String, String> attributes = new HashMap<String, String>();
+    final List<Element> children = new ArrayList<Element>();
+    final StringBuilder text = new StringBuilder();
+
+    Element(String name) {
+      this.name = name;
+    }
+
+    Element child(String childName) {
+      for (Element child : children) {
+        if (child.name.equals(childName)) {
+          return child;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * One XMPP connection from the server under test.
+   */
+  private class Session {
+    private final Socket socket;
+    private final Writer writer;
+    private volatile boolean authenticated;
+    private volatile boolean bound;
+    // Set when stream management is enabled or the stream is resumed, written under this.
+    private volatile StreamState stream;
+    // Set when the client ends its stream, which cannot be resumed afterwards.
+    private volatile boolean streamEnded;
+    // Guarded by the FakeCcsServer.
+    private int unackedUpstream;
+
+    Session(Socket socket) throws IOException {
+      this.socket = socket;
+      this.writer = new BufferedWriter(
+          new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    void run() {
+      try {
+        XmlPullParser parser = parserFactory.newPullParser();
+        parser.setInput(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        // Stanzas are the children of the most recently opened stream element. Smack opens a new
+        // stream on the same socket after authenticating.
+        int stanzaDepth = -1;
+        int event = parser.getEventType();
+        while (event != XmlPullParser.END_DOCUMENT) {
+          if (event == XmlPullParser.START_TAG) {
+            if ("stream".equals(parser.getName())
+                && STREAM_NAMESPACE.equals(parser.getNamespace())) {
+              stanzaDepth = parser.getDepth() + 1;
+              openStream();
+            } else if (parser.getDepth() == stanzaDepth) {
+              onStanza(readElement(parser));
+            }
+          } else if (event == XmlPullParser.END_TAG && parser.getDepth() < stanzaDepth
+              && "stream".equals(parser.getName())) {
+            streamEnded = true;
+            break;
+          }
+          event = parser.next();
+        }
+      } catch (XmlPullParserException | IOException e) {
+        logger.log(Level.FINE, "Session ended.", e);
+      } finally {
+        close();
+      }
+    }
+
+    void close() {
+      bound = false;
+      // Close the socket first, it unblocks any write holding the FakeCcsServer lock.
+      try {
+        socket.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Error closing session socket.", e);
+      }
+      if (sessions.remove(this)) {
+        StreamState managed = stream;
+        if (managed != null && managed.id != null && !streamEnded && !closed) {
+          detach(managed, this);
+        } else {
+          if (managed != null && managed.id != null) {
+            resumableStreams.remove(managed.id, managed);
+          }
+          holdUpstreamOf(this);
+        }
+      }
+    }
+
+    boolean writeGcm(String json) {
+      return writeStanza(String.format("<message><%s xmlns=\"%s\">%s</%s></message>",
+          GcmServer.GCM_ELEMENT_NAME, GcmServer.GCM_NAMESPACE, json, GcmServer.GCM_ELEMENT_NAME));
+    }
+
+    /**
+     * Write a stanza, counting it against the stream if it is managed. Stanzas written after the
+     * connection was lost follow its stream: they are sent again if it is resumed.
+     */
+    private boolean writeStanza(String xml) {
+      Session current;
+      synchronized (this) {
+        StreamState managed = stream;
+        if (managed == null) {
+          return write(xml);
+        }
+        boolean requestAck = false;
+        synchronized (managed) {
+          current = managed.session;
+          if (current == this || current == null) {
+            managed.outbound++;
+            managed.unacked.addLast(xml);
+            requestAck = managed.outbound % ACK_REQUEST_INTERVAL == 0;
+          }
+        }
+        if (current == this) {
+          return write(requestAck ? xml + "<r xmlns=\"" + SM_NAMESPACE + "\"/>" : xml);
+        } else if (current == null) {
+          return false;
+        }
+      }
+      // The stream has been resumed on another connection.
+      return current.writeStanza(xml);
+    }
+
+    private synchronized boolean write(String xml) {
+      try {
+        writer.write(xml);
+        writer.flush();
+        return true;
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Unable to write to session.", e);
+        close();
+        return false;
+      }
+    }
+
+    private void openStream() {
+      StringBuilder features = new StringBuilder("<stream:features>");
+      if (!authenticated) {
+        features.append("<mechanisms xmlns=\"").append(SASL_NAMESPACE).append("\">")
+            .append("<mechanism>PLAIN</mechanism></mechanisms>");
+      } else {
+        features.append("<bind xmlns=\"").append(BIND_NAMESPACE).append("\"/>");
+        if (streamManagement != StreamManagement.OFF) {
+          features.append("<sm xmlns=\"").append(SM_NAMESPACE).append("\"/>");
+        }
+      }
+      features.append("</stream:features>");
+      write("<?xml version='1.0'?><stream:stream xmlns=\"jabber:client\" xmlns:stream=\""
+          + STREAM_NAMESPACE + "\" id=\"" + Long.toHexString(System.nanoTime())
+          + "\" from=\"" + GcmServer.GCM_HOST + "\" version=\"1.0\">" + features);
+    }
+
+    private void onStanza(Element stanza) {
+      StreamState managed = stream;
+      if (managed != null) {
+        synchronized (managed) {
+          // The rest of what was read from a lost connection is ignored, as if it never arrived.
+          // The client sends it again if the stream is resumed.
+          if (managed.session != this && managed.id != null) {
+            return;
+          }
+          if ("message".equals(stanza.name) || "iq".equals(stanza.name)
+              || "presence".equals(stanza.name)) {
+            managed.inbound++;
+          }
+        }
+      }
+      if ("auth".equals(stanza.name)) {
+        // Credentials are not checked, any sender ID and API key are accepted.
+        authenticated = true;
+        write("<success xmlns=\"" + SASL_NAMESPACE + "\"/>");
+      } else if ("iq".equals(stanza.name)) {
+        onIq(stanza);
+      } else if ("message".equals(stanza.name)) {
+        Element gcm = stanza.child(GcmServer.GCM_ELEMENT_NAME);
+        if (gcm != null) {
+          onGcmMessage(this, gcm.text.toString());
+        }
+      } else if ("r".equals(stanza.name) && managed != null) {
+        long handled;
+        synchronized (managed) {
+          handled = managed.inbound;
+        }
+        write("<a xmlns=\"" + SM_NAMESPACE + "\" h=\"" + handled + "\"/>");
+      } else if ("a".equals(stanza.name) && managed != null) {
+        synchronized (managed) {
+          managed.acknowledge(Long.parseLong(stanza.attributes.get("h")));
+        }
+      } else if ("enable".equals(stanza.name)) {
+        onEnable(stanza);
+      } else if ("resume".equals(stanza.name)) {
+        onResume(stanza);
+      }
+    }
+
+    private void onEnable(Element enable) {
+      StreamManagement offered = streamManagement;
+      if (offered == StreamManagement.OFF || !bound || stream != null) {
+        writeFailed("unexpected-request");
+        return;
+      }
+      String resume = enable.attributes.get("resume");
+      boolean resumable = offered == StreamManagement.RESUME
+          && ("true".equals(resume) || "1".equals(resume));
+      StreamState managed =
+          new StreamState(resumable ? "sm-" + nextMessageId.incrementAndGet() : null, this);
+      if (resumable) {
+        resumableStreams.put(managed.id, managed);
+      }
+      // Stanzas are counted from the enabled element on.
+      synchronized (this) {
+        stream = managed;
+        write(resumable
+            ? "<enabled xmlns=\"" + SM_NAMESPACE + "\" id=\"" + managed.id + "\" resume=\"true\""
+                + " max=\"" + RESUMPTION_TIMEOUT_SECONDS + "\"/>"
+            : "<enabled xmlns=\"" + SM_NAMESPACE + "\"/>");
+      }
+    }
+
+    private void onResume(Element resume) {
+      String previousId = resume.attributes.get("previd");
+      StreamState managed = previousId != null ? resumableStreams.get(previousId) : null;
+      if (managed == null || !authenticated || bound || stream != null) {
+        failedResumptionCount.incrementAndGet();
+        writeFailed("item-not-found");
+        return;
+      }
+      // The client has given up on the stream's connection if the stand-in has not noticed yet.
+      Session previous;
+      synchronized (managed) {
+        previous = managed.session;
+      }
+      if (previous != null) {
+        previous.close();
+      }
+      synchronized (managed) {
+        if (managed.session != null || managed.expired) {
+          managed = null;
+        } else {
+          managed.session = this;
+          previous = managed.detachedFrom;
+          managed.detachedFrom = null;
+        }
+      }
+      if (managed == null) {
+        failedResumptionCount.incrementAndGet();
+        writeFailed("item-not-found");
+        return;
+      }
+      if (previous != null) {
+        moveUpstream(previous, this);
+      }
+
+      // Answer and send again what the client did not receive before anything else is written.
+      synchronized (this) {
+        List<String> resend;
+        long handled;
+        synchronized (managed) {
+          managed.acknowledge(Long.parseLong(resume.attributes.get("h")));
+          resend = new ArrayList<String>(managed.unacked);
+          handled = managed.inbound;
+        }
+        stream = managed;
+        write("<resumed xmlns=\"" + SM_NAMESPACE + "\" h=\"" + handled + "\" previd=\""
+            + managed.id + "\"/>");
+        for (String xml : resend) {
+          write(xml);
+        }
+        resentStanzaCount.addAndGet(resend.size());
+      }
+      resumedCount.incrementAndGet();
+      bound = true;
+      sendHeldUpstream();
+    }
+
+    private void writeFailed(String condition) {
+      write("<failed xmlns=\"" + SM_NAMESPACE + "\"><" + condition + " xmlns=\""
+          + STANZAS_NAMESPACE + "\"/></failed>");
+    }
+
+    private void onIq(Element iq) {
+      String id = iq.attributes.get("id");
+      String type = iq.attributes.get("type");
+      if (iq.child("bind") != null) {
+        bound = true;
+        writeStanza("<iq type=\"result\" id=\"" + id + "\"><bind xmlns=\"" + BIND_NAMESPACE + "\">"
+            + "<jid>" + nextMessageId.incrementAndGet() + "@" + GcmServer.GCM_HOST
+            + "/friendlyping</jid></bind></iq>");
+        sendHeldUpstream();
+      } else if ("get".equals(type) || "set".equals(type)) {
+        // Pings, session establishment and anything else are answered with an empty result.
+        writeStanza("<iq type=\"result\" id=\"" + id + "\"/>");
+      }
+    }
+
+    private Element readElement(XmlPullParser parser) throws XmlPullParserException, IOException {
+      Element element = new Element(parser.getName());
+      for (int i = 0; i < parser.getAttributeCount(); i++) {
+        element.attributes.put(parser.getAttributeName(i), parser.getAttributeValue(i));
+      }
+      int depth = parser.getDepth();
+      while (true) {
+        int event = parser.next();
+        if (event == XmlPullParser.START_TAG) {
+          element.children.add(readElement(parser));
+        } else if (event == XmlPullParser.TEXT) {
+          element.text.append(parser.getText());
+        } else if (event == XmlPullParser.END_TAG && parser.getDepth() == depth) {
+          return element;
+        } else if (event == XmlPullParser.END_DOCUMENT) {
+          throw new IOException("Stream ended inside " + element.name);
+        }
+      }
+    }
+  }
+}
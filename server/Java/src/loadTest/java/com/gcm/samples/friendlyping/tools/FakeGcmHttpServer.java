@@ -0,0 +1,304 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping.tools;
+
+import com.gcm.samples.friendlyping.GcmHttpSender;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * FakeGcmHttpServer is a local stand-in for the GCM HTTP send endpoint, for GcmHttpSender to send
+ * to in tests. It accepts POST /gcm/send with an API key, hands each recipient's copy of the
+ * message to the Listener and answers with a result per recipient, like GCM: a message ID, or an
+ * error for recipients it was told to reject and for payloads that are too big. Messages to a
+ * topic are answered with their single result alone. It is meant for load and performance testing
+ * only.
+ */
+public class FakeGcmHttpServer implements Closeable {
+
+  public static final String SEND_PATH = "/gcm/send";
+
+  private static final Logger logger = Logger.getLogger("FakeGcmHttpServer");
+
+  private static final int DEFAULT_MAX_PAYLOAD_BYTES = 4096;
+  private static final int HANDLER_THREADS = 8;
+  private static final String TOPIC_PREFIX = "/topics/";
+
+  static {
+    // Otherwise the response body waits behind the headers for the client's delayed ack, which
+    // adds 40 ms to every request. Read once, when the first HttpServer is created.
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+  }
+
+  private final int requestedPort;
+  private final Gson gson = new GsonBuilder().create();
+  private final JsonParser jsonParser = new JsonParser();
+  private final AtomicLong nextMessageId = new AtomicLong();
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong downstreamCount = new AtomicLong();
+  private final AtomicLong errorCount = new AtomicLong();
+  // HTTP API errors to answer for recipients, keyed by recipient.
+  private final Map<String, String> errorRecipients = new ConcurrentHashMap<String, String>();
+  private final ExecutorService handlerExecutor;
+  private volatile FakeCcsServer.Listener listener;
+  private volatile int maxPayloadBytes = DEFAULT_MAX_PAYLOAD_BYTES;
+  private HttpServer httpServer;
+
+  /**
+   * @param port Port to listen on, or 0 to pick a free port.
+   */
+  public FakeGcmHttpServer(int port) {
+    requestedPort = port;
+    handlerExecutor = Executors.newFixedThreadPool(HANDLER_THREADS, new ThreadFactory() {
+      private final AtomicInteger nextThread = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread =
+            new Thread(runnable, "FakeGcmHttpServer-" + nextThread.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Start accepting requests on the loopback interface.
+   */
+  public void start() throws IOException {
+    httpServer = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), requestedPort), 50);
+    httpServer.createContext(SEND_PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleSend(exchange);
+      }
+    });
+    httpServer.setExecutor(handlerExecutor);
+    httpServer.start();
+    logger.info("Fake GCM HTTP listening on port " + getPort());
+  }
+
+  public int getPort() {
+    return httpServer.getAddress().getPort();
+  }
+
+  /**
+   * @return URL of the send endpoint, for GcmHttpSender.
+   */
+  public URL getUrl() {
+    try {
+      return new URL("http", "127.0.0.1", getPort(), SEND_PATH);
+    } catch (MalformedURLException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Receive every recipient's copy of the messages sent, with to set to the recipient. Called on
+   * the thread handling the request, before it is answered.
+   */
+  public void setListener(FakeCcsServer.Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Messages with a data or notification payload larger than this are answered with
+   * MessageTooBig, as GCM does.
+   */
+  public void setMaxPayloadBytes(int maxPayloadBytes) {
+    this.maxPayloadBytes = maxPayloadBytes;
+  }
+
+  /**
+   * Answer every message to the given recipient from now on with the given HTTP API error, for
+   * example NotRegistered for a device that uninstalled the app.
+   */
+  public void rejectDownstreamTo(String to, String error) {
+    errorRecipients.put(to, error);
+  }
+
+  /**
+   * @return Number of requests answered, including rejected ones.
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * @return Number of recipients messages were sent to, including those answered with an error.
+   */
+  public long getDownstreamCount() {
+    return downstreamCount.get();
+  }
+
+  /**
+   * @return Number of recipients answered with an error.
+   */
+  public long getErrorCount() {
+    return errorCount.get();
+  }
+
+  @Override
+  public void close() {
+    if (httpServer != null) {
+      httpServer.stop(0);
+    }
+    handlerExecutor.shutdownNow();
+  }
+
+  private void handleSend(HttpExchange exchange) throws IOException {
+    requestCount.incrementAndGet();
+    if (!"POST".equals(exchange.getRequestMethod())) {
+      respond(exchange, 405, "text/plain", "POST only");
+      return;
+    }
+    String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+    if (authorization == null || !authorization.startsWith("key=")) {
+      respond(exchange, 401, "text/plain", "Unauthorized");
+      return;
+    }
+    JsonObject jMessage;
+    try {
+      JsonElement jRequest = jsonParser.parse(
+          new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+      if (!jRequest.isJsonObject()) {
+        throw new JsonParseException("Not a JSON object");
+      }
+      jMessage = jRequest.getAsJsonObject();
+    } catch (JsonParseException e) {
+      respond(exchange, 400, "text/plain", "Invalid JSON: " + e.getMessage());
+      return;
+    }
+
+    List<String> recipients = new ArrayList<String>();
+    boolean multicast = jMessage.has("registration_ids");
+    if (multicast) {
+      for (JsonElement jRecipient : jMessage.getAsJsonArray("registration_ids")) {
+        recipients.add(jRecipient.getAsString());
+      }
+    } else if (jMessage.has("to")) {
+      recipients.add(jMessage.get("to").getAsString());
+    }
+    if (recipients.isEmpty() || recipients.size() > GcmHttpSender.MAX_MULTICAST_RECIPIENTS) {
+      respond(exchange, 400, "text/plain", "Expected to or 1 to "
+          + GcmHttpSender.MAX_MULTICAST_RECIPIENTS + " registration_ids");
+      return;
+    }
+    // Each recipient's copy is the message with to in place of registration_ids.
+    JsonObject jCopy = new JsonObject();
+    for (Map.Entry<String, JsonElement> entry : jMessage.entrySet()) {
+      if (!entry.getKey().equals("registration_ids") && !entry.getKey().equals("to")) {
+        jCopy.add(entry.getKey(), entry.getValue());
+      }
+    }
+    boolean tooBig = payloadSize(jMessage) > maxPayloadBytes;
+
+    JsonArray jResults = new JsonArray();
+    int failures = 0;
+    FakeCcsServer.Listener currentListener = listener;
+    for (String to : recipients) {
+      downstreamCount.incrementAndGet();
+      if (currentListener != null) {
+        JsonObject jRecipientCopy = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : jCopy.entrySet()) {
+          jRecipientCopy.add(entry.getKey(), entry.getValue());
+        }
+        jRecipientCopy.addProperty("to", to);
+        currentListener.onDownstream(to, jRecipientCopy);
+      }
+      JsonObject jResult = new JsonObject();
+      String error = tooBig ? "MessageTooBig" : errorRecipients.get(to);
+      if (error != null) {
+        jResult.addProperty("error", error);
+        failures++;
+      } else {
+        jResult.add("message_id", new JsonPrimitive("0:" + nextMessageId.incrementAndGet()));
+      }
+      jResults.add(jResult);
+    }
+    errorCount.addAndGet(failures);
+
+    JsonObject jResponse;
+    if (!multicast && recipients.get(0).startsWith(TOPIC_PREFIX)) {
+      jResponse = jResults.get(0).getAsJsonObject();
+    } else {
+      jResponse = new JsonObject();
+      jResponse.addProperty("multicast_id", nextMessageId.incrementAndGet());
+      jResponse.addProperty("success", recipients.size() - failures);
+      jResponse.addProperty("failure", failures);
+      jResponse.addProperty("canonical_ids", 0);
+      jResponse.add("results", jResults);
+    }
+    respond(exchange, 200, "application/json", gson.toJson(jResponse));
+  }
+
+  private int payloadSize(JsonObject jMessage) {
+    int size = 0;
+    if (jMessage.has("data")) {
+      size += gson.toJson(jMessage.get("data")).length();
+    }
+    if (jMessage.has("notification")) {
+      size += gson.toJson(jMessage.get("notification")).length();
+    }
+    return size;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String contentType, String body)
+      throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,499 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping.tools;
+
+import com.gcm.samples.friendlyping.FriendlyPingServer;
+import com.gcm.samples.friendlyping.GcmHttpSender;
+import com.gcm.samples.friendlyping.Lane;
+import com.gcm.samples.friendlyping.LatencyHistogram;
+import com.gcm.samples.friendlyping.MessageJournal;
+import com.gcm.samples.friendlyping.OutboundQueue;
+import com.gcm.samples.friendlyping.TopicSegments;
+import com.google.gson.JsonObject;
+
+import javax.net.SocketFactory;
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * LoadGenerator simulates a population of devices against a FriendlyPingServer that is connected
+ * to a local FakeCcsServer. Each virtual device registers with register_new_client, receives the
+ * new client broadcast and then pings random registered devices (and occasionally the server
+ * client) with exponentially distributed think time between pings. Every device has at most one
+ * ping in flight, so the offered load adapts to the server like a real user population would.
+ *
+ * At the end of the run throughput, latency percentiles, the time downstream messages spent in
+ * each lane of the server's outbound queue, the server's startup times and JVM CPU and heap usage
+ * are reported. The server runs in this JVM, so CPU and heap figures include the generator itself,
+ * and startup times include starting the stand-in.
+ *
+ * With --blip-every the stand-in drops the server's connection periodically, refusing new
+ * connections for --blip-length milliseconds, and the time until the server is connected again
+ * is reported, along with how many stanzas and messages were sent again to recover.
+ * --stream-management sets whether the stand-in offers XEP-0198 stream management: off (like CCS),
+ * ack for stanza acknowledgement only, or resume to also allow resuming lost streams.
+ *
+ * --segments sets how the server segments new client topics, as FriendlyPingServer's option of
+ * the same name, and --regions the number of regions devices are spread over. Every device
+ * subscribes to the topic named in its client list, and a broadcast is counted as delivered to
+ * each device subscribed to its topic.
+ *
+ * --http-send sends the given message types, as FriendlyPingServer's option of the same name,
+ * to a local FakeGcmHttpServer instead of over CCS, and the HTTP requests made are reported.
+ *
+ * Usage: LoadGenerator [--devices=N] [--duration=SECONDS] [--ramp=SECONDS] [--think=MILLIS]
+ *                      [--server-ping-ratio=R] [--timeout=SECONDS] [--max-payload=BYTES]
+ *                      [--journal=DIRECTORY] [--blip-every=SECONDS] [--blip-length=MILLIS]
+ *                      [--stream-management=off|ack|resume] [--segments=SEGMENTS]
+ *                      [--regions=N] [--http-send=TYPE,...]
+ */
+public class LoadGenerator {
+
+  private static final String SENDER_ID = "load-test";
+  // Token of the built in server client, see FriendlyPingServer.createServerClient.
+  private static final String LARRY_TOKEN = SENDER_ID + "@gcm.googleapis.com";
+
+  // Options, settable from the command line.
+  private int devices = 1000;
+  private int durationSeconds = 60;
+  private int rampSeconds = 10;
+  private long meanThinkMillis = 1000;
+  private double serverPingRatio = 0.05;
+  private int timeoutSeconds = 30;
+  private int maxPayloadBytes = -1;
+  private String journalDirectory;
+  private int blipEverySeconds;
+  private int blipLengthMillis;
+  private FakeCcsServer.StreamManagement streamManagement = FakeCcsServer.StreamManagement.OFF;
+  private TopicSegments topicSegments = TopicSegments.GLOBAL;
+  private int regions = 1;
+  private String httpSendTypes;
+
+  private final ScheduledExecutorService scheduler;
+  private final AtomicReferenceArray<String> registered;
+  private final AtomicInteger registeredCount = new AtomicInteger();
+  // Start times of outstanding registrations, keyed by device token.
+  private final Map<String, Long> pendingRegistrations = new ConcurrentHashMap<String, Long>();
+  // Start times of outstanding pings, keyed by recipient and sender of the expected downstream.
+  private final Map<String, Long> pendingPings = new ConcurrentHashMap<String, Long>();
+
+  private final LatencyHistogram registrationLatency = new LatencyHistogram();
+  private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+  private final LatencyHistogram pingLatency = new LatencyHistogram();
+  private final LatencyHistogram reconnectTime = new LatencyHistogram();
+  private final AtomicLong pingsSent = new AtomicLong();
+  private final AtomicLong pingsLost = new AtomicLong();
+  private final AtomicLong broadcastDeliveries = new AtomicLong();
+  // Number of devices subscribed to each new client topic.
+  private final Map<String, AtomicInteger> topicSubscribers =
+      new ConcurrentHashMap<String, AtomicInteger>();
+
+  private FakeCcsServer ccs;
+  // Null unless messages are sent over HTTP.
+  private FakeGcmHttpServer gcmHttp;
+  private volatile boolean running = true;
+
+  LoadGenerator(Map<String, String> options) {
+    devices = intOption(options, "devices", devices);
+    durationSeconds = intOption(options, "duration", durationSeconds);
+    rampSeconds = intOption(options, "ramp", rampSeconds);
+    meanThinkMillis = intOption(options, "think", (int) meanThinkMillis);
+    timeoutSeconds = intOption(options, "timeout", timeoutSeconds);
+    maxPayloadBytes = intOption(options, "max-payload", maxPayloadBytes);
+    journalDirectory = options.get("journal");
+    blipEverySeconds = intOption(options, "blip-every", blipEverySeconds);
+    blipLengthMillis = intOption(options, "blip-length", blipLengthMillis);
+    if (options.containsKey("stream-management")) {
+      streamManagement = FakeCcsServer.StreamManagement.valueOf(
+          options.get("stream-management").toUpperCase());
+    }
+    if (options.containsKey("segments")) {
+      topicSegments = TopicSegments.parse(options.get("segments"));
+    }
+    // Regions are named AA, AB and so on.
+    regions = Math.max(1, Math.min(26 * 26, intOption(options, "regions", regions)));
+    httpSendTypes = options.get("http-send");
+    if (options.containsKey("server-ping-ratio")) {
+      serverPingRatio = Double.parseDouble(options.get("server-ping-ratio"));
+    }
+    registered = new AtomicReferenceArray<String>(devices);
+    scheduler = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors());
+  }
+
+  private static int intOption(Map<String, String> options, String name, int defaultValue) {
+    return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+  }
+
+  /**
+   * Run the simulation and print a report.
+   */
+  void run() throws Exception {
+    ccs = new FakeCcsServer(0);
+    if (maxPayloadBytes > 0) {
+      ccs.setMaxPayloadBytes(maxPayloadBytes);
+    }
+    ccs.setStreamManagement(streamManagement);
+    ccs.setListener(new FakeCcsServer.Listener() {
+      @Override
+      public void onDownstream(String to, JsonObject message) {
+        handleDownstream(to, message);
+      }
+    });
+    ccs.start();
+    if (httpSendTypes != null) {
+      gcmHttp = new FakeGcmHttpServer(0);
+      if (maxPayloadBytes > 0) {
+        gcmHttp.setMaxPayloadBytes(maxPayloadBytes);
+      }
+      gcmHttp.setListener(new FakeCcsServer.Listener() {
+        @Override
+        public void onDownstream(String to, JsonObject message) {
+          handleDownstream(to, message);
+        }
+      });
+      gcmHttp.start();
+    }
+
+    long startupNanos = System.nanoTime();
+    FriendlyPingServer server = new FriendlyPingServer("load-test-key", SENDER_ID, "127.0.0.1",
+        ccs.getPort(), SocketFactory.getDefault());
+    if (journalDirectory != null) {
+      server.setJournalDirectory(new File(journalDirectory));
+    }
+    server.setTopicSegments(topicSegments);
+    if (gcmHttp != null) {
+      server.getGcmServer().setHttpSender(new GcmHttpSender("load-test-key", gcmHttp.getUrl(),
+          GcmHttpSender.DEFAULT_CONNECTIONS), Arrays.asList(httpSendTypes.split(",")));
+    }
+    try {
+      server.start().get(30, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      throw new IllegalStateException("Server did not connect to the CCS stand-in.");
+    }
+    System.out.printf("Server ready in %d ms%n",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startupNanos));
+    MessageJournal journal = server.getGcmServer().getJournal();
+    if (journal != null) {
+      System.out.printf("Journal replaying %d messages%n", journal.getRecoveredEntries().size());
+    }
+
+    ResourceSampler sampler = new ResourceSampler();
+    scheduler.scheduleAtFixedRate(sampler, 0, 1, TimeUnit.SECONDS);
+
+    // Spread device arrivals uniformly at random over the ramp period.
+    Random random = new Random();
+    for (int i = 0; i < devices; i++) {
+      final String token = "device-" + i;
+      final String region = new String(new char[] {
+          (char) ('A' + (i % regions) / 26), (char) ('A' + (i % regions) % 26)});
+      long delayMillis = rampSeconds == 0 ? 0 : (long) (random.nextDouble() * rampSeconds * 1000);
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          register(token, region);
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    if (blipEverySeconds > 0) {
+      Thread blips = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          runBlips();
+        }
+      }, "LoadGenerator-blips");
+      blips.setDaemon(true);
+      blips.start();
+    }
+
+    long startNanos = System.nanoTime();
+    for (int second = 1; second <= durationSeconds; second++) {
+      Thread.sleep(1000);
+      if (second % 10 == 0) {
+        System.out.printf("[%3ds] registered=%d pings=%d downstream=%d%n", second,
+            registeredCount.get(), pingLatency.count(), ccs.getDownstreamCount());
+      }
+    }
+    running = false;
+    double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+    scheduler.shutdownNow();
+
+    System.out.println();
+    System.out.printf("Devices:        %d (%d registered)%n", devices, registeredCount.get());
+    System.out.printf("Duration:       %.1f s%n", elapsedSeconds);
+    System.out.printf("Registrations:  %.1f/s %s%n",
+        registrationLatency.count() / elapsedSeconds, registrationLatency.summary("us"));
+    System.out.printf("Broadcasts:     %d deliveries over %d topics, %s%n",
+        broadcastDeliveries.get(), topicSubscribers.size(), broadcastLatency.summary("us"));
+    System.out.printf("Pings:          %.1f/s sent=%d lost=%d %s%n",
+        pingLatency.count() / elapsedSeconds, pingsSent.get(), pingsLost.get(),
+        pingLatency.summary("us"));
+    System.out.printf("Downstream:     %d messages (%.1f/s), %d nacked, %d duplicated%n",
+        ccs.getDownstreamCount(), ccs.getDownstreamCount() / elapsedSeconds,
+        ccs.getNackCount(), ccs.getDuplicateDownstreamCount());
+    System.out.printf("Upstream:       %d sent, %d acked, %d redelivered%n",
+        ccs.getUpstreamCount(), ccs.getUpstreamAckCount(), ccs.getUpstreamRedeliveryCount());
+    OutboundQueue outboundQueue = server.getGcmServer().getOutboundQueue();
+    for (Lane lane : Lane.values()) {
+      System.out.printf("Queue %-11s %s%n", lane.name().toLowerCase() + ":",
+          outboundQueue.getQueueTime(lane).summary("us"));
+    }
+    System.out.printf("Expired:        %s%n", outboundQueue.getExpiredCounts());
+    System.out.printf("Outstanding:    %d queued, %d awaiting ack, %d buffered%n",
+        outboundQueue.getQueuedCount(Lane.INTERACTIVE) + outboundQueue.getQueuedCount(Lane.BULK),
+        server.getGcmServer().getPendingCount(),
+        server.getGcmServer().getCcsClient().getBufferedCount());
+    if (gcmHttp != null) {
+      GcmHttpSender sender = server.getGcmServer().getHttpSender();
+      System.out.printf("HTTP:           %d requests for %d recipients, %d errors, %d retried, "
+              + "%s%n", gcmHttp.getRequestCount(), gcmHttp.getDownstreamCount(),
+          gcmHttp.getErrorCount(), sender.getRetryCount(),
+          sender.getRequestLatency().summary("us"));
+    }
+    if (blipEverySeconds > 0) {
+      System.out.printf("Reconnects:     %s%n", reconnectTime.summary("ms"));
+      System.out.printf("Recovery:       %d resumed, %d failed to resume, %d stanzas resent by "
+          + "CCS, %d messages resent by server%n", ccs.getResumedCount(),
+          ccs.getFailedResumptionCount(), ccs.getResentStanzaCount(),
+          server.getGcmServer().getResentCount());
+    }
+    System.out.printf("Startup:        ready %d ms, first ping served %d ms after launch%n",
+        server.getReadyMillis(), server.getFirstPingMillis());
+    long stopNanos = System.nanoTime();
+    server.stop(timeoutSeconds, TimeUnit.SECONDS);
+    System.out.printf("Stop:           %d ms to drain and close%n",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopNanos));
+    if (journal != null) {
+      System.out.printf("Journal:        %d messages not done%n", journal.getLiveCount());
+    }
+    System.out.println(sampler.summary());
+    ccs.close();
+    if (gcmHttp != null) {
+      gcmHttp.close();
+    }
+  }
+
+  /**
+   * Drop the server's connections every blipEverySeconds and record how long the server takes
+   * to connect again.
+   */
+  private void runBlips() {
+    try {
+      while (running) {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(blipEverySeconds));
+        long dropNanos = System.nanoTime();
+        ccs.dropConnections(blipLengthMillis);
+        while (running && ccs.getSessionCount() == 0) {
+          Thread.sleep(5);
+        }
+        if (running) {
+          reconnectTime.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - dropNanos));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void register(String token, String region) {
+    JsonObject jData = new JsonObject();
+    jData.addProperty("action", "register_new_client");
+    jData.addProperty("name", "Virtual " + token);
+    jData.addProperty("registration_token", token);
+    jData.addProperty("profile_picture_url", "https://example.com/" + token + ".jpg");
+    jData.addProperty("region", region);
+    pendingRegistrations.put(token, System.nanoTime());
+    ccs.sendUpstream(token, jData);
+  }
+
+  private void handleDownstream(String to, JsonObject message) {
+    long now = System.nanoTime();
+    JsonObject jData = message.getAsJsonObject("data");
+    String action = jData.get("action").getAsString();
+    if (action.equals("send_client_list")) {
+      Long start = pendingRegistrations.remove(to);
+      if (start != null) {
+        registrationLatency.record(TimeUnit.NANOSECONDS.toMicros(now - start));
+        subscribe(jData.has("topic")
+            ? jData.get("topic").getAsString() : TopicSegments.NEW_CLIENT_TOPIC);
+        registered.set(registeredCount.getAndIncrement(), to);
+        scheduleNextPing(to);
+      }
+    } else if (action.equals("broadcast_new_client")) {
+      // Every registered device is subscribed to the new client topic of its segment.
+      AtomicInteger subscribers = topicSubscribers.get(to);
+      if (subscribers != null) {
+        broadcastDeliveries.addAndGet(subscribers.get());
+      }
+      String newToken =
+          jData.getAsJsonObject("client").get("registration_token").getAsString();
+      Long start = pendingRegistrations.get(newToken);
+      if (start != null) {
+        broadcastLatency.record(TimeUnit.NANOSECONDS.toMicros(now - start));
+      }
+    } else if (action.equals("ping_client")) {
+      String sender = jData.get("sender").getAsString();
+      Long start = pendingPings.remove(to + "|" + sender);
+      if (start != null) {
+        pingLatency.record(TimeUnit.NANOSECONDS.toMicros(now - start));
+        // Pings to the server client are echoed back to the device that sent them.
+        scheduleNextPing(sender.equals(LARRY_TOKEN) ? to : sender);
+      }
+    }
+  }
+
+  private void subscribe(String topic) {
+    AtomicInteger subscribers = topicSubscribers.get(topic);
+    if (subscribers == null) {
+      AtomicInteger newSubscribers = new AtomicInteger();
+      subscribers = topicSubscribers.putIfAbsent(topic, newSubscribers);
+      if (subscribers == null) {
+        subscribers = newSubscribers;
+      }
+    }
+    subscribers.incrementAndGet();
+  }
+
+  private void scheduleNextPing(final String token) {
+    if (!running) {
+      return;
+    }
+    double thinkMillis = -Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanThinkMillis;
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        ping(token);
+      }
+    }, (long) thinkMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void ping(final String sender) {
+    if (!running) {
+      return;
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    String to = null;
+    int count = registeredCount.get();
+    if (random.nextDouble() >= serverPingRatio && count > 1) {
+      to = registered.get(random.nextInt(count));
+      if (sender.equals(to)) {
+        to = null;
+      }
+    }
+    if (to == null) {
+      to = LARRY_TOKEN;
+    }
+    final String key = to.equals(LARRY_TOKEN) ? sender + "|" + LARRY_TOKEN : to + "|" + sender;
+
+    JsonObject jData = new JsonObject();
+    jData.addProperty("action", "ping_client");
+    jData.addProperty("to", to);
+    jData.addProperty("sender", sender);
+    final Long startNanos = System.nanoTime();
+    pendingPings.put(key, startNanos);
+    pingsSent.incrementAndGet();
+    ccs.sendUpstream(sender, jData);
+
+    // A device whose ping never arrives gives up after the timeout and carries on. The device
+    // may have pinged the same recipient again since, which must not be counted as lost.
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (pendingPings.remove(key, startNanos)) {
+          pingsLost.incrementAndGet();
+          scheduleNextPing(sender);
+        }
+      }
+    }, timeoutSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Samples process CPU load, heap usage and GC time once a second.
+   */
+  private static class ResourceSampler implements Runnable {
+    private final com.sun.management.OperatingSystemMXBean os =
+        (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final long startGcMillis = gcMillis();
+    private double cpuSum;
+    private double cpuMax;
+    private int cpuSamples;
+    private long heapMax;
+
+    @Override
+    public synchronized void run() {
+      double cpu = os.getProcessCpuLoad();
+      if (cpu >= 0) {
+        cpuSum += cpu;
+        cpuMax = Math.max(cpuMax, cpu);
+        cpuSamples++;
+      }
+      heapMax = Math.max(heapMax, memory.getHeapMemoryUsage().getUsed());
+    }
+
+    synchronized String summary() {
+      return String.format("JVM:            cpu avg=%.0f%% max=%.0f%% of %d cores, "
+              + "heap max=%d MB, gc=%d ms",
+          cpuSamples == 0 ? 0 : 100 * cpuSum / cpuSamples, 100 * cpuMax,
+          Runtime.getRuntime().availableProcessors(), heapMax / (1024 * 1024),
+          gcMillis() - startGcMillis);
+    }
+
+    private static long gcMillis() {
+      long total = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        total += Math.max(0, gc.getCollectionTime());
+      }
+      return total;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        System.err.println("Unrecognized argument " + arg + ", expected --name=value.");
+        System.exit(1);
+      }
+      options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+    }
+    // Per message logging from the server would dominate the measurement.
+    for (String name : new String[] {"FriendlyPingServer", "GcmServer", "GcmHttpSender",
+        "SmackCssClient", "FakeCcsServer", "FakeGcmHttpServer", "org.jivesoftware"}) {
+      Logger.getLogger(name).setLevel(Level.WARNING);
+    }
+    new LoadGenerator(options).run();
+    System.exit(0);
+  }
+}
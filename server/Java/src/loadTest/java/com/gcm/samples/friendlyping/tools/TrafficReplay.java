@@ -0,0 +1,237 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping.tools;
+
+import com.gcm.samples.friendlyping.FriendlyPingServer;
+import com.gcm.samples.friendlyping.LatencyHistogram;
+import com.gcm.samples.friendlyping.TrafficCapture;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import javax.net.SocketFactory;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TrafficReplay drives a FriendlyPingServer, connected to a local FakeCcsServer, with traffic
+ * captured from a real server with --capture. Upstream messages are sent at the times they were
+ * captured, scaled by --speed (10 replays ten times faster), or as fast as possible with
+ * --speed=max. A nack that says a token is no longer valid makes the stand-in nack every later
+ * message to that token, so clients are dropped as they were in production; acks and other nacks
+ * are only counted, since every other message is acked by the stand-in.
+ *
+ * At the end throughput, how long the server took to ack upstream messages, how long pings took
+ * to be sent on and how far the replay fell behind the captured times are reported, so that the
+ * same capture can compare releases. The server only knows the clients that registered during
+ * the capture, so captures are best started with the server.
+ *
+ * Usage: TrafficReplay CAPTURE [--speed=FACTOR|max] [--timeout=SECONDS]
+ */
+public class TrafficReplay {
+
+  // Sender ID of the server the traffic was captured from, whose server client captured pings
+  // are addressed to.
+  private static final String SENDER_ID = "<SENDER_ID>";
+  // Token of the built in server client, see FriendlyPingServer.createServerClient.
+  private static final String LARRY_TOKEN = SENDER_ID + "@gcm.googleapis.com";
+
+  private final File captureFile;
+  // Factor time is divided by, 0 for as fast as possible.
+  private final double speed;
+  private final int timeoutSeconds;
+
+  // Start times of pings not yet sent on, oldest first, keyed by recipient and sender of the
+  // expected downstream. The same pair may ping again before the first ping is sent on.
+  private final Map<String, Queue<Long>> pendingPings =
+      new ConcurrentHashMap<String, Queue<Long>>();
+  private final LatencyHistogram pingLatency = new LatencyHistogram();
+  // Microseconds each upstream message was sent after its scaled capture time.
+  private final LatencyHistogram replayLag = new LatencyHistogram();
+  private final JsonParser jsonParser = new JsonParser();
+  private long capturedAcks;
+  private long capturedNacks;
+  private long replayedNacks;
+
+  TrafficReplay(File captureFile, double speed, int timeoutSeconds) {
+    this.captureFile = captureFile;
+    this.speed = speed;
+    this.timeoutSeconds = timeoutSeconds;
+  }
+
+  /**
+   * Replay the capture and print a report.
+   */
+  void run() throws Exception {
+    final List<TrafficCapture.Stanza> stanzas = new ArrayList<TrafficCapture.Stanza>();
+    TrafficCapture.read(captureFile, new Consumer<TrafficCapture.Stanza>() {
+      @Override
+      public void accept(TrafficCapture.Stanza stanza) {
+        stanzas.add(stanza);
+      }
+    });
+    if (stanzas.isEmpty()) {
+      System.out.println("The capture is empty.");
+      return;
+    }
+    double capturedSeconds = stanzas.get(stanzas.size() - 1).timeMicros / 1e6;
+    System.out.printf("Replaying %d stanzas captured over %.1f s at %s%n", stanzas.size(),
+        capturedSeconds, speed == 0 ? "full speed" : speed + "x");
+
+    FakeCcsServer ccs = new FakeCcsServer(0);
+    ccs.setListener(new FakeCcsServer.Listener() {
+      @Override
+      public void onDownstream(String to, JsonObject message) {
+        handleDownstream(to, message);
+      }
+    });
+    ccs.start();
+    FriendlyPingServer server = new FriendlyPingServer("replay-key", SENDER_ID, "127.0.0.1",
+        ccs.getPort(), SocketFactory.getDefault());
+    try {
+      server.start().get(30, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      throw new IllegalStateException("Server did not connect to the CCS stand-in.");
+    }
+
+    long startNanos = System.nanoTime();
+    for (TrafficCapture.Stanza stanza : stanzas) {
+      if (speed > 0) {
+        long dueNanos = startNanos + (long) (stanza.timeMicros * 1000 / speed);
+        long waitNanos = dueNanos - System.nanoTime();
+        while (waitNanos > 0) {
+          LockSupport.parkNanos(waitNanos);
+          waitNanos = dueNanos - System.nanoTime();
+        }
+        if (stanza.type == TrafficCapture.TYPE_UPSTREAM) {
+          replayLag.record(TimeUnit.NANOSECONDS.toMicros(-waitNanos));
+        }
+      }
+      replay(ccs, stanza);
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+    while (ccs.getUpstreamAckCount() < ccs.getUpstreamCount() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    server.drain(timeoutSeconds, TimeUnit.SECONDS);
+    double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+
+    System.out.println();
+    System.out.printf("Duration:       %.1f s (captured %.1f s)%n", elapsedSeconds,
+        capturedSeconds);
+    System.out.printf("Upstream:       %d sent (%.1f/s), %d acked, ack latency %s%n",
+        ccs.getUpstreamCount(), ccs.getUpstreamCount() / elapsedSeconds,
+        ccs.getUpstreamAckCount(), ccs.getUpstreamAckLatency().summary("us"));
+    long unseenPings = 0;
+    for (Queue<Long> starts : pendingPings.values()) {
+      unseenPings += starts.size();
+    }
+    System.out.printf("Pings:          %d sent on, %d not seen, %s%n", pingLatency.count(),
+        unseenPings, pingLatency.summary("us"));
+    System.out.printf("Downstream:     %d messages (%.1f/s), %d nacked; captured %d acks, "
+            + "%d nacks, %d replayed%n", ccs.getDownstreamCount(),
+        ccs.getDownstreamCount() / elapsedSeconds, ccs.getNackCount(), capturedAcks,
+        capturedNacks, replayedNacks);
+    if (speed > 0) {
+      System.out.printf("Replay lag:     %s%n", replayLag.summary("us"));
+    }
+    server.stop(timeoutSeconds, TimeUnit.SECONDS);
+    ccs.close();
+  }
+
+  private void replay(FakeCcsServer ccs, TrafficCapture.Stanza stanza) {
+    if (stanza.type == TrafficCapture.TYPE_UPSTREAM) {
+      JsonObject jData = jsonParser.parse(stanza.data).getAsJsonObject();
+      if (jData.has("action") && jData.get("action").getAsString().equals("ping_client")
+          && jData.has("to") && jData.has("sender")) {
+        String to = jData.get("to").getAsString();
+        String sender = jData.get("sender").getAsString();
+        // Pings to the server client are echoed back to the sender.
+        String key = to.equals(LARRY_TOKEN) ? sender + "|" + LARRY_TOKEN : to + "|" + sender;
+        Queue<Long> starts = pendingPings.get(key);
+        if (starts == null) {
+          starts = new ConcurrentLinkedQueue<Long>();
+          pendingPings.put(key, starts);
+        }
+        starts.add(System.nanoTime());
+      }
+      ccs.sendUpstream(stanza.from, jData);
+    } else if (stanza.type == TrafficCapture.TYPE_ACK) {
+      capturedAcks++;
+    } else if (stanza.type == TrafficCapture.TYPE_NACK) {
+      capturedNacks++;
+      if ("DEVICE_UNREGISTERED".equals(stanza.error) || "BAD_REGISTRATION".equals(stanza.error)) {
+        ccs.nackDownstreamTo(stanza.from, stanza.error);
+        replayedNacks++;
+      }
+    }
+  }
+
+  private void handleDownstream(String to, JsonObject message) {
+    JsonObject jData = message.getAsJsonObject("data");
+    if (jData == null || !jData.has("action")
+        || !jData.get("action").getAsString().equals("ping_client")) {
+      return;
+    }
+    Queue<Long> starts = pendingPings.get(to + "|" + jData.get("sender").getAsString());
+    Long start = starts != null ? starts.poll() : null;
+    if (start != null) {
+      pingLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    String capture = null;
+    for (String arg : args) {
+      if (arg.startsWith("--") && arg.contains("=")) {
+        options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+      } else if (!arg.startsWith("--") && capture == null) {
+        capture = arg;
+      } else {
+        System.err.println("Unrecognized argument " + arg + ", expected --name=value.");
+        System.exit(1);
+      }
+    }
+    if (capture == null) {
+      System.err.println("Usage: TrafficReplay CAPTURE [--speed=FACTOR|max] [--timeout=SECONDS]");
+      System.exit(1);
+    }
+    String speed = options.containsKey("speed") ? options.get("speed") : "1";
+    int timeoutSeconds =
+        options.containsKey("timeout") ? Integer.parseInt(options.get("timeout")) : 30;
+    // Per message logging from the server would dominate the measurement.
+    for (String name : new String[] {"FriendlyPingServer", "GcmServer", "SmackCssClient",
+        "FakeCcsServer", "org.jivesoftware"}) {
+      Logger.getLogger(name).setLevel(Level.WARNING);
+    }
+    new TrafficReplay(new File(capture), speed.equals("max") ? 0 : Double.parseDouble(speed),
+        timeoutSeconds).run();
+    System.exit(0);
+  }
+}
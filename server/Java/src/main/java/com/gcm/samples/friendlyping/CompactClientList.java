@@ -0,0 +1,144 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.Deflater;
+
+/**
+ * CompactClientList encodes the clients of a client list for clients that registered with
+ * client_list_format set to FORMAT, so that about twice as many clients fit in a downstream
+ * message.
+ *
+ * Each client is a JSON object with the short keys n for the name, t for the registration token
+ * and p for the profile picture URL. A URL starting with one of URL_PREFIXES has that prefix
+ * left out, and its index in URL_PREFIXES is given in u. The longest host prefix a URL starts
+ * with is used, and only if none matches is just its scheme left out. The JSON array of clients
+ * is compressed with deflate, in the zlib format, and base64 encoded without padding.
+ *
+ * The Android app decodes the list with its own copy of URL_PREFIXES, so prefixes may only be
+ * appended to it; any other change needs a new FORMAT.
+ */
+final class CompactClientList {
+
+  static final String FORMAT = "compact-1";
+
+  // Host prefixes, and the scheme-only prefixes used when no host prefix matches. The order is
+  // the numbering in u, so new prefixes go at the end.
+  static final String[] URL_PREFIXES = {
+      "https://lh3.googleusercontent.com/",
+      "https://lh4.googleusercontent.com/",
+      "https://lh5.googleusercontent.com/",
+      "https://lh6.googleusercontent.com/",
+      "http://placekitten.com/",
+      "https://",
+      "http://"
+  };
+
+  private CompactClientList() {
+  }
+
+  /**
+   * @return The client as an element of the compact array, see the class comment. Null fields
+   * are left out.
+   */
+  static String clientJson(String name, String token, String pictureUrl) {
+    StringBuilder json = new StringBuilder(32 + (name != null ? name.length() : 0)
+        + (token != null ? token.length() : 0) + (pictureUrl != null ? pictureUrl.length() : 0));
+    json.append('{');
+    if (name != null) {
+      appendMember(json, "n", name);
+    }
+    if (token != null) {
+      appendMember(json, "t", token);
+    }
+    if (pictureUrl != null) {
+      int prefix = prefixOf(pictureUrl);
+      if (prefix >= 0) {
+        if (json.length() > 1) {
+          json.append(',');
+        }
+        json.append("\"u\":").append(prefix);
+        appendMember(json, "p", pictureUrl.substring(URL_PREFIXES[prefix].length()));
+      } else {
+        appendMember(json, "p", pictureUrl);
+      }
+    }
+    return json.append('}').toString();
+  }
+
+  /**
+   * Compress a JSON array of clients from clientJson.
+   *
+   * @return The array deflated and base64 encoded, for the compact_clients data field.
+   */
+  static String encode(String jClients) {
+    byte[] input = jClients.getBytes(StandardCharsets.UTF_8);
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(input);
+      deflater.finish();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(input.length / 2 + 64);
+      byte[] buffer = new byte[4096];
+      while (!deflater.finished()) {
+        int count = deflater.deflate(buffer);
+        compressed.write(buffer, 0, count);
+      }
+      return Base64.getEncoder().withoutPadding().encodeToString(compressed.toByteArray());
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * @return Index of the longest host prefix of the URL, else of its scheme-only prefix, or -1.
+   */
+  private static int prefixOf(String url) {
+    int longest = -1;
+    for (int i = 0; i < URL_PREFIXES.length; i++) {
+      String prefix = URL_PREFIXES[i];
+      if (!isSchemeOnly(prefix) && url.startsWith(prefix)
+          && (longest < 0 || prefix.length() > URL_PREFIXES[longest].length())) {
+        longest = i;
+      }
+    }
+    if (longest >= 0) {
+      return longest;
+    }
+    for (int i = 0; i < URL_PREFIXES.length; i++) {
+      if (isSchemeOnly(URL_PREFIXES[i]) && url.startsWith(URL_PREFIXES[i])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isSchemeOnly(String prefix) {
+    return prefix.endsWith("://");
+  }
+
+  private static void appendMember(StringBuilder json, String key, String value) {
+    if (json.length() > 1) {
+      json.append(',');
+    }
+    json.append('"').append(key).append("\":\"");
+    MessageTemplate.appendEscaped(json, value);
+    json.append('"');
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ContactRanker ranks each client's contacts by how often and how recently they pinged each
+ * other, with the weight of a ping halving every half life.
+ *
+ * Every client has a table of at most capacity contacts, so memory is bounded however many
+ * clients a client pings. When the table is full a new contact replaces the one with the lowest
+ * score and starts from that score plus one ping, as in the Space-Saving algorithm: a contact
+ * pinged often enough is never evicted by a stream of one-off contacts, and any contact with more
+ * than a 1/capacity share of a client's recent pings is in its table. Contacts are ranked by
+ * their score less the score they inherited, the pings they are known to have had, so a one-off
+ * contact that just replaced another is not ranked first.
+ *
+ * Decay is forward decay: a ping at time t adds 2^((t - base) / halfLife), so scores of one table
+ * are compared without decaying each of them to the present. The base is moved forward, and the
+ * scores scaled down, before the weights grow too large for a double.
+ */
+public class ContactRanker {
+
+  // Rescale a table once new pings weigh this many half lives more than at its base.
+  private static final double MAX_EXPONENT = 512;
+
+  private static class ContactTable {
+    final String[] contacts;
+    final double[] scores;
+    // Part of each score inherited from the contact it replaced.
+    final double[] errors;
+    int size;
+    long baseMillis;
+
+    ContactTable(int capacity, long nowMillis) {
+      contacts = new String[capacity];
+      scores = new double[capacity];
+      errors = new double[capacity];
+      baseMillis = nowMillis;
+    }
+  }
+
+  private final int capacity;
+  private final double halfLifeMillis;
+  private final Map<String, ContactTable> tables = new ConcurrentHashMap<String, ContactTable>();
+
+  /**
+   * @param capacity Most contacts kept per client, several times the number of contacts asked
+   *                 for so that the top ones are accurate.
+   * @param halfLifeMillis Time after which a ping counts half as much.
+   */
+  public ContactRanker(int capacity, long halfLifeMillis) {
+    if (capacity < 1 || halfLifeMillis < 1) {
+      throw new IllegalArgumentException("Capacity and half life must be positive.");
+    }
+    this.capacity = capacity;
+    this.halfLifeMillis = halfLifeMillis;
+  }
+
+  /**
+   * Record a ping between two clients, which makes each a more relevant contact of the other.
+   */
+  public void recordPing(String senderToken, String recipientToken, long nowMillis) {
+    record(senderToken, recipientToken, nowMillis);
+    record(recipientToken, senderToken, nowMillis);
+  }
+
+  /**
+   * @param token Token of the client.
+   * @param count Most contacts to return.
+   * @return Tokens of the client's most relevant contacts, most relevant first.
+   */
+  public List<String> getTopContacts(String token, int count) {
+    ContactTable table = tables.get(token);
+    if (table == null) {
+      return new ArrayList<String>(0);
+    }
+    String[] contacts;
+    double[] scores;
+    synchronized (table) {
+      contacts = Arrays.copyOf(table.contacts, table.size);
+      scores = new double[table.size];
+      for (int i = 0; i < table.size; i++) {
+        scores[i] = table.scores[i] - table.errors[i];
+      }
+    }
+    // Selection of the top count, tables are small.
+    int top = Math.min(count, contacts.length);
+    List<String> result = new ArrayList<String>(top);
+    for (int i = 0; i < top; i++) {
+      int best = i;
+      for (int j = i + 1; j < contacts.length; j++) {
+        if (scores[j] > scores[best]) {
+          best = j;
+        }
+      }
+      swap(contacts, scores, i, best);
+      result.add(contacts[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Forget a client's own contacts. The client is left in the tables of its contacts, where it
+   * decays like any other contact and is eventually replaced.
+   */
+  public void remove(String token) {
+    tables.remove(token);
+  }
+
+  private void record(String token, String contact, long nowMillis) {
+    ContactTable table = tables.get(token);
+    if (table == null) {
+      ContactTable newTable = new ContactTable(capacity, nowMillis);
+      table = tables.putIfAbsent(token, newTable);
+      if (table == null) {
+        table = newTable;
+      }
+    }
+    synchronized (table) {
+      double exponent = (nowMillis - table.baseMillis) / halfLifeMillis;
+      if (exponent > MAX_EXPONENT) {
+        double scale = Math.pow(2, -exponent);
+        for (int i = 0; i < table.size; i++) {
+          table.scores[i] *= scale;
+          table.errors[i] *= scale;
+        }
+        table.baseMillis = nowMillis;
+        exponent = 0;
+      }
+      // A ping timestamped before the base, if the clock stepped back, weighs as at the base.
+      double weight = Math.pow(2, Math.max(exponent, 0));
+
+      int min = 0;
+      for (int i = 0; i < table.size; i++) {
+        if (table.contacts[i].equals(contact)) {
+          table.scores[i] += weight;
+          return;
+        }
+        if (table.scores[i] < table.scores[min]) {
+          min = i;
+        }
+      }
+      if (table.size < capacity) {
+        table.contacts[table.size] = contact;
+        table.scores[table.size] = weight;
+        table.errors[table.size] = 0;
+        table.size++;
+      } else {
+        table.contacts[min] = contact;
+        table.errors[min] = table.scores[min];
+        table.scores[min] += weight;
+      }
+    }
+  }
+
+  private static void swap(String[] contacts, double[] scores, int i, int j) {
+    String contact = contacts[i];
+    contacts[i] = contacts[j];
+    contacts[j] = contact;
+    double score = scores[i];
+    scores[i] = scores[j];
+    scores[j] = score;
+  }
+}
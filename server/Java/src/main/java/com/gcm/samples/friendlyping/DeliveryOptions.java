@@ -0,0 +1,108 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+/**
+ * DeliveryOptions describe how a type of downstream message is queued and delivered: its Lane,
+ * and the GCM time_to_live, priority and delay_while_idle options. A message whose time to live
+ * passes while it is still queued on this server is dropped instead of being sent.
+ */
+public class DeliveryOptions {
+
+  public static final String PRIORITY_HIGH = "high";
+  public static final String PRIORITY_NORMAL = "normal";
+  // No time_to_live is sent, GCM keeps the message for up to four weeks.
+  public static final int DEFAULT_TIME_TO_LIVE = -1;
+
+  public static final DeliveryOptions DEFAULT =
+      new DeliveryOptions("default", Lane.BULK, DEFAULT_TIME_TO_LIVE, null, false);
+
+  private final String name;
+  private final Lane lane;
+  private final int timeToLiveSeconds;
+  private final String priority;
+  private final boolean delayWhileIdle;
+
+  /**
+   * @param name Name of the message type, used when counting dropped messages.
+   * @param lane Lane the message is queued in.
+   * @param timeToLiveSeconds Seconds the message stays deliverable, or DEFAULT_TIME_TO_LIVE.
+   * @param priority PRIORITY_HIGH, PRIORITY_NORMAL or null to use the GCM default.
+   * @param delayWhileIdle True if GCM should hold the message until the device is active.
+   */
+  public DeliveryOptions(String name, Lane lane, int timeToLiveSeconds, String priority,
+      boolean delayWhileIdle) {
+    this.name = name;
+    this.lane = lane;
+    this.timeToLiveSeconds = timeToLiveSeconds;
+    this.priority = priority;
+    this.delayWhileIdle = delayWhileIdle;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Lane getLane() {
+    return lane;
+  }
+
+  public int getTimeToLiveSeconds() {
+    return timeToLiveSeconds;
+  }
+
+  public String getPriority() {
+    return priority;
+  }
+
+  public boolean isDelayWhileIdle() {
+    return delayWhileIdle;
+  }
+
+  /**
+   * @return True if messages with these options expire while queued. A time to live of zero
+   * means "now or never" to GCM and is left to GCM to enforce.
+   */
+  boolean expires() {
+    return timeToLiveSeconds > 0;
+  }
+
+  /**
+   * Append the GCM delivery options to a serialized downstream message, as Gson would serialize
+   * them after the message's other members.
+   *
+   * @param json Serialized message with at least one member, without its closing brace.
+   * @param remainingSeconds Time to live left after queueing on this server, negative once it
+   * has passed.
+   */
+  void appendTo(StringBuilder json, long remainingSeconds) {
+    if (timeToLiveSeconds >= 0) {
+      // GCM rejects a negative time_to_live. A time to live of zero stays zero however long the
+      // message waited.
+      json.append(",\"time_to_live\":")
+          .append(Math.max(0, Math.min(timeToLiveSeconds, remainingSeconds)));
+    }
+    if (priority != null) {
+      json.append(",\"priority\":\"");
+      MessageTemplate.appendEscaped(json, priority);
+      json.append('"');
+    }
+    if (delayWhileIdle) {
+      json.append(",\"delay_while_idle\":true");
+    }
+  }
+}
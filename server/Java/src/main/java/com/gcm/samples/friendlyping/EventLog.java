@@ -0,0 +1,497 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * EventLog records pings and registrations to disk without holding up the threads that handle
+ * them.
+ *
+ * Events are put in a ring buffer of preallocated slots, with one compare-and-set to claim a slot,
+ * and a single writer thread takes them out in batches. Each batch is encoded as Event messages
+ * of event_log.proto, each preceded by its length as a varint, written with one call and made
+ * durable with one fsync, so the cost of an fsync is shared by all the events that arrived while
+ * the previous one ran. If the writer falls so far behind that the ring is full, events are
+ * dropped and counted rather than blocking the server.
+ *
+ * The log is a directory of segments named after the time they were started. A new segment is
+ * started when the current one reaches maxSegmentBytes or is maxSegmentMillis old, and every time
+ * the log is opened, so old segments can be archived or deleted whole. A crash may leave a
+ * partial record at the end of the last segment, which readers ignore.
+ */
+public class EventLog implements Closeable {
+
+  /**
+   * An event read back from the log.
+   */
+  public static class Event {
+    public final long timeMillis;
+    public final int type;
+    // Sender of a ping, or the client that registered.
+    public final String token;
+    // Recipient of a ping, null for a registration.
+    public final String recipient;
+    // Name of the client that registered, null for a ping.
+    public final String name;
+
+    Event(long timeMillis, int type, String token, String recipient, String name) {
+      this.timeMillis = timeMillis;
+      this.type = type;
+      this.token = token;
+      this.recipient = recipient;
+      this.name = name;
+    }
+  }
+
+  // A preallocated event, published to the writer once sequence is set.
+  private static class Slot {
+    volatile long sequence = -1;
+    long timeMillis;
+    int type;
+    String token;
+    String recipient;
+    String name;
+  }
+
+  private static final Logger logger = Logger.getLogger("EventLog");
+
+  // Values of Event.Type in event_log.proto.
+  public static final int TYPE_PING = 1;
+  public static final int TYPE_REGISTRATION = 2;
+
+  public static final long DEFAULT_MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+  public static final long DEFAULT_MAX_SEGMENT_MILLIS = TimeUnit.HOURS.toMillis(1);
+  static final int RING_SIZE = 1 << 16;
+  // Bytes encoded before a batch is written, unless a single event is larger.
+  static final int BATCH_BYTES = 256 * 1024;
+
+  private static final int RING_MASK = RING_SIZE - 1;
+  private static final String SEGMENT_PREFIX = "events-";
+  private static final String SEGMENT_SUFFIX = ".pb";
+  // Field numbers of Event in event_log.proto.
+  private static final int TIME_MILLIS_FIELD = 1;
+  private static final int TYPE_FIELD = 2;
+  private static final int TOKEN_FIELD = 3;
+  private static final int RECIPIENT_FIELD = 4;
+  private static final int NAME_FIELD = 5;
+  // How long the writer sleeps when the ring is empty.
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final File directory;
+  private final long maxSegmentBytes;
+  private final long maxSegmentMillis;
+  private final Slot[] ring = new Slot[RING_SIZE];
+  // Next sequence to claim, and next sequence the writer will take.
+  private final AtomicLong head = new AtomicLong();
+  private volatile long tail;
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final AtomicLong writtenCount = new AtomicLong();
+  private final LatencyHistogram syncTime = new LatencyHistogram();
+  private final Thread writer;
+  private volatile boolean closed;
+
+  // Owned by the writer thread.
+  private byte[] buffer = new byte[BATCH_BYTES];
+  private FileChannel segment;
+  private long segmentBytes;
+  private long segmentStartMillis;
+
+  private EventLog(File directory, long maxSegmentBytes, long maxSegmentMillis)
+      throws IOException {
+    this.directory = directory;
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.maxSegmentMillis = maxSegmentMillis;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create event log directory " + directory);
+    }
+    for (int i = 0; i < RING_SIZE; i++) {
+      ring[i] = new Slot();
+    }
+    roll(System.currentTimeMillis());
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "EventLog");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Open the log in the given directory, starting a new segment.
+   *
+   * @param directory Directory holding the segments, created if missing.
+   * @param maxSegmentBytes Size at which a new segment is started.
+   * @param maxSegmentMillis Age at which a new segment is started.
+   */
+  public static EventLog open(File directory, long maxSegmentBytes, long maxSegmentMillis)
+      throws IOException {
+    return new EventLog(directory, maxSegmentBytes, maxSegmentMillis);
+  }
+
+  public static EventLog open(File directory) throws IOException {
+    return open(directory, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_MAX_SEGMENT_MILLIS);
+  }
+
+  /**
+   * Record a ping from sender to recipient.
+   *
+   * @return False if the event was dropped because the writer is behind or the log is closed.
+   */
+  public boolean recordPing(String senderToken, String recipientToken, long nowMillis) {
+    return publish(nowMillis, TYPE_PING, senderToken, recipientToken, null);
+  }
+
+  /**
+   * Record the registration of a client.
+   *
+   * @return False if the event was dropped because the writer is behind or the log is closed.
+   */
+  public boolean recordRegistration(String registrationToken, String name, long nowMillis) {
+    return publish(nowMillis, TYPE_REGISTRATION, registrationToken, null, name);
+  }
+
+  private boolean publish(long timeMillis, int type, String token, String recipient,
+      String name) {
+    if (closed) {
+      droppedCount.incrementAndGet();
+      return false;
+    }
+    long sequence;
+    do {
+      sequence = head.get();
+      if (sequence - tail >= RING_SIZE) {
+        droppedCount.incrementAndGet();
+        return false;
+      }
+    } while (!head.compareAndSet(sequence, sequence + 1));
+    Slot slot = ring[(int) (sequence & RING_MASK)];
+    slot.timeMillis = timeMillis;
+    slot.type = type;
+    slot.token = token;
+    slot.recipient = recipient;
+    slot.name = name;
+    slot.sequence = sequence;
+    return true;
+  }
+
+  /**
+   * @return Number of events written and made durable.
+   */
+  public long getWrittenCount() {
+    return writtenCount.get();
+  }
+
+  /**
+   * @return Number of events dropped because the ring was full or the log closed.
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * @return Milliseconds taken by each write and fsync of a batch.
+   */
+  public LatencyHistogram getSyncTime() {
+    return syncTime;
+  }
+
+  /**
+   * Write the events recorded so far and close the log.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      while (true) {
+        // Read before draining, so that no event published before close is left behind.
+        boolean closing = closed;
+        if (!writeBatch() && closing) {
+          break;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      closed = true;
+      logger.log(Level.SEVERE, "Unable to write event log, events are no longer recorded.", e);
+    } finally {
+      try {
+        segment.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to close event log segment.", e);
+      }
+    }
+  }
+
+  /**
+   * Take the published events out of the ring, up to BATCH_BYTES of them, and append them to the
+   * log with one write and one fsync. Parks briefly if there are none.
+   *
+   * @return False if there were no events.
+   */
+  private boolean writeBatch() throws IOException {
+    long sequence = tail;
+    CodedOutputStream output = CodedOutputStream.newInstance(buffer);
+    int count = 0;
+    while (true) {
+      Slot slot = ring[(int) (sequence & RING_MASK)];
+      if (slot.sequence != sequence) {
+        break;
+      }
+      int size = eventSize(slot);
+      int recordSize = CodedOutputStream.computeRawVarint32Size(size) + size;
+      if (recordSize > output.spaceLeft()) {
+        if (count > 0) {
+          break;
+        }
+        // A single event larger than the buffer.
+        buffer = new byte[recordSize];
+        output = CodedOutputStream.newInstance(buffer);
+      }
+      output.writeRawVarint32(size);
+      writeEvent(output, slot);
+      slot.token = null;
+      slot.recipient = null;
+      slot.name = null;
+      sequence++;
+      count++;
+      // Frees the slot for producers, see publish.
+      tail = sequence;
+    }
+    if (count == 0) {
+      if (!closed) {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+      return false;
+    }
+    long startNanos = System.nanoTime();
+    int length = output.getTotalBytesWritten();
+    long nowMillis = System.currentTimeMillis();
+    if (segmentBytes > 0 && (segmentBytes + length > maxSegmentBytes
+        || nowMillis - segmentStartMillis >= maxSegmentMillis)) {
+      roll(nowMillis);
+    }
+    ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+    while (bytes.hasRemaining()) {
+      segment.write(bytes);
+    }
+    segment.force(false);
+    segmentBytes += length;
+    writtenCount.addAndGet(count);
+    syncTime.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    return true;
+  }
+
+  /**
+   * Close the current segment, if any, and start a new one.
+   */
+  private void roll(long nowMillis) throws IOException {
+    if (segment != null) {
+      segment.close();
+    }
+    // Two segments started in the same millisecond are named a millisecond apart.
+    File file = segmentFile(nowMillis);
+    while (file.exists()) {
+      file = segmentFile(++nowMillis);
+    }
+    segment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE);
+    segmentBytes = 0;
+    segmentStartMillis = System.currentTimeMillis();
+  }
+
+  private File segmentFile(long startMillis) {
+    return new File(directory, String.format("%s%019d%s", SEGMENT_PREFIX, startMillis,
+        SEGMENT_SUFFIX));
+  }
+
+  private static int eventSize(Slot slot) {
+    int size = CodedOutputStream.computeInt64Size(TIME_MILLIS_FIELD, slot.timeMillis)
+        + CodedOutputStream.computeEnumSize(TYPE_FIELD, slot.type);
+    if (slot.token != null) {
+      size += CodedOutputStream.computeStringSize(TOKEN_FIELD, slot.token);
+    }
+    if (slot.recipient != null) {
+      size += CodedOutputStream.computeStringSize(RECIPIENT_FIELD, slot.recipient);
+    }
+    if (slot.name != null) {
+      size += CodedOutputStream.computeStringSize(NAME_FIELD, slot.name);
+    }
+    return size;
+  }
+
+  private static void writeEvent(CodedOutputStream output, Slot slot) throws IOException {
+    output.writeInt64(TIME_MILLIS_FIELD, slot.timeMillis);
+    output.writeEnum(TYPE_FIELD, slot.type);
+    if (slot.token != null) {
+      output.writeString(TOKEN_FIELD, slot.token);
+    }
+    if (slot.recipient != null) {
+      output.writeString(RECIPIENT_FIELD, slot.recipient);
+    }
+    if (slot.name != null) {
+      output.writeString(NAME_FIELD, slot.name);
+    }
+  }
+
+  /**
+   * @return The segments of the log in the given directory, oldest first.
+   */
+  public static List<File> segments(File directory) {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    if (files == null) {
+      return new ArrayList<File>(0);
+    }
+    // The start time is zero padded, so names sort by time.
+    Arrays.sort(files);
+    return new ArrayList<File>(Arrays.asList(files));
+  }
+
+  /**
+   * Read the events of a segment, memory mapping it rather than reading it through a stream. A
+   * partial record at the end, left by a crash, is ignored.
+   *
+   * @return Number of events read.
+   */
+  public static long read(File segment, Consumer<Event> consumer) throws IOException {
+    long count = 0;
+    try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      long position = 0;
+      byte[] record = new byte[256];
+      // A mapping is at most 2GB, so large segments are mapped a region at a time.
+      while (position < size) {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position,
+            Math.min(size - position, Integer.MAX_VALUE));
+        int start = 0;
+        while (true) {
+          int length = readLength(mapped);
+          if (length <= 0 || length > mapped.remaining()) {
+            break;
+          }
+          if (length > record.length) {
+            record = new byte[Math.max(length, record.length * 2)];
+          }
+          mapped.get(record, 0, length);
+          consumer.accept(parseEvent(record, length));
+          count++;
+          start = mapped.position();
+        }
+        if (start == 0 || mapped.limit() == size - position) {
+          break;
+        }
+        position += start;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Read a record's varint length from the buffer.
+   *
+   * @return The length, or -1 if the buffer ends within it or it is malformed.
+   */
+  private static int readLength(ByteBuffer buffer) {
+    int length = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      byte b = buffer.get();
+      length |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return length;
+      }
+    }
+    return -1;
+  }
+
+  private static Event parseEvent(byte[] record, int length) throws IOException {
+    CodedInputStream input = CodedInputStream.newInstance(record, 0, length);
+    long timeMillis = 0;
+    int type = 0;
+    String token = null;
+    String recipient = null;
+    String name = null;
+    while (true) {
+      int tag = input.readTag();
+      if (tag == 0) {
+        break;
+      }
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case TIME_MILLIS_FIELD:
+          timeMillis = input.readInt64();
+          break;
+        case TYPE_FIELD:
+          type = input.readEnum();
+          break;
+        case TOKEN_FIELD:
+          token = input.readString();
+          break;
+        case RECIPIENT_FIELD:
+          recipient = input.readString();
+          break;
+        case NAME_FIELD:
+          name = input.readString();
+          break;
+        default:
+          // A field added to event_log.proto after this reader.
+          input.skipField(tag);
+          break;
+      }
+    }
+    return new Event(timeMillis, type, token, recipient, name);
+  }
+}
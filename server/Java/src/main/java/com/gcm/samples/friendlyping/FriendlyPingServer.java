@@ -18,18 +18,49 @@ package com.gcm.samples.friendlyping;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
 import com.google.gson.annotations.SerializedName;
-import com.google.gson.reflect.TypeToken;
+import org.jivesoftware.smack.AbstractConnectionListener;
+import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.util.StringUtils;
 
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,12 +71,25 @@ import java.util.logging.Logger;
 public class FriendlyPingServer {
 
   // FriendlyPing Client.
-  private class Client {
+  static class Client {
     String name;
     @SerializedName("registration_token")
     String registrationToken;
     @SerializedName("profile_picture_url")
     String profilePictureUrl;
+    // Serialized client, cached by clientJson. Gson skips transient fields.
+    transient String json;
+    // Client in the compact client list format, cached by compactClientJson.
+    transient String compactJson;
+    // Whether the client asked for client lists in the CompactClientList format when it
+    // registered.
+    transient boolean compactClientList;
+    // New client topic of the client's segment, null for the server client which is in all.
+    transient String topic;
+    // When the client last sent an upstream message or had a downstream message acked.
+    transient volatile long lastSeenMillis;
+    // Expiry of the client if it stays idle, null for the server client which never expires.
+    transient TimingWheel.Timeout<Client> expiry;
 
     public boolean isValid() {
       return StringUtils.isNotEmpty(name) && StringUtils.isNotEmpty(registrationToken) &&
@@ -56,12 +100,18 @@ public class FriendlyPingServer {
   // FriendlyGcmServer defines onMessage to handle incoming friendly ping messages.
   private class FriendlyGcmServer extends GcmServer {
 
-    public FriendlyGcmServer (String apiKey, String senderId, String serviceName) {
-      super(apiKey, senderId, serviceName);
+    public FriendlyGcmServer (String apiKey, String senderId, String serviceName, String host,
+        int port, SocketFactory socketFactory) {
+      super(apiKey, senderId, serviceName, host, port, socketFactory);
+    }
+
+    FriendlyGcmServer(SmackCcsClient smackCcsClient, SharedExecutors executors, String tenant) {
+      super(smackCcsClient, executors, tenant);
     }
 
     @Override
     public void onMessage(String from, JsonObject jData) {
+      clientSeen(from);
       if (jData.has("action")) {
         String action = jData.get("action").getAsString();
         if (action.equals(REGISTER_NEW_CLIENT)) {
@@ -74,6 +124,27 @@ public class FriendlyPingServer {
           } else {
             logger.info("Unable to ping unless to and sender tokens are available.");
           }
+        } else if (action.equals(PING_LATER)) {
+          onPingLaterMessage(jData);
+        } else if (action.equals(SEARCH_CLIENTS)) {
+          onSearchMessage(jData);
+        } else if (action.equals(PING_HISTORY)) {
+          String senderToken = jData.has(SENDER_KEY) ? jData.get(SENDER_KEY).getAsString() : null;
+          if (StringUtils.isNotEmpty(senderToken) && clientMap.containsKey(senderToken)) {
+            sendPingHistory(senderToken);
+          } else {
+            logger.info("Unable to send ping history to unregistered client " + senderToken);
+          }
+        } else if (action.equals(FREQUENT_CONTACTS)) {
+          String senderToken = jData.has(SENDER_KEY) ? jData.get(SENDER_KEY).getAsString() : null;
+          if (StringUtils.isNotEmpty(senderToken) && clientMap.containsKey(senderToken)) {
+            sendFrequentContacts(senderToken);
+          } else {
+            logger.info("Unable to send frequent contacts to unregistered client " + senderToken);
+          }
+        } else if (action.equals(CREATE_GROUP) || action.equals(JOIN_GROUP)
+            || action.equals(LEAVE_GROUP) || action.equals(PING_GROUP)) {
+          onGroupMessage(action, jData);
         }
       } else {
         logger.info("No action found. Message received missing action.");
@@ -89,39 +160,620 @@ public class FriendlyPingServer {
   // Actions
   private static final String REGISTER_NEW_CLIENT = "register_new_client";
   private static final String BROADCAST_NEW_CLIENT = "broadcast_new_client";
+  private static final String BROADCAST_REMOVED_CLIENTS = "broadcast_removed_clients";
   private static final String SEND_CLIENT_LIST = "send_client_list";
   private static final String PING_CLIENT = "ping_client";
+  private static final String CREATE_GROUP = "create_group";
+  private static final String JOIN_GROUP = "join_group";
+  private static final String LEAVE_GROUP = "leave_group";
+  private static final String PING_GROUP = "ping_group";
+  private static final String SEARCH_CLIENTS = "search_clients";
+  private static final String FREQUENT_CONTACTS = "frequent_contacts";
+  private static final String PING_HISTORY = "ping_history";
+  private static final String PING_LATER = "ping_later";
   // Keys
   private static final String ACTION_KEY = "action";
   private static final String CLIENT_KEY = "client";
   private static final String CLIENTS_KEY = "clients";
+  private static final String COMPACT_CLIENTS_KEY = "compact_clients";
+  private static final String CLIENT_LIST_FORMAT_KEY = "client_list_format";
   private static final String DATA_KEY = "data";
   private static final String SENDER_KEY = "sender";
+  private static final String GROUP_KEY = "group";
+  private static final String MEMBERS_KEY = "members";
+  private static final String REGION_KEY = "region";
+  private static final String TOPIC_KEY = "topic";
+  private static final String QUERY_KEY = "query";
+  private static final String CURSOR_KEY = "cursor";
+  private static final String NEXT_KEY = "next";
+  private static final String PINGS_KEY = "pings";
+  private static final String NAME_KEY = "name";
+  private static final String TIME_KEY = "time";
+  private static final String DELAY_KEY = "delay";
 
-  private static final String NEW_CLIENT_TOPIC = "/topics/newclient";
   private static final String PING_TITLE = "Friendly Ping!";
   private static final String PING_ICON = "mipmap/ic_launcher";
   private static final String CLICK_ACTION = "ping_received";
 
+  // Messages serialized ahead of time, with slots for what varies, see MessageTemplate.
+  private static final MessageTemplate CLIENT_TEMPLATE = new MessageTemplate(
+      new Gson().toJsonTree(createClient("{{name}}", "{{registration_token}}",
+          "{{profile_picture_url}}")).getAsJsonObject(),
+      "name", "registration_token", "profile_picture_url");
+  private static final MessageTemplate BROADCAST_TEMPLATE = new MessageTemplate(
+      createBroadcast(new JsonPrimitive("{{client:json}}")), "client");
+  private static final MessageTemplate REMOVED_CLIENTS_TEMPLATE = new MessageTemplate(
+      createRemovedClients(new JsonPrimitive("{{clients:json}}")), "clients");
+  private static final MessageTemplate CLIENT_LIST_TEMPLATE = new MessageTemplate(
+      createClientList(new JsonPrimitive("{{clients:json}}"), "{{topic}}"), "clients", "topic");
+  private static final MessageTemplate COMPACT_CLIENT_LIST_TEMPLATE = new MessageTemplate(
+      createCompactClientList("{{clients}}", "{{topic}}"), "clients", "topic");
+  private static final MessageTemplate SEARCH_RESULTS_TEMPLATE = new MessageTemplate(
+      createSearchResults("{{query}}", new JsonPrimitive("{{clients:json}}"), "{{next}}"),
+      "query", "clients", "next");
+  private static final MessageTemplate FREQUENT_CONTACTS_TEMPLATE = new MessageTemplate(
+      createFrequentContacts(new JsonPrimitive("{{clients:json}}")), "clients");
+  private static final MessageTemplate PING_HISTORY_TEMPLATE = new MessageTemplate(
+      createPingHistory(new JsonPrimitive("{{pings:json}}")), "pings");
+  private static final MessageTemplate PING_TEMPLATE =
+      new MessageTemplate(createPing("{{sender}}", "{{name}}"), "sender", "name");
+
+  // Delivery options per message type. A ping is only worth delivering for a few minutes, the
+  // new client broadcast need not wake idle devices and the client list is needed while the new
+  // client is setting up.
+  private static final DeliveryOptions PING_OPTIONS = new DeliveryOptions("ping",
+      Lane.INTERACTIVE, 5 * 60, DeliveryOptions.PRIORITY_HIGH, false);
+  private static final DeliveryOptions BROADCAST_OPTIONS = new DeliveryOptions("broadcast",
+      Lane.BULK, 24 * 60 * 60, DeliveryOptions.PRIORITY_NORMAL, true);
+  private static final DeliveryOptions REMOVED_CLIENTS_OPTIONS = new DeliveryOptions(
+      "removed_clients", Lane.BULK, 24 * 60 * 60, DeliveryOptions.PRIORITY_NORMAL, true);
+  private static final DeliveryOptions CLIENT_LIST_OPTIONS = new DeliveryOptions("client_list",
+      Lane.BULK, 60 * 60, DeliveryOptions.PRIORITY_HIGH, false);
+  // Search results are only of use while the user waits for them.
+  private static final DeliveryOptions SEARCH_RESULTS_OPTIONS = new DeliveryOptions(
+      "search_results", Lane.INTERACTIVE, 60, DeliveryOptions.PRIORITY_HIGH, false);
+  private static final DeliveryOptions FREQUENT_CONTACTS_OPTIONS = new DeliveryOptions(
+      "frequent_contacts", Lane.INTERACTIVE, 60, DeliveryOptions.PRIORITY_HIGH, false);
+  private static final DeliveryOptions PING_HISTORY_OPTIONS = new DeliveryOptions(
+      "ping_history", Lane.INTERACTIVE, 60, DeliveryOptions.PRIORITY_HIGH, false);
+
+  // Most clients in a page of search results, which must fit in a downstream message.
+  static final int SEARCH_PAGE_SIZE = 10;
+  // Longest query searched for, longer ones are cut.
+  static final int MAX_QUERY_LENGTH = 64;
+  // Number of frequent contacts sent, and listed first in the client list.
+  static final int FREQUENT_CONTACTS_COUNT = 10;
+  // Contacts tracked per client, enough for the most frequent ones to be ranked accurately.
+  static final int CONTACTS_PER_CLIENT = 32;
+  // A ping counts half as much as a week ago as it does today.
+  static final long CONTACT_HALF_LIFE_MILLIS = TimeUnit.DAYS.toMillis(7);
+  // Pings are remembered for a day, in hourly buckets, in at most this much direct memory.
+  static final int PING_HISTORY_BYTES = 32 * 1024 * 1024;
+  static final int PING_HISTORY_BUCKETS = 24;
+  static final long PING_HISTORY_BUCKET_MILLIS = TimeUnit.HOURS.toMillis(1);
+  // Most pings sent in reply to ping_history, which must fit in a downstream message.
+  static final int PING_HISTORY_COUNT = 10;
+  // Longest a ping can be scheduled ahead.
+  static final long MAX_PING_DELAY_SECONDS = TimeUnit.DAYS.toSeconds(7);
+  // Scheduled pings that come due this late, e.g. after the server was down, are dropped.
+  static final long MAX_PING_LATENESS_MILLIS = TimeUnit.HOURS.toMillis(1);
+  // Clients idle for this long are removed, unless set otherwise with setClientTtl.
+  public static final long DEFAULT_CLIENT_TTL_DAYS = 30;
+  // Resolution of client expiry.
+  static final long EXPIRY_TICK_MILLIS = 1000;
+  // Most tokens in one broadcast of removed clients, which must fit in a downstream message.
+  static final int REMOVED_CLIENTS_PER_MESSAGE = 16;
+
   public static final String SERVICE_NAME = "Friendly Ping Server";
 
+  // How long stop waits for queued and unacked messages by default, as long as the ack timeout.
+  public static final long DEFAULT_DRAIN_TIMEOUT_SECONDS = 30;
+
+  // How many times start runs each codec on sample messages. Enough for the JIT to compile the
+  // hot paths, and short enough to finish while the CCS handshake is still going on.
+  static final int WARM_UP_ITERATIONS = 200;
+
   // Store of clients registered with FriendlyPingServer.
   private Map<String, Client> clientMap;
+  // Most relevant contacts of each client, by pings between them.
+  private final ContactRanker contactRanker =
+      new ContactRanker(CONTACTS_PER_CLIENT, CONTACT_HALF_LIFE_MILLIS);
+  // Recent pings to each client.
+  private final PingHistory pingHistory;
+  // Ping and registration activity, for the metrics endpoint.
+  private final PingAnalytics analytics = new PingAnalytics();
+  // Log of pings and registrations, null if events are not logged.
+  private volatile EventLog eventLog;
+  // Registered clients by name, kept in step with clientMap.
+  private final NamePrefixIndex<Client> nameIndex = new NamePrefixIndex<Client>();
+  // Segments of clients, each with its own new client topic.
+  private volatile TopicSegments topicSegments = TopicSegments.GLOBAL;
+  // Groups of registered clients that can be pinged with one upstream message.
+  private final GroupRegistry groups = new GroupRegistry();
+  // Notification keys of groups, null if groups are always pinged member by member.
+  private volatile NotificationKeys notificationKeys;
+  // Held while a group is changed and the change is reported to the notification keys, so that
+  // their requests are queued in the order of the changes. A join must not reach the keys before
+  // the create of its group, which would find no key and drop it.
+  private final Object groupChangeLock = new Object();
+  // How long a client may stay idle before it is removed, 0 if clients never expire.
+  private volatile long clientTtlMillis = TimeUnit.DAYS.toMillis(DEFAULT_CLIENT_TTL_DAYS);
+  // Expiries of the registered clients.
+  private final TimingWheel<Client> expiries =
+      new TimingWheel<Client>(EXPIRY_TICK_MILLIS, System.currentTimeMillis());
+  // Advances expiries, started by start. The executor is null if expiries advance on the
+  // shared executors.
+  private ScheduledExecutorService expiryExecutor;
+  private ScheduledFuture<?> expiryChecks;
+  // Pings scheduled for later, replaced by a persistent scheduler if there is a schedule
+  // directory.
+  private volatile PingScheduler pingScheduler =
+      new PingScheduler(PingScheduler.DEFAULT_TICK_MILLIS);
   // Listener responsible for handling incoming registrations and pings.
   private FriendlyGcmServer friendlyGcmServer;
 
+  // Token of the server client, which is the server's own JID.
+  private final String serverClientToken;
+  // Name of the tenant served, and the executors shared with the servers of other tenants, null
+  // if the server runs its background work on its own threads.
+  private final String tenant;
+  private final SharedExecutors executors;
+
   // Gson helper to assist with going to and from JSON and Client.
   private Gson gson;
+  // Ping from the server client, which is always the same.
+  private String serverPing;
+
+  // Directory of the message journal opened by start, null if messages are not journaled.
+  private File journalDirectory;
+  // Directory of the ping schedule opened by start, null if scheduled pings are not persisted.
+  private File scheduleDirectory;
+  // Directory of the event log opened by start, null if events are not logged.
+  private File eventLogDirectory;
+  // Completed once the state is loaded, the codecs are warmed up and CCS is connected.
+  private final CompletableFuture<Void> ready = new CompletableFuture<Void>();
+  private boolean started;
+  // Milliseconds after launch at which the server was first ready and served its first ping.
+  private volatile long readyMillis = -1;
+  private final AtomicLong firstPingMillis = new AtomicLong(-1);
+
+  // Counted down once stop has finished.
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private volatile boolean stopping;
 
   public FriendlyPingServer(String apiKey, String senderId) {
+    this(apiKey, senderId, GcmServer.GCM_HOST, GcmServer.GCM_CCS_PORT,
+        SSLSocketFactory.getDefault());
+  }
+
+  /**
+   * Create a FriendlyPingServer for the CCS endpoint at host and port, for example a local CCS
+   * stand-in used by the load generator. No connection is made until start is called.
+   */
+  public FriendlyPingServer(String apiKey, String senderId, String host, int port,
+      SocketFactory socketFactory) {
+    this(senderId, PING_HISTORY_BYTES, null, null);
+    friendlyGcmServer =
+        new FriendlyGcmServer(apiKey, senderId, SERVICE_NAME, host, port, socketFactory);
+  }
+
+  /**
+   * Create a FriendlyPingServer for one of several tenants served by this process, see Tenant.
+   * Its connection to CCS, clients and limits are its own, its background work runs on the
+   * given shared executors. No connection is made until start is called.
+   */
+  public FriendlyPingServer(Tenant tenant, SharedExecutors executors) {
+    this(tenant, GcmServer.GCM_HOST, GcmServer.GCM_CCS_PORT, SSLSocketFactory.getDefault(),
+        executors);
+  }
+
+  /**
+   * Create a FriendlyPingServer for one of several tenants, for the CCS endpoint at host and
+   * port, for example a local CCS stand-in.
+   */
+  public FriendlyPingServer(Tenant tenant, String host, int port, SocketFactory socketFactory,
+      SharedExecutors executors) {
+    this(tenant.getSenderId(), tenant.getPingHistoryBytes(), tenant.getName(), executors);
+    friendlyGcmServer = new FriendlyGcmServer(new SmackCcsClient(tenant.getApiKey(),
+        tenant.getSenderId() + "@" + GcmServer.GCM_HOST, SERVICE_NAME, host, port,
+        socketFactory), executors, tenant.getName());
+    friendlyGcmServer.getOutboundQueue().setWindow(tenant.getMaxInFlight(),
+        tenant.getInteractiveReserve());
+  }
+
+  /**
+   * Create a FriendlyPingServer that uses the given SmackCcsClient without connecting it. This
+   * allows the handlers to be exercised without a CCS connection, for example by benchmarks.
+   */
+  FriendlyPingServer(SmackCcsClient smackCcsClient) {
+    this(SENDER_ID, PING_HISTORY_BYTES, null, null);
+    friendlyGcmServer = new FriendlyGcmServer(smackCcsClient, null, null);
+  }
+
+  private FriendlyPingServer(String senderId, int pingHistoryBytes, String tenant,
+      SharedExecutors executors) {
+    serverClientToken = senderId + "@" + GcmServer.GCM_HOST;
+    this.tenant = tenant;
+    this.executors = executors;
+    pingHistory =
+        new PingHistory(pingHistoryBytes, PING_HISTORY_BUCKETS, PING_HISTORY_BUCKET_MILLIS);
     clientMap = new ConcurrentHashMap<String, Client>();
 
     Client serverClient = createServerClient();
     clientMap.put(serverClient.registrationToken, serverClient);
+    nameIndex.put(serverClient.name, serverClient.registrationToken, serverClient);
+    serverPing = PING_TEMPLATE.render(serverClient.registrationToken, serverClient.name);
 
     gson = new GsonBuilder().create();
+  }
+
+  public GcmServer getGcmServer() {
+    return friendlyGcmServer;
+  }
+
+  /**
+   * @return Name of the tenant served, null unless created for a Tenant.
+   */
+  public String getTenant() {
+    return tenant;
+  }
+
+  /**
+   * Journal downstream messages in the given directory. Messages left unacked by a crash are
+   * sent again. Must be called before start, which opens the journal.
+   */
+  public void setJournalDirectory(File journalDirectory) {
+    this.journalDirectory = journalDirectory;
+  }
 
-    friendlyGcmServer = new FriendlyGcmServer(apiKey, senderId, SERVICE_NAME);
+  /**
+   * Persist pings scheduled with ping_later in the given directory, so they survive restarts.
+   * Must be called before start, which opens the schedule.
+   */
+  public void setScheduleDirectory(File scheduleDirectory) {
+    this.scheduleDirectory = scheduleDirectory;
+  }
+
+  /**
+   * Log every ping and registration in the given directory, see EventLog. Must be called before
+   * start, which opens the log.
+   */
+  public void setEventLogDirectory(File eventLogDirectory) {
+    this.eventLogDirectory = eventLogDirectory;
+  }
+
+  /**
+   * @return The log of pings and registrations, null if events are not logged.
+   */
+  public EventLog getEventLog() {
+    return eventLog;
+  }
+
+  /**
+   * @return The scheduler of pings sent with ping_later, valid once the server is ready.
+   */
+  public PingScheduler getPingScheduler() {
+    return pingScheduler;
+  }
+
+  /**
+   * Segment the new client broadcast, see TopicSegments. Clients registered before the segments
+   * change keep their topic. Must be called before start.
+   */
+  public void setTopicSegments(TopicSegments topicSegments) {
+    this.topicSegments = topicSegments;
+  }
+
+  /**
+   * Map groups to GCM notification keys, so that a group ping is a single downstream message
+   * fanned out by GCM. Without notification keys, or while a group has none, group pings are
+   * sent to each member. Must be called before start.
+   */
+  public void setNotificationKeys(NotificationKeys notificationKeys) {
+    this.notificationKeys = notificationKeys;
+  }
+
+  /**
+   * Remove clients that have neither sent an upstream message nor had a downstream message acked
+   * for the given time, and tell the other clients of their segment. Must be called before start.
+   *
+   * @param ttl Time a client may stay idle, 0 for clients to never expire.
+   */
+  public void setClientTtl(long ttl, TimeUnit unit) {
+    clientTtlMillis = unit.toMillis(ttl);
+  }
+
+  /**
+   * @return Ping and registration activity.
+   */
+  public PingAnalytics getAnalytics() {
+    return analytics;
+  }
+
+  /**
+   * @return The groups of registered clients.
+   */
+  public GroupRegistry getGroups() {
+    return groups;
+  }
+
+  /**
+   * Start the server. Connecting to CCS, which takes several round trips, loading the state the
+   * handlers need and warming up the codecs all happen in parallel. Upstream messages arriving
+   * before the state is loaded are held until it is. Calls after the first return the same
+   * future.
+   *
+   * @return Future completed once the server is ready for traffic, or failed if the state could
+   * not be loaded.
+   */
+  public synchronized CompletableFuture<Void> start() {
+    if (started) {
+      return ready;
+    }
+    started = true;
+    final ExecutorService ownStartupExecutor = executors != null ? null
+        : Executors.newFixedThreadPool(2, new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FriendlyPingServer-startup");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    Executor startupExecutor =
+        executors != null ? executors.workersFor(tenant) : ownStartupExecutor;
+    final CompletableFuture<Void> stateLoaded = new CompletableFuture<Void>();
+    friendlyGcmServer.holdUpstreamUntil(stateLoaded);
+    CompletableFuture<Void> loaded = CompletableFuture.runAsync(new Runnable() {
+      @Override
+      public void run() {
+        loadState(stateLoaded);
+      }
+    }, startupExecutor);
+
+    final CompletableFuture<Void> connected = new CompletableFuture<Void>();
+    friendlyGcmServer.getCcsClient().addConnectionListener(new AbstractConnectionListener() {
+      @Override
+      public void authenticated(XMPPConnection connection, boolean resumed) {
+        connected.complete(null);
+      }
+    });
+    friendlyGcmServer.start();
+    startExpiry();
+
+    CompletableFuture<Void> warmedUp = CompletableFuture.runAsync(new Runnable() {
+      @Override
+      public void run() {
+        long startNanos = System.nanoTime();
+        warmUp(WARM_UP_ITERATIONS);
+        logger.info("Warmed up in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms.");
+      }
+    }, startupExecutor);
+
+    CompletableFuture<Void> prepared = CompletableFuture.allOf(loaded, warmedUp);
+    prepared.whenComplete(new BiConsumer<Void, Throwable>() {
+      @Override
+      public void accept(Void ignored, Throwable throwable) {
+        if (ownStartupExecutor != null) {
+          ownStartupExecutor.shutdown();
+        }
+        if (throwable != null) {
+          Throwable cause = throwable instanceof CompletionException
+              ? throwable.getCause() : throwable;
+          stateLoaded.completeExceptionally(cause);
+          ready.completeExceptionally(cause);
+        }
+      }
+    });
+    CompletableFuture.allOf(prepared, connected).thenRun(new Runnable() {
+      @Override
+      public void run() {
+        readyMillis = millisSinceLaunch();
+        logger.info("Ready " + readyMillis + " ms after launch.");
+        ready.complete(null);
+      }
+    });
+    return ready;
+  }
+
+  /**
+   * Load the state the handlers need: the event log, the ping schedule and the message journal,
+   * if any, whose recovery reads their logs. Upstream messages are held until stateLoaded is
+   * completed, the messages the last run left unacked are queued after that.
+   */
+  private void loadState(CompletableFuture<Void> stateLoaded) {
+    if (eventLogDirectory != null) {
+      try {
+        eventLog = EventLog.open(eventLogDirectory);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to open the event log.", e);
+      }
+    }
+    if (scheduleDirectory != null) {
+      long startNanos = System.nanoTime();
+      try {
+        pingScheduler = PingScheduler.open(scheduleDirectory, PingScheduler.DEFAULT_TICK_MILLIS);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to open the ping schedule.", e);
+      }
+      logger.info("Loaded the ping schedule in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms.");
+    }
+    if (journalDirectory == null) {
+      startScheduler();
+      stateLoaded.complete(null);
+      return;
+    }
+    long startNanos = System.nanoTime();
+    MessageJournal journal;
+    try {
+      journal = MessageJournal.open(journalDirectory);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to open the message journal.", e);
+    }
+    friendlyGcmServer.setJournal(journal);
+    // Pings already due fire as soon as the scheduler starts, they must be journaled.
+    startScheduler();
+    stateLoaded.complete(null);
+    logger.info("Loaded the journal in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms.");
+    int resent = friendlyGcmServer.resendRecovered();
+    if (resent > 0) {
+      logger.info("Resending " + resent + " messages left unacked by the last run.");
+    }
+  }
+
+  private void startScheduler() {
+    pingScheduler.start(new Consumer<List<PingScheduler.ScheduledPing>>() {
+      @Override
+      public void accept(List<PingScheduler.ScheduledPing> batch) {
+        fireScheduledPings(batch, System.currentTimeMillis());
+      }
+    });
+  }
+
+  /**
+   * Run the codecs of the handlers and of the GcmServer on sample messages, see
+   * GcmServer.warmUp. Nothing is sent and the registered clients are left unchanged.
+   *
+   * @param iterations Number of times each codec is run.
+   */
+  void warmUp(int iterations) {
+    Client sample = createServerClient();
+    JsonObject jRegistration = gson.toJsonTree(sample).getAsJsonObject();
+    jRegistration.addProperty(ACTION_KEY, REGISTER_NEW_CLIENT);
+    for (int i = 0; i < iterations; i++) {
+      Client client = gson.fromJson(jRegistration, Client.class);
+      client.isValid();
+      client.topic = topicSegments.topicOf(client.registrationToken, null);
+      String jClient = clientJson(client);
+      BROADCAST_TEMPLATE.render(jClient);
+      CLIENT_LIST_TEMPLATE.render("[" + jClient + "]", client.topic);
+      PING_TEMPLATE.render(client.registrationToken, client.name);
+    }
+
+    JsonObject jPingClient = new JsonObject();
+    jPingClient.addProperty(ACTION_KEY, PING_CLIENT);
+    jPingClient.addProperty("to", sample.registrationToken);
+    jPingClient.addProperty(SENDER_KEY, sample.registrationToken);
+    friendlyGcmServer.warmUp(iterations, jPingClient, serverPing, PING_OPTIONS);
+  }
+
+  /**
+   * @return True unless the server failed to start or has stopped, either way it should be
+   * restarted. A server that is still starting, reconnecting or draining is live.
+   */
+  public boolean isLive() {
+    return !ready.isCompletedExceptionally() && stopped.getCount() > 0;
+  }
+
+  /**
+   * @return True if the server is ready for traffic: started, warmed up and connected to CCS, and
+   * not stopping.
+   */
+  public boolean isReady() {
+    return ready.isDone() && !ready.isCompletedExceptionally() && !stopping
+        && friendlyGcmServer.getCcsClient().isConnected();
+  }
+
+  /**
+   * @return Milliseconds from launching the JVM until the server was first ready, or -1 if it
+   * has not been ready yet.
+   */
+  public long getReadyMillis() {
+    return readyMillis;
+  }
+
+  /**
+   * @return Milliseconds from launching the JVM until CCS acked the first ping, or -1 if no ping
+   * has been served yet.
+   */
+  public long getFirstPingMillis() {
+    return firstPingMillis.get();
+  }
+
+  private static long millisSinceLaunch() {
+    return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+  }
+
+  /**
+   * Stop accepting upstream messages, which CCS then delivers to other servers, and wait for the
+   * downstream messages already queued or sent to be acked.
+   *
+   * @return True if drained, false if the timeout passed first.
+   */
+  public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+    return friendlyGcmServer.drain(timeout, unit);
+  }
+
+  /**
+   * Drain, then close the message journal, the connection to CCS and the event log, in that
+   * order. Messages not acked when the timeout passes are left in the journal, if there is one,
+   * for the next run to send. Calls after the first wait for it to finish.
+   */
+  public void stop(long timeout, TimeUnit unit) {
+    synchronized (this) {
+      if (stopping) {
+        awaitStopped();
+        return;
+      }
+      stopping = true;
+    }
+    long startNanos = System.nanoTime();
+    try {
+      // Pings coming due now would only add to what is being drained, they are sent by the
+      // next run.
+      pingScheduler.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to close the ping schedule.", e);
+    }
+    try {
+      if (!drain(timeout, unit)) {
+        logger.warning("Stopping with " + friendlyGcmServer.getQueuedCount() + " queued and "
+            + friendlyGcmServer.getPendingCount() + " unacked messages.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (expiryChecks != null) {
+      expiryChecks.cancel(false);
+    }
+    if (expiryExecutor != null) {
+      expiryExecutor.shutdownNow();
+    }
+    friendlyGcmServer.close();
+    if (notificationKeys != null) {
+      notificationKeys.close();
+    }
+    if (eventLog != null) {
+      try {
+        eventLog.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to close the event log.", e);
+      }
+    }
+    logger.info("Stopped in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+        + " ms.");
+    stopped.countDown();
+  }
+
+  /**
+   * Wait until stop has finished.
+   */
+  public void awaitStopped() {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        stopped.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   /**
@@ -130,86 +782,649 @@ public class FriendlyPingServer {
    * @return Server Client.
    */
   private Client createServerClient() {
+    return createClient("Larry", serverClientToken,
+        "https://lh3.googleusercontent.com/-Y86IN-vEObo/AAAAAAAAAAI/AAAAAAADO1I/QzjOGHq5kNQ/photo.jpg?sz=50");
+  }
+
+  private static Client createClient(String name, String registrationToken,
+      String profilePictureUrl) {
     Client client = new Client();
-    client.name = "Larry";
-    client.registrationToken = SENDER_ID + "@gcm.googleapis.com";
-    client.profilePictureUrl =
-        "https://lh3.googleusercontent.com/-Y86IN-vEObo/AAAAAAAAAAI/AAAAAAADO1I/QzjOGHq5kNQ/photo.jpg?sz=50";
+    client.name = name;
+    client.registrationToken = registrationToken;
+    client.profilePictureUrl = profilePictureUrl;
     return client;
   }
 
+  /**
+   * @return The client serialized like Gson serializes it, cached after the first call.
+   */
+  private String clientJson(Client client) {
+    String json = client.json;
+    if (json == null) {
+      if (client.name != null && client.registrationToken != null
+          && client.profilePictureUrl != null) {
+        json = CLIENT_TEMPLATE.render(client.name, client.registrationToken,
+            client.profilePictureUrl);
+      } else {
+        // Gson leaves out null fields, which the template cannot.
+        json = gson.toJson(client);
+      }
+      client.json = json;
+    }
+    return json;
+  }
+
+  /**
+   * @return The client in the compact client list format, cached after the first call.
+   */
+  private String compactClientJson(Client client) {
+    String json = client.compactJson;
+    if (json == null) {
+      json = CompactClientList.clientJson(client.name, client.registrationToken,
+          client.profilePictureUrl);
+      client.compactJson = json;
+    }
+    return json;
+  }
+
   /**
    * Create Client from given JSON data, add client to client list, broadcast newly registered
    * client to all previously registered clients and send client list to new client.
    *
    * @param jData JSON data containing properties of new Client.
    */
-  private void registerNewClient(JsonObject jData) {
-    Client newClient = gson.fromJson(jData, Client.class);
+  void registerNewClient(JsonObject jData) {
+    final Client newClient = gson.fromJson(jData, Client.class);
     if (newClient.isValid()) {
+      String region = jData.has(REGION_KEY) ? jData.get(REGION_KEY).getAsString() : null;
+      newClient.topic = topicSegments.topicOf(newClient.registrationToken, region);
+      newClient.compactClientList = jData.has(CLIENT_LIST_FORMAT_KEY)
+          && CompactClientList.FORMAT.equals(jData.get(CLIENT_LIST_FORMAT_KEY).getAsString());
       addClient(newClient);
-      broadcastNewClient(newClient);
-      sendClientList(newClient);
+      long nowMillis = System.currentTimeMillis();
+      analytics.recordRegistration(newClient.registrationToken, nowMillis);
+      EventLog eventLog = this.eventLog;
+      if (eventLog != null) {
+        eventLog.recordRegistration(newClient.registrationToken, newClient.name, nowMillis);
+      }
+      // The broadcast and the client list are sent concurrently. If CCS reports that the new
+      // client's token is invalid it is removed again so it is not offered to other clients.
+      CompletableFuture<String> broadcast = broadcastNewClient(newClient);
+      CompletableFuture<String> clientList = sendClientList(newClient);
+      clientList.whenComplete(updateClientOnDeliveryReport(newClient.registrationToken));
+      CompletableFuture.allOf(broadcast, clientList).whenComplete(
+          new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, Throwable throwable) {
+              if (throwable != null) {
+                logger.log(Level.WARNING, "Registration of " + newClient.name
+                    + " was not fully delivered.", throwable);
+              }
+            }
+          });
     } else {
       logger.log(Level.WARNING, "Could not unpack received data into a Client.");
     }
   }
 
   /**
-   * Add given client to Map of Clients.
+   * Add given client to Map of Clients. A client without a topic is put in the segment of its
+   * token and no region. The client is seen now, and expires once it has been idle for the
+   * client TTL.
    *
    * @param client Client to be added.
    */
-  private void addClient(Client client) {
-    clientMap.put(client.registrationToken, client);
+  void addClient(Client client) {
+    if (client.topic == null) {
+      client.topic = topicSegments.topicOf(client.registrationToken, null);
+    }
+    long nowMillis = System.currentTimeMillis();
+    client.lastSeenMillis = nowMillis;
+    long ttlMillis = clientTtlMillis;
+    if (ttlMillis > 0) {
+      client.expiry = expiries.schedule(client, nowMillis + ttlMillis);
+    }
+    Client previous = clientMap.put(client.registrationToken, client);
+    if (previous != null) {
+      nameIndex.remove(previous.name, previous.registrationToken, previous);
+      cancelExpiry(previous);
+    }
+    nameIndex.put(client.name, client.registrationToken, client);
+  }
+
+  /**
+   * Remove the client with the given registration token from the Map of Clients, and tell the
+   * other clients of its segment.
+   *
+   * @param registrationToken Token of the client to be removed.
+   */
+  void removeClient(String registrationToken) {
+    Client removed = clientMap.get(registrationToken);
+    if (removed != null && removeClient(removed) && removed.topic != null) {
+      broadcastRemovedClients(removed.topic, Collections.singletonList(registrationToken));
+    }
+  }
+
+  /**
+   * Remove the given client, unless it has been replaced by a client registering again with the
+   * same token.
+   *
+   * @return True if the client was removed.
+   */
+  private boolean removeClient(Client client) {
+    String registrationToken = client.registrationToken;
+    if (!clientMap.remove(registrationToken, client)) {
+      return false;
+    }
+    nameIndex.remove(client.name, registrationToken, client);
+    contactRanker.remove(registrationToken);
+    cancelExpiry(client);
+    synchronized (groupChangeLock) {
+      for (String group : groups.removeMember(registrationToken)) {
+        groupLeft(group, registrationToken);
+      }
+    }
+    logger.info("Removed client " + registrationToken);
+    return true;
+  }
+
+  /**
+   * Note that the client with the given token, if registered, is in use. Only its last seen time
+   * is updated, its expiry is moved when it comes due.
+   */
+  private void clientSeen(String registrationToken) {
+    Client client = clientMap.get(registrationToken);
+    if (client != null) {
+      long nowMillis = System.currentTimeMillis();
+      // Clients seen again within a tick are not written to, which keeps busy clients' cache
+      // lines shared.
+      if (nowMillis - client.lastSeenMillis >= EXPIRY_TICK_MILLIS) {
+        client.lastSeenMillis = nowMillis;
+      }
+    }
+  }
+
+  private void cancelExpiry(Client client) {
+    TimingWheel.Timeout<Client> expiry = client.expiry;
+    if (expiry != null) {
+      expiries.cancel(expiry);
+    }
+  }
+
+  /**
+   * Create a callback for a downstream send to a client. If CCS acked the message the client is
+   * seen, its token still being valid. If CCS nacked it because the token is no longer valid the
+   * client is removed.
+   *
+   * @param registrationToken Token of the recipient.
+   */
+  private BiConsumer<String, Throwable> updateClientOnDeliveryReport(
+      final String registrationToken) {
+    return new BiConsumer<String, Throwable>() {
+      @Override
+      public void accept(String messageId, Throwable throwable) {
+        if (throwable == null) {
+          clientSeen(registrationToken);
+        } else if (throwable instanceof GcmNackException
+            && ((GcmNackException) throwable).isInvalidRegistration()) {
+          removeClient(registrationToken);
+        }
+      }
+    };
+  }
+
+  /**
+   * Advance client expiries every tick, unless clients never expire.
+   */
+  private void startExpiry() {
+    if (clientTtlMillis <= 0) {
+      return;
+    }
+    final Runnable expiryCheck = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          expireClients(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+          // An exception would cancel the schedule, and with it all later expiries.
+          logger.log(Level.WARNING, "Unable to expire clients.", e);
+        }
+      }
+    };
+    if (executors != null) {
+      // Broadcasting the removed clients waits for the journal's fsync, which must not hold up
+      // the other tenants' timers, so the shared timer only hands the check to the tenant's
+      // workers. A tick is skipped while the previous check still runs.
+      final Executor workers = executors.workersFor(tenant);
+      final AtomicBoolean checking = new AtomicBoolean();
+      Runnable handOff = new Runnable() {
+        @Override
+        public void run() {
+          if (!checking.compareAndSet(false, true)) {
+            return;
+          }
+          try {
+            workers.execute(new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  expiryCheck.run();
+                } finally {
+                  checking.set(false);
+                }
+              }
+            });
+          } catch (RejectedExecutionException e) {
+            checking.set(false);
+          }
+        }
+      };
+      expiryChecks = executors.scheduleWithFixedDelay(tenant, handOff, EXPIRY_TICK_MILLIS,
+          EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+      return;
+    }
+    expiryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "FriendlyPingServer-expiry");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    expiryChecks = expiryExecutor.scheduleWithFixedDelay(expiryCheck, EXPIRY_TICK_MILLIS,
+        EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Remove the clients whose expiry has come due and that have been idle for the client TTL. The
+   * expiry of a client seen since it was scheduled is moved to the TTL after it was last seen.
+   * Removed clients are broadcast to each segment together.
+   *
+   * @return Number of clients removed.
+   */
+  int expireClients(long nowMillis) {
+    long ttlMillis = clientTtlMillis;
+    Map<String, List<String>> removedByTopic = new HashMap<String, List<String>>();
+    for (Client client : expiries.advance(nowMillis)) {
+      if (clientMap.get(client.registrationToken) != client) {
+        continue;
+      }
+      long idleUntilMillis = client.lastSeenMillis + ttlMillis;
+      if (idleUntilMillis > nowMillis) {
+        client.expiry = expiries.schedule(client, idleUntilMillis);
+      } else if (removeClient(client) && client.topic != null) {
+        List<String> removed = removedByTopic.get(client.topic);
+        if (removed == null) {
+          removed = new ArrayList<String>();
+          removedByTopic.put(client.topic, removed);
+        }
+        removed.add(client.registrationToken);
+      }
+    }
+    int count = 0;
+    for (Entry<String, List<String>> entry : removedByTopic.entrySet()) {
+      broadcastRemovedClients(entry.getKey(), entry.getValue());
+      count += entry.getValue().size();
+    }
+    if (count > 0) {
+      logger.info("Expired " + count + " idle clients.");
+    }
+    return count;
+  }
+
+  /**
+   * Tell the clients of a segment that clients were removed, so they can drop them from their
+   * lists. Tokens are sent in as few messages as fit.
+   *
+   * @param topic New client topic of the segment.
+   * @param tokens Tokens of the removed clients.
+   */
+  private void broadcastRemovedClients(String topic, List<String> tokens) {
+    List<String> broadcasts = new ArrayList<String>();
+    for (int start = 0; start < tokens.size(); start += REMOVED_CLIENTS_PER_MESSAGE) {
+      JsonArray jTokens = new JsonArray();
+      for (String token
+          : tokens.subList(start, Math.min(start + REMOVED_CLIENTS_PER_MESSAGE, tokens.size()))) {
+        jTokens.add(new JsonPrimitive(token));
+      }
+      broadcasts.add(REMOVED_CLIENTS_TEMPLATE.render(jTokens.toString()));
+    }
+    friendlyGcmServer.sendAllJsonAsync(topic, broadcasts, REMOVED_CLIENTS_OPTIONS);
+  }
+
+  /**
+   * Create the broadcast of removed clients.
+   *
+   * @param jTokens Array of the removed clients' tokens.
+   * @return Broadcast message, without a recipient.
+   */
+  private static JsonObject createRemovedClients(JsonElement jTokens) {
+    JsonObject jBroadcast = new JsonObject();
+
+    JsonObject jData = new JsonObject();
+    jData.addProperty(ACTION_KEY, BROADCAST_REMOVED_CLIENTS);
+    jData.add(CLIENTS_KEY, jTokens);
+
+    jBroadcast.add(DATA_KEY, jData);
+    return jBroadcast;
   }
 
   /**
    * Broadcast the newly registered client to clients that have already been registered. The
-   * broadcast is sent via the PubSub topic "/topics/newuser" all registered clients should be
-   * subscribed to this topic.
+   * broadcast is sent via the PubSub topic of the new client's segment, which the registered
+   * clients of that segment are subscribed to.
    *
    * @param client Newly registered client.
+   * @return Future completed when CCS acks the broadcast.
    */
-  private void broadcastNewClient(Client client) {
+  private CompletableFuture<String> broadcastNewClient(Client client) {
+    return friendlyGcmServer.sendJsonAsync(client.topic,
+        BROADCAST_TEMPLATE.render(clientJson(client)), BROADCAST_OPTIONS);
+  }
+
+  /**
+   * Create the broadcast of a newly registered client.
+   *
+   * @param jClient The new client.
+   * @return Broadcast message, without a recipient.
+   */
+  private static JsonObject createBroadcast(JsonElement jClient) {
     JsonObject jBroadcast = new JsonObject();
 
     JsonObject jData = new JsonObject();
     jData.addProperty(ACTION_KEY, BROADCAST_NEW_CLIENT);
-
-    JsonObject jClient = gson.toJsonTree(client).getAsJsonObject();
     jData.add(CLIENT_KEY, jClient);
 
     jBroadcast.add(DATA_KEY, jData);
-    friendlyGcmServer.send(NEW_CLIENT_TOPIC, jBroadcast);
+    return jBroadcast;
   }
 
   /**
    * Send client list to newly registered client. When a new client is registered, that client must
-   * be informed about the other registered clients.
+   * be informed about the other registered clients of its segment. A client registering again
+   * gets its frequent contacts first, whatever their segment. The list also names the topic of
+   * the segment, which the client subscribes to for later registrations. Clients that asked for
+   * it get the list in compact_clients, encoded by CompactClientList, instead of in clients.
    *
    * @param client Newly registered client.
+   * @return Future completed when CCS acks the client list.
    */
-  private void sendClientList(Client client) {
-    ArrayList<Client> clientList = new ArrayList();
+  CompletableFuture<String> sendClientList(Client client) {
+    boolean compact = client.compactClientList;
+    StringBuilder jClients = new StringBuilder("[");
+    List<String> frequentContacts =
+        appendFrequentContacts(jClients, client.registrationToken, compact);
     for (Entry<String, Client> clientEntry : clientMap.entrySet()) {
       Client currentClient = clientEntry.getValue();
-      if (currentClient.registrationToken != client.registrationToken) {
-        clientList.add(currentClient);
+      if (currentClient.registrationToken != client.registrationToken
+          && (currentClient.topic == null || currentClient.topic.equals(client.topic))
+          && (frequentContacts.isEmpty()
+              || !frequentContacts.contains(currentClient.registrationToken))) {
+        if (jClients.length() > 1) {
+          jClients.append(',');
+        }
+        jClients.append(compact ? compactClientJson(currentClient) : clientJson(currentClient));
       }
     }
-    JsonElement clientElements = gson.toJsonTree(clientList,
-        new TypeToken<Collection<Client>>() {}.getType());
-    if (clientElements.isJsonArray()) {
-      JsonObject jSendClientList = new JsonObject();
+    jClients.append(']');
+    String jClientList = compact
+        ? COMPACT_CLIENT_LIST_TEMPLATE.render(CompactClientList.encode(jClients.toString()),
+            client.topic)
+        : CLIENT_LIST_TEMPLATE.render(jClients.toString(), client.topic);
+    return friendlyGcmServer.sendJsonAsync(client.registrationToken, jClientList,
+        CLIENT_LIST_OPTIONS);
+  }
+
+  /**
+   * Create the list of registered clients sent to a new client.
+   *
+   * @param jClients Array of the other registered clients.
+   * @param topic New client topic the client is to subscribe to.
+   * @return Client list message, without a recipient.
+   */
+  private static JsonObject createClientList(JsonElement jClients, String topic) {
+    JsonObject jSendClientList = new JsonObject();
+
+    JsonObject jData = new JsonObject();
+    jData.addProperty(ACTION_KEY, SEND_CLIENT_LIST);
+    jData.add(CLIENTS_KEY, jClients);
+    jData.addProperty(TOPIC_KEY, topic);
+
+    jSendClientList.add(DATA_KEY, jData);
+    return jSendClientList;
+  }
 
-      JsonObject jData = new JsonObject();
-      jData.addProperty(ACTION_KEY, SEND_CLIENT_LIST);
-      jData.add(CLIENTS_KEY, clientElements);
+  /**
+   * Create the list of registered clients sent to a new client that asked for the compact
+   * format.
+   *
+   * @param clients Clients encoded by CompactClientList.encode.
+   * @param topic New client topic the client is to subscribe to.
+   * @return Client list message, without a recipient.
+   */
+  private static JsonObject createCompactClientList(String clients, String topic) {
+    JsonObject jSendClientList = new JsonObject();
+
+    JsonObject jData = new JsonObject();
+    jData.addProperty(ACTION_KEY, SEND_CLIENT_LIST);
+    jData.addProperty(COMPACT_CLIENTS_KEY, clients);
+    jData.addProperty(TOPIC_KEY, topic);
+
+    jSendClientList.add(DATA_KEY, jData);
+    return jSendClientList;
+  }
 
-      jSendClientList.add(DATA_KEY, jData);
-      friendlyGcmServer.send(client.registrationToken, jSendClientList);
+  /**
+   * Handle an upstream search message, which has the sender's token, the query and, to get the
+   * next page of results, the cursor of the previous page.
+   */
+  private void onSearchMessage(JsonObject jData) {
+    String senderToken = jData.has(SENDER_KEY) ? jData.get(SENDER_KEY).getAsString() : null;
+    if (StringUtils.isNullOrEmpty(senderToken) || !clientMap.containsKey(senderToken)) {
+      logger.info("Unable to search for unregistered client " + senderToken);
+      return;
     }
+    String query = jData.has(QUERY_KEY) ? jData.get(QUERY_KEY).getAsString() : "";
+    if (query.length() > MAX_QUERY_LENGTH) {
+      query = query.substring(0, MAX_QUERY_LENGTH);
+    }
+    String cursor = jData.has(CURSOR_KEY) ? jData.get(CURSOR_KEY).getAsString() : null;
+    searchClients(senderToken, query, StringUtils.isNullOrEmpty(cursor) ? null : cursor);
+  }
+
+  /**
+   * Send the sender a page of the registered clients whose name starts with the query, ignoring
+   * case, in order of name. The reply's next field is the cursor of the next page, empty if there
+   * are no more results.
+   *
+   * @param senderToken Token of the client searching.
+   * @param query Prefix of the names to find.
+   * @param cursor Cursor of the previous page, null for the first page.
+   * @return Future completed when CCS acks the results.
+   */
+  CompletableFuture<String> searchClients(String senderToken, String query, String cursor) {
+    NamePrefixIndex.Page<Client> page = nameIndex.search(query, cursor, SEARCH_PAGE_SIZE);
+    StringBuilder jClients = new StringBuilder("[");
+    for (Client client : page.values) {
+      if (jClients.length() > 1) {
+        jClients.append(',');
+      }
+      jClients.append(clientJson(client));
+    }
+    jClients.append(']');
+    return friendlyGcmServer.sendJsonAsync(senderToken,
+        SEARCH_RESULTS_TEMPLATE.render(query, jClients.toString(),
+            page.next == null ? "" : page.next),
+        SEARCH_RESULTS_OPTIONS);
+  }
+
+  /**
+   * Create a page of search results.
+   *
+   * @param query Query the results are for.
+   * @param jClients Array of the clients found.
+   * @param next Cursor of the next page.
+   * @return Search results message, without a recipient.
+   */
+  private static JsonObject createSearchResults(String query, JsonElement jClients, String next) {
+    JsonObject jSearchResults = new JsonObject();
+
+    JsonObject jData = new JsonObject();
+    jData.addProperty(ACTION_KEY, SEARCH_CLIENTS);
+    jData.addProperty(QUERY_KEY, query);
+    jData.add(CLIENTS_KEY, jClients);
+    jData.addProperty(NEXT_KEY, next);
+
+    jSearchResults.add(DATA_KEY, jData);
+    return jSearchResults;
+  }
+
+  /**
+   * Send a client the most recent pings to it, most recent first, with the name of each sender
+   * that is still registered and the time of each ping in milliseconds since the epoch.
+   *
+   * @param token Token of the client.
+   * @return Future completed when CCS acks the history.
+   */
+  CompletableFuture<String> sendPingHistory(String token) {
+    JsonArray jPings = new JsonArray();
+    for (PingHistory.Ping ping : pingHistory.getRecent(token, PING_HISTORY_COUNT)) {
+      JsonObject jPing = new JsonObject();
+      jPing.addProperty(SENDER_KEY, ping.senderToken);
+      Client sender = clientMap.get(ping.senderToken);
+      if (sender != null) {
+        jPing.addProperty(NAME_KEY, sender.name);
+      }
+      jPing.addProperty(TIME_KEY, ping.timeMillis);
+      jPings.add(jPing);
+    }
+    return friendlyGcmServer.sendJsonAsync(token,
+        PING_HISTORY_TEMPLATE.render(gson.toJson(jPings)), PING_HISTORY_OPTIONS);
+  }
+
+  /**
+   * Create the history of pings to a client.
+   *
+   * @param jPings Array of the pings.
+   * @return Ping history message, without a recipient.
+   */
+  private static JsonObject createPingHistory(JsonElement jPings) {
+    JsonObject jPingHistory = new JsonObject();
+
+    JsonObject jData = new JsonObject();
+    jData.addProperty(ACTION_KEY, PING_HISTORY);
+    jData.add(PINGS_KEY, jPings);
+
+    jPingHistory.add(DATA_KEY, jData);
+    return jPingHistory;
+  }
+
+  /**
+   * Send a client its most relevant contacts, most relevant first.
+   *
+   * @param token Token of the client.
+   * @return Future completed when CCS acks the contacts.
+   */
+  CompletableFuture<String> sendFrequentContacts(String token) {
+    StringBuilder jClients = new StringBuilder("[");
+    appendFrequentContacts(jClients, token, false);
+    jClients.append(']');
+    return friendlyGcmServer.sendJsonAsync(token,
+        FREQUENT_CONTACTS_TEMPLATE.render(jClients.toString()), FREQUENT_CONTACTS_OPTIONS);
+  }
+
+  /**
+   * Append the registered clients among a client's most relevant contacts to a JSON array.
+   *
+   * @param compact Whether to append the contacts in the compact client list format.
+   * @return Tokens of the contacts appended.
+   */
+  private List<String> appendFrequentContacts(StringBuilder jClients, String token,
+      boolean compact) {
+    List<String> contacts = contactRanker.getTopContacts(token, FREQUENT_CONTACTS_COUNT);
+    List<String> appended = new ArrayList<String>(contacts.size());
+    for (String contact : contacts) {
+      Client contactClient = clientMap.get(contact);
+      if (contactClient != null && !contact.equals(token)) {
+        if (jClients.length() > 1) {
+          jClients.append(',');
+        }
+        jClients.append(compact ? compactClientJson(contactClient) : clientJson(contactClient));
+        appended.add(contact);
+      }
+    }
+    return appended;
+  }
+
+  /**
+   * Create the list of a client's frequent contacts.
+   *
+   * @param jClients Array of the contacts.
+   * @return Frequent contacts message, without a recipient.
+   */
+  private static JsonObject createFrequentContacts(JsonElement jClients) {
+    JsonObject jFrequentContacts = new JsonObject();
+
+    JsonObject jData = new JsonObject();
+    jData.addProperty(ACTION_KEY, FREQUENT_CONTACTS);
+    jData.add(CLIENTS_KEY, jClients);
+
+    jFrequentContacts.add(DATA_KEY, jData);
+    return jFrequentContacts;
+  }
+
+  /**
+   * Handle an upstream ping_later message, which has the recipient's and the sender's tokens and
+   * the delay in seconds after which to ping. The ping is scheduled, and once this returns and
+   * CCS is acked it survives a restart if the schedule is persisted.
+   */
+  private void onPingLaterMessage(JsonObject jData) {
+    String toToken = jData.has("to") ? jData.get("to").getAsString() : null;
+    String senderToken = jData.has(SENDER_KEY) ? jData.get(SENDER_KEY).getAsString() : null;
+    long delaySeconds;
+    try {
+      delaySeconds = jData.has(DELAY_KEY) ? jData.get(DELAY_KEY).getAsLong() : -1;
+    } catch (NumberFormatException e) {
+      delaySeconds = -1;
+    }
+    // Scheduled pings hold on to the registered clients' tokens rather than copies.
+    Client toClient = toToken != null ? clientMap.get(toToken) : null;
+    Client senderClient = senderToken != null ? clientMap.get(senderToken) : null;
+    if (toClient == null || senderClient == null) {
+      logger.info("Unable to schedule a ping unless to and sender are registered.");
+      return;
+    }
+    if (delaySeconds < 0 || delaySeconds > MAX_PING_DELAY_SECONDS) {
+      logger.info("Unable to schedule a ping with delay " + jData.get(DELAY_KEY));
+      return;
+    }
+    try {
+      pingScheduler.schedule(toClient.registrationToken, senderClient.registrationToken,
+          System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delaySeconds));
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to schedule a ping from " + senderToken, e);
+    }
+  }
+
+  /**
+   * Send a batch of scheduled pings that came due through pingClient. Pings between clients no
+   * longer registered, and pings too late to still be wanted, are dropped.
+   *
+   * @return Number of pings sent.
+   */
+  int fireScheduledPings(List<PingScheduler.ScheduledPing> batch, long nowMillis) {
+    int sent = 0;
+    for (PingScheduler.ScheduledPing ping : batch) {
+      if (nowMillis - ping.dueMillis > MAX_PING_LATENESS_MILLIS) {
+        logger.info("Dropping ping from " + ping.senderToken + " due "
+            + (nowMillis - ping.dueMillis) + " ms ago.");
+      } else if (clientMap.containsKey(ping.toToken)
+          && clientMap.containsKey(ping.senderToken)) {
+        pingClient(ping.toToken, ping.senderToken);
+        sent++;
+      }
+    }
+    return sent;
   }
 
   /**
@@ -218,26 +1433,63 @@ public class FriendlyPingServer {
    *
    * @param toToken Token of recipient of ping.
    * @param senderToken Token of sender of ping.
+   * @return Future completed when CCS acks the ping.
    */
-  private void pingClient(String toToken, String senderToken) {
-    Client senderClient;
+  CompletableFuture<String> pingClient(String toToken, String senderToken) {
+    long nowMillis = System.currentTimeMillis();
+    analytics.recordPing(senderToken, toToken, nowMillis);
+    EventLog eventLog = this.eventLog;
+    if (eventLog != null) {
+      eventLog.recordPing(senderToken, toToken, nowMillis);
+    }
+    // Only pings between registered clients count, so unknown tokens take up no tables.
+    if (clientMap.containsKey(senderToken) && clientMap.containsKey(toToken)) {
+      contactRanker.recordPing(senderToken, toToken, nowMillis);
+    }
+    String jPing;
     // If the server is the recipient of the ping, send ping to sender, otherwise send ping to
     // toToken.
-    if (toToken.equals(SENDER_ID + "@" + GcmServer.GCM_HOST)) {
-      senderClient = clientMap.get(toToken);
+    if (toToken.equals(serverClientToken)) {
+      jPing = serverPing;
       toToken = senderToken;
+      senderToken = serverClientToken;
     } else {
-      senderClient = clientMap.get(senderToken);
+      Client senderClient = clientMap.get(senderToken);
+      jPing = PING_TEMPLATE.render(senderClient.registrationToken, senderClient.name);
     }
+    pingHistory.record(toToken, senderToken, nowMillis);
+    CompletableFuture<String> ping = friendlyGcmServer.sendJsonAsync(toToken, jPing, PING_OPTIONS);
+    ping.whenComplete(updateClientOnDeliveryReport(toToken));
+    if (firstPingMillis.get() < 0) {
+      ping.thenRun(new Runnable() {
+        @Override
+        public void run() {
+          if (firstPingMillis.compareAndSet(-1, millisSinceLaunch())) {
+            logger.info("First ping served " + firstPingMillis.get() + " ms after launch.");
+          }
+        }
+      });
+    }
+    return ping;
+  }
+
+  /**
+   * Create a ping from the given sender.
+   *
+   * @param senderToken Token of the client the ping is from.
+   * @param senderName Name of the client the ping is from.
+   * @return Ping message, without a recipient.
+   */
+  private static JsonObject createPing(String senderToken, String senderName) {
     JsonObject jPing = new JsonObject();
 
     JsonObject jData = new JsonObject();
     jData.addProperty(ACTION_KEY, PING_CLIENT);
-    jData.addProperty(SENDER_KEY, senderClient.registrationToken);
+    jData.addProperty(SENDER_KEY, senderToken);
 
     // Create notification that is handled appropriately on the receiving platform.
     JsonObject jNotification = new JsonObject();
-    jNotification.addProperty("body", senderClient.name + " is pinging you.");
+    jNotification.addProperty("body", senderName + " is pinging you.");
     jNotification.addProperty("title", PING_TITLE);
     jNotification.addProperty("icon", PING_ICON);
     jNotification.addProperty("sound", "default");
@@ -245,20 +1497,378 @@ public class FriendlyPingServer {
 
     jPing.add(DATA_KEY, jData);
     jPing.add("notification", jNotification);
+    return jPing;
+  }
+
+  /**
+   * Handle an upstream group message. Every group message has the sender's token and the group
+   * name. The sender must be a registered client, and must be a member of the group to leave or
+   * ping it. A create_group message may list the tokens of further registered clients to add, as
+   * a JSON array in its members field.
+   */
+  private void onGroupMessage(String action, JsonObject jData) {
+    String senderToken = jData.has(SENDER_KEY) ? jData.get(SENDER_KEY).getAsString() : null;
+    String group = jData.has(GROUP_KEY) ? jData.get(GROUP_KEY).getAsString() : null;
+    if (StringUtils.isNullOrEmpty(senderToken) || StringUtils.isNullOrEmpty(group)
+        || group.length() > GroupRegistry.MAX_NAME_LENGTH) {
+      logger.info("Unable to " + action + " unless sender token and group name are available.");
+      return;
+    }
+    if (!clientMap.containsKey(senderToken)) {
+      logger.info("Unable to " + action + " for unregistered client " + senderToken);
+      return;
+    }
+    if (action.equals(CREATE_GROUP)) {
+      String[] members = new String[0];
+      if (jData.has(MEMBERS_KEY)) {
+        try {
+          members = gson.fromJson(jData.get(MEMBERS_KEY).getAsString(), String[].class);
+        } catch (JsonSyntaxException e) {
+          logger.info("Ignoring members of group " + group + " that are not a JSON array.");
+        }
+      }
+      createGroup(group, senderToken, members);
+    } else if (action.equals(JOIN_GROUP)) {
+      joinGroup(group, senderToken);
+    } else if (action.equals(LEAVE_GROUP)) {
+      leaveGroup(group, senderToken);
+    } else {
+      pingGroup(group, senderToken);
+    }
+  }
+
+  /**
+   * Create a group of the given creator and the registered clients among the given members.
+   *
+   * @return False if a group with the given name already exists.
+   */
+  boolean createGroup(String group, String creatorToken, String[] memberTokens) {
+    synchronized (groupChangeLock) {
+      if (!groups.create(group, creatorToken)) {
+        logger.info("Group " + group + " already exists.");
+        return false;
+      }
+      List<String> members = new ArrayList<String>(memberTokens.length + 1);
+      members.add(creatorToken);
+      for (String token : memberTokens) {
+        if (token != null && !token.equals(serverClientToken) && clientMap.containsKey(token)
+            && groups.join(group, token)) {
+          members.add(token);
+        }
+      }
+      NotificationKeys keys = notificationKeys;
+      if (keys != null) {
+        keys.created(group, members);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Add a registered client to a group.
+   *
+   * @return False if there is no such group or the client already is a member.
+   */
+  boolean joinGroup(String group, String token) {
+    synchronized (groupChangeLock) {
+      if (!groups.join(group, token)) {
+        logger.info("Unable to add " + token + " to group " + group);
+        return false;
+      }
+      NotificationKeys keys = notificationKeys;
+      if (keys != null) {
+        keys.joined(group, token, groups.size(group));
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Remove a client from a group, which is deleted when its last member leaves.
+   *
+   * @return False if there is no such group or the client is not a member.
+   */
+  boolean leaveGroup(String group, String token) {
+    synchronized (groupChangeLock) {
+      if (!groups.leave(group, token)) {
+        logger.info("Unable to remove " + token + " from group " + group);
+        return false;
+      }
+      groupLeft(group, token);
+      return true;
+    }
+  }
+
+  private void groupLeft(String group, String token) {
+    NotificationKeys keys = notificationKeys;
+    if (keys != null) {
+      keys.left(group, token, groups.size(group) == 0);
+    }
+  }
+
+  /**
+   * Ping the other members of a group with a single fan-out. The ping is rendered once. If the
+   * group has a notification key it is sent once to the key and GCM delivers it to every member,
+   * the sender included, whose app drops a ping whose sender field is its own token. Otherwise it
+   * is sent to each other member.
+   *
+   * @param group Name of the group.
+   * @param senderToken Token of the member sending the ping.
+   * @return Future completed when CCS acks the ping to every recipient, or failed with the first
+   * failure.
+   */
+  CompletableFuture<Void> pingGroup(String group, String senderToken) {
+    Client senderClient = clientMap.get(senderToken);
+    if (senderClient == null || !groups.isMember(group, senderToken)) {
+      logger.info("Unable to ping group " + group + " unless " + senderToken + " is a member.");
+      return CompletableFuture.completedFuture(null);
+    }
+    String jPing = PING_TEMPLATE.render(senderClient.registrationToken, senderClient.name);
+    String[] members = groups.getMembers(group);
+    List<String> recipients = new ArrayList<String>(members == null ? 0 : members.length);
+    if (members != null) {
+      long nowMillis = System.currentTimeMillis();
+      EventLog eventLog = this.eventLog;
+      for (String member : members) {
+        if (!member.equals(senderToken)) {
+          recipients.add(member);
+          pingHistory.record(member, senderToken, nowMillis);
+          analytics.recordPing(senderToken, member, nowMillis);
+          if (eventLog != null) {
+            eventLog.recordPing(senderToken, member, nowMillis);
+          }
+        }
+      }
+    }
 
-    friendlyGcmServer.send(toToken, jPing);
+    NotificationKeys keys = notificationKeys;
+    String notificationKey = keys != null ? keys.getKey(group) : null;
+    if (notificationKey != null) {
+      return CompletableFuture.allOf(
+          friendlyGcmServer.sendJsonAsync(notificationKey, jPing, PING_OPTIONS));
+    }
+    List<CompletableFuture<String>> pings =
+        friendlyGcmServer.multicastJsonAsync(recipients, jPing, PING_OPTIONS);
+    for (int i = 0; i < pings.size(); i++) {
+      pings.get(i).whenComplete(updateClientOnDeliveryReport(recipients.get(i)));
+    }
+    return CompletableFuture.allOf(pings.toArray(new CompletableFuture<?>[pings.size()]));
   }
 
+  /**
+   * Usage: FriendlyPingServer [--journal=DIRECTORY] [--drain-timeout=SECONDS]
+   *                           [--health-port=PORT] [--health-bind=ADDRESS]
+   *                           [--notification-keys]
+   *                           [--segments=global|region|bucket:N|region,bucket:N]
+   *                           [--client-ttl=DAYS] [--schedule=DIRECTORY]
+   *                           [--event-log=DIRECTORY] [--capture=FILE]
+   *                           [--http-send=TYPE,...] [--tenants=FILE]
+   *
+   * With --journal, downstream messages are journaled in the given directory until they are
+   * acked, and messages left unacked by a crash are sent again on startup.
+   *
+   * With --health-port, liveness and readiness are served over HTTP on the given port, see
+   * HealthServer. The port is only open on the loopback interface unless --health-bind gives
+   * another address to listen on, e.g. 0.0.0.0 for all interfaces.
+   *
+   * With --notification-keys, groups are mapped to GCM notification keys so that a group ping is
+   * fanned out by GCM, see NotificationKeys. Without it, group pings are sent to each member.
+   *
+   * With --segments, new clients are broadcast only to the clients of their segment, by region,
+   * by hash bucket of their token or both, see TopicSegments. By default all clients are in one
+   * global segment.
+   *
+   * With --client-ttl, clients are removed once idle for the given number of days, 30 by default,
+   * or never if 0. A client is seen whenever it sends an upstream message or CCS acks a message
+   * to it.
+   *
+   * With --schedule, pings scheduled with ping_later are logged in the given directory and sent
+   * after a restart. Without it they are kept in memory only.
+   *
+   * With --event-log, every ping and registration is logged in the given directory, see EventLog
+   * and tools.EventLogReader.
+   *
+   * With --capture, every upstream message, ack and nack received from CCS is recorded in the
+   * given file, for tools.TrafficReplay to replay against a local CCS stand-in.
+   *
+   * With --http-send, downstream messages of the given types, e.g. client_list,broadcast, are
+   * sent with the GCM HTTP API instead of over the CCS connection, see GcmHttpSender. Group pings
+   * of the ping type are then multicast a thousand recipients per request.
+   *
+   * With --tenants, a server is run for each tenant in the given file, see Tenant, instead of
+   * one for SENDER_ID. Each has its own CCS connection, clients and limits, and its journal,
+   * schedule and event log in a subdirectory named after it, its capture in FILE.TENANT. Their
+   * timers and startup work share the threads of one SharedExecutors, and the health port
+   * reports on them all.
+   *
+   * On shutdown, e.g. SIGTERM during a rolling deploy, the server stops: it leaves new upstream
+   * messages to other servers, waits up to --drain-timeout seconds for its downstream messages to
+   * be acked and then closes the journal and the connection to CCS.
+   */
   public static void main(String[] args) {
-    // Initialize FriendlyPingServer with appropriate API Key and SenderID.
-    new FriendlyPingServer(SERVER_API_KEY, SENDER_ID);
+    String journalDirectory = null;
+    String scheduleDirectory = null;
+    String eventLogDirectory = null;
+    String captureFile = null;
+    String httpSendTypes = null;
+    String tenantsFile = null;
+    long drainTimeoutSeconds = DEFAULT_DRAIN_TIMEOUT_SECONDS;
+    int healthPort = -1;
+    String healthBind = null;
+    boolean useNotificationKeys = false;
+    TopicSegments topicSegments = TopicSegments.GLOBAL;
+    long clientTtlDays = DEFAULT_CLIENT_TTL_DAYS;
+    for (String arg : args) {
+      if (arg.startsWith("--journal=")) {
+        journalDirectory = arg.substring("--journal=".length());
+      } else if (arg.startsWith("--schedule=")) {
+        scheduleDirectory = arg.substring("--schedule=".length());
+      } else if (arg.startsWith("--event-log=")) {
+        eventLogDirectory = arg.substring("--event-log=".length());
+      } else if (arg.startsWith("--capture=")) {
+        captureFile = arg.substring("--capture=".length());
+      } else if (arg.startsWith("--http-send=")) {
+        httpSendTypes = arg.substring("--http-send=".length());
+      } else if (arg.startsWith("--tenants=")) {
+        tenantsFile = arg.substring("--tenants=".length());
+      } else if (arg.startsWith("--drain-timeout=")) {
+        drainTimeoutSeconds = Long.parseLong(arg.substring("--drain-timeout=".length()));
+      } else if (arg.startsWith("--health-port=")) {
+        healthPort = Integer.parseInt(arg.substring("--health-port=".length()));
+      } else if (arg.startsWith("--health-bind=")) {
+        healthBind = arg.substring("--health-bind=".length());
+      } else if (arg.equals("--notification-keys")) {
+        useNotificationKeys = true;
+      } else if (arg.startsWith("--segments=")) {
+        topicSegments = TopicSegments.parse(arg.substring("--segments=".length()));
+      } else if (arg.startsWith("--client-ttl=")) {
+        clientTtlDays = Long.parseLong(arg.substring("--client-ttl=".length()));
+      } else {
+        logger.log(Level.SEVERE, "Unrecognized argument " + arg);
+        System.exit(1);
+      }
+    }
 
-    // Keep main thread alive.
-    try {
-      CountDownLatch latch = new CountDownLatch(1);
-      latch.await();
-    } catch (InterruptedException e) {
-      logger.log(Level.SEVERE, "An error occurred while latch was waiting.", e);
+    List<Tenant> tenants;
+    final SharedExecutors executors;
+    if (tenantsFile != null) {
+      try {
+        tenants = Tenant.load(new File(tenantsFile));
+      } catch (IOException | IllegalArgumentException e) {
+        logger.log(Level.SEVERE, "Unable to read the tenants in " + tenantsFile, e);
+        System.exit(1);
+        return;
+      }
+      executors = new SharedExecutors();
+    } else {
+      tenants = Collections.singletonList(new Tenant("default", SENDER_ID, SERVER_API_KEY));
+      executors = null;
+    }
+
+    final List<FriendlyPingServer> servers = new ArrayList<FriendlyPingServer>();
+    for (Tenant tenant : tenants) {
+      // Initialize FriendlyPingServer with appropriate API Key and SenderID. The servers of
+      // several tenants keep their files apart.
+      final FriendlyPingServer server;
+      String suffix;
+      if (executors != null) {
+        server = new FriendlyPingServer(tenant, executors);
+        suffix = File.separator + tenant.getName();
+      } else {
+        server = new FriendlyPingServer(tenant.getApiKey(), tenant.getSenderId());
+        suffix = "";
+      }
+      if (journalDirectory != null) {
+        server.setJournalDirectory(new File(journalDirectory + suffix));
+      }
+      if (scheduleDirectory != null) {
+        server.setScheduleDirectory(new File(scheduleDirectory + suffix));
+      }
+      if (eventLogDirectory != null) {
+        server.setEventLogDirectory(new File(eventLogDirectory + suffix));
+      }
+      server.setTopicSegments(topicSegments);
+      server.setClientTtl(clientTtlDays, TimeUnit.DAYS);
+      if (captureFile != null) {
+        String file = executors != null ? captureFile + "." + tenant.getName() : captureFile;
+        try {
+          server.getGcmServer().setCapture(TrafficCapture.open(new File(file)));
+        } catch (IOException e) {
+          logger.log(Level.SEVERE, "Unable to capture traffic to " + file, e);
+          System.exit(1);
+        }
+      }
+      if (httpSendTypes != null) {
+        try {
+          server.getGcmServer().setHttpSender(new GcmHttpSender(tenant.getApiKey(),
+              new URL(GcmHttpSender.SEND_URL), tenant.getHttpConnections(), executors,
+              tenant.getName()), Arrays.asList(httpSendTypes.split(",")));
+        } catch (IOException e) {
+          logger.log(Level.SEVERE, "Unable to send over HTTP.", e);
+          System.exit(1);
+        }
+      }
+      if (useNotificationKeys) {
+        try {
+          server.setNotificationKeys(
+              new NotificationKeys(tenant.getApiKey(), tenant.getSenderId()));
+        } catch (IOException e) {
+          logger.log(Level.SEVERE, "Unable to use notification keys.", e);
+          System.exit(1);
+        }
+      }
+      servers.add(server);
+    }
+    if (healthPort >= 0) {
+      try {
+        InetSocketAddress healthAddress = healthBind != null
+            ? new InetSocketAddress(InetAddress.getByName(healthBind), healthPort)
+            : new InetSocketAddress(InetAddress.getLoopbackAddress(), healthPort);
+        HealthServer healthServer = executors != null
+            ? new HealthServer(servers, executors, healthAddress)
+            : new HealthServer(servers.get(0), healthAddress);
+        healthServer.start();
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Unable to serve health checks on port " + healthPort, e);
+        System.exit(1);
+      }
+    }
+
+    final long drainTimeout = drainTimeoutSeconds;
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        // The servers drain at the same time, so shutdown takes at most one drain timeout.
+        for (final FriendlyPingServer server : servers) {
+          new Thread(new Runnable() {
+            @Override
+            public void run() {
+              server.stop(drainTimeout, TimeUnit.SECONDS);
+            }
+          }, "FriendlyPingServer-stop").start();
+        }
+        for (FriendlyPingServer server : servers) {
+          server.awaitStopped();
+        }
+        if (executors != null) {
+          executors.close();
+        }
+      }
+    }, "FriendlyPingServer-shutdown"));
+    for (FriendlyPingServer server : servers) {
+      server.start().exceptionally(new Function<Throwable, Void>() {
+        @Override
+        public Void apply(Throwable throwable) {
+          logger.log(Level.SEVERE, "Unable to start.", throwable);
+          System.exit(1);
+          return null;
+        }
+      });
+    }
+
+    // Keep main thread alive until the servers are stopped.
+    for (FriendlyPingServer server : servers) {
+      server.awaitStopped();
     }
   }
 }
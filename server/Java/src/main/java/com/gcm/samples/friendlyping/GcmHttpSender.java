@@ -0,0 +1,613 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * GcmHttpSender sends downstream messages with the GCM HTTP API instead of over the CCS
+ * connection, see GcmServer.setHttpSender. The HTTP API can send one message to up to
+ * MAX_MULTICAST_RECIPIENTS registration tokens in one request, so a message multicast to many
+ * recipients costs a request per thousand of them rather than a stanza each, and none of them
+ * take up the CCS in-flight window.
+ *
+ * Requests are made by a fixed pool of threads, each with one request in flight on a persistent
+ * connection. Responses are read to the end and connections are left open, so HttpURLConnection
+ * keeps them alive for the next request; it keeps up to 5 idle connections per host unless the
+ * http.maxConnections system property says otherwise, which is why that is the default pool size.
+ *
+ * The futures of the messages complete like those of messages sent over CCS: with the message ID
+ * when GCM accepts the message, and with a GcmNackException carrying the CCS error code that
+ * matches the HTTP error, e.g. DEVICE_UNREGISTERED for NotRegistered, when it rejects it.
+ * Recipients GCM reports Unavailable or InternalServerError for, and whole requests answered with
+ * a 5xx status or failing with an IOException, are tried again with exponential backoff, honoring
+ * Retry-After, up to MAX_ATTEMPTS times. A retry waits on a timer, not on a thread of the pool,
+ * so requests keep being made for other messages while GCM asks for some to be tried later.
+ */
+public class GcmHttpSender {
+
+  public static final String SEND_URL = "https://gcm-http.googleapis.com/gcm/send";
+  // Most registration tokens one request may send to.
+  public static final int MAX_MULTICAST_RECIPIENTS = 1000;
+  // Idle connections HttpURLConnection keeps alive per host by default.
+  public static final int DEFAULT_CONNECTIONS = 5;
+  // Attempts made for each recipient before its message fails.
+  public static final int MAX_ATTEMPTS = 3;
+
+  private static final Logger logger = Logger.getLogger("GcmHttpSender");
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final int READ_TIMEOUT_MILLIS = 30000;
+  private static final long INITIAL_BACKOFF_MILLIS = 1000;
+  private static final String TOPIC_PREFIX = "/topics/";
+
+  private final URL url;
+  private final String apiKey;
+  private final ExecutorService executor;
+  // Timer retries wait on, either its own or that of the SharedExecutors of its tenant.
+  private final ScheduledExecutorService retryTimer;
+  private final SharedExecutors sharedExecutors;
+  private final String tenant;
+  // Batches waiting on the timer to be tried again, failed if the sender is closed first.
+  private final Set<Batch> waitingRetries =
+      Collections.newSetFromMap(new ConcurrentHashMap<Batch, Boolean>());
+  private volatile boolean closed;
+  // Queue whose per-type counts messages that expire before being sent are added to, null if
+  // they are not counted.
+  private volatile OutboundQueue expiredCounter;
+  // Messages handed to this sender whose future has not completed.
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong retryCount = new AtomicLong();
+  // Microseconds from sending each request until its response was read.
+  private final LatencyHistogram requestLatency = new LatencyHistogram();
+  private final BiConsumer<String, Throwable> onDone = new BiConsumer<String, Throwable>() {
+    @Override
+    public void accept(String result, Throwable error) {
+      pendingCount.decrementAndGet();
+    }
+  };
+
+  public GcmHttpSender(String apiKey) throws IOException {
+    this(apiKey, new URL(SEND_URL), DEFAULT_CONNECTIONS);
+  }
+
+  /**
+   * Create a GcmHttpSender for the send endpoint at url, for example a local stand-in.
+   *
+   * @param connections Number of requests in flight at once.
+   */
+  public GcmHttpSender(String apiKey, URL url, int connections) {
+    this(apiKey, url, connections, null, null);
+  }
+
+  /**
+   * Create a GcmHttpSender for one of several tenants, whose retries wait on the timers of the
+   * given SharedExecutors.
+   *
+   * @param connections Number of requests in flight at once.
+   * @param executors Executors shared with other tenants, or null for the sender to start its
+   * own retry timer.
+   */
+  public GcmHttpSender(String apiKey, URL url, int connections, SharedExecutors executors,
+      String tenant) {
+    this.url = url;
+    this.apiKey = apiKey;
+    this.sharedExecutors = executors;
+    this.tenant = tenant;
+    retryTimer = executors != null ? null
+        : Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "GcmHttpSender-retries");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+      private final AtomicInteger nextThread = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "GcmHttpSender-" + nextThread.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Send a message to its one recipient.
+   *
+   * @param to Recipient of the message, a registration token, notification key or topic.
+   * @param message Message whose json includes to and message_id, as GcmServer serializes it.
+   */
+  void send(String to, OutboundMessage message) {
+    submit(new Batch(null, Collections.singletonList(to), Collections.singletonList(message)));
+  }
+
+  /**
+   * Send a message to many recipients, in as few requests as possible. Topics cannot be multicast
+   * to, so each topic gets a request of its own.
+   *
+   * @param prefix The serialized message up to where the recipients are added, including the
+   *               comma separating them from the last member if there is one.
+   * @param to Recipients of the message.
+   * @param messages Message to the recipient at the same index, all with the same options.
+   */
+  void multicast(String prefix, List<String> to, List<OutboundMessage> messages) {
+    List<String> recipients = new ArrayList<String>();
+    List<OutboundMessage> batch = new ArrayList<OutboundMessage>();
+    for (int i = 0; i < to.size(); i++) {
+      if (to.get(i).startsWith(TOPIC_PREFIX)) {
+        send(to.get(i), messages.get(i));
+        continue;
+      }
+      recipients.add(to.get(i));
+      batch.add(messages.get(i));
+      if (recipients.size() == MAX_MULTICAST_RECIPIENTS) {
+        submit(new Batch(prefix, recipients, batch));
+        recipients = new ArrayList<String>();
+        batch = new ArrayList<OutboundMessage>();
+      }
+    }
+    if (!recipients.isEmpty()) {
+      submit(new Batch(prefix, recipients, batch));
+    }
+  }
+
+  /**
+   * Count messages that expire here before being sent with those that expire in the given
+   * queue, see OutboundQueue.getExpiredCounts.
+   */
+  void countExpiredIn(OutboundQueue queue) {
+    expiredCounter = queue;
+  }
+
+  /**
+   * @return Number of messages queued or in flight.
+   */
+  public int getPendingCount() {
+    return pendingCount.get();
+  }
+
+  /**
+   * @return Number of requests made, including retries.
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * @return Number of recipients tried again after a failed attempt.
+   */
+  public long getRetryCount() {
+    return retryCount.get();
+  }
+
+  /**
+   * @return Microseconds each request took, from connecting until its response was read.
+   */
+  public LatencyHistogram getRequestLatency() {
+    return requestLatency;
+  }
+
+  /**
+   * Stop making requests. Messages still queued or waiting to be tried again fail with an
+   * IllegalStateException, requests in flight are waited for.
+   */
+  public void close() {
+    closed = true;
+    if (retryTimer != null) {
+      retryTimer.shutdownNow();
+    }
+    for (Batch batch : waitingRetries) {
+      if (waitingRetries.remove(batch)) {
+        batch.failAll(batch.messages, null);
+      }
+    }
+    for (Runnable task : executor.shutdownNow()) {
+      if (task instanceof Batch) {
+        ((Batch) task).failAll(((Batch) task).messages, null);
+      }
+    }
+    try {
+      executor.awaitTermination(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void submit(Batch batch) {
+    pendingCount.addAndGet(batch.messages.size());
+    for (OutboundMessage message : batch.messages) {
+      message.future.whenComplete(onDone);
+    }
+    execute(batch);
+  }
+
+  private void execute(Batch batch) {
+    try {
+      executor.execute(batch);
+    } catch (RejectedExecutionException e) {
+      batch.failAll(batch.messages, null);
+    }
+  }
+
+  /**
+   * Hand a batch back to the pool once the delay has passed, without holding a thread of the
+   * pool meanwhile.
+   */
+  private void retryLater(final Batch batch, long delayMillis) {
+    waitingRetries.add(batch);
+    Runnable retry = new Runnable() {
+      @Override
+      public void run() {
+        // Unless close already failed it.
+        if (waitingRetries.remove(batch)) {
+          execute(batch);
+        }
+      }
+    };
+    try {
+      if (sharedExecutors != null) {
+        sharedExecutors.schedule(tenant, retry, delayMillis, TimeUnit.MILLISECONDS);
+      } else {
+        retryTimer.schedule(retry, delayMillis, TimeUnit.MILLISECONDS);
+      }
+    } catch (RejectedExecutionException e) {
+      if (waitingRetries.remove(batch)) {
+        batch.failAll(batch.messages, null);
+      }
+    }
+    // Closed while scheduling, close may have missed the batch.
+    if (closed && waitingRetries.remove(batch)) {
+      batch.failAll(batch.messages, null);
+    }
+  }
+
+  private static IllegalStateException closedException(String messageId) {
+    return new IllegalStateException("GcmHttpSender closed before message " + messageId
+        + " was sent.");
+  }
+
+  /**
+   * @return The CCS error code matching an error of the HTTP API, so that nacks are handled the
+   * same whichever way a message was sent.
+   */
+  static String toCcsError(String error) {
+    switch (error) {
+      case "NotRegistered":
+        return GcmNackException.DEVICE_UNREGISTERED;
+      case "InvalidRegistration":
+      case "MissingRegistration":
+      case "MismatchSenderId":
+        return GcmNackException.BAD_REGISTRATION;
+      case "MessageTooBig":
+      case "InvalidDataKey":
+      case "InvalidTtl":
+      case "InvalidPackageName":
+        return "INVALID_JSON";
+      case "Unavailable":
+        return "SERVICE_UNAVAILABLE";
+      case "InternalServerError":
+        return "INTERNAL_SERVER_ERROR";
+      case "DeviceMessageRateExceeded":
+        return "DEVICE_MESSAGE_RATE_EXCEEDED";
+      case "TopicsMessageRateExceeded":
+        return "TOPICS_MESSAGE_RATE_EXCEEDED";
+      default:
+        return error;
+    }
+  }
+
+  private static boolean isRetriable(String error) {
+    return "Unavailable".equals(error) || "InternalServerError".equals(error);
+  }
+
+  /**
+   * A response read off a connection.
+   */
+  private static class Response {
+    final int status;
+    final String body;
+    // Zero if GCM did not say when to try again.
+    final long retryAfterMillis;
+
+    Response(int status, String body, long retryAfterMillis) {
+      this.status = status;
+      this.body = body;
+      this.retryAfterMillis = retryAfterMillis;
+    }
+  }
+
+  /**
+   * The messages sent in one request: a single message sent to its own recipient, or a message
+   * sent to up to MAX_MULTICAST_RECIPIENTS registration tokens. Running a batch makes one attempt,
+   * the recipients to be tried again go in a new batch that waits for its backoff on the timer.
+   */
+  private class Batch implements Runnable {
+    // Null if the single message is sent as serialized, with its own to.
+    final String prefix;
+    final List<String> recipients;
+    final List<OutboundMessage> messages;
+    final int attempt;
+    // Delay before the next attempt, unless GCM asks for a longer one.
+    final long backoffMillis;
+
+    Batch(String prefix, List<String> recipients, List<OutboundMessage> messages) {
+      this(prefix, recipients, messages, 1, INITIAL_BACKOFF_MILLIS);
+    }
+
+    Batch(String prefix, List<String> recipients, List<OutboundMessage> messages, int attempt,
+        long backoffMillis) {
+      this.prefix = prefix;
+      this.recipients = recipients;
+      this.messages = messages;
+      this.attempt = attempt;
+      this.backoffMillis = backoffMillis;
+    }
+
+    @Override
+    public void run() {
+      List<String> to = new ArrayList<String>(recipients);
+      List<OutboundMessage> sending = new ArrayList<OutboundMessage>(messages);
+      dropExpired(to, sending);
+      if (sending.isEmpty()) {
+        return;
+      }
+      List<String> retryTo = new ArrayList<String>();
+      List<OutboundMessage> retrying = new ArrayList<OutboundMessage>();
+      boolean lastAttempt = attempt == MAX_ATTEMPTS;
+      long retryAfterMillis = 0;
+      try {
+        Response response = post(body(to, sending));
+        retryAfterMillis = response.retryAfterMillis;
+        if (response.status == HttpURLConnection.HTTP_OK) {
+          complete(response.body, to, sending, lastAttempt, retryTo, retrying);
+        } else if (response.status >= HttpURLConnection.HTTP_INTERNAL_ERROR && !lastAttempt) {
+          retryTo = to;
+          retrying = sending;
+        } else if (response.status >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+          nackAll(to, sending, "SERVICE_UNAVAILABLE", "HTTP " + response.status);
+        } else if (response.status == HttpURLConnection.HTTP_BAD_REQUEST) {
+          nackAll(to, sending, "INVALID_JSON", response.body);
+        } else {
+          failAll(sending, new IOException("GCM answered " + response.status + ": "
+              + response.body));
+        }
+      } catch (IOException | RuntimeException e) {
+        if (lastAttempt) {
+          failAll(sending, e);
+        } else {
+          logger.log(Level.INFO, "Unable to send to " + to.size() + " recipients, retrying.", e);
+          retryTo = to;
+          retrying = sending;
+        }
+      }
+      if (retrying.isEmpty()) {
+        return;
+      }
+      retryCount.addAndGet(retrying.size());
+      retryLater(new Batch(prefix, retryTo, retrying, attempt + 1, backoffMillis * 2),
+          Math.max(backoffMillis, retryAfterMillis));
+    }
+
+    private void dropExpired(List<String> to, List<OutboundMessage> sending) {
+      long now = System.nanoTime();
+      OutboundQueue counter = expiredCounter;
+      for (int i = sending.size() - 1; i >= 0; i--) {
+        OutboundMessage message = sending.get(i);
+        if (message.isExpired(now)) {
+          if (counter != null) {
+            counter.dropExpired(message);
+          } else {
+            message.future.completeExceptionally(
+                new MessageExpiredException(message.messageId, message.options.getName()));
+          }
+          to.remove(i);
+          sending.remove(i);
+        }
+      }
+    }
+
+    /**
+     * Serialize the request: the message with its delivery options, to its own recipient or to
+     * the given registration tokens.
+     */
+    private String body(List<String> to, List<OutboundMessage> sending) {
+      OutboundMessage first = sending.get(0);
+      StringBuilder body;
+      if (prefix == null) {
+        // The HTTP API has no message_id, only CCS does.
+        String json = first.json;
+        String messageIdSuffix = ",\"message_id\":\"" + first.messageId + "\"}";
+        int end = json.endsWith(messageIdSuffix)
+            ? json.length() - messageIdSuffix.length() : json.lastIndexOf('}');
+        body = new StringBuilder(end + 64).append(json, 0, end);
+      } else {
+        body = new StringBuilder(prefix.length() + to.size() * 160 + 64).append(prefix);
+        body.append("\"registration_ids\":[");
+        for (int i = 0; i < to.size(); i++) {
+          if (i > 0) {
+            body.append(',');
+          }
+          body.append('"');
+          MessageTemplate.appendEscaped(body, to.get(i));
+          body.append('"');
+        }
+        body.append(']');
+      }
+      first.options.appendTo(body, first.remainingSeconds(System.nanoTime()));
+      return body.append('}').toString();
+    }
+
+    /**
+     * Complete the messages with the results of a successful request, collecting those to be
+     * tried again.
+     */
+    private void complete(String body, List<String> to, List<OutboundMessage> sending,
+        boolean lastAttempt, List<String> retryTo, List<OutboundMessage> retrying)
+        throws IOException {
+      JsonElement jResponse = new JsonParser().parse(body);
+      if (!jResponse.isJsonObject()) {
+        throw new IOException("GCM answered with " + body);
+      }
+      JsonObject jObject = jResponse.getAsJsonObject();
+      List<JsonObject> results = new ArrayList<JsonObject>(sending.size());
+      if (jObject.has("results")) {
+        JsonArray jResults = jObject.getAsJsonArray("results");
+        for (JsonElement jResult : jResults) {
+          results.add(jResult.getAsJsonObject());
+        }
+      } else {
+        // Messages to a topic are answered with the single result itself.
+        results.add(jObject);
+      }
+      if (results.size() != sending.size()) {
+        throw new IOException("GCM answered " + results.size() + " results for "
+            + sending.size() + " recipients.");
+      }
+      for (int i = 0; i < results.size(); i++) {
+        JsonObject jResult = results.get(i);
+        OutboundMessage message = sending.get(i);
+        if (jResult.has("message_id")) {
+          if (jResult.has("registration_id")) {
+            logger.info("GCM reports " + to.get(i) + " is now "
+                + jResult.get("registration_id").getAsString());
+          }
+          message.future.complete(message.messageId);
+          continue;
+        }
+        String error = jResult.has("error") ? jResult.get("error").getAsString() : "Unknown";
+        if (isRetriable(error) && !lastAttempt) {
+          retryTo.add(to.get(i));
+          retrying.add(message);
+        } else {
+          message.future.completeExceptionally(
+              new GcmNackException(message.messageId, to.get(i), toCcsError(error), error));
+        }
+      }
+    }
+
+    private void nackAll(List<String> to, List<OutboundMessage> sending, String error,
+        String description) {
+      for (int i = 0; i < sending.size(); i++) {
+        OutboundMessage message = sending.get(i);
+        message.future.completeExceptionally(
+            new GcmNackException(message.messageId, to.get(i), error, description));
+      }
+    }
+
+    /**
+     * @param error Cause of the failure, null if this sender was closed.
+     */
+    private void failAll(List<OutboundMessage> sending, Throwable error) {
+      for (OutboundMessage message : sending) {
+        message.future.completeExceptionally(
+            error != null ? error : closedException(message.messageId));
+      }
+    }
+  }
+
+  private Response post(String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    long startNanos = System.nanoTime();
+    requestCount.incrementAndGet();
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try {
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Authorization", "key=" + apiKey);
+      connection.setRequestProperty("Content-Type", "application/json");
+      OutputStream out = connection.getOutputStream();
+      try {
+        out.write(bytes);
+      } finally {
+        out.close();
+      }
+      int status = connection.getResponseCode();
+      String response = read(status == HttpURLConnection.HTTP_OK
+          ? connection.getInputStream() : connection.getErrorStream());
+      requestLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+      return new Response(status, response, retryAfterMillis(connection));
+    } catch (IOException e) {
+      // Do not leave a broken connection to be reused.
+      connection.disconnect();
+      throw e;
+    }
+  }
+
+  private static long retryAfterMillis(HttpURLConnection connection) {
+    String retryAfter = connection.getHeaderField("Retry-After");
+    if (retryAfter == null) {
+      return 0;
+    }
+    try {
+      return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+    } catch (NumberFormatException e) {
+      // An HTTP date, the exponential backoff is used instead.
+      return 0;
+    }
+  }
+
+  private static String read(InputStream in) throws IOException {
+    if (in == null) {
+      return "";
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, count);
+      }
+      return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    } finally {
+      in.close();
+    }
+  }
+}
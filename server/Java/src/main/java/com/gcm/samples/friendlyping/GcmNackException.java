@@ -0,0 +1,73 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+/**
+ * GcmNackException signals that CCS rejected a downstream message with a nack.
+ */
+public class GcmNackException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  // Registration token is invalid or belongs to an uninstalled app.
+  public static final String BAD_REGISTRATION = "BAD_REGISTRATION";
+  public static final String DEVICE_UNREGISTERED = "DEVICE_UNREGISTERED";
+
+  private final String messageId;
+  private final String from;
+  private final String error;
+  private final String errorDescription;
+
+  public GcmNackException(String messageId, String from, String error, String errorDescription) {
+    super("Message " + messageId + " to " + from + " was nacked: " + error
+        + (errorDescription != null ? " (" + errorDescription + ")" : ""));
+    this.messageId = messageId;
+    this.from = from;
+    this.error = error;
+    this.errorDescription = errorDescription;
+  }
+
+  public String getMessageId() {
+    return messageId;
+  }
+
+  /**
+   * @return Recipient of the nacked message, as reported by CCS.
+   */
+  public String getFrom() {
+    return from;
+  }
+
+  /**
+   * @return CCS error code, e.g. DEVICE_UNREGISTERED.
+   */
+  public String getError() {
+    return error;
+  }
+
+  public String getErrorDescription() {
+    return errorDescription;
+  }
+
+  /**
+   * @return True if the recipient's registration token will never be valid again and the
+   * recipient should be forgotten.
+   */
+  public boolean isInvalidRegistration() {
+    return DEVICE_UNREGISTERED.equals(error) || BAD_REGISTRATION.equals(error);
+  }
+}
@@ -20,19 +20,43 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import org.jivesoftware.smack.AbstractConnectionListener;
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.filter.StanzaFilter;
 import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smack.provider.ExtensionElementProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.util.PacketParserUtils;
 import org.jivesoftware.smack.util.StringUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,7 +65,7 @@ public abstract class GcmServer {
   /**
    * Extension of Packet to allow production and consumption of packets, to and from GCM.
    */
-  public class GcmPacketExtension implements ExtensionElement {
+  public static class GcmPacketExtension implements ExtensionElement {
 
     private String json;
 
@@ -70,6 +94,20 @@ public abstract class GcmServer {
     }
   }
 
+  /**
+   * Provider that parses the JSON body of gcm elements into GcmPacketExtensions.
+   */
+  public static class GcmPacketExtensionProvider
+      extends ExtensionElementProvider<GcmPacketExtension> {
+
+    @Override
+    public GcmPacketExtension parse(XmlPullParser parser, int initialDepth)
+        throws XmlPullParserException, IOException, SmackException {
+      String json = parser.nextText();
+      return new GcmPacketExtension(json);
+    }
+  }
+
   public static final String GCM_NAMESPACE = "google:mobile:data";
   public static final String GCM_ELEMENT_NAME = "gcm";
   public static final String GCM_HOST = "gcm.googleapis.com";
@@ -77,6 +115,16 @@ public abstract class GcmServer {
 
   private static final Logger logger = Logger.getLogger("GcmServer");
 
+  private static final long DEFAULT_ACK_TIMEOUT_MILLIS = 30000;
+  private static final long TIMEOUT_CHECK_MILLIS = 100;
+  private static final long DRAIN_CHECK_MILLIS = 10;
+  // What wrapWithXML puts around the JSON of a message.
+  private static final String STANZA_PREFIX =
+      "<message><" + GCM_ELEMENT_NAME + " xmlns=\"" + GCM_NAMESPACE + "\">";
+  private static final String STANZA_SUFFIX = "</" + GCM_ELEMENT_NAME + "></message>";
+  // Sample stanzas parsed per parser by warmUp, creating a parser costs more than a stanza.
+  private static final int WARM_UP_STANZAS_PER_PARSER = 100;
+
   private SmackCcsClient smackCcsClient;
   private Gson gson;
   private JsonParser jsonParser;
@@ -87,22 +135,109 @@ public abstract class GcmServer {
   // more involved handling could be done.
   private StanzaListener stanzaListener;
 
+  // Downstream messages waiting for room in the in-flight window.
+  private final OutboundQueue outboundQueue;
+  // Sent messages waiting for an ack or nack, keyed by message ID.
+  private final Map<String, OutboundMessage> pendingMessages =
+      new ConcurrentHashMap<String, OutboundMessage>();
+  // Seeded from the clock in microseconds, see nextMessageId.
+  private final AtomicLong nextMessageId =
+      new AtomicLong(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+  // Own timer thread of the ack timeout checks, null if they run on SharedExecutors.
+  private final ScheduledExecutorService timeoutExecutor;
+  private final ScheduledFuture<?> timeoutChecks;
+  private volatile long ackTimeoutNanos =
+      TimeUnit.MILLISECONDS.toNanos(DEFAULT_ACK_TIMEOUT_MILLIS);
+  // Journal of messages not yet acked, null if messages are not journaled.
+  private volatile MessageJournal journal;
+  // Capture of the stanzas received from CCS, null if traffic is not captured.
+  private volatile TrafficCapture capture;
+  // Sender of the message types in httpMessageTypes, null if every message is sent over CCS.
+  private volatile GcmHttpSender httpSender;
+  private volatile Set<String> httpMessageTypes = Collections.emptySet();
+  // When the connection to CCS was last lost, valid while connectionLost is set.
+  private volatile long connectionLostNanos;
+  private volatile boolean connectionLost;
+  // Whether the last authenticated connection used stream management.
+  private volatile boolean streamManaged;
+  private final AtomicLong resentCount = new AtomicLong();
+  // Cleared when draining, upstream messages are then left unacked for CCS to deliver elsewhere.
+  private volatile boolean acceptingUpstream = true;
+  // Upstream messages being handled, which may still send downstream messages.
+  private final AtomicInteger activeHandlers = new AtomicInteger();
+  // Upstream messages wait until this completes before being handled, see holdUpstreamUntil.
+  private volatile CompletableFuture<?> upstreamGate = CompletableFuture.completedFuture(null);
+  private volatile boolean closed;
+
   public GcmServer(String apiKey, String senderId, String serviceName) {
+    this(apiKey, senderId, serviceName, GCM_HOST, GCM_CCS_PORT, SSLSocketFactory.getDefault());
+  }
+
+  /**
+   * Create a GcmServer for the CCS endpoint at host and port. This allows the server to be run
+   * against a local CCS stand-in, for example when load testing. No connection is made until
+   * start is called.
+   */
+  public GcmServer(String apiKey, String senderId, String serviceName, String host, int port,
+      SocketFactory socketFactory) {
+    this(new SmackCcsClient(apiKey, senderId + "@" + GCM_HOST, serviceName, host, port,
+        socketFactory));
+  }
+
+  /**
+   * Create a GcmServer that uses the given SmackCcsClient without connecting it. This allows the
+   * message handling to be exercised without a CCS connection, for example by benchmarks.
+   */
+  GcmServer(SmackCcsClient smackCcsClient) {
+    this(smackCcsClient, null, null);
+  }
+
+  /**
+   * Create a GcmServer that uses the given SmackCcsClient and checks for ack timeouts on the
+   * timers of the given SharedExecutors, on behalf of the given tenant. No connection is made
+   * until start is called.
+   *
+   * @param executors Executors shared with other tenants, or null for the GcmServer to start its
+   * own timer thread.
+   */
+  GcmServer(SmackCcsClient smackCcsClient, SharedExecutors executors, String tenant) {
+    this.smackCcsClient = smackCcsClient;
     jsonParser = new JsonParser();
     gson = new GsonBuilder().create();
-    String username = senderId + "@" + GCM_HOST;
-    smackCcsClient = new SmackCcsClient(apiKey, username, serviceName, GCM_HOST, GCM_CCS_PORT);
+    outboundQueue = new OutboundQueue(new OutboundQueue.Sender() {
+      @Override
+      public void send(OutboundMessage message) {
+        sendNow(message);
+      }
+    });
+
+    Runnable timeoutCheck = new Runnable() {
+      @Override
+      public void run() {
+        expirePendingMessages();
+        outboundQueue.purgeExpired();
+      }
+    };
+    if (executors != null) {
+      timeoutExecutor = null;
+      timeoutChecks = executors.scheduleWithFixedDelay(tenant, timeoutCheck,
+          TIMEOUT_CHECK_MILLIS, TIMEOUT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    } else {
+      timeoutExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "GcmServer-ack-timeouts");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      timeoutChecks = timeoutExecutor.scheduleWithFixedDelay(timeoutCheck,
+          TIMEOUT_CHECK_MILLIS, TIMEOUT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
     // Add the GcmPacketExtension as an extension provider.
     ProviderManager.addExtensionProvider(GCM_ELEMENT_NAME, GCM_NAMESPACE,
-        new ExtensionElementProvider<GcmPacketExtension>() {
-          @Override
-          public GcmPacketExtension parse(XmlPullParser parser, int initialDepth)
-              throws XmlPullParserException, IOException, SmackException {
-            String json = parser.nextText();
-            return new GcmPacketExtension(json);
-          }
-        });
+        new GcmPacketExtensionProvider());
 
     stanzaFilter = new StanzaFilter() {
       @Override
@@ -122,61 +257,287 @@ public abstract class GcmServer {
         // Extract the GCM message from the packet.
         GcmPacketExtension packetExtension =
             (GcmPacketExtension) packet.getExtension(GCM_NAMESPACE);
+        handleGcmMessage(packetExtension.getJson());
+      }
+    };
 
-        JsonObject jGcmMessage = jsonParser.parse(packetExtension.getJson()).getAsJsonObject();
-        String from = jGcmMessage.get("from").getAsString();
-
-        // If there is no message_type normal GCM message is assumed.
-        if (!jGcmMessage.has("message_type")) {
-          if (StringUtils.isNotEmpty(from)) {
-            JsonObject jData = jGcmMessage.get("data").getAsJsonObject();
-            onMessage(from, jData);
-
-            // Send Ack to CCS to confirm receipt of upstream message.
-            String messageId = jGcmMessage.get("message_id").getAsString();
-            if (StringUtils.isNotEmpty(messageId)) {
-              sendAck(from, messageId);
-            } else {
-              logger.log(Level.SEVERE, "Message ID is null or empty.");
-            }
-          } else {
-            logger.log(Level.SEVERE, "From is null or empty.");
+    smackCcsClient.listen(stanzaListener, stanzaFilter);
+
+    smackCcsClient.addConnectionListener(new AbstractConnectionListener() {
+      @Override
+      public void connectionClosed() {
+        onConnectionLost();
+      }
+
+      @Override
+      public void connectionClosedOnError(Exception e) {
+        onConnectionLost();
+      }
+
+      @Override
+      public void authenticated(XMPPConnection connection, boolean resumed) {
+        if (connectionLost) {
+          connectionLost = false;
+          // A resumed stream has already exchanged whatever was in transit.
+          if (!resumed) {
+            resendUnacked(connectionLostNanos, streamManaged);
           }
+        }
+        if (!resumed) {
+          streamManaged = smackCcsClient.isStreamManaged();
+        }
+      }
+    });
+
+    smackCcsClient.addStanzaAcknowledgedListener(new StanzaListener() {
+      @Override
+      public void processPacket(Stanza stanza) {
+        OutboundMessage pending = pendingMessages.get(stanza.getStanzaId());
+        if (pending != null) {
+          pending.streamAcked = true;
+        }
+      }
+    });
+  }
+
+  private void onConnectionLost() {
+    connectionLostNanos = System.nanoTime();
+    connectionLost = true;
+  }
+
+  /**
+   * Send again the pending messages that were sent on a connection that has since been lost.
+   * Their acks will never arrive, and without this they would only fail once their ack timeout
+   * passes. Messages sent after the connection was lost were buffered by SmackCcsClient and are
+   * sent on the new connection anyway.
+   *
+   * If the lost connection used stream management, Smack has already sent again the messages CCS
+   * had not acknowledged receiving. Only messages CCS received but whose ack or nack was lost
+   * with the connection are sent again here.
+   *
+   * @param lostNanos When the connection was lost.
+   * @param streamManaged Whether the lost connection used stream management.
+   */
+  private void resendUnacked(long lostNanos, boolean streamManaged) {
+    int resent = 0;
+    for (OutboundMessage pending : pendingMessages.values()) {
+      if (pending.sentNanos - lostNanos <= 0 && (!streamManaged || pending.streamAcked)) {
+        if (transmit(pending)) {
+          resent++;
+        }
+      }
+    }
+    if (resent > 0) {
+      logger.info("Resent " + resent + " messages sent before the connection was lost.");
+      resentCount.addAndGet(resent);
+    }
+  }
+
+  /**
+   * Start connecting to CCS in the background. Messages sent before the connection is up are
+   * buffered.
+   */
+  public void start() {
+    smackCcsClient.connect();
+  }
+
+  /**
+   * Hold upstream messages that arrive before the given future completes, for example while the
+   * state needed to handle them is loaded in parallel with connecting. If the future fails the
+   * held messages are left unacked, so CCS delivers them again.
+   */
+  public void holdUpstreamUntil(CompletableFuture<?> gate) {
+    upstreamGate = gate;
+  }
+
+  /**
+   * Stop handling upstream messages and wait until every downstream message queued or sent has
+   * been acked or nacked, or has failed. Upstream messages arriving from now on are not acked, so
+   * CCS delivers them again on another connection once this one is closed.
+   *
+   * @return True if drained, false if the timeout passed first.
+   */
+  public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+    acceptingUpstream = false;
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (activeHandlers.get() > 0 || getQueuedCount() > 0 || !pendingMessages.isEmpty()
+        || smackCcsClient.getBufferedCount() > 0
+        || (httpSender != null && httpSender.getPendingCount() > 0)) {
+      if (deadline - System.nanoTime() <= 0) {
+        return false;
+      }
+      Thread.sleep(DRAIN_CHECK_MILLIS);
+    }
+    return true;
+  }
+
+  /**
+   * Close the journal, which makes it durable, then the connection to CCS, the HTTP sender and
+   * the traffic capture, if any. Messages still queued or waiting for an ack fail, journaled ones
+   * are sent again by the next run. Call drain first to let them finish.
+   */
+  public void close() {
+    acceptingUpstream = false;
+    closed = true;
+    MessageJournal current = journal;
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Unable to close the message journal.", e);
+      }
+    }
+    smackCcsClient.close();
+    timeoutChecks.cancel(false);
+    if (timeoutExecutor != null) {
+      timeoutExecutor.shutdownNow();
+    }
+    GcmHttpSender currentSender = httpSender;
+    if (currentSender != null) {
+      currentSender.close();
+    }
+    TrafficCapture currentCapture = capture;
+    if (currentCapture != null) {
+      try {
+        currentCapture.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to close the traffic capture.", e);
+      }
+    }
+
+    int failed = 0;
+    for (OutboundMessage queued : outboundQueue.removeAll()) {
+      queued.future.completeExceptionally(closedException(queued.messageId));
+      failed++;
+    }
+    for (Map.Entry<String, OutboundMessage> entry : pendingMessages.entrySet()) {
+      if (pendingMessages.remove(entry.getKey(), entry.getValue())) {
+        entry.getValue().future.completeExceptionally(closedException(entry.getKey()));
+        failed++;
+      }
+    }
+    if (failed > 0) {
+      logger.warning("Closed with " + failed + " messages not acked.");
+    }
+  }
+
+  private static IllegalStateException closedException(String messageId) {
+    return new IllegalStateException("GcmServer closed before message " + messageId
+        + " was acked.");
+  }
+
+  /**
+   * Decode a GCM message received from CCS and handle it according to its message_type.
+   *
+   * @param json JSON body of the gcm element.
+   */
+  void handleGcmMessage(String json) {
+    JsonObject jGcmMessage = jsonParser.parse(json).getAsJsonObject();
+    String from = jGcmMessage.get("from").getAsString();
+    TrafficCapture capture = this.capture;
+    if (capture != null) {
+      capture(capture, from, jGcmMessage);
+    }
+
+    // If there is no message_type normal GCM message is assumed.
+    if (!jGcmMessage.has("message_type")) {
+      // Counted before checking so that drain cannot miss a handler that is about to start.
+      activeHandlers.incrementAndGet();
+      try {
+        if (!awaitUpstreamGate()) {
+          logger.warning("Startup failed, leaving upstream message from " + from + " unacked.");
+        } else if (acceptingUpstream) {
+          handleUpstream(from, jGcmMessage);
         } else {
-          // Handle message_type here.
-          String messageType = jGcmMessage.get("message_type").getAsString();
-          if (messageType.equals("ack")) {
-            // Handle ACK. Here the ack is logged, you may want to further process the ACK at this
-            // point.
-            String messageId = jGcmMessage.get("message_id").getAsString();
-            logger.info("ACK received for message " + messageId + " from " + from);
-          } else if (messageType.equals("nack")) {
-            // Handle NACK. Here the nack is logged, you may want to further process the NACK at
-            // this point.
-            String messageId = jGcmMessage.get("message_id").getAsString();
-            logger.info("NACK received for message " + messageId + " from " + from);
-          } else if (messageType.equals("control")) {
-            logger.info("Control message received.");
-            String controlType = jGcmMessage.get("control_type").getAsString();
-            if (controlType.equals("CONNECTION_DRAINING")) {
-              // Handle connection draining
-              // SmackCcsClient only maintains one connection the CCS to reduce complexity. A real
-              // world application should be capable of maintaining multiple connections to GCM,
-              // allowing the application to continue to onMessage for incoming messages on the
-              // draining connection and sending all new out going messages on a newly created
-              // connection.
-              logger.info("Current connection will be closed soon.");
-            } else {
-              // Currently the only control_type is CONNECTION_DRAINING, if new control messages
-              // are added they should be handled here.
-              logger.info("New control message has been received.");
-            }
-          }
+          logger.info("Draining, leaving upstream message from " + from + " unacked.");
         }
+      } finally {
+        activeHandlers.decrementAndGet();
       }
-    };
+    } else {
+      // Handle message_type here.
+      String messageType = jGcmMessage.get("message_type").getAsString();
+      if (messageType.equals("ack")) {
+        // Handle ACK. Here the ack is logged and the pending send completed.
+        String messageId = jGcmMessage.get("message_id").getAsString();
+        logger.info("ACK received for message " + messageId + " from " + from);
+        onDeliveryReport(messageId, from, jGcmMessage, true);
+      } else if (messageType.equals("nack")) {
+        // Handle NACK. Here the nack is logged and the pending send failed.
+        String messageId = jGcmMessage.get("message_id").getAsString();
+        logger.info("NACK received for message " + messageId + " from " + from);
+        onDeliveryReport(messageId, from, jGcmMessage, false);
+      } else if (messageType.equals("control")) {
+        logger.info("Control message received.");
+        String controlType = jGcmMessage.get("control_type").getAsString();
+        if (controlType.equals("CONNECTION_DRAINING")) {
+          // Handle connection draining
+          // SmackCcsClient only maintains one connection the CCS to reduce complexity. A real
+          // world application should be capable of maintaining multiple connections to GCM,
+          // allowing the application to continue to onMessage for incoming messages on the
+          // draining connection and sending all new out going messages on a newly created
+          // connection.
+          logger.info("Current connection will be closed soon.");
+        } else {
+          // Currently the only control_type is CONNECTION_DRAINING, if new control messages
+          // are added they should be handled here.
+          logger.info("New control message has been received.");
+        }
+      }
+    }
+  }
 
-    smackCcsClient.listen(stanzaListener, stanzaFilter);
+  /**
+   * Record an upstream message, ack or nack in the capture.
+   */
+  private static void capture(TrafficCapture capture, String from, JsonObject jGcmMessage) {
+    if (!jGcmMessage.has("message_type")) {
+      if (jGcmMessage.has("data")) {
+        capture.recordUpstream(from, jGcmMessage.get("data").toString());
+      }
+      return;
+    }
+    String messageType = jGcmMessage.get("message_type").getAsString();
+    if (messageType.equals("ack")) {
+      capture.recordAck(from);
+    } else if (messageType.equals("nack")) {
+      capture.recordNack(from,
+          jGcmMessage.has("error") ? jGcmMessage.get("error").getAsString() : null);
+    }
+  }
+
+  /**
+   * Wait until upstream messages may be handled.
+   *
+   * @return False if the gate failed.
+   */
+  private boolean awaitUpstreamGate() {
+    try {
+      upstreamGate.join();
+      return true;
+    } catch (CompletionException | CancellationException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Hand a normal upstream message to onMessage and ack it.
+   */
+  private void handleUpstream(String from, JsonObject jGcmMessage) {
+    if (StringUtils.isNotEmpty(from)) {
+      JsonObject jData = jGcmMessage.get("data").getAsJsonObject();
+      onMessage(from, jData);
+
+      // Send Ack to CCS to confirm receipt of upstream message.
+      String messageId = jGcmMessage.get("message_id").getAsString();
+      if (StringUtils.isNotEmpty(messageId)) {
+        sendAck(from, messageId);
+      } else {
+        logger.log(Level.SEVERE, "Message ID is null or empty.");
+      }
+    } else {
+      logger.log(Level.SEVERE, "From is null or empty.");
+    }
   }
 
   /**
@@ -189,29 +550,585 @@ public abstract class GcmServer {
   public abstract void onMessage(String from, JsonObject jData);
 
   /**
-   * Send messages to recipient via GCM.
+   * Send messages to recipient via GCM. Delivery is not reported to the caller, use sendAsync to
+   * find out whether the message was acked.
    *
    * @param to Message recipient.
    * @param message Message to be sent.
    */
   public void send(String to, JsonObject message) {
+    sendAsync(to, message, DeliveryOptions.DEFAULT);
+  }
+
+  /**
+   * Send messages to recipient via GCM with the default delivery options and track its delivery
+   * to CCS.
+   *
+   * @see #sendAsync(String, JsonObject, DeliveryOptions)
+   */
+  public CompletableFuture<String> sendAsync(String to, JsonObject message) {
+    return sendAsync(to, message, DeliveryOptions.DEFAULT);
+  }
+
+  /**
+   * Send messages to recipient via GCM and track its delivery to CCS. The message is queued in
+   * the lane given by its options until it fits in the in-flight window, and dropped if its time
+   * to live passes first.
+   *
+   * @param to Message recipient.
+   * @param message Message to be sent.
+   * @param options Delivery options for this type of message.
+   * @return Future completed with the message ID when CCS acks the message. It fails with a
+   * GcmNackException if CCS nacks the message, with a TimeoutException if neither arrives within
+   * the ack timeout, with a MessageExpiredException if the message expired while queued, and
+   * with a NotConnectedException if the message could neither be sent nor buffered until the
+   * connection is back, and with an IllegalStateException if the server is closed before it is
+   * acked.
+   */
+  public CompletableFuture<String> sendAsync(String to, JsonObject message,
+      DeliveryOptions options) {
+    String messageId = nextMessageId();
+    if (closed) {
+      return closedFuture(messageId);
+    }
     message.addProperty("to", to);
-    /**
-     * Message ID generated as a remainder of current time in milliseconds. You could use any
-     * method of unique ID generation here.
-     */
-    message.addProperty("message_id", (Calendar.getInstance().getTimeInMillis()) + "");
+    message.addProperty("message_id", messageId);
+    return enqueue(messageId, to, gson.toJson(message), options);
+  }
+
+  /**
+   * Send a message serialized ahead of time, for example rendered from a MessageTemplate, to
+   * recipient via GCM and track its delivery to CCS, like sendAsync.
+   *
+   * @param to Message recipient.
+   * @param json Serialized JSON object of the message, without to and message_id, which are
+   *             added.
+   * @param options Delivery options for this type of message.
+   * @return Future completed with the message ID when CCS acks the message, see sendAsync.
+   */
+  public CompletableFuture<String> sendJsonAsync(String to, String json,
+      DeliveryOptions options) {
+    String messageId = nextMessageId();
+    if (closed) {
+      return closedFuture(messageId);
+    }
+    return enqueue(messageId, to, addRecipient(json, to, messageId), options);
+  }
+
+  /**
+   * Send several messages serialized ahead of time to one recipient and track their delivery to
+   * CCS, like sendJsonAsync. With a journal, they are journaled together and wait for one fsync
+   * rather than one each.
+   *
+   * @param to Recipient of all the messages.
+   * @param jsons Serialized JSON objects of the messages, without to and message_id, which are
+   *              added.
+   * @param options Delivery options for this type of message.
+   * @return Futures completed with the message ID when CCS acks the message at the same index,
+   * see sendAsync.
+   */
+  public List<CompletableFuture<String>> sendAllJsonAsync(String to, List<String> jsons,
+      DeliveryOptions options) {
+    List<CompletableFuture<String>> futures =
+        new ArrayList<CompletableFuture<String>>(jsons.size());
+    if (closed) {
+      for (int i = 0; i < jsons.size(); i++) {
+        futures.add(closedFuture(nextMessageId()));
+      }
+      return futures;
+    }
+    List<String> messageIds = new ArrayList<String>(jsons.size());
+    List<String> addressed = new ArrayList<String>(jsons.size());
+    for (String json : jsons) {
+      String messageId = nextMessageId();
+      messageIds.add(messageId);
+      addressed.add(addRecipient(json, to, messageId));
+    }
+    GcmHttpSender sender = httpSenderFor(options);
+    for (OutboundMessage message : journaled(messageIds, addressed, options)) {
+      if (sender != null) {
+        sender.send(to, message);
+      } else {
+        outboundQueue.submit(message);
+      }
+      futures.add(message.future);
+    }
+    return futures;
+  }
 
-    final String payload = gson.toJson(message);
+  /**
+   * Send a message serialized ahead of time to each of the given recipients and track the
+   * delivery of each copy to CCS, like sendJsonAsync. CCS has no multicast, so each recipient gets
+   * its own message, but the payload is only prepared once for all of them. If messages of this
+   * type are sent over HTTP, see setHttpSender, the copies are sent a thousand at a time instead.
+   * With a journal, the copies are journaled together and wait for one fsync rather than one each.
+   *
+   * @param to Message recipients.
+   * @param json Serialized JSON object of the message, without to and message_id, which are
+   *             added.
+   * @param options Delivery options for this type of message.
+   * @return Futures completed with the message ID when CCS acks the message to the recipient at
+   * the same index, see sendAsync.
+   */
+  public List<CompletableFuture<String>> multicastJsonAsync(List<String> to, String json,
+      DeliveryOptions options) {
+    String prefix = recipientPrefix(json);
+    List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>(to.size());
+    if (closed) {
+      for (int i = 0; i < to.size(); i++) {
+        futures.add(closedFuture(nextMessageId()));
+      }
+      return futures;
+    }
+    List<String> messageIds = new ArrayList<String>(to.size());
+    List<String> jsons = new ArrayList<String>(to.size());
+    for (String recipient : to) {
+      String messageId = nextMessageId();
+      messageIds.add(messageId);
+      jsons.add(addRecipientToPrefix(prefix, recipient, messageId));
+    }
+    List<OutboundMessage> messages = journaled(messageIds, jsons, options);
+    for (OutboundMessage message : messages) {
+      futures.add(message.future);
+    }
+    GcmHttpSender sender = httpSenderFor(options);
+    if (sender != null) {
+      sender.multicast(prefix, to, messages);
+    } else {
+      for (OutboundMessage message : messages) {
+        outboundQueue.submit(message);
+      }
+    }
+    return futures;
+  }
+
+  /**
+   * @return Future failed because the server is closed.
+   */
+  private CompletableFuture<String> closedFuture(String messageId) {
+    CompletableFuture<String> failed = new CompletableFuture<String>();
+    failed.completeExceptionally(closedException(messageId));
+    return failed;
+  }
+
+  /**
+   * Add to and message_id to a serialized message, as the last members like addProperty would.
+   */
+  private static String addRecipient(String json, String to, String messageId) {
+    int end = recipientOffset(json);
+    StringBuilder out = new StringBuilder(end + to.length() + messageId.length() + 32);
+    out.append(json, 0, end);
+    if (needsSeparator(json, end)) {
+      out.append(',');
+    }
+    return appendRecipient(out, to, messageId);
+  }
+
+  /**
+   * Add to and message_id to the prefix of a serialized message returned by recipientPrefix.
+   */
+  private static String addRecipientToPrefix(String prefix, String to, String messageId) {
+    StringBuilder out = new StringBuilder(prefix.length() + to.length() + messageId.length() + 32);
+    out.append(prefix);
+    return appendRecipient(out, to, messageId);
+  }
+
+  /**
+   * @return The serialized message up to where to and message_id are added, including the comma
+   * separating them from the last member if there is one.
+   */
+  private static String recipientPrefix(String json) {
+    int end = recipientOffset(json);
+    return needsSeparator(json, end) ? json.substring(0, end) + ',' : json.substring(0, end);
+  }
+
+  private static String appendRecipient(StringBuilder out, String to, String messageId) {
+    out.append("\"to\":\"");
+    MessageTemplate.appendEscaped(out, to);
+    out.append("\",\"message_id\":\"").append(messageId).append("\"}");
+    return out.toString();
+  }
+
+  /**
+   * @return Offset of the closing brace of a serialized message.
+   */
+  private static int recipientOffset(String json) {
+    int end = json.lastIndexOf('}');
+    if (end < 1) {
+      throw new IllegalArgumentException("Not a serialized JSON object: " + json);
+    }
+    return end;
+  }
+
+  /**
+   * Members are separated by commas, unless the object was empty.
+   */
+  private static boolean needsSeparator(String json, int end) {
+    int last = end - 1;
+    while (last > 0 && Character.isWhitespace(json.charAt(last))) {
+      last--;
+    }
+    return json.charAt(last) != '{';
+  }
+
+  /**
+   * Journal a serialized message, if there is a journal, and queue it for sending, or hand it to
+   * the HTTP sender if messages of its type are sent over HTTP.
+   */
+  private CompletableFuture<String> enqueue(String messageId, String to, String json,
+      DeliveryOptions options) {
+    OutboundMessage outboundMessage = journaled(messageId, json, options);
+    GcmHttpSender sender = httpSenderFor(options);
+    if (sender != null) {
+      sender.send(to, outboundMessage);
+    } else {
+      outboundQueue.submit(outboundMessage);
+    }
+    return outboundMessage.future;
+  }
+
+  /**
+   * @return A new message for the given serialized message, journaled if there is a journal.
+   */
+  private OutboundMessage journaled(String messageId, String json, DeliveryOptions options) {
+    OutboundMessage outboundMessage = new OutboundMessage(messageId, json, options);
+    MessageJournal journal = this.journal;
+    if (journal != null) {
+      try {
+        journal.append(messageId, json, options);
+        outboundMessage.future.whenComplete(markDone(journal, messageId));
+      } catch (IOException e) {
+        // Sending without the journal only loses the message if the server also crashes.
+        logger.log(Level.SEVERE, "Unable to journal message " + messageId, e);
+      }
+    }
+    return outboundMessage;
+  }
+
+  /**
+   * @return New messages for the given serialized messages, journaled together if there is a
+   * journal.
+   */
+  private List<OutboundMessage> journaled(List<String> messageIds, List<String> jsons,
+      DeliveryOptions options) {
+    List<OutboundMessage> messages = new ArrayList<OutboundMessage>(messageIds.size());
+    for (int i = 0; i < messageIds.size(); i++) {
+      messages.add(new OutboundMessage(messageIds.get(i), jsons.get(i), options));
+    }
+    MessageJournal journal = this.journal;
+    if (journal != null && !messages.isEmpty()) {
+      try {
+        journal.appendAll(messageIds, jsons, options);
+        for (OutboundMessage message : messages) {
+          message.future.whenComplete(markDone(journal, message.messageId));
+        }
+      } catch (IOException e) {
+        // Sending without the journal only loses the messages if the server also crashes.
+        logger.log(Level.SEVERE, "Unable to journal " + messages.size() + " messages", e);
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * @return The HTTP sender if messages with the given options are sent over HTTP, else null.
+   */
+  private GcmHttpSender httpSenderFor(DeliveryOptions options) {
+    GcmHttpSender sender = httpSender;
+    return sender != null && httpMessageTypes.contains(options.getName()) ? sender : null;
+  }
+
+  /**
+   * Run the codecs every message goes through on sample messages, without sending anything:
+   * parsing an upstream stanza and its JSON, serializing a downstream message with its delivery
+   * options and serializing an ack. Called before traffic is accepted so that the first messages
+   * are not handled by cold code.
+   *
+   * @param iterations Number of times each codec is run.
+   * @param upstreamData Data of a sample upstream message.
+   * @param downstream Sample serialized downstream message, without to and message_id.
+   * @param options Delivery options of the sample downstream message.
+   */
+  void warmUp(int iterations, JsonObject upstreamData, String downstream,
+      DeliveryOptions options) {
+    JsonObject jUpstream = new JsonObject();
+    jUpstream.addProperty("from", "warm-up");
+    jUpstream.addProperty("message_id", "warm-up");
+    jUpstream.add("data", upstreamData);
+    // Stanzas are parsed one after another off a parser, like the connection reads them.
+    StringBuilder upstreamStream = new StringBuilder("<stream>");
+    String upstreamXml = wrapWithXML(gson.toJson(jUpstream));
+    for (int i = 0; i < WARM_UP_STANZAS_PER_PARSER; i++) {
+      upstreamStream.append(upstreamXml);
+    }
+    upstreamStream.append("</stream>");
+    XmlPullParser parser = null;
+    for (int i = 0; i < iterations; i++) {
+      GcmPacketExtension extension;
+      try {
+        if (i % WARM_UP_STANZAS_PER_PARSER == 0) {
+          parser = PacketParserUtils.getParserFor(upstreamStream.toString());
+        }
+        parser.nextTag();
+        extension = PacketParserUtils.parseStanza(parser)
+            .getExtension(GCM_ELEMENT_NAME, GCM_NAMESPACE);
+      } catch (XmlPullParserException | IOException | SmackException e) {
+        throw new IllegalStateException("Unable to parse the sample upstream stanza.", e);
+      }
+      JsonObject jGcmMessage = jsonParser.parse(extension.getJson()).getAsJsonObject();
+      String from = jGcmMessage.get("from").getAsString();
+
+      String json = addRecipient(downstream, from, Integer.toString(i));
+      toStanzaXml(json, options, options.getTimeToLiveSeconds());
+      createAck(from, jGcmMessage.get("message_id").getAsString()).toXML();
+    }
+  }
+
+  /**
+   * Journal downstream messages before sending them. Should be set before the first message is
+   * sent. New message IDs are picked so that they do not collide with the messages the previous
+   * run journaled but never saw acked, which are sent by resendRecovered. The journal is closed by
+   * close.
+   *
+   * @param journal Open journal.
+   */
+  public void setJournal(MessageJournal journal) {
+    this.journal = journal;
+    for (MessageJournal.Entry entry : journal.getRecoveredEntries()) {
+      skipMessageIdsUpTo(entry.messageId);
+    }
+  }
+
+  /**
+   * Queue for sending the messages the previous run journaled but never saw acked. Only needed
+   * once, after setJournal. New messages need not wait for this, so that a long backlog does not
+   * hold up startup. They are sent over CCS whatever their type.
+   *
+   * @return Number of messages queued.
+   */
+  public int resendRecovered() {
+    MessageJournal journal = this.journal;
+    long now = System.currentTimeMillis();
+    for (MessageJournal.Entry entry : journal.getRecoveredEntries()) {
+      long ageNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, now - entry.createdMillis));
+      OutboundMessage outboundMessage =
+          new OutboundMessage(entry.messageId, entry.json, entry.options, ageNanos);
+      outboundMessage.future.whenComplete(markDone(journal, entry.messageId));
+      outboundQueue.submit(outboundMessage);
+    }
+    return journal.getRecoveredEntries().size();
+  }
+
+  /**
+   * @return Callback marking a message done in the journal once its fate is known.
+   */
+  private BiConsumer<String, Throwable> markDone(final MessageJournal journal,
+      final String messageId) {
+    return new BiConsumer<String, Throwable>() {
+      @Override
+      public void accept(String result, Throwable error) {
+        try {
+          journal.markDone(messageId);
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Unable to mark message " + messageId + " done.", e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Send a message that has been admitted to the in-flight window by the OutboundQueue. The
+   * message is serialized only now so that its time_to_live reflects the time spent queued.
+   */
+  private void sendNow(OutboundMessage message) {
+    // Track the message before sending it, the ack may arrive before sendStanza returns.
+    pendingMessages.put(message.messageId, message);
+    transmit(message);
+  }
+
+  /**
+   * Serialize and send a pending message, restarting its ack timeout. A message whose time to
+   * live has passed, for example while waiting for an ack before being sent again, is dropped
+   * instead.
+   *
+   * @return False if the message was dropped because it expired.
+   */
+  private boolean transmit(OutboundMessage message) {
+    long now = System.nanoTime();
+    if (message.isExpired(now)) {
+      if (pendingMessages.remove(message.messageId, message)) {
+        outboundQueue.release(message);
+        outboundQueue.dropExpired(message);
+      }
+      return false;
+    }
+    final String xml = toStanzaXml(message.json, message.options, message.remainingSeconds(now));
     Stanza stanza = new Stanza() {
       @Override
       public CharSequence toXML() {
-        return wrapWithXML(payload);
+        return xml;
       }
     };
+    stanza.setStanzaId(message.messageId);
 
+    message.sentNanos = now;
+    message.streamAcked = false;
+    message.ackDeadlineNanos = now + ackTimeoutNanos;
     logger.info("sending msg: " + stanza);
-    smackCcsClient.sendStanza(stanza);
+    if (!smackCcsClient.sendStanza(stanza)) {
+      if (pendingMessages.remove(message.messageId, message)) {
+        outboundQueue.release(message);
+        message.future.completeExceptionally(new SmackException.NotConnectedException());
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Record every upstream message, ack and nack received from now on in the given capture, for
+   * replaying later. The capture is closed by close.
+   */
+  public void setCapture(TrafficCapture capture) {
+    this.capture = capture;
+  }
+
+  /**
+   * Send downstream messages of the given types with sender, over the GCM HTTP API, instead of
+   * over the CCS connection, for example to keep bulk messages from taking up the in-flight
+   * window. Other messages are still sent over CCS. The sender is closed by close.
+   *
+   * @param messageTypes Names of the DeliveryOptions of the message types sent over HTTP.
+   */
+  public void setHttpSender(GcmHttpSender sender, Collection<String> messageTypes) {
+    httpMessageTypes = Collections.unmodifiableSet(new HashSet<String>(messageTypes));
+    sender.countExpiredIn(outboundQueue);
+    httpSender = sender;
+  }
+
+  /**
+   * @return The sender set with setHttpSender, or null if every message is sent over CCS.
+   */
+  public GcmHttpSender getHttpSender() {
+    return httpSender;
+  }
+
+  /**
+   * @return The journal set with setJournal, or null if messages are not journaled.
+   */
+  public MessageJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * @return Number of messages sent again because the connection they were sent on was lost.
+   */
+  public long getResentCount() {
+    return resentCount.get();
+  }
+
+  /**
+   * Set how long sendAsync waits for an ack or nack before failing the message. Timeouts are
+   * checked periodically, so a message may fail up to TIMEOUT_CHECK_MILLIS later than this.
+   */
+  public void setAckTimeout(long timeout, TimeUnit unit) {
+    ackTimeoutNanos = unit.toNanos(timeout);
+  }
+
+  /**
+   * @return Number of sent messages waiting for an ack or nack.
+   */
+  public int getPendingCount() {
+    return pendingMessages.size();
+  }
+
+  /**
+   * @return Number of downstream messages waiting for room in the in-flight window.
+   */
+  public int getQueuedCount() {
+    int queued = 0;
+    for (Lane lane : Lane.values()) {
+      queued += outboundQueue.getQueuedCount(lane);
+    }
+    return queued;
+  }
+
+  /**
+   * @return The client managing the connection to CCS, e.g. to wait until it is connected.
+   */
+  public SmackCcsClient getCcsClient() {
+    return smackCcsClient;
+  }
+
+  /**
+   * @return The queue of downstream messages, for example to inspect per lane queueing times or
+   * to resize the in-flight window.
+   */
+  public OutboundQueue getOutboundQueue() {
+    return outboundQueue;
+  }
+
+  /**
+   * Message IDs only need to be unique among the messages sent by this server. IDs count up from
+   * the clock at startup in microseconds, so a restart does not reuse the previous run's IDs
+   * unless that run sent more than a million messages per second on average, or the clock went
+   * backwards. Messages recovered from the journal are skipped in any case, see setJournal.
+   */
+  private String nextMessageId() {
+    return Long.toString(nextMessageId.incrementAndGet());
+  }
+
+  /**
+   * Make sure new message IDs do not collide with a message recovered from the journal, e.g.
+   * when the clock went backwards across the restart.
+   */
+  private void skipMessageIdsUpTo(String messageId) {
+    long id;
+    try {
+      id = Long.parseLong(messageId);
+    } catch (NumberFormatException e) {
+      return;
+    }
+    long current = nextMessageId.get();
+    while (current < id && !nextMessageId.compareAndSet(current, id)) {
+      current = nextMessageId.get();
+    }
+  }
+
+  /**
+   * Complete the pending message with the given ID, if any, when its ack or nack arrives.
+   */
+  private void onDeliveryReport(String messageId, String from, JsonObject jGcmMessage,
+      boolean acked) {
+    OutboundMessage pending = pendingMessages.remove(messageId);
+    if (pending == null) {
+      logger.info("No pending message for " + messageId + ", it may have timed out.");
+      return;
+    }
+    outboundQueue.release(pending);
+    if (acked) {
+      pending.future.complete(messageId);
+    } else {
+      String error = jGcmMessage.has("error") ? jGcmMessage.get("error").getAsString() : null;
+      String description = jGcmMessage.has("error_description")
+          ? jGcmMessage.get("error_description").getAsString() : null;
+      pending.future.completeExceptionally(
+          new GcmNackException(messageId, from, error, description));
+    }
+  }
+
+  /**
+   * Fail pending messages whose ack timeout has passed.
+   */
+  private void expirePendingMessages() {
+    long now = System.nanoTime();
+    for (Map.Entry<String, OutboundMessage> entry : pendingMessages.entrySet()) {
+      OutboundMessage pending = entry.getValue();
+      if (now - pending.ackDeadlineNanos > 0 && pendingMessages.remove(entry.getKey(), pending)) {
+        outboundQueue.release(pending);
+        pending.future.completeExceptionally(new TimeoutException(
+            "No ack or nack received for message " + entry.getKey()));
+      }
+    }
   }
 
   /**
@@ -220,7 +1137,16 @@ public abstract class GcmServer {
    * @param to Registration token of the sender of the message being acknowledged.
    * @param msg_id ID of message being acknowledged.
    */
-  private void sendAck(String to, String msg_id) {
+  void sendAck(String to, String msg_id) {
+    Stanza stanza = createAck(to, msg_id);
+    logger.info("sending ack: " + stanza);
+    smackCcsClient.sendStanza(stanza);
+  }
+
+  /**
+   * Create the stanza acknowledging the receipt of the message with ID msg_id.
+   */
+  private Stanza createAck(String to, String msg_id) {
     JsonObject jPayload = new JsonObject();
     jPayload.addProperty("to", to);
     jPayload.addProperty("message_id", msg_id);
@@ -228,15 +1154,29 @@ public abstract class GcmServer {
 
     Gson gson = new GsonBuilder().setPrettyPrinting().create();
     final String payload = gson.toJson(jPayload);
-    Stanza stanza = new Stanza() {
+    return new Stanza() {
       @Override
       public CharSequence toXML() {
         return wrapWithXML(payload);
       }
     };
+  }
 
-    logger.info("sending ack: " + stanza);
-    smackCcsClient.sendStanza(stanza);
+  /**
+   * Add the delivery options to a serialized message and wrap it with the XML for XMPP transport,
+   * the same as wrapWithXML would, in one pass.
+   *
+   * @param json Serialized message, including to and message_id.
+   * @param options Delivery options of the message.
+   * @param remainingSeconds Time to live left after queueing on this server.
+   */
+  private static String toStanzaXml(String json, DeliveryOptions options, long remainingSeconds) {
+    int end = json.lastIndexOf('}');
+    StringBuilder xml = new StringBuilder(STANZA_PREFIX.length() + json.length() + 64);
+    xml.append(STANZA_PREFIX).append(json, 0, end);
+    options.appendTo(xml, remainingSeconds);
+    xml.append('}').append(STANZA_SUFFIX);
+    return xml.toString();
   }
 
   /**
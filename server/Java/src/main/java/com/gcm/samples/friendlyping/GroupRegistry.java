@@ -0,0 +1,254 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GroupRegistry keeps the members of named groups of clients.
+ *
+ * Every client in at least one group is given a small integer ID, so a group is stored as a sorted
+ * array of member IDs rather than a set of tokens, and every member has the sorted array of IDs of
+ * the groups it is in. Joining or leaving a group is a binary search and an array copy, and
+ * removing a client from all its groups only touches those groups. IDs of clients that are in no
+ * group any more, and of deleted groups, are reused.
+ *
+ * All methods are synchronized, groups are small and updates are rare next to pings.
+ */
+public class GroupRegistry {
+
+  public static final int MAX_NAME_LENGTH = 64;
+
+  // Sorted set of non-negative ints.
+  private static class IntSet {
+    private int[] values = new int[4];
+    private int size;
+
+    boolean add(int value) {
+      int index = Arrays.binarySearch(values, 0, size, value);
+      if (index >= 0) {
+        return false;
+      }
+      index = -index - 1;
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      System.arraycopy(values, index, values, index + 1, size - index);
+      values[index] = value;
+      size++;
+      return true;
+    }
+
+    boolean remove(int value) {
+      int index = Arrays.binarySearch(values, 0, size, value);
+      if (index < 0) {
+        return false;
+      }
+      System.arraycopy(values, index + 1, values, index, size - index - 1);
+      size--;
+      return true;
+    }
+
+    boolean contains(int value) {
+      return Arrays.binarySearch(values, 0, size, value) >= 0;
+    }
+  }
+
+  private static class Group {
+    final String name;
+    final IntSet members = new IntSet();
+
+    Group(String name) {
+      this.name = name;
+    }
+  }
+
+  private final Map<String, Integer> groupIds = new HashMap<String, Integer>();
+  private Group[] groups = new Group[16];
+  private int[] freeGroupIds = new int[16];
+  private int freeGroupCount;
+  private int groupIdLimit;
+
+  private final Map<String, Integer> memberIds = new HashMap<String, Integer>();
+  private String[] memberTokens = new String[16];
+  // Groups of each member, indexed by member ID.
+  private IntSet[] memberGroups = new IntSet[16];
+  private int[] freeMemberIds = new int[16];
+  private int freeMemberCount;
+  private int memberIdLimit;
+
+  /**
+   * Create a group with the given first member.
+   *
+   * @return False if a group with the given name already exists.
+   * @throws IllegalArgumentException if the name is empty or longer than MAX_NAME_LENGTH.
+   */
+  public synchronized boolean create(String name, String token) {
+    if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+      throw new IllegalArgumentException("Invalid group name " + name);
+    }
+    if (groupIds.containsKey(name)) {
+      return false;
+    }
+    int groupId;
+    if (freeGroupCount > 0) {
+      groupId = freeGroupIds[--freeGroupCount];
+    } else {
+      groupId = groupIdLimit++;
+      if (groupId == groups.length) {
+        groups = Arrays.copyOf(groups, groupId * 2);
+      }
+    }
+    groups[groupId] = new Group(name);
+    groupIds.put(name, groupId);
+    add(groupId, token);
+    return true;
+  }
+
+  /**
+   * Add a client to a group.
+   *
+   * @return False if there is no such group or the client already is a member.
+   */
+  public synchronized boolean join(String name, String token) {
+    Integer groupId = groupIds.get(name);
+    return groupId != null && add(groupId, token);
+  }
+
+  /**
+   * Remove a client from a group. A group is deleted when its last member leaves.
+   *
+   * @return False if there is no such group or the client is not a member.
+   */
+  public synchronized boolean leave(String name, String token) {
+    Integer groupId = groupIds.get(name);
+    Integer memberId = memberIds.get(token);
+    if (groupId == null || memberId == null || !groups[groupId].members.contains(memberId)) {
+      return false;
+    }
+    remove(groupId, memberId);
+    return true;
+  }
+
+  /**
+   * Remove a client from all its groups, for example when its registration token is no longer
+   * valid.
+   *
+   * @return Names of the groups the client was removed from.
+   */
+  public synchronized List<String> removeMember(String token) {
+    Integer memberId = memberIds.get(token);
+    if (memberId == null) {
+      return new ArrayList<String>(0);
+    }
+    IntSet groupsOfMember = memberGroups[memberId];
+    int[] groupIdsOfMember = Arrays.copyOf(groupsOfMember.values, groupsOfMember.size);
+    List<String> names = new ArrayList<String>(groupIdsOfMember.length);
+    for (int groupId : groupIdsOfMember) {
+      names.add(groups[groupId].name);
+      remove(groupId, memberId);
+    }
+    return names;
+  }
+
+  /**
+   * @return Tokens of the members of the group, null if there is no such group.
+   */
+  public synchronized String[] getMembers(String name) {
+    Integer groupId = groupIds.get(name);
+    if (groupId == null) {
+      return null;
+    }
+    IntSet members = groups[groupId].members;
+    String[] tokens = new String[members.size];
+    for (int i = 0; i < members.size; i++) {
+      tokens[i] = memberTokens[members.values[i]];
+    }
+    return tokens;
+  }
+
+  public synchronized boolean isMember(String name, String token) {
+    Integer groupId = groupIds.get(name);
+    Integer memberId = memberIds.get(token);
+    return groupId != null && memberId != null && groups[groupId].members.contains(memberId);
+  }
+
+  /**
+   * @return Number of members of the group, 0 if there is no such group.
+   */
+  public synchronized int size(String name) {
+    Integer groupId = groupIds.get(name);
+    return groupId == null ? 0 : groups[groupId].members.size;
+  }
+
+  public synchronized int getGroupCount() {
+    return groupIds.size();
+  }
+
+  private boolean add(int groupId, String token) {
+    Integer memberId = memberIds.get(token);
+    if (memberId == null) {
+      if (freeMemberCount > 0) {
+        memberId = freeMemberIds[--freeMemberCount];
+      } else {
+        memberId = memberIdLimit++;
+        if (memberId == memberTokens.length) {
+          memberTokens = Arrays.copyOf(memberTokens, memberId * 2);
+          memberGroups = Arrays.copyOf(memberGroups, memberId * 2);
+        }
+      }
+      memberTokens[memberId] = token;
+      memberGroups[memberId] = new IntSet();
+      memberIds.put(token, memberId);
+    }
+    if (!groups[groupId].members.add(memberId)) {
+      return false;
+    }
+    memberGroups[memberId].add(groupId);
+    return true;
+  }
+
+  private void remove(int groupId, int memberId) {
+    Group group = groups[groupId];
+    group.members.remove(memberId);
+    if (group.members.size == 0) {
+      groupIds.remove(group.name);
+      groups[groupId] = null;
+      freeGroupIds = push(freeGroupIds, freeGroupCount++, groupId);
+    }
+    IntSet groupsOfMember = memberGroups[memberId];
+    groupsOfMember.remove(groupId);
+    if (groupsOfMember.size == 0) {
+      memberIds.remove(memberTokens[memberId]);
+      memberTokens[memberId] = null;
+      memberGroups[memberId] = null;
+      freeMemberIds = push(freeMemberIds, freeMemberCount++, memberId);
+    }
+  }
+
+  private static int[] push(int[] stack, int size, int value) {
+    if (size == stack.length) {
+      stack = Arrays.copyOf(stack, size * 2);
+    }
+    stack[size] = value;
+    return stack;
+  }
+}
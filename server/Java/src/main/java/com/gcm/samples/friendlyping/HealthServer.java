@@ -0,0 +1,245 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HealthServer reports the liveness and the readiness of a FriendlyPingServer over HTTP, for
+ * process supervisors and load balancers.
+ *
+ * GET /healthz answers 200 while the server is live and 503 once it failed to start or has
+ * stopped, when it should be restarted. GET /readyz answers 200 while the server is ready for
+ * traffic, that is started, warmed up, connected to CCS and not draining, and 503 otherwise.
+ * GET /metrics answers 200 with the server's ping analytics as JSON, see PingAnalytics.
+ *
+ * The endpoints are not authenticated, so by default the HealthServer only listens on the
+ * loopback interface. Supervisors on other hosts need it bound to an address they can reach.
+ *
+ * A HealthServer can also report on the servers of several tenants in one process, see Tenant.
+ * The process is then live while every server is live, and ready while every server is ready.
+ * The metrics are keyed by tenant, and show with each tenant's analytics what it uses of the
+ * capacity: its messages queued, in flight and buffered while disconnected, and the tasks run
+ * and time spent for it on the threads of the SharedExecutors, in total and as a share of all
+ * tenants' time.
+ */
+public class HealthServer {
+
+  /**
+   * What the endpoints report on, one server or several.
+   */
+  private interface Status {
+    boolean isLive();
+
+    boolean isReady();
+
+    JsonObject getMetrics(long nowMillis);
+  }
+
+  private static final int OK = 200;
+  private static final int UNAVAILABLE = 503;
+
+  private final HttpServer httpServer;
+
+  /**
+   * Create a HealthServer for the given server, listening on the given port of the loopback
+   * interface once started.
+   *
+   * @param port Port to listen on, 0 for any free port.
+   */
+  public HealthServer(FriendlyPingServer server, int port) throws IOException {
+    this(server, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+  }
+
+  /**
+   * Create a HealthServer for the given server, listening on the given address once started.
+   *
+   * @param address Address to listen on, port 0 for any free port.
+   */
+  public HealthServer(final FriendlyPingServer server, InetSocketAddress address)
+      throws IOException {
+    this(new Status() {
+      @Override
+      public boolean isLive() {
+        return server.isLive();
+      }
+
+      @Override
+      public boolean isReady() {
+        return server.isReady();
+      }
+
+      @Override
+      public JsonObject getMetrics(long nowMillis) {
+        return server.getAnalytics().toJson(nowMillis);
+      }
+    }, address);
+  }
+
+  /**
+   * Create a HealthServer for the servers of several tenants sharing the given executors,
+   * listening on the given port of the loopback interface once started.
+   *
+   * @param port Port to listen on, 0 for any free port.
+   */
+  public HealthServer(List<FriendlyPingServer> servers, SharedExecutors executors, int port)
+      throws IOException {
+    this(servers, executors, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+  }
+
+  /**
+   * Create a HealthServer for the servers of several tenants sharing the given executors,
+   * listening on the given address once started.
+   *
+   * @param address Address to listen on, port 0 for any free port.
+   */
+  public HealthServer(final List<FriendlyPingServer> servers, final SharedExecutors executors,
+      InetSocketAddress address) throws IOException {
+    this(new Status() {
+      @Override
+      public boolean isLive() {
+        for (FriendlyPingServer server : servers) {
+          if (!server.isLive()) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      @Override
+      public boolean isReady() {
+        for (FriendlyPingServer server : servers) {
+          if (!server.isReady()) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      @Override
+      public JsonObject getMetrics(long nowMillis) {
+        return tenantMetrics(servers, executors, nowMillis);
+      }
+    }, address);
+  }
+
+  private HealthServer(final Status status, InetSocketAddress address) throws IOException {
+    httpServer = HttpServer.create(address, 0);
+    httpServer.createContext("/healthz", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, status.isLive(), "live", "not live");
+      }
+    });
+    httpServer.createContext("/readyz", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, status.isReady(), "ready", "not ready");
+      }
+    });
+    httpServer.createContext("/metrics", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = (status.getMetrics(System.currentTimeMillis()) + "\n")
+            .getBytes(StandardCharsets.UTF_8);
+        send(exchange, OK, "application/json; charset=utf-8", body);
+      }
+    });
+  }
+
+  /**
+   * @return Each tenant's analytics, with whether it is ready and what it uses of the capacity,
+   * keyed by tenant.
+   */
+  static JsonObject tenantMetrics(List<FriendlyPingServer> servers, SharedExecutors executors,
+      long nowMillis) {
+    long totalNanos = 0;
+    for (FriendlyPingServer server : servers) {
+      SharedExecutors.Usage usage = executors.getUsage(server.getTenant());
+      totalNanos += usage.getTimerNanos() + usage.getWorkerNanos();
+    }
+    JsonObject jTenants = new JsonObject();
+    for (FriendlyPingServer server : servers) {
+      GcmServer gcmServer = server.getGcmServer();
+      GcmHttpSender httpSender = gcmServer.getHttpSender();
+      SharedExecutors.Usage usage = executors.getUsage(server.getTenant());
+      long nanos = usage.getTimerNanos() + usage.getWorkerNanos();
+      JsonObject jCapacity = new JsonObject();
+      jCapacity.addProperty("queued", gcmServer.getQueuedCount());
+      jCapacity.addProperty("in_flight", gcmServer.getPendingCount());
+      jCapacity.addProperty("buffered", gcmServer.getCcsClient().getBufferedCount());
+      jCapacity.addProperty("http_pending", httpSender != null ? httpSender.getPendingCount() : 0);
+      jCapacity.addProperty("timer_tasks", usage.getTimerTasks());
+      jCapacity.addProperty("timer_ms", TimeUnit.NANOSECONDS.toMillis(usage.getTimerNanos()));
+      jCapacity.addProperty("worker_tasks", usage.getWorkerTasks());
+      jCapacity.addProperty("worker_ms", TimeUnit.NANOSECONDS.toMillis(usage.getWorkerNanos()));
+      jCapacity.addProperty("shared_time_share",
+          totalNanos > 0 ? (double) nanos / totalNanos : 0.0);
+      JsonObject jTenant = server.getAnalytics().toJson(nowMillis);
+      jTenant.addProperty("ready", server.isReady());
+      jTenant.add("capacity", jCapacity);
+      jTenants.add(server.getTenant(), jTenant);
+    }
+    JsonObject jMetrics = new JsonObject();
+    jMetrics.add("tenants", jTenants);
+    return jMetrics;
+  }
+
+  public void start() {
+    httpServer.start();
+  }
+
+  public void stop() {
+    httpServer.stop(0);
+  }
+
+  /**
+   * @return Port the HealthServer listens on.
+   */
+  public int getPort() {
+    return httpServer.getAddress().getPort();
+  }
+
+  private static void respond(HttpExchange exchange, boolean ok, String okBody, String failedBody)
+      throws IOException {
+    byte[] body = ((ok ? okBody : failedBody) + "\n").getBytes(StandardCharsets.UTF_8);
+    send(exchange, ok ? OK : UNAVAILABLE, "text/plain; charset=utf-8", body);
+  }
+
+  private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * HyperLogLog estimates the number of distinct strings added to it in constant memory.
+ *
+ * A string is hashed to 64 bits. The first precision bits pick one of 2^precision registers,
+ * which keeps the longest run of leading zeros seen in the rest of the hashes. The estimate is
+ * the harmonic mean of the registers, corrected by linear counting while many registers are
+ * still empty, with a standard error of about 1.04 / sqrt(2^precision). Adding is lock free and
+ * safe to call from many threads.
+ */
+public class HyperLogLog {
+
+  private final int precision;
+  private final AtomicIntegerArray registers;
+
+  /**
+   * @param precision Number of bits of the hash that pick a register, from 4 to 18.
+   */
+  public HyperLogLog(int precision) {
+    if (precision < 4 || precision > 18) {
+      throw new IllegalArgumentException("Precision must be from 4 to 18.");
+    }
+    this.precision = precision;
+    registers = new AtomicIntegerArray(1 << precision);
+  }
+
+  public void add(String value) {
+    long hash = hash(value);
+    int index = (int) (hash >>> (64 - precision));
+    // The bit below the rest of the hash bounds the run, when the rest is all zeros.
+    int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+    int current = registers.get(index);
+    while (rank > current && !registers.compareAndSet(index, current, rank)) {
+      current = registers.get(index);
+    }
+  }
+
+  /**
+   * @return Estimated number of distinct strings added.
+   */
+  public long estimate() {
+    int m = registers.length();
+    double sum = 0;
+    int zeros = 0;
+    for (int i = 0; i < m; i++) {
+      int register = registers.get(i);
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    double alpha = 0.7213 / (1 + 1.079 / m);
+    double estimate = alpha * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  /**
+   * 64-bit FNV-1a of the string's characters, mixed with the MurmurHash3 finalizer so that every
+   * bit depends on every character.
+   */
+  private static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+/**
+ * Priority class of a downstream message. Interactive messages are always sent before bulk
+ * messages and part of the in-flight window is reserved for them.
+ */
+public enum Lane {
+  // Messages a user is waiting for, such as pings.
+  INTERACTIVE,
+  // Messages nobody is actively waiting for, such as broadcasts and client lists.
+  BULK
+}
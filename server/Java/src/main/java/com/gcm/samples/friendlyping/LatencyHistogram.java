@@ -0,0 +1,142 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram records non-negative values (typically microseconds) into log-linear buckets
+ * so that percentiles can be read at any time with a bounded relative error of about 6%.
+ * Recording is lock free and safe to call from many threads.
+ */
+public class LatencyHistogram {
+
+  // Each power of two range is split into this many linear sub-buckets.
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong totalSum = new AtomicLong();
+  private final AtomicLong maxValue = new AtomicLong();
+
+  /**
+   * Record a single value. Negative values are recorded as zero.
+   *
+   * @param value Value to be recorded.
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(indexFor(value));
+    totalCount.incrementAndGet();
+    totalSum.addAndGet(value);
+    long max = maxValue.get();
+    while (value > max && !maxValue.compareAndSet(max, value)) {
+      max = maxValue.get();
+    }
+  }
+
+  /**
+   * @return Number of values recorded.
+   */
+  public long count() {
+    return totalCount.get();
+  }
+
+  /**
+   * @return Largest value recorded, or zero if nothing was recorded.
+   */
+  public long max() {
+    return maxValue.get();
+  }
+
+  /**
+   * @return Mean of the recorded values, or zero if nothing was recorded.
+   */
+  public double mean() {
+    long count = totalCount.get();
+    return count == 0 ? 0 : (double) totalSum.get() / count;
+  }
+
+  /**
+   * Estimate the value at the given percentile.
+   *
+   * @param percentile Percentile between 0 and 100.
+   * @return Upper bound of the bucket containing the percentile, or zero if nothing was recorded.
+   */
+  public long percentile(double percentile) {
+    long count = totalCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100.0);
+    rank = Math.max(1, rank);
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), maxValue.get());
+      }
+    }
+    return maxValue.get();
+  }
+
+  /**
+   * Clear all recorded values. Values recorded concurrently with a reset may be partially lost.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+    totalCount.set(0);
+    totalSum.set(0);
+    maxValue.set(0);
+  }
+
+  /**
+   * Format count, mean and the usual percentiles on one line, e.g. for logging.
+   *
+   * @param unit Unit suffix appended to each value.
+   */
+  public String summary(String unit) {
+    return String.format("count=%d mean=%.1f%s p50=%d%s p99=%d%s p999=%d%s max=%d%s", count(),
+        mean(), unit, percentile(50), unit, percentile(99), unit, percentile(99.9), unit, max(),
+        unit);
+  }
+
+  private static int indexFor(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long upperBoundOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
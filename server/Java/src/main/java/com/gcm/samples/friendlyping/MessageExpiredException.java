@@ -0,0 +1,37 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+/**
+ * MessageExpiredException signals that a downstream message was dropped because its time to live
+ * passed before it could be sent.
+ */
+public class MessageExpiredException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String messageId;
+
+  public MessageExpiredException(String messageId, String messageType) {
+    super(messageType + " message " + messageId + " expired before it could be sent.");
+    this.messageId = messageId;
+  }
+
+  public String getMessageId() {
+    return messageId;
+  }
+}
@@ -0,0 +1,548 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * MessageJournal is a write-ahead log of downstream messages. A message is appended before it is
+ * queued for sending and marked done once its fate is known (acked, nacked, expired or timed
+ * out). After a crash the messages that were never marked done are recovered so they can be sent
+ * again.
+ *
+ * The journal is a sequence of segment files. Appends are made durable by a single flusher thread
+ * that calls fsync for everything written since its previous fsync, so concurrent senders share
+ * the cost of one fsync (group commit). Segment files are preallocated, which lets fsync skip
+ * file size updates, and a segment whose messages are all done is recycled for reuse instead of
+ * being deleted.
+ *
+ * Records are framed by RecordLog, salted with the segment's sequence number, so stale records
+ * left in a recycled file are never mistaken for new ones and a torn write at the end of a
+ * segment is detected.
+ */
+public class MessageJournal implements Closeable {
+
+  /**
+   * A journaled downstream message.
+   */
+  public static class Entry {
+    final String messageId;
+    final String json;
+    final DeliveryOptions options;
+    // Wall clock time the message was first journaled, used to expire it after a restart.
+    final long createdMillis;
+
+    Entry(String messageId, String json, DeliveryOptions options, long createdMillis) {
+      this.messageId = messageId;
+      this.json = json;
+      this.options = options;
+      this.createdMillis = createdMillis;
+    }
+  }
+
+  // A segment file and the number and size of its messages not yet marked done.
+  private static class Segment {
+    final long sequence;
+    final byte[] salt;
+    final File file;
+    FileChannel channel;
+    long position;
+    int liveCount;
+    long liveBytes;
+
+    Segment(long sequence, File file) {
+      this.sequence = sequence;
+      this.salt = RecordLog.salt(sequence);
+      this.file = file;
+    }
+  }
+
+  // A message not yet marked done and the segment holding its SEND record.
+  private static class LiveMessage {
+    final Entry entry;
+    final Segment segment;
+    final int bytes;
+
+    LiveMessage(Entry entry, Segment segment, int bytes) {
+      this.entry = entry;
+      this.segment = segment;
+      this.bytes = bytes;
+    }
+  }
+
+  private static final Logger logger = Logger.getLogger("MessageJournal");
+
+  public static final long DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+  private static final int MAX_FREE_SEGMENTS = 4;
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String FREE_PREFIX = "free-";
+  private static final byte TYPE_SEND = 1;
+  private static final byte TYPE_DONE = 2;
+
+  private final File directory;
+  private final long segmentBytes;
+  // Files of recycled segments, ready to become the next active segment.
+  private final ArrayDeque<File> freeFiles = new ArrayDeque<File>();
+  // Segments in use, oldest first. The last one is the active segment.
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+  // Messages not yet marked done, in the order they were journaled.
+  private final Map<String, LiveMessage> liveMessages = new LinkedHashMap<String, LiveMessage>();
+  private final List<Entry> recovered;
+  private final Thread flusher;
+  private Segment active;
+  private long nextFreeId;
+  // Bytes appended and bytes known to be durable, counted across all segments.
+  private long writtenBytes;
+  private long syncedBytes;
+  private IOException syncFailure;
+  private boolean closed;
+
+  private MessageJournal(File directory, long segmentBytes) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create journal directory " + directory);
+    }
+    List<Segment> oldSegments = new ArrayList<Segment>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      Arrays.sort(files);
+      for (File file : files) {
+        String name = file.getName();
+        if (name.startsWith(FREE_PREFIX)) {
+          freeFiles.add(file);
+          nextFreeId = Math.max(nextFreeId,
+              Long.parseLong(name.substring(FREE_PREFIX.length())) + 1);
+        } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          long sequence = Long.parseLong(
+              name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+          oldSegments.add(new Segment(sequence, file));
+        }
+      }
+    }
+    // Segment names are zero padded, so sorting by name sorts by sequence.
+    recovered = recover(oldSegments);
+
+    // Rewrite the surviving messages into a fresh segment so the old ones can be recycled.
+    long lastSequence =
+        oldSegments.isEmpty() ? 0 : oldSegments.get(oldSegments.size() - 1).sequence;
+    openSegment(lastSequence + 1);
+    for (Entry entry : recovered) {
+      appendSend(entry);
+    }
+    active.channel.force(false);
+    syncedBytes = writtenBytes;
+    for (Segment segment : oldSegments) {
+      recycle(segment);
+    }
+
+    flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        flushLoop();
+      }
+    }, "MessageJournal-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Open the journal in the given directory, recovering messages not marked done by a previous
+   * run.
+   *
+   * @param directory Directory holding the segment files, created if missing.
+   * @param segmentBytes Preallocated size of each segment file.
+   */
+  public static MessageJournal open(File directory, long segmentBytes) throws IOException {
+    return new MessageJournal(directory, segmentBytes);
+  }
+
+  public static MessageJournal open(File directory) throws IOException {
+    return open(directory, DEFAULT_SEGMENT_BYTES);
+  }
+
+  /**
+   * @return Messages that were journaled by the previous run but never marked done, oldest first
+   * and with at most one entry per message ID. They are journaled again in this run.
+   */
+  public List<Entry> getRecoveredEntries() {
+    return recovered;
+  }
+
+  /**
+   * Append a message and wait until it is durable.
+   *
+   * @param messageId ID of the message.
+   * @param json Serialized message.
+   * @param options Delivery options of the message.
+   */
+  public void append(String messageId, String json, DeliveryOptions options) throws IOException {
+    long position;
+    synchronized (this) {
+      checkOpen();
+      position = appendSend(new Entry(messageId, json, options, System.currentTimeMillis()));
+      notifyAll();
+    }
+    awaitDurable(position);
+  }
+
+  /**
+   * Append messages of one type and wait once until all of them are durable, rather than once per
+   * message like append, e.g. for the copies of a message sent to many recipients.
+   *
+   * @param messageIds IDs of the messages.
+   * @param jsons Serialized messages, at the same index as their IDs.
+   * @param options Delivery options of the messages.
+   */
+  public void appendAll(List<String> messageIds, List<String> jsons, DeliveryOptions options)
+      throws IOException {
+    long position = 0;
+    synchronized (this) {
+      checkOpen();
+      long createdMillis = System.currentTimeMillis();
+      for (int i = 0; i < messageIds.size(); i++) {
+        position = appendSend(new Entry(messageIds.get(i), jsons.get(i), options, createdMillis));
+      }
+      notifyAll();
+    }
+    awaitDurable(position);
+  }
+
+  /**
+   * Mark a message done. Done records are not waited for, if one is lost in a crash the message
+   * is merely sent again.
+   *
+   * @param messageId ID of the message.
+   */
+  public synchronized void markDone(String messageId) throws IOException {
+    if (closed) {
+      return;
+    }
+    LiveMessage live = liveMessages.remove(messageId);
+    if (live == null) {
+      return;
+    }
+    ByteBuffer payload = ByteBuffer.allocate(1 + RecordLog.sizeOf(messageId));
+    payload.put(TYPE_DONE);
+    RecordLog.putString(payload, messageId);
+    write(payload);
+    release(live);
+    recycleDoneSegments();
+    notifyAll();
+  }
+
+  /**
+   * @return Number of journaled messages not yet marked done.
+   */
+  public synchronized int getLiveCount() {
+    return liveMessages.size();
+  }
+
+  /**
+   * Make everything appended durable and close the journal. Messages not marked done are
+   * recovered when the journal is next opened.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      active.channel.force(false);
+      active.channel.close();
+    }
+  }
+
+  private long appendSend(Entry entry) throws IOException {
+    byte[] json = entry.json.getBytes(StandardCharsets.UTF_8);
+    DeliveryOptions options = entry.options;
+    String priority = options.getPriority() == null ? "" : options.getPriority();
+    ByteBuffer payload = ByteBuffer.allocate(1 + 8 + RecordLog.sizeOf(entry.messageId)
+        + RecordLog.sizeOf(options.getName()) + 1 + 4 + RecordLog.sizeOf(priority) + 1 + 4
+        + json.length);
+    payload.put(TYPE_SEND);
+    payload.putLong(entry.createdMillis);
+    RecordLog.putString(payload, entry.messageId);
+    RecordLog.putString(payload, options.getName());
+    payload.put((byte) options.getLane().ordinal());
+    payload.putInt(options.getTimeToLiveSeconds());
+    RecordLog.putString(payload, priority);
+    payload.put((byte) (options.isDelayWhileIdle() ? 1 : 0));
+    payload.putInt(json.length);
+    payload.put(json);
+    long position = write(payload);
+
+    // Written after a possible roll, so the record is in the active segment.
+    int bytes = RecordLog.FRAME_HEADER_BYTES + payload.limit();
+    LiveMessage previous = liveMessages.remove(entry.messageId);
+    if (previous != null) {
+      release(previous);
+    }
+    liveMessages.put(entry.messageId, new LiveMessage(entry, active, bytes));
+    active.liveCount++;
+    active.liveBytes += bytes;
+    return position;
+  }
+
+  private void release(LiveMessage live) {
+    live.segment.liveCount--;
+    live.segment.liveBytes -= live.bytes;
+  }
+
+  /**
+   * Frame and write a record to the active segment, rolling to a new segment if it is full.
+   *
+   * @return Journal position just after the record.
+   */
+  private long write(ByteBuffer payload) throws IOException {
+    payload.flip();
+    int bytes = RecordLog.FRAME_HEADER_BYTES + payload.remaining();
+    if (active.position + bytes > segmentBytes && active.position > 0) {
+      roll();
+    }
+    ByteBuffer frame = RecordLog.frame(active.salt, payload);
+    active.position += RecordLog.writeFully(active.channel, frame, active.position);
+    writtenBytes += bytes;
+    return writtenBytes;
+  }
+
+  private void roll() throws IOException {
+    Segment full = active;
+    full.channel.force(false);
+    syncedBytes = writtenBytes;
+    openSegment(full.sequence + 1);
+
+    // A few slow messages should not keep the oldest segment, and every segment after it, from
+    // being recycled. Once they take up little space, journal them again in the new segment.
+    Segment oldest = segments.peekFirst();
+    if (oldest != active && oldest.liveBytes <= segmentBytes / 4) {
+      List<Entry> carried = new ArrayList<Entry>();
+      for (LiveMessage live : liveMessages.values()) {
+        if (live.segment == oldest) {
+          carried.add(live.entry);
+        }
+      }
+      for (Entry entry : carried) {
+        appendSend(entry);
+      }
+      // The oldest segment is about to be recycled, so its messages are now only durable here.
+      active.channel.force(false);
+      syncedBytes = writtenBytes;
+    }
+    recycleDoneSegments();
+  }
+
+  /**
+   * Recycle segments from the oldest one on while all their messages are done. Segments are only
+   * ever recycled in order, since a segment may hold DONE records for messages journaled in an
+   * older one.
+   */
+  private void recycleDoneSegments() throws IOException {
+    while (segments.size() > 1 && segments.peekFirst().liveCount == 0) {
+      recycle(segments.pollFirst());
+    }
+  }
+
+  private void openSegment(long sequence) throws IOException {
+    File file = new File(directory, String.format("%s%019d%s", SEGMENT_PREFIX, sequence,
+        SEGMENT_SUFFIX));
+    File free = freeFiles.pollFirst();
+    if (free != null) {
+      Files.move(free.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      syncDirectory();
+    }
+    Segment segment = new Segment(sequence, file);
+    segment.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    if (free == null) {
+      preallocate(segment.channel);
+    }
+    segments.addLast(segment);
+    active = segment;
+  }
+
+  private void preallocate(FileChannel channel) throws IOException {
+    ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+    for (long position = 0; position < segmentBytes; position += zeros.capacity()) {
+      zeros.clear();
+      zeros.limit((int) Math.min(zeros.capacity(), segmentBytes - position));
+      channel.write(zeros, position);
+    }
+    channel.force(true);
+  }
+
+  /**
+   * Return a segment whose messages are all done to the free pool, or delete it if the pool is
+   * full.
+   */
+  private void recycle(Segment segment) throws IOException {
+    if (segment.channel != null) {
+      segment.channel.close();
+    }
+    if (freeFiles.size() < MAX_FREE_SEGMENTS && segment.file.length() >= segmentBytes) {
+      File free = new File(directory, FREE_PREFIX + (nextFreeId++));
+      Files.move(segment.file.toPath(), free.toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+      syncDirectory();
+      freeFiles.addLast(free);
+    } else if (!segment.file.delete()) {
+      logger.warning("Unable to delete journal segment " + segment.file);
+    }
+  }
+
+  /**
+   * Make renames in the journal directory durable, so that after a crash a segment is never found
+   * under its free name or a free file under a segment name the journal did not write.
+   */
+  private void syncDirectory() throws IOException {
+    try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+  }
+
+  private void flushLoop() {
+    while (true) {
+      FileChannel channel;
+      long target;
+      synchronized (this) {
+        while (!closed && writtenBytes == syncedBytes) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (closed) {
+          return;
+        }
+        channel = active.channel;
+        target = writtenBytes;
+      }
+      // Everything appended while this fsync runs is covered by the next one.
+      try {
+        channel.force(false);
+      } catch (ClosedChannelException e) {
+        // The segment was rolled, which forces it before closing.
+      } catch (IOException e) {
+        synchronized (this) {
+          syncFailure = e;
+          notifyAll();
+        }
+        logger.log(Level.SEVERE, "Unable to sync message journal.", e);
+        return;
+      }
+      synchronized (this) {
+        syncedBytes = Math.max(syncedBytes, target);
+        notifyAll();
+      }
+    }
+  }
+
+  private synchronized void awaitDurable(long position) throws IOException {
+    while (syncedBytes < position) {
+      if (syncFailure != null) {
+        throw new IOException("Message journal is no longer durable.", syncFailure);
+      }
+      checkOpen();
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the journal.", e);
+      }
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Message journal is closed.");
+    }
+  }
+
+  /**
+   * Read the segments of a previous run and return the messages never marked done.
+   */
+  private static List<Entry> recover(List<Segment> segments) throws IOException {
+    Map<String, Entry> live = new LinkedHashMap<String, Entry>();
+    for (Segment segment : segments) {
+      int records = 0;
+      try (FileChannel channel = FileChannel.open(segment.file.toPath(),
+          StandardOpenOption.READ)) {
+        records = RecordLog.read(channel, segment.salt, new Consumer<ByteBuffer>() {
+          @Override
+          public void accept(ByteBuffer payload) {
+            applyRecord(payload, live);
+          }
+        });
+      }
+      logger.info("Read " + records + " records from " + segment.file.getName());
+    }
+    if (!live.isEmpty()) {
+      logger.info("Recovered " + live.size() + " unacked messages from the journal.");
+    }
+    return new ArrayList<Entry>(live.values());
+  }
+
+  private static void applyRecord(ByteBuffer payload, Map<String, Entry> live) {
+    byte type = payload.get();
+    if (type == TYPE_SEND) {
+      long createdMillis = payload.getLong();
+      String messageId = RecordLog.getString(payload);
+      String name = RecordLog.getString(payload);
+      Lane lane = Lane.values()[payload.get()];
+      int timeToLive = payload.getInt();
+      String priority = RecordLog.getString(payload);
+      boolean delayWhileIdle = payload.get() != 0;
+      String json = RecordLog.getString(payload);
+      DeliveryOptions options = new DeliveryOptions(name, lane, timeToLive,
+          priority.isEmpty() ? null : priority, delayWhileIdle);
+      // A message journaled twice, e.g. recovered and rewritten, is only replayed once.
+      live.remove(messageId);
+      live.put(messageId, new Entry(messageId, json, options, createdMillis));
+    } else if (type == TYPE_DONE) {
+      live.remove(RecordLog.getString(payload));
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * MessageTemplate is a message serialized ahead of time with slots for the values that change
+ * from one message to the next. Rendering it gives the same JSON as building the message as a
+ * JsonObject and serializing it with Gson, without building and serializing a tree per message.
+ *
+ * A template is compiled from a prototype message whose string values contain slots. A string
+ * slot, written {{name}}, may be all or part of a string value, e.g. "{{name}} is pinging you."
+ * Its value is escaped like Gson escapes strings. A JSON slot, written {{name:json}}, must be a
+ * whole string value. It is replaced, quotes included, by its value, which must be valid JSON.
+ */
+public class MessageTemplate {
+
+  private static final String[] REPLACEMENT_CHARS = new String[128];
+  static {
+    // Escape what Gson escapes by default: control characters, quotes, backslashes and, to be
+    // safe to embed in HTML and XML, the characters below.
+    for (int c = 0; c < 0x20; c++) {
+      REPLACEMENT_CHARS[c] = String.format("\\u%04x", c);
+    }
+    REPLACEMENT_CHARS['"'] = "\\\"";
+    REPLACEMENT_CHARS['\\'] = "\\\\";
+    REPLACEMENT_CHARS['\t'] = "\\t";
+    REPLACEMENT_CHARS['\b'] = "\\b";
+    REPLACEMENT_CHARS['\n'] = "\\n";
+    REPLACEMENT_CHARS['\r'] = "\\r";
+    REPLACEMENT_CHARS['\f'] = "\\f";
+    REPLACEMENT_CHARS['<'] = "\\u003c";
+    REPLACEMENT_CHARS['>'] = "\\u003e";
+    REPLACEMENT_CHARS['&'] = "\\u0026";
+    REPLACEMENT_CHARS['='] = "\\u003d";
+    REPLACEMENT_CHARS['\''] = "\\u0027";
+  }
+
+  // Literal text before each slot and after the last one, one more than there are slots.
+  private final String[] literals;
+  // For each slot, the index of its value in the values passed to render.
+  private final int[] valueIndexes;
+  // For each slot, whether its value is inserted as JSON rather than escaped.
+  private final boolean[] json;
+  private final int literalLength;
+  private final int valueCount;
+
+  /**
+   * Compile a template from a prototype message.
+   *
+   * @param prototype Message with slots in its string values.
+   * @param slotNames Names of the slots, in the order their values are passed to render. Each
+   *                  slot must occur at least once, and may occur more than once.
+   * @throws IllegalArgumentException if a slot does not occur in the prototype.
+   */
+  public MessageTemplate(JsonObject prototype, String... slotNames) {
+    String text = new GsonBuilder().create().toJson(prototype);
+
+    // Every occurrence of every slot, as {start, end, value index, json}, in order of start.
+    List<int[]> occurrences = new ArrayList<int[]>();
+    for (int i = 0; i < slotNames.length; i++) {
+      String stringSlot = "{{" + slotNames[i] + "}}";
+      String jsonSlot = "\"{{" + slotNames[i] + ":json}}\"";
+      int found = occurrences.size();
+      for (int start = text.indexOf(stringSlot); start >= 0;
+          start = text.indexOf(stringSlot, start + 1)) {
+        occurrences.add(new int[] {start, start + stringSlot.length(), i, 0});
+      }
+      for (int start = text.indexOf(jsonSlot); start >= 0;
+          start = text.indexOf(jsonSlot, start + 1)) {
+        occurrences.add(new int[] {start, start + jsonSlot.length(), i, 1});
+      }
+      if (occurrences.size() == found) {
+        throw new IllegalArgumentException("Slot " + slotNames[i] + " is not in the prototype.");
+      }
+    }
+    int[][] sorted = occurrences.toArray(new int[occurrences.size()][]);
+    Arrays.sort(sorted, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] a, int[] b) {
+        return Integer.compare(a[0], b[0]);
+      }
+    });
+
+    literals = new String[sorted.length + 1];
+    valueIndexes = new int[sorted.length];
+    json = new boolean[sorted.length];
+    int literalStart = 0;
+    int length = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      literals[i] = text.substring(literalStart, sorted[i][0]);
+      length += literals[i].length();
+      valueIndexes[i] = sorted[i][2];
+      json[i] = sorted[i][3] == 1;
+      literalStart = sorted[i][1];
+    }
+    literals[sorted.length] = text.substring(literalStart);
+    literalLength = length + literals[sorted.length].length();
+    valueCount = slotNames.length;
+  }
+
+  /**
+   * Render the template.
+   *
+   * @param values Values of the slots, in the order their names were given when compiling.
+   * @return The serialized message.
+   */
+  public String render(String... values) {
+    if (values.length != valueCount) {
+      throw new IllegalArgumentException("Expected " + valueCount + " values, got "
+          + values.length);
+    }
+    int length = literalLength;
+    for (int i = 0; i < valueIndexes.length; i++) {
+      length += values[valueIndexes[i]].length();
+    }
+    // Room for a few escaped characters before the builder has to grow.
+    StringBuilder out = new StringBuilder(length + 16);
+    for (int i = 0; i < valueIndexes.length; i++) {
+      out.append(literals[i]);
+      String value = values[valueIndexes[i]];
+      if (json[i]) {
+        out.append(value);
+      } else {
+        appendEscaped(out, value);
+      }
+    }
+    out.append(literals[valueIndexes.length]);
+    return out.toString();
+  }
+
+  /**
+   * Append a value escaped for use inside a JSON string, exactly as Gson escapes it.
+   */
+  static void appendEscaped(StringBuilder out, String value) {
+    int last = 0;
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      String replacement;
+      if (c < 128) {
+        replacement = REPLACEMENT_CHARS[c];
+        if (replacement == null) {
+          continue;
+        }
+      } else if (c == '\u2028') {
+        replacement = "\\u2028";
+      } else if (c == '\u2029') {
+        replacement = "\\u2029";
+      } else {
+        continue;
+      }
+      out.append(value, last, i);
+      out.append(replacement);
+      last = i + 1;
+    }
+    out.append(value, last, length);
+  }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * NamePrefixIndex finds values by a prefix of their name, a page at a time.
+ *
+ * Values are kept in a concurrent skip list sorted by lower case name and then ID, so updates
+ * are O(log n) and do not block searches, and a search seeks to the prefix in O(log n) and reads
+ * one page from there, however many values there are. Pages are resumed from an opaque cursor
+ * rather than an offset, so paging through a prefix costs the same per page however deep, and
+ * values added or removed meanwhile do not shift pages.
+ *
+ * @param <T> Type of the values.
+ */
+public class NamePrefixIndex<T> {
+
+  /**
+   * A page of search results.
+   */
+  public static class Page<T> {
+    public final List<T> values;
+    // Cursor to pass to search for the next page, null if there are no more results.
+    public final String next;
+
+    Page(List<T> values, String next) {
+      this.values = values;
+      this.next = next;
+    }
+  }
+
+  // Separates names from IDs in keys, sorts before every character names contain.
+  private static final char SEPARATOR = '\u0000';
+
+  private final ConcurrentSkipListMap<String, T> index = new ConcurrentSkipListMap<String, T>();
+
+  /**
+   * Add a value under its name and ID. A value already under the same name and ID is replaced.
+   */
+  public void put(String name, String id, T value) {
+    index.put(key(name, id), value);
+  }
+
+  /**
+   * Remove the given value from under its name and ID, unless it has been replaced.
+   */
+  public void remove(String name, String id, T value) {
+    index.remove(key(name, id), value);
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * Find the values whose name starts with the given prefix, ignoring case, in order of name.
+   *
+   * @param prefix Prefix of the names to find, empty to page through all values.
+   * @param cursor Cursor returned with the previous page, null for the first page.
+   * @param limit Most values to return.
+   * @return Page of at most limit values.
+   */
+  public Page<T> search(String prefix, String cursor, int limit) {
+    String normalizedPrefix = normalize(prefix);
+    // A cursor from another search, or a forged one, must not start the search before the
+    // prefix.
+    boolean resume = cursor != null && cursor.startsWith(normalizedPrefix);
+    String from = resume ? cursor : normalizedPrefix;
+    List<T> values = new ArrayList<T>(Math.min(limit, 64));
+    String last = null;
+    for (Map.Entry<String, T> entry : index.tailMap(from, !resume).entrySet()) {
+      String key = entry.getKey();
+      if (!key.startsWith(normalizedPrefix)) {
+        break;
+      }
+      if (values.size() == limit) {
+        return new Page<T>(values, last);
+      }
+      values.add(entry.getValue());
+      last = key;
+    }
+    return new Page<T>(values, null);
+  }
+
+  private static String key(String name, String id) {
+    return normalize(name) + SEPARATOR + id;
+  }
+
+  private static String normalize(String name) {
+    // Names may not contain the separator, or they could match a prefix they do not start with.
+    return name.toLowerCase(Locale.ROOT).replace(SEPARATOR, ' ');
+  }
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * NotificationKeys maps groups to GCM notification keys, so that a message to a group is one
+ * downstream message to its notification key which GCM fans out to every member.
+ *
+ * Notification keys are managed with the GCM device group HTTP API. Requests are made one at a
+ * time on a background thread, in the order the group changes were reported, so handlers never
+ * wait for them. Until a group's key is created, after a request fails and once a group has more
+ * members than a notification key may have, getKey returns null and the caller falls back to
+ * sending to each member.
+ */
+public class NotificationKeys {
+
+  public static final String NOTIFICATION_URL = "https://android.googleapis.com/gcm/notification";
+  // Most registration tokens a notification key may have.
+  public static final int MAX_MEMBERS = 20;
+
+  private static final Logger logger = Logger.getLogger("NotificationKeys");
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final int READ_TIMEOUT_MILLIS = 10000;
+  // Prefix of notification key names, which are unique per sender ID.
+  private static final String KEY_NAME_PREFIX = "friendlyping-";
+
+  private final URL url;
+  private final String apiKey;
+  private final String senderId;
+  private final ExecutorService executor;
+  // Notification keys of groups, only of groups a key may be used for.
+  private final Map<String, String> keys = new ConcurrentHashMap<String, String>();
+
+  public NotificationKeys(String apiKey, String senderId) throws IOException {
+    this(apiKey, senderId, new URL(NOTIFICATION_URL));
+  }
+
+  public NotificationKeys(String apiKey, String senderId, URL url) {
+    this.url = url;
+    this.apiKey = apiKey;
+    this.senderId = senderId;
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "NotificationKeys");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * @return Notification key of the group, null if messages to the group must be sent to each
+   * member.
+   */
+  public String getKey(String group) {
+    return keys.get(group);
+  }
+
+  /**
+   * Create a notification key for a newly created group.
+   *
+   * @param tokens Registration tokens of the members of the group.
+   */
+  public void created(final String group, final Collection<String> tokens) {
+    if (tokens.size() > MAX_MEMBERS) {
+      return;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          JsonObject jResponse = post("create", group, null, tokens);
+          keys.put(group, jResponse.get("notification_key").getAsString());
+        } catch (IOException | RuntimeException e) {
+          logger.log(Level.WARNING, "Unable to create notification key of group " + group
+              + ", sending to each member.", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Add a member to the group's notification key.
+   *
+   * @param size Number of members of the group, including the new one.
+   */
+  public void joined(final String group, final String token, int size) {
+    if (size > MAX_MEMBERS) {
+      // Requests already queued may still use the key, new ones will not.
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (keys.remove(group) != null) {
+            logger.info("Group " + group + " outgrew its notification key, sending to each "
+                + "member.");
+          }
+        }
+      });
+      return;
+    }
+    update("add", group, token);
+  }
+
+  /**
+   * Remove a member from the group's notification key. GCM deletes the key once its last member
+   * is removed.
+   *
+   * @param deleted Whether the group was deleted because the member was the last one.
+   */
+  public void left(final String group, String token, final boolean deleted) {
+    update("remove", group, token);
+    if (deleted) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          keys.remove(group);
+        }
+      });
+    }
+  }
+
+  /**
+   * Stop making requests. Requests already queued are abandoned.
+   */
+  public void close() {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void update(final String operation, final String group, final String token) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        String key = keys.get(group);
+        if (key == null) {
+          return;
+        }
+        try {
+          post(operation, group, key, Collections.singletonList(token));
+        } catch (IOException | RuntimeException e) {
+          // The key no longer matches the group, so stop using it.
+          keys.remove(group);
+          logger.log(Level.WARNING, "Unable to " + operation + " member of group " + group
+              + ", sending to each member.", e);
+        }
+      }
+    });
+  }
+
+  private JsonObject post(String operation, String group, String key, Collection<String> tokens)
+      throws IOException {
+    JsonObject jRequest = new JsonObject();
+    jRequest.addProperty("operation", operation);
+    jRequest.addProperty("notification_key_name", KEY_NAME_PREFIX + group);
+    if (key != null) {
+      jRequest.addProperty("notification_key", key);
+    }
+    JsonArray jTokens = new JsonArray();
+    for (String token : tokens) {
+      jTokens.add(new JsonPrimitive(token));
+    }
+    jRequest.add("registration_ids", jTokens);
+    byte[] body = jRequest.toString().getBytes(StandardCharsets.UTF_8);
+
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try {
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Authorization", "key=" + apiKey);
+      connection.setRequestProperty("project_id", senderId);
+      connection.setRequestProperty("Content-Type", "application/json");
+      connection.setFixedLengthStreamingMode(body.length);
+      OutputStream out = connection.getOutputStream();
+      try {
+        out.write(body);
+      } finally {
+        out.close();
+      }
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException("GCM answered " + status + " to " + operation + ": "
+            + read(connection.getErrorStream()));
+      }
+      JsonElement jResponse = new JsonParser().parse(read(connection.getInputStream()));
+      if (!jResponse.isJsonObject()) {
+        throw new IOException("GCM answered " + operation + " with " + jResponse);
+      }
+      return jResponse.getAsJsonObject();
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static String read(InputStream in) throws IOException {
+    if (in == null) {
+      return "";
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, count);
+      }
+      return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A downstream message on its way through the OutboundQueue to CCS, together with the future
+ * completed by its ack or nack.
+ */
+class OutboundMessage {
+
+  final String messageId;
+  // The serialized message, including to and message_id but not the delivery options, which are
+  // added when it is sent.
+  final String json;
+  final DeliveryOptions options;
+  final Lane lane;
+  final long enqueuedNanos;
+  // Messages still queued after this time are dropped, only meaningful if options.expires().
+  final long expiresAtNanos;
+  final CompletableFuture<String> future = new CompletableFuture<String>();
+  // Set when the message is sent, after which it counts against the in-flight window.
+  volatile long sentNanos;
+  volatile long ackDeadlineNanos;
+  // Set once CCS acknowledged receiving the last transmission with stream management, even if its
+  // ack or nack has not arrived.
+  volatile boolean streamAcked;
+
+  OutboundMessage(String messageId, String json, DeliveryOptions options) {
+    this(messageId, json, options, 0);
+  }
+
+  /**
+   * @param ageNanos Time the message already spent waiting, e.g. before a restart, which counts
+   * against its time to live.
+   */
+  OutboundMessage(String messageId, String json, DeliveryOptions options, long ageNanos) {
+    this.messageId = messageId;
+    this.json = json;
+    this.options = options;
+    this.lane = options.getLane();
+    this.enqueuedNanos = System.nanoTime() - ageNanos;
+    this.expiresAtNanos =
+        enqueuedNanos + TimeUnit.SECONDS.toNanos(Math.max(0, options.getTimeToLiveSeconds()));
+  }
+
+  boolean isExpired(long nowNanos) {
+    return options.expires() && nowNanos - expiresAtNanos > 0;
+  }
+
+  /**
+   * @return Whole seconds of time to live left, rounded up, negative once it has passed.
+   */
+  long remainingSeconds(long nowNanos) {
+    return (expiresAtNanos - nowNanos + TimeUnit.SECONDS.toNanos(1) - 1)
+        / TimeUnit.SECONDS.toNanos(1);
+  }
+}
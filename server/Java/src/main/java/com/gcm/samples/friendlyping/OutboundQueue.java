@@ -0,0 +1,253 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OutboundQueue holds downstream messages until they fit in the in-flight window, the number of
+ * messages sent to CCS but not yet acked or nacked. CCS allows at most 100 unacked messages per
+ * connection.
+ *
+ * Messages are queued per Lane. Interactive messages are always dispatched first and may use the
+ * whole window, bulk messages may only use the window minus the interactive reserve. A burst of
+ * bulk traffic can therefore never occupy the slots that interactive traffic needs.
+ *
+ * Messages whose time to live passes while queued are dropped and counted per message type. When
+ * the oldest message in a lane has waited longer than the backlog threshold, for example after an
+ * outage, the lane is served newest first so fresh messages are not stuck behind stale ones.
+ */
+public class OutboundQueue {
+
+  /**
+   * Sends messages once they have been admitted to the in-flight window.
+   */
+  interface Sender {
+    void send(OutboundMessage message);
+  }
+
+  // CCS stops accepting messages on a connection with 100 unacked messages.
+  public static final int DEFAULT_MAX_IN_FLIGHT = 100;
+  public static final int DEFAULT_INTERACTIVE_RESERVE = 20;
+  public static final long DEFAULT_BACKLOG_THRESHOLD_MILLIS = 1000;
+
+  private final Sender sender;
+  private final Map<Lane, ArrayDeque<OutboundMessage>> queues =
+      new EnumMap<Lane, ArrayDeque<OutboundMessage>>(Lane.class);
+  private final Map<Lane, Integer> inFlight = new EnumMap<Lane, Integer>(Lane.class);
+  private final Map<Lane, LatencyHistogram> queueTimes =
+      new EnumMap<Lane, LatencyHistogram>(Lane.class);
+  // Messages dropped because they expired while queued, keyed by message type.
+  private final Map<String, AtomicLong> expiredCounts = new ConcurrentHashMap<String, AtomicLong>();
+  private int totalInFlight;
+  private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+  private int interactiveReserve = DEFAULT_INTERACTIVE_RESERVE;
+  private long backlogThresholdNanos =
+      TimeUnit.MILLISECONDS.toNanos(DEFAULT_BACKLOG_THRESHOLD_MILLIS);
+
+  OutboundQueue(Sender sender) {
+    this.sender = sender;
+    for (Lane lane : Lane.values()) {
+      queues.put(lane, new ArrayDeque<OutboundMessage>());
+      inFlight.put(lane, 0);
+      queueTimes.put(lane, new LatencyHistogram());
+    }
+  }
+
+  /**
+   * Set the size of the in-flight window and how much of it only interactive messages may use.
+   */
+  public synchronized void setWindow(int maxInFlight, int interactiveReserve) {
+    if (interactiveReserve < 0 || interactiveReserve >= maxInFlight) {
+      throw new IllegalArgumentException("Reserve must be between 0 and the window size.");
+    }
+    this.maxInFlight = maxInFlight;
+    this.interactiveReserve = interactiveReserve;
+  }
+
+  /**
+   * Set how long the oldest message in a lane may wait before the lane is served newest first.
+   */
+  public synchronized void setBacklogThreshold(long threshold, TimeUnit unit) {
+    backlogThresholdNanos = unit.toNanos(threshold);
+  }
+
+  /**
+   * Queue a message and send it as soon as the window allows.
+   */
+  void submit(OutboundMessage message) {
+    List<OutboundMessage> expired = new ArrayList<OutboundMessage>(0);
+    List<OutboundMessage> ready;
+    synchronized (this) {
+      queues.get(message.lane).addLast(message);
+      ready = poll(expired);
+    }
+    sendAll(ready);
+    dropAll(expired);
+  }
+
+  /**
+   * Release the window slot of a sent message after its ack, nack or timeout.
+   */
+  void release(OutboundMessage message) {
+    List<OutboundMessage> expired = new ArrayList<OutboundMessage>(0);
+    List<OutboundMessage> ready;
+    synchronized (this) {
+      inFlight.put(message.lane, inFlight.get(message.lane) - 1);
+      totalInFlight--;
+      ready = poll(expired);
+    }
+    sendAll(ready);
+    dropAll(expired);
+  }
+
+  /**
+   * Drop all queued messages that have expired. Expired messages are also dropped when they reach
+   * the front of their lane, this catches messages stuck behind a full window.
+   */
+  void purgeExpired() {
+    List<OutboundMessage> expired = new ArrayList<OutboundMessage>(0);
+    long now = System.nanoTime();
+    synchronized (this) {
+      for (ArrayDeque<OutboundMessage> queue : queues.values()) {
+        Iterator<OutboundMessage> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+          OutboundMessage message = iterator.next();
+          if (message.isExpired(now)) {
+            iterator.remove();
+            expired.add(message);
+          }
+        }
+      }
+    }
+    dropAll(expired);
+  }
+
+  /**
+   * Remove every queued message without sending it, e.g. when shutting down.
+   *
+   * @return The removed messages, which the caller is responsible for failing.
+   */
+  List<OutboundMessage> removeAll() {
+    List<OutboundMessage> removed = new ArrayList<OutboundMessage>();
+    synchronized (this) {
+      for (ArrayDeque<OutboundMessage> queue : queues.values()) {
+        removed.addAll(queue);
+        queue.clear();
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * @return Time messages in the lane spent queued before being sent, in microseconds.
+   */
+  public LatencyHistogram getQueueTime(Lane lane) {
+    return queueTimes.get(lane);
+  }
+
+  public synchronized int getQueuedCount(Lane lane) {
+    return queues.get(lane).size();
+  }
+
+  public synchronized int getInFlightCount(Lane lane) {
+    return inFlight.get(lane);
+  }
+
+  /**
+   * Drop a message that expired after it left the queue, for example while waiting for an ack
+   * before being sent again, or while waiting for an HTTP retry. It is counted with the messages
+   * that expire while queued, and its future fails with a MessageExpiredException.
+   */
+  void dropExpired(OutboundMessage message) {
+    dropAll(Collections.singletonList(message));
+  }
+
+  /**
+   * @return Number of messages dropped because they expired before being sent, by message type.
+   */
+  public Map<String, Long> getExpiredCounts() {
+    Map<String, Long> counts = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : expiredCounts.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().get());
+    }
+    return counts;
+  }
+
+  /**
+   * Take the messages that fit in the window, interactive messages first. Expired messages found
+   * on the way are moved to expired. Callers must hold the lock and send or drop the returned
+   * messages after releasing it.
+   */
+  private List<OutboundMessage> poll(List<OutboundMessage> expired) {
+    List<OutboundMessage> ready = null;
+    long now = System.nanoTime();
+    for (Lane lane : Lane.values()) {
+      ArrayDeque<OutboundMessage> queue = queues.get(lane);
+      int limit = lane == Lane.INTERACTIVE ? maxInFlight : maxInFlight - interactiveReserve;
+      while (!queue.isEmpty() && totalInFlight < maxInFlight
+          && (lane == Lane.INTERACTIVE || inFlight.get(lane) < limit)) {
+        boolean backlogged = now - queue.peekFirst().enqueuedNanos > backlogThresholdNanos;
+        OutboundMessage message = backlogged ? queue.pollLast() : queue.pollFirst();
+        if (message.isExpired(now)) {
+          expired.add(message);
+          continue;
+        }
+        inFlight.put(lane, inFlight.get(lane) + 1);
+        totalInFlight++;
+        queueTimes.get(lane).record(TimeUnit.NANOSECONDS.toMicros(now - message.enqueuedNanos));
+        if (ready == null) {
+          ready = new ArrayList<OutboundMessage>();
+        }
+        ready.add(message);
+      }
+    }
+    return ready;
+  }
+
+  private void sendAll(List<OutboundMessage> ready) {
+    if (ready != null) {
+      for (OutboundMessage message : ready) {
+        sender.send(message);
+      }
+    }
+  }
+
+  private void dropAll(List<OutboundMessage> expired) {
+    for (OutboundMessage message : expired) {
+      String messageType = message.options.getName();
+      AtomicLong count = expiredCounts.get(messageType);
+      if (count == null) {
+        expiredCounts.putIfAbsent(messageType, new AtomicLong());
+        count = expiredCounts.get(messageType);
+      }
+      count.incrementAndGet();
+      message.future.completeExceptionally(
+          new MessageExpiredException(message.messageId, messageType));
+    }
+  }
+}
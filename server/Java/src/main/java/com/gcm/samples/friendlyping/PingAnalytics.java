@@ -0,0 +1,212 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * PingAnalytics summarizes ping and registration activity as it happens, in constant memory
+ * whatever the traffic.
+ *
+ * Pings and registrations are counted per minute for the last hour, in tumbling windows. Each
+ * slot packs its minute with its count so that a single compare-and-set both counts and, when
+ * the minute has moved on, starts the slot over. The top senders and recipients of pings are
+ * counted in Space-Saving sketches, and the distinct active clients, those that pinged or
+ * registered, in a HyperLogLog. Those are kept per hour: the current hour and the last complete
+ * one.
+ *
+ * The top senders and recipients are reported by a hash of their registration token rather than
+ * the token itself, which anyone could use to send to the client's device.
+ */
+public class PingAnalytics {
+
+  // Minutes of counts kept.
+  static final int MINUTES = 60;
+  // Items counted per sketch, enough for the top TOP_COUNT to be accurate.
+  static final int SKETCH_CAPACITY = 200;
+  static final int TOP_COUNT = 20;
+  // 2^14 registers, for a standard error under 1%.
+  static final int HLL_PRECISION = 14;
+  static final long WINDOW_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  private static final long COUNT_MASK = 0xffffffffL;
+  // Bytes of a token's SHA-256 reported, enough to tell the top clients apart.
+  private static final int TOKEN_HASH_BYTES = 8;
+
+  // An hour of top senders and recipients and of active clients.
+  private static class Window {
+    final long startMillis;
+    final SpaceSavingSketch senders = new SpaceSavingSketch(SKETCH_CAPACITY);
+    final SpaceSavingSketch recipients = new SpaceSavingSketch(SKETCH_CAPACITY);
+    final HyperLogLog activeClients = new HyperLogLog(HLL_PRECISION);
+
+    Window(long startMillis) {
+      this.startMillis = startMillis;
+    }
+  }
+
+  // Minute in the high 32 bits and count in the low 32 bits, by minute modulo MINUTES.
+  private final AtomicLongArray pingCounts = new AtomicLongArray(MINUTES);
+  private final AtomicLongArray registrationCounts = new AtomicLongArray(MINUTES);
+  private volatile Window current;
+  private volatile Window previous;
+
+  public PingAnalytics() {
+    long nowMillis = System.currentTimeMillis();
+    current = new Window(nowMillis - nowMillis % WINDOW_MILLIS);
+  }
+
+  /**
+   * Record a ping from sender to recipient.
+   */
+  public void recordPing(String senderToken, String recipientToken, long nowMillis) {
+    increment(pingCounts, nowMillis);
+    Window window = window(nowMillis);
+    window.senders.add(senderToken);
+    window.recipients.add(recipientToken);
+    window.activeClients.add(senderToken);
+  }
+
+  /**
+   * Record the registration of a client.
+   */
+  public void recordRegistration(String registrationToken, long nowMillis) {
+    increment(registrationCounts, nowMillis);
+    window(nowMillis).activeClients.add(registrationToken);
+  }
+
+  /**
+   * @return The analytics as JSON: counts for each of the last MINUTES minutes, oldest first, and
+   * for the current and the last complete hour the top senders and recipients, with the most each
+   * count may be over by, and the estimated number of active clients.
+   */
+  public JsonObject toJson(long nowMillis) {
+    JsonObject jAnalytics = new JsonObject();
+    JsonArray jMinutes = new JsonArray();
+    long nowMinute = nowMillis / MINUTE_MILLIS;
+    for (long minute = nowMinute - MINUTES + 1; minute <= nowMinute; minute++) {
+      JsonObject jMinute = new JsonObject();
+      jMinute.addProperty("start", minute * MINUTE_MILLIS);
+      jMinute.addProperty("pings", count(pingCounts, minute));
+      jMinute.addProperty("registrations", count(registrationCounts, minute));
+      jMinutes.add(jMinute);
+    }
+    jAnalytics.add("minutes", jMinutes);
+    Window window = window(nowMillis);
+    jAnalytics.add("current_hour", windowJson(window));
+    Window last = previous;
+    if (last != null && last.startMillis == window.startMillis - WINDOW_MILLIS) {
+      jAnalytics.add("last_hour", windowJson(last));
+    }
+    return jAnalytics;
+  }
+
+  private static JsonObject windowJson(Window window) {
+    JsonObject jWindow = new JsonObject();
+    jWindow.addProperty("start", window.startMillis);
+    jWindow.addProperty("pings", window.senders.getTotal());
+    jWindow.addProperty("active_clients", window.activeClients.estimate());
+    jWindow.add("top_senders", countersJson(window.senders));
+    jWindow.add("top_recipients", countersJson(window.recipients));
+    return jWindow;
+  }
+
+  private static JsonArray countersJson(SpaceSavingSketch sketch) {
+    JsonArray jCounters = new JsonArray();
+    for (SpaceSavingSketch.Counter counter : sketch.getTop(TOP_COUNT)) {
+      JsonObject jCounter = new JsonObject();
+      jCounter.addProperty("token_hash", tokenHash(counter.item));
+      jCounter.addProperty("count", counter.count);
+      jCounter.addProperty("error", counter.error);
+      jCounters.add(jCounter);
+    }
+    return jCounters;
+  }
+
+  /**
+   * @return The start of the SHA-256 of a registration token in hex, which identifies the client
+   * to whoever knows its token without revealing the token.
+   */
+  static String tokenHash(String token) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform supports SHA-256.
+      throw new IllegalStateException(e);
+    }
+    StringBuilder hash = new StringBuilder(2 * TOKEN_HASH_BYTES);
+    for (int i = 0; i < TOKEN_HASH_BYTES; i++) {
+      hash.append(Character.forDigit((digest[i] >> 4) & 0xf, 16))
+          .append(Character.forDigit(digest[i] & 0xf, 16));
+    }
+    return hash.toString();
+  }
+
+  /**
+   * @return The window of the hour the given time is in, started if it is a new hour.
+   */
+  private Window window(long nowMillis) {
+    Window window = current;
+    long startMillis = nowMillis - nowMillis % WINDOW_MILLIS;
+    if (startMillis > window.startMillis) {
+      synchronized (this) {
+        window = current;
+        if (startMillis > window.startMillis) {
+          previous = window;
+          window = new Window(startMillis);
+          current = window;
+        }
+      }
+    }
+    return window;
+  }
+
+  private static void increment(AtomicLongArray counts, long nowMillis) {
+    long minute = nowMillis / MINUTE_MILLIS;
+    int slot = (int) (minute % MINUTES);
+    while (true) {
+      long packed = counts.get(slot);
+      long slotMinute = packed >>> 32;
+      long next;
+      if (slotMinute == minute) {
+        next = packed + 1;
+      } else if (slotMinute < minute) {
+        next = (minute << 32) | 1;
+      } else {
+        // The slot has moved on to a later minute, e.g. after the clock stepped back.
+        return;
+      }
+      if (counts.compareAndSet(slot, packed, next)) {
+        return;
+      }
+    }
+  }
+
+  private static long count(AtomicLongArray counts, long minute) {
+    long packed = counts.get((int) (minute % MINUTES));
+    return packed >>> 32 == minute ? packed & COUNT_MASK : 0;
+  }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * PingHistory remembers the recent pings to each client, so that a client that was offline can
+ * ask who pinged it.
+ *
+ * Pings are stored off the heap, in a fixed amount of direct memory divided into a ring of time
+ * buckets. A ping is appended to the current bucket, at an offset reserved with an atomic add, so
+ * concurrent writers only contend on the map of the recipient's latest ping in that bucket, which
+ * links the recipient's pings into a chain. When the current bucket's time is up, or it is full,
+ * the oldest bucket is emptied in O(1) and becomes the current one, so memory stays bounded and
+ * pings are forgotten after about buckets * bucketMillis.
+ *
+ * A record is the ping's time, the offset of the recipient's previous record in the bucket, and
+ * the sender's token.
+ */
+public class PingHistory {
+
+  /**
+   * A ping in the history.
+   */
+  public static class Ping {
+    public final String senderToken;
+    public final long timeMillis;
+
+    Ping(String senderToken, long timeMillis) {
+      this.senderToken = senderToken;
+      this.timeMillis = timeMillis;
+    }
+  }
+
+  private static final int TIME_OFFSET = 0;
+  private static final int PREVIOUS_OFFSET = 8;
+  private static final int LENGTH_OFFSET = 12;
+  private static final int HEADER_SIZE = 14;
+  // Longest sender token stored, registration tokens are far shorter.
+  static final int MAX_TOKEN_LENGTH = 1024;
+  private static final int NO_RECORD = -1;
+
+  private static class Bucket {
+    final ByteBuffer buffer;
+    final AtomicInteger position = new AtomicInteger();
+    // Offset of each recipient's latest record in this bucket, replaced when it is emptied.
+    volatile ConcurrentHashMap<String, Integer> latest = new ConcurrentHashMap<String, Integer>();
+    // Odd while the bucket is being emptied, and so changed by emptying it, so readers can tell
+    // their reads may be torn.
+    volatile long generation;
+    volatile long startMillis;
+
+    Bucket(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  private final Bucket[] buckets;
+  private final long bucketMillis;
+  private final int bucketCapacity;
+  private volatile int current;
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  /**
+   * @param capacityBytes Direct memory to store pings in, divided evenly between the buckets.
+   * @param bucketCount Number of time buckets.
+   * @param bucketMillis Time each bucket covers.
+   */
+  public PingHistory(int capacityBytes, int bucketCount, long bucketMillis) {
+    if (bucketCount < 2 || bucketMillis < 1 || capacityBytes / bucketCount < HEADER_SIZE) {
+      throw new IllegalArgumentException("Too few buckets or too little memory for a history.");
+    }
+    this.bucketMillis = bucketMillis;
+    bucketCapacity = capacityBytes / bucketCount;
+    ByteBuffer memory = ByteBuffer.allocateDirect(bucketCapacity * bucketCount);
+    buckets = new Bucket[bucketCount];
+    for (int i = 0; i < bucketCount; i++) {
+      memory.limit((i + 1) * bucketCapacity).position(i * bucketCapacity);
+      buckets[i] = new Bucket(memory.slice());
+    }
+    long nowMillis = System.currentTimeMillis();
+    buckets[0].startMillis = nowMillis - nowMillis % bucketMillis;
+  }
+
+  /**
+   * Record a ping. Safe to call from many threads at once.
+   */
+  public void record(String recipientToken, String senderToken, long nowMillis) {
+    byte[] sender = senderToken.getBytes(StandardCharsets.UTF_8);
+    if (sender.length > MAX_TOKEN_LENGTH) {
+      droppedCount.incrementAndGet();
+      return;
+    }
+    int size = HEADER_SIZE + sender.length;
+    while (true) {
+      int index = current;
+      Bucket bucket = buckets[index];
+      if (nowMillis >= bucket.startMillis + bucketMillis) {
+        advance(index, nowMillis);
+        continue;
+      }
+      final int offset = bucket.position.getAndAdd(size);
+      if (offset + size > bucketCapacity) {
+        advance(index, nowMillis);
+        continue;
+      }
+      final ByteBuffer buffer = bucket.buffer;
+      buffer.putLong(offset + TIME_OFFSET, nowMillis);
+      buffer.putShort(offset + LENGTH_OFFSET, (short) sender.length);
+      for (int i = 0; i < sender.length; i++) {
+        buffer.put(offset + HEADER_SIZE + i, sender[i]);
+      }
+      // Linking the record in publishes it, along with everything written before.
+      bucket.latest.compute(recipientToken, new BiFunction<String, Integer, Integer>() {
+        @Override
+        public Integer apply(String recipient, Integer previous) {
+          buffer.putInt(offset + PREVIOUS_OFFSET, previous == null ? NO_RECORD : previous);
+          return offset;
+        }
+      });
+      return;
+    }
+  }
+
+  /**
+   * @param recipientToken Token of the client that was pinged.
+   * @param limit Most pings to return.
+   * @return The client's most recent pings still in the history, most recent first.
+   */
+  public List<Ping> getRecent(String recipientToken, int limit) {
+    List<Ping> pings = new ArrayList<Ping>(Math.min(limit, 16));
+    // Buckets are only emptied as pings are recorded, so after a lull they hold older pings.
+    long oldestMillis = System.currentTimeMillis() - buckets.length * bucketMillis;
+    int index = current;
+    for (int i = 0; i < buckets.length && pings.size() < limit; i++) {
+      Bucket bucket = buckets[(index - i + buckets.length) % buckets.length];
+      long generation = bucket.generation;
+      Integer latest = bucket.latest.get(recipientToken);
+      if (latest == null) {
+        continue;
+      }
+      int found = pings.size();
+      int offset = latest;
+      while (offset != NO_RECORD && pings.size() < limit) {
+        ByteBuffer buffer = bucket.buffer;
+        int length = buffer.getShort(offset + LENGTH_OFFSET);
+        if (length < 0 || length > MAX_TOKEN_LENGTH
+            || offset + HEADER_SIZE + length > bucketCapacity) {
+          break;
+        }
+        byte[] sender = new byte[length];
+        for (int j = 0; j < length; j++) {
+          sender[j] = buffer.get(offset + HEADER_SIZE + j);
+        }
+        long timeMillis = buffer.getLong(offset + TIME_OFFSET);
+        if (timeMillis < oldestMillis) {
+          break;
+        }
+        pings.add(new Ping(new String(sender, StandardCharsets.UTF_8), timeMillis));
+        offset = buffer.getInt(offset + PREVIOUS_OFFSET);
+      }
+      if (bucket.generation != generation || (generation & 1) != 0) {
+        // The bucket was emptied and reused while it was read.
+        pings.subList(found, pings.size()).clear();
+      }
+    }
+    return pings;
+  }
+
+  /**
+   * @return Number of pings not recorded because their sender's token was too long.
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * Make the bucket after the given one current, emptying it, unless another writer already has.
+   */
+  private synchronized void advance(int index, long nowMillis) {
+    if (current != index) {
+      return;
+    }
+    int next = (index + 1) % buckets.length;
+    Bucket bucket = buckets[next];
+    bucket.generation++;
+    bucket.latest = new ConcurrentHashMap<String, Integer>();
+    bucket.position.set(0);
+    // Buckets start on multiples of bucketMillis, unless the current one filled up early.
+    long start = nowMillis - nowMillis % bucketMillis;
+    bucket.startMillis = Math.max(start, buckets[index].startMillis);
+    bucket.generation++;
+    current = next;
+  }
+}
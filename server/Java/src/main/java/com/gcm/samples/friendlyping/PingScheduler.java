@@ -0,0 +1,439 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * PingScheduler holds pings scheduled for later and hands them out in batches once they are due.
+ *
+ * Pending pings are kept in a TimingWheel, so scheduling one is O(1) and costs a small object
+ * that shares its tokens with the registered clients. With a directory, every scheduled ping is
+ * logged, and made durable before schedule returns, and every batch of fired pings is logged
+ * with one record. Concurrent schedulers share the cost of one fsync. When the scheduler is
+ * opened again the pings never fired are scheduled again, and those that came due in the meantime
+ * fire on the first tick. The log is compacted to the pending pings when it is opened and when it
+ * has grown to several times their size.
+ *
+ * How late pings fire, measured from their due time, and how late each tick runs are recorded in
+ * histograms.
+ */
+public class PingScheduler implements Closeable {
+
+  /**
+   * A ping scheduled for later.
+   */
+  public static class ScheduledPing {
+    final long id;
+    public final String toToken;
+    public final String senderToken;
+    public final long dueMillis;
+
+    ScheduledPing(long id, String toToken, String senderToken, long dueMillis) {
+      this.id = id;
+      this.toToken = toToken;
+      this.senderToken = senderToken;
+      this.dueMillis = dueMillis;
+    }
+  }
+
+  private static final Logger logger = Logger.getLogger("PingScheduler");
+
+  public static final long DEFAULT_TICK_MILLIS = 100;
+  // Most pings handed out, and logged as fired, at once.
+  static final int MAX_BATCH = 1000;
+  private static final String LOG_NAME = "scheduled-pings.log";
+  private static final String COMPACTED_NAME = "scheduled-pings.compacted";
+  private static final byte TYPE_SCHEDULE = 1;
+  private static final byte TYPE_FIRED = 2;
+  // The log is compacted once it is this many times the size of the pending pings, and larger
+  // than COMPACT_MIN_BYTES.
+  private static final int COMPACT_RATIO = 4;
+  private static final long COMPACT_MIN_BYTES = 4 * 1024 * 1024;
+  // How often firing and tick lag are logged, while there are pings.
+  private static final long REPORT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private final long tickMillis;
+  private final TimingWheel<ScheduledPing> pending;
+  // Log of scheduled and fired pings, null if pings are not persisted.
+  private final File directory;
+  private FileChannel channel;
+  // Bytes appended and bytes known to be durable, counted across compactions.
+  private long writtenBytes;
+  private long syncedBytes;
+  // Bytes in the current log file, and the part taken by the SCHEDULE records of pending pings.
+  private long logBytes;
+  private long liveBytes;
+  // Held while syncing, see awaitDurable.
+  private final Object syncLock = new Object();
+  private long nextId;
+  private boolean closed;
+  private ScheduledExecutorService executor;
+
+  private final LatencyHistogram firingLag = new LatencyHistogram();
+  private final LatencyHistogram tickLag = new LatencyHistogram();
+  private final AtomicLong firedCount = new AtomicLong();
+
+  /**
+   * Create a scheduler that keeps pings in memory only.
+   */
+  public PingScheduler(long tickMillis) {
+    this.tickMillis = tickMillis;
+    pending = new TimingWheel<ScheduledPing>(tickMillis, System.currentTimeMillis());
+    directory = null;
+  }
+
+  private PingScheduler(File directory, long tickMillis) throws IOException {
+    this.tickMillis = tickMillis;
+    pending = new TimingWheel<ScheduledPing>(tickMillis, System.currentTimeMillis());
+    this.directory = directory;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create schedule directory " + directory);
+    }
+    List<ScheduledPing> recovered = recover(new File(directory, LOG_NAME));
+    for (ScheduledPing ping : recovered) {
+      pending.schedule(ping, ping.dueMillis);
+      nextId = Math.max(nextId, ping.id + 1);
+    }
+    compact();
+    if (!recovered.isEmpty()) {
+      logger.info("Recovered " + recovered.size() + " scheduled pings.");
+    }
+  }
+
+  /**
+   * Open the scheduler persisted in the given directory, scheduling again the pings a previous
+   * run did not fire.
+   *
+   * @param directory Directory holding the log, created if missing.
+   */
+  public static PingScheduler open(File directory, long tickMillis) throws IOException {
+    return new PingScheduler(directory, tickMillis);
+  }
+
+  /**
+   * Schedule a ping. Once this returns the ping survives a restart.
+   *
+   * @param toToken Token of the recipient.
+   * @param senderToken Token of the sender.
+   * @param dueMillis Time to send the ping at.
+   */
+  public void schedule(String toToken, String senderToken, long dueMillis) throws IOException {
+    long position;
+    synchronized (this) {
+      if (closed) {
+        throw new IOException("Ping scheduler is closed.");
+      }
+      ScheduledPing ping = new ScheduledPing(nextId++, toToken, senderToken, dueMillis);
+      position = directory == null ? 0 : appendSchedule(ping);
+      pending.schedule(ping, dueMillis);
+    }
+    if (directory != null) {
+      awaitDurable(position);
+    }
+  }
+
+  /**
+   * Hand due pings to the given consumer every tick, on a background thread, in batches of at
+   * most MAX_BATCH.
+   */
+  public synchronized void start(final Consumer<List<ScheduledPing>> fire) {
+    if (executor != null) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "PingScheduler");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // Ticks run just after the wheel's tick boundaries, when pings come due.
+    long nowMillis = System.currentTimeMillis();
+    final long startMillis = nowMillis - nowMillis % tickMillis;
+    executor.scheduleAtFixedRate(new Runnable() {
+      private long ticks;
+      private long nextReportMillis = startMillis + REPORT_MILLIS;
+
+      @Override
+      public void run() {
+        long nowMillis = System.currentTimeMillis();
+        ticks++;
+        tickLag.record(Math.max(0, nowMillis - (startMillis + ticks * tickMillis)));
+        try {
+          fireDue(nowMillis, fire);
+          if (nowMillis >= nextReportMillis) {
+            nextReportMillis = nowMillis + REPORT_MILLIS;
+            report();
+          }
+        } catch (IOException | RuntimeException e) {
+          // An exception would cancel the schedule, and with it all later pings.
+          logger.log(Level.WARNING, "Unable to fire scheduled pings.", e);
+        }
+      }
+    }, startMillis + tickMillis - nowMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Hand the pings due at the given time to the consumer and log them as fired.
+   *
+   * @return Number of pings fired.
+   */
+  int fireDue(long nowMillis, Consumer<List<ScheduledPing>> fire) throws IOException {
+    List<ScheduledPing> due = pending.advance(nowMillis);
+    // Compaction rewrites the log from the pings still in the wheel, so it waits until every due
+    // ping, which has already left the wheel, has been fired and logged.
+    boolean compact = false;
+    for (int start = 0; start < due.size(); start += MAX_BATCH) {
+      List<ScheduledPing> batch = due.subList(start, Math.min(start + MAX_BATCH, due.size()));
+      fire.accept(batch);
+      long firedMillis = System.currentTimeMillis();
+      for (ScheduledPing ping : batch) {
+        firingLag.record(Math.max(0, firedMillis - ping.dueMillis));
+      }
+      firedCount.addAndGet(batch.size());
+      compact |= logFired(batch);
+    }
+    if (compact) {
+      synchronized (syncLock) {
+        compact();
+      }
+    }
+    return due.size();
+  }
+
+  /**
+   * Log how late pings and ticks were, unless no pings were ever scheduled.
+   */
+  private void report() {
+    int pendingCount = pending.size();
+    if (pendingCount == 0 && firedCount.get() == 0) {
+      return;
+    }
+    logger.info("Scheduled pings: " + pendingCount + " pending, " + firedCount.get()
+        + " fired, firing lag " + firingLag.summary("ms") + ", tick lag "
+        + tickLag.summary("ms"));
+  }
+
+  /**
+   * @return Number of pings scheduled and not yet fired.
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  public long getFiredCount() {
+    return firedCount.get();
+  }
+
+  /**
+   * @return Milliseconds from the time each ping was due until it was handed out.
+   */
+  public LatencyHistogram getFiringLag() {
+    return firingLag;
+  }
+
+  /**
+   * @return Milliseconds each tick ran after it was due.
+   */
+  public LatencyHistogram getTickLag() {
+    return tickLag;
+  }
+
+  /**
+   * Stop handing out pings and close the log. Pings not fired are recovered when the scheduler
+   * is next opened.
+   */
+  @Override
+  public void close() throws IOException {
+    ScheduledExecutorService executor;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      executor = this.executor;
+    }
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(tickMillis * 10, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (syncLock) {
+      synchronized (this) {
+        if (channel != null) {
+          channel.force(false);
+          channel.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return True if the log should now be compacted.
+   */
+  private synchronized boolean logFired(List<ScheduledPing> batch) throws IOException {
+    if (channel == null || closed) {
+      return false;
+    }
+    ByteBuffer payload = ByteBuffer.allocate(1 + 4 + 8 * batch.size());
+    payload.put(TYPE_FIRED);
+    payload.putInt(batch.size());
+    for (ScheduledPing ping : batch) {
+      payload.putLong(ping.id);
+      liveBytes -= RecordLog.FRAME_HEADER_BYTES + scheduleSize(ping);
+    }
+    // Fired records are not waited for, if one is lost in a crash its pings merely fire again.
+    write(payload);
+    return logBytes > COMPACT_MIN_BYTES && logBytes > COMPACT_RATIO * liveBytes;
+  }
+
+  private long appendSchedule(ScheduledPing ping) throws IOException {
+    ByteBuffer payload = ByteBuffer.allocate(scheduleSize(ping));
+    payload.put(TYPE_SCHEDULE);
+    payload.putLong(ping.id);
+    payload.putLong(ping.dueMillis);
+    RecordLog.putString(payload, ping.toToken);
+    RecordLog.putString(payload, ping.senderToken);
+    liveBytes += RecordLog.FRAME_HEADER_BYTES + payload.capacity();
+    return write(payload);
+  }
+
+  private static int scheduleSize(ScheduledPing ping) {
+    return 1 + 8 + 8 + RecordLog.sizeOf(ping.toToken) + RecordLog.sizeOf(ping.senderToken);
+  }
+
+  /**
+   * Frame and append a record to the log.
+   *
+   * @return Log position just after the record.
+   */
+  private long write(ByteBuffer payload) throws IOException {
+    payload.flip();
+    ByteBuffer frame = RecordLog.frame(RecordLog.NO_SALT, payload);
+    logBytes += RecordLog.writeFully(channel, frame, logBytes);
+    writtenBytes += frame.limit();
+    return writtenBytes;
+  }
+
+  /**
+   * Wait until the log is durable up to the given position. The first waiter syncs everything
+   * written so far, and those that queued up behind it find their records already durable.
+   */
+  private void awaitDurable(long position) throws IOException {
+    synchronized (syncLock) {
+      if (syncedBytes >= position) {
+        return;
+      }
+      FileChannel current;
+      long target;
+      synchronized (this) {
+        current = channel;
+        target = writtenBytes;
+      }
+      current.force(false);
+      syncedBytes = target;
+    }
+  }
+
+  /**
+   * Rewrite the log with only the pending pings, and replace the old log with it. Must be called
+   * holding syncLock, so no sync runs on the old log meanwhile.
+   */
+  private synchronized void compact() throws IOException {
+    if (closed) {
+      return;
+    }
+    File compacted = new File(directory, COMPACTED_NAME);
+    FileChannel old = channel;
+    channel = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    logBytes = 0;
+    liveBytes = 0;
+    for (ScheduledPing ping : pending.values()) {
+      appendSchedule(ping);
+    }
+    channel.force(true);
+    Files.move(compacted.toPath(), new File(directory, LOG_NAME).toPath(),
+        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    syncedBytes = writtenBytes;
+    if (old != null) {
+      old.close();
+    }
+  }
+
+  /**
+   * Read the log of a previous run and return the pings it never fired.
+   */
+  private static List<ScheduledPing> recover(File log) throws IOException {
+    Map<Long, ScheduledPing> live = new HashMap<Long, ScheduledPing>();
+    if (!log.exists()) {
+      return new ArrayList<ScheduledPing>(0);
+    }
+    // Tokens repeat across pings, so one copy of each is kept.
+    Map<String, String> tokens = new HashMap<String, String>();
+    try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+      RecordLog.read(channel, RecordLog.NO_SALT, new Consumer<ByteBuffer>() {
+        @Override
+        public void accept(ByteBuffer payload) {
+          byte type = payload.get();
+          if (type == TYPE_SCHEDULE) {
+            long id = payload.getLong();
+            long dueMillis = payload.getLong();
+            String toToken = dedupe(tokens, RecordLog.getString(payload));
+            String senderToken = dedupe(tokens, RecordLog.getString(payload));
+            live.put(id, new ScheduledPing(id, toToken, senderToken, dueMillis));
+          } else if (type == TYPE_FIRED) {
+            int count = payload.getInt();
+            for (int i = 0; i < count; i++) {
+              live.remove(payload.getLong());
+            }
+          }
+        }
+      });
+    }
+    return new ArrayList<ScheduledPing>(live.values());
+  }
+
+  private static String dedupe(Map<String, String> tokens, String token) {
+    String previous = tokens.putIfAbsent(token, token);
+    return previous != null ? previous : token;
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * RecordLog frames the records of MessageJournal and PingScheduler, so both logs share one
+ * format and one reader.
+ *
+ * Each record is framed as length, CRC32 and payload. The CRC covers the payload after a salt,
+ * which is not written: MessageJournal salts with the segment's sequence number, so stale records
+ * left in a recycled file fail their CRC, and PingScheduler uses no salt. Reading stops at the
+ * first record that is cut short or fails its CRC, which is where a torn write ends the log.
+ */
+final class RecordLog {
+
+  static final int FRAME_HEADER_BYTES = 8;
+  static final byte[] NO_SALT = new byte[0];
+
+  private RecordLog() {
+  }
+
+  /**
+   * @return Salt that ties records to the file of the given sequence number.
+   */
+  static byte[] salt(long sequence) {
+    return ByteBuffer.allocate(8).putLong(sequence).array();
+  }
+
+  /**
+   * Frame a payload that is ready to be read.
+   *
+   * @return The record, ready to be written.
+   */
+  static ByteBuffer frame(byte[] salt, ByteBuffer payload) {
+    ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + payload.remaining());
+    frame.putInt(payload.remaining());
+    frame.putInt(checksum(salt, payload));
+    frame.put(payload);
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * Write all of a buffer at the given position.
+   *
+   * @return Bytes written.
+   */
+  static int writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    int total = 0;
+    while (buffer.hasRemaining()) {
+      total += channel.write(buffer, position + total);
+    }
+    return total;
+  }
+
+  /**
+   * Read records from the start of a file and hand each payload to the given consumer, up to the
+   * first record that is cut short or fails its CRC.
+   *
+   * @return Number of records read.
+   */
+  static int read(FileChannel channel, byte[] salt, Consumer<ByteBuffer> consumer)
+      throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+    long position = 0;
+    int records = 0;
+    while (true) {
+      header.clear();
+      if (readFully(channel, header, position) < FRAME_HEADER_BYTES) {
+        break;
+      }
+      header.flip();
+      int length = header.getInt();
+      int crc = header.getInt();
+      if (length <= 0 || position + FRAME_HEADER_BYTES + length > channel.size()) {
+        break;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(length);
+      readFully(channel, payload, position + FRAME_HEADER_BYTES);
+      payload.flip();
+      if (checksum(salt, payload) != crc) {
+        break;
+      }
+      consumer.accept(payload);
+      position += FRAME_HEADER_BYTES + length;
+      records++;
+    }
+    return records;
+  }
+
+  static int sizeOf(String value) {
+    return 4 + value.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  static void putString(ByteBuffer buffer, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    buffer.putInt(bytes.length);
+    buffer.put(bytes);
+  }
+
+  static String getString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    int total = 0;
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + total);
+      if (read < 0) {
+        break;
+      }
+      total += read;
+    }
+    return total;
+  }
+
+  private static int checksum(byte[] salt, ByteBuffer payload) {
+    CRC32 crc = new CRC32();
+    crc.update(salt);
+    crc.update(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+    return (int) crc.getValue();
+  }
+}
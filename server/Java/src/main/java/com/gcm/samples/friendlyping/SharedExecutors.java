@@ -0,0 +1,172 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SharedExecutors runs the background work of the FriendlyPingServers of several tenants in one
+ * process on one set of threads, rather than each server starting its own: timers for the ack
+ * timeout checks, client expiry ticks and HTTP send retries, and workers for loading state,
+ * warming up on startup and expiring clients.
+ *
+ * Tasks are run on behalf of a named tenant, and the tasks run and the time spent running them
+ * are counted per tenant, so that the metrics show which tenants use the shared threads. A
+ * tenant's task should not block for long, or it holds up the other tenants' tasks.
+ */
+public class SharedExecutors implements Closeable {
+
+  public static final int DEFAULT_TIMER_THREADS = 2;
+  public static final int DEFAULT_WORKER_THREADS = 4;
+
+  /**
+   * Tasks run for a tenant and the time spent running them.
+   */
+  public static class Usage {
+    private final AtomicLong timerTasks = new AtomicLong();
+    private final AtomicLong timerNanos = new AtomicLong();
+    private final AtomicLong workerTasks = new AtomicLong();
+    private final AtomicLong workerNanos = new AtomicLong();
+
+    public long getTimerTasks() {
+      return timerTasks.get();
+    }
+
+    public long getTimerNanos() {
+      return timerNanos.get();
+    }
+
+    public long getWorkerTasks() {
+      return workerTasks.get();
+    }
+
+    public long getWorkerNanos() {
+      return workerNanos.get();
+    }
+  }
+
+  private final ScheduledExecutorService timers;
+  private final ExecutorService workers;
+  private final Map<String, Usage> usage = new ConcurrentHashMap<String, Usage>();
+
+  public SharedExecutors() {
+    this(DEFAULT_TIMER_THREADS, DEFAULT_WORKER_THREADS);
+  }
+
+  public SharedExecutors(int timerThreads, int workerThreads) {
+    timers =
+        Executors.newScheduledThreadPool(timerThreads, threadFactory("SharedExecutors-timer-"));
+    workers =
+        Executors.newFixedThreadPool(workerThreads, threadFactory("SharedExecutors-worker-"));
+  }
+
+  private static ThreadFactory threadFactory(final String prefix) {
+    return new ThreadFactory() {
+      private final AtomicInteger nextThread = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + nextThread.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Run a task for the given tenant on a timer thread, repeatedly with the given delay between
+   * the end of one run and the start of the next. Cancel the returned future to stop it.
+   */
+  public ScheduledFuture<?> scheduleWithFixedDelay(String tenant, Runnable task,
+      long initialDelay, long delay, TimeUnit unit) {
+    Usage tenantUsage = getUsage(tenant);
+    return timers.scheduleWithFixedDelay(counted(task, tenantUsage.timerTasks,
+        tenantUsage.timerNanos), initialDelay, delay, unit);
+  }
+
+  /**
+   * Run a task for the given tenant once on a timer thread, after the given delay.
+   */
+  public ScheduledFuture<?> schedule(String tenant, Runnable task, long delay, TimeUnit unit) {
+    Usage tenantUsage = getUsage(tenant);
+    return timers.schedule(counted(task, tenantUsage.timerTasks, tenantUsage.timerNanos), delay,
+        unit);
+  }
+
+  /**
+   * @return Executor running tasks for the given tenant on the worker threads.
+   */
+  public Executor workersFor(String tenant) {
+    Usage tenantUsage = getUsage(tenant);
+    final AtomicLong tasks = tenantUsage.workerTasks;
+    final AtomicLong nanos = tenantUsage.workerNanos;
+    return new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        workers.execute(counted(task, tasks, nanos));
+      }
+    };
+  }
+
+  /**
+   * @return Tasks run for the given tenant so far.
+   */
+  public Usage getUsage(String tenant) {
+    Usage tenantUsage = usage.get(tenant);
+    if (tenantUsage == null) {
+      usage.putIfAbsent(tenant, new Usage());
+      tenantUsage = usage.get(tenant);
+    }
+    return tenantUsage;
+  }
+
+  /**
+   * Stop the threads. Scheduled tasks no longer run and queued tasks are dropped.
+   */
+  @Override
+  public void close() {
+    timers.shutdownNow();
+    workers.shutdownNow();
+  }
+
+  private static Runnable counted(final Runnable task, final AtomicLong tasks,
+      final AtomicLong nanos) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        long startNanos = System.nanoTime();
+        try {
+          task.run();
+        } finally {
+          tasks.incrementAndGet();
+          nanos.addAndGet(System.nanoTime() - startNanos);
+        }
+      }
+    };
+  }
+}
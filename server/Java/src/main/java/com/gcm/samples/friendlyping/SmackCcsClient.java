@@ -16,8 +16,8 @@
 
 package com.gcm.samples.friendlyping;
 
-import org.jivesoftware.smack.AbstractXMPPConnection;
 import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.SmackConfiguration;
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.StanzaListener;
 import org.jivesoftware.smack.XMPPConnection;
@@ -25,35 +25,113 @@ import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.filter.StanzaFilter;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smack.roster.Roster;
+import org.jivesoftware.smack.sm.predicates.AfterXStanzas;
 import org.jivesoftware.smack.tcp.XMPPTCPConnection;
 import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
 
+import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * SmackCcsClient provides communication with GCM Cloud Connection Server (XMPP Server).
- * This sample uses Smack version 4.1.0.
+ * This sample uses Smack version 4.1.9.
+ *
+ * The connection is managed: it is made in the background, and whenever it is lost it is made
+ * again with jittered exponential backoff. Stanzas sent while disconnected are buffered, up to a
+ * limit, and sent in order once the connection is back.
+ *
+ * If the server offers XEP-0198 stream management it is enabled: the server acknowledges the
+ * stanzas it receives, and a lost connection is resumed instead of being replaced, which sends
+ * again the stanzas in transit in either direction. Where resumption is not possible Smack sends
+ * again the stanzas the server had not acknowledged on the new connection. Without stream
+ * management, stanzas already handed to a connection that then fails are not recovered here.
  */
 public class SmackCcsClient {
 
   private static final Logger logger = Logger.getLogger("SmackCssClient");
 
-  private AbstractXMPPConnection connection;
+  public static final int DEFAULT_MAX_BUFFERED_STANZAS = 10000;
+  public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 500;
+  public static final long DEFAULT_MAX_BACKOFF_MILLIS = 60000;
+  // With stream management, ask the server to acknowledge what it received after this many
+  // stanzas. Smack's default asks after every message, which doubles the traffic.
+  public static final int DEFAULT_ACK_REQUEST_INTERVAL = 50;
+
+  static {
+    // No Smack extensions are used with CCS. Not loading their providers takes a good part off
+    // Smack's initialization, which is on the startup path. Only effective if Smack has not been
+    // initialized yet.
+    SmackConfiguration.addDisabledSmackClass(
+        "org.jivesoftware.smack.extensions.ExtensionsInitializer");
+  }
+
+  private XMPPTCPConnection connection;
+  private String username;
+  private String apiKey;
+
+  private final ScheduledExecutorService connectExecutor;
+  private final Runnable connectTask = new Runnable() {
+    @Override
+    public void run() {
+      attemptConnect();
+    }
+  };
+  // Stanzas waiting for the connection, oldest first. Guarded by this, like the fields below.
+  private final ArrayDeque<Stanza> buffer = new ArrayDeque<Stanza>();
+  private int maxBufferedStanzas = DEFAULT_MAX_BUFFERED_STANZAS;
+  private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+  private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+  private int failedAttempts;
+  // True while a connection attempt is scheduled or running.
+  private boolean connecting;
+  // True while the buffer is sent after connecting, new stanzas are buffered behind it.
+  private boolean flushing;
+  private boolean closed;
 
   public SmackCcsClient(String apiKey, String username, String serviceName, String host, int port) {
+    this(apiKey, username, serviceName, host, port, SSLSocketFactory.getDefault());
+  }
+
+  /**
+   * Create a client that connects with the given SocketFactory. GCM CCS requires TLS, a plain
+   * SocketFactory is only useful when connecting to a local stand-in such as FakeCcsServer. No
+   * connection is made until connect is called.
+   */
+  public SmackCcsClient(String apiKey, String username, String serviceName, String host, int port,
+      SocketFactory socketFactory) {
+    this.username = username;
+    this.apiKey = apiKey;
     XMPPTCPConnectionConfiguration config = XMPPTCPConnectionConfiguration.builder()
         .setServiceName(serviceName)
         .setHost(host)
-        .setSocketFactory(SSLSocketFactory.getDefault())
+        .setSocketFactory(socketFactory)
         .setSendPresence(false)
         .setPort(port)
         .build();
 
     connection = new XMPPTCPConnection(config);
     Roster.getInstanceFor(connection).setRosterLoadedAtLogin(false);
+    connection.setUseStreamManagement(true);
+    connection.setUseStreamManagementResumption(true);
+    connection.addRequestAckPredicate(new AfterXStanzas(DEFAULT_ACK_REQUEST_INTERVAL));
+
+    connectExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "SmackCcsClient-connect");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
 
     connection.addConnectionListener(new ConnectionListener() {
       @Override
@@ -63,17 +141,20 @@ public class SmackCcsClient {
 
       @Override
       public void authenticated(XMPPConnection connection, boolean resumed) {
-        logger.info("Authenticated with CCS");
+        logger.info(resumed ? "Resumed stream with CCS" : "Authenticated with CCS");
       }
 
       @Override
       public void connectionClosed() {
         logger.info("Connection to CCS closed");
+        // CCS closes connections it is draining, which should be replaced too.
+        onConnectionLost();
       }
 
       @Override
       public void connectionClosedOnError(Exception e) {
         logger.log(Level.WARNING, "Connection closed because of an error.", e);
+        onConnectionLost();
       }
 
       @Override
@@ -92,13 +173,202 @@ public class SmackCcsClient {
       }
     });
 
+  }
+
+  /**
+   * Start connecting and authenticating with the XMPP server in the background, retrying until
+   * it succeeds. Listeners should be added with listen before connecting so that no incoming
+   * stanzas are missed.
+   */
+  public void connect() {
+    synchronized (this) {
+      if (closed || connecting) {
+        return;
+      }
+      connecting = true;
+    }
+    connectExecutor.execute(connectTask);
+  }
+
+  /**
+   * Wait until the client is connected and authenticated.
+   *
+   * @return True if connected, false if the timeout passed or the client was closed first.
+   */
+  public synchronized boolean awaitConnected(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (!connection.isAuthenticated()) {
+      long remaining = deadline - System.nanoTime();
+      if (closed || remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+
+  /**
+   * @return True if connected and authenticated with the XMPP server.
+   */
+  public boolean isConnected() {
+    return connection.isAuthenticated();
+  }
+
+  /**
+   * Set the delay before reconnecting. Each failed attempt doubles the delay up to the maximum,
+   * and the actual delay is picked at random between half and all of it so that many servers
+   * losing CCS at once do not reconnect in lockstep.
+   */
+  public synchronized void setReconnectBackoff(long initialDelay, long maxDelay, TimeUnit unit) {
+    initialBackoffMillis = Math.max(1, unit.toMillis(initialDelay));
+    maxBackoffMillis = Math.max(initialBackoffMillis, unit.toMillis(maxDelay));
+  }
+
+  /**
+   * Set whether stream management is enabled when the server offers it, and whether lost
+   * connections are resumed. Takes effect from the next connection. Both are on by default.
+   */
+  public void setUseStreamManagement(boolean useStreamManagement, boolean useResumption) {
+    connection.setUseStreamManagement(useStreamManagement);
+    connection.setUseStreamManagementResumption(useResumption);
+  }
+
+  /**
+   * @return True if stream management is enabled on the current connection.
+   */
+  public boolean isStreamManaged() {
+    return connection.isSmEnabled();
+  }
+
+  /**
+   * Set how many stanzas are buffered while disconnected. Stanzas beyond the limit are dropped.
+   */
+  public synchronized void setMaxBufferedStanzas(int maxBufferedStanzas) {
+    this.maxBufferedStanzas = maxBufferedStanzas;
+  }
+
+  /**
+   * @return Number of stanzas waiting for the connection.
+   */
+  public synchronized int getBufferedCount() {
+    return buffer.size();
+  }
+
+  /**
+   * Stop reconnecting and disconnect. Buffered stanzas are dropped.
+   */
+  public void close() {
+    int dropped;
+    synchronized (this) {
+      closed = true;
+      dropped = buffer.size();
+      buffer.clear();
+      notifyAll();
+    }
+    connectExecutor.shutdownNow();
+    connection.disconnect();
+    if (dropped > 0) {
+      logger.warning("Dropped " + dropped + " buffered stanzas on close.");
+    }
+  }
+
+  private void attemptConnect() {
     try {
       // Connect and authenticate with to XMPP server (GCM CCS in this case).
-      connection.connect();
-      connection.login(username, apiKey);
+      if (!connection.isConnected()) {
+        connection.connect();
+      }
+      // After losing an authenticated connection Smack logs in again, or resumes the stream, as
+      // part of connect.
+      if (!connection.isAuthenticated()) {
+        connection.login(username, apiKey);
+      }
     } catch (SmackException | IOException | XMPPException e) {
-      logger.log(Level.SEVERE, "Unable to connect or login to GCM CCS.", e);
+      logger.log(Level.WARNING, "Unable to connect or login to GCM CCS.", e);
+      // Start the next attempt from a clean connection. Smack keeps what it needs to resume a
+      // managed stream across this.
+      connection.disconnect();
+      synchronized (this) {
+        scheduleReconnect();
+      }
+      return;
+    }
+    synchronized (this) {
+      connecting = false;
+      failedAttempts = 0;
+      flushing = true;
+      notifyAll();
+    }
+    flushBuffer();
+  }
+
+  private synchronized void onConnectionLost() {
+    if (!closed && !connecting) {
+      scheduleReconnect();
+    }
+  }
+
+  private void scheduleReconnect() {
+    if (closed) {
+      connecting = false;
+      return;
+    }
+    connecting = true;
+    long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(failedAttempts, 20));
+    long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    failedAttempts++;
+    logger.info("Reconnecting to CCS in " + delay + " ms");
+    connectExecutor.schedule(connectTask, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Send buffered stanzas in order until the buffer is empty or the connection fails again. The
+   * lock is not held while sending, sendStanza may block while Smack's outgoing queue is full.
+   */
+  private void flushBuffer() {
+    int flushed = 0;
+    while (true) {
+      Stanza next;
+      synchronized (this) {
+        next = buffer.peekFirst();
+        if (next == null) {
+          flushing = false;
+          break;
+        }
+      }
+      try {
+        connection.sendStanza(next);
+      } catch (SmackException.NotConnectedException e) {
+        // The rest is sent after the next reconnect.
+        synchronized (this) {
+          flushing = false;
+        }
+        break;
+      }
+      synchronized (this) {
+        buffer.pollFirst();
+      }
+      flushed++;
     }
+    if (flushed > 0) {
+      logger.info("Sent " + flushed + " stanzas buffered while disconnected.");
+    }
+  }
+
+  /**
+   * Add a listener for connection events, e.g. to learn about reconnections.
+   */
+  public void addConnectionListener(ConnectionListener connectionListener) {
+    connection.addConnectionListener(connectionListener);
+  }
+
+  /**
+   * Add a listener called with every stanza the server acknowledged receiving. Only called while
+   * stream management is enabled.
+   */
+  public void addStanzaAcknowledgedListener(StanzaListener stanzaListener) {
+    connection.addStanzaAcknowledgedListener(stanzaListener);
   }
 
   /**
@@ -113,11 +383,37 @@ public class SmackCcsClient {
     logger.info("Listening for incoming XMPP Stanzas...");
   }
 
-  public void sendStanza(Stanza stanza) {
+  /**
+   * Send a stanza on the connection. Stanzas sent while not connected are buffered and sent once
+   * the connection is back, behind any stanzas buffered before them.
+   *
+   * @param stanza Stanza to be sent.
+   * @return True if the stanza was handed to the connection or buffered, false if it was dropped
+   * because the buffer is full or the client is closed.
+   */
+  public boolean sendStanza(Stanza stanza) {
+    synchronized (this) {
+      if (!buffer.isEmpty() || flushing || !connection.isAuthenticated()) {
+        return bufferStanza(stanza);
+      }
+    }
     try {
       connection.sendStanza(stanza);
+      return true;
     } catch (SmackException.NotConnectedException e) {
-      logger.log(Level.SEVERE, "Error occurred while sending stanza.", e);
+      // Lost the connection since checking.
+      synchronized (this) {
+        return bufferStanza(stanza);
+      }
+    }
+  }
+
+  private boolean bufferStanza(Stanza stanza) {
+    if (closed || buffer.size() >= maxBufferedStanzas) {
+      logger.log(Level.SEVERE, "Not connected and unable to buffer stanza, dropping it.");
+      return false;
     }
+    buffer.addLast(stanza);
+    return true;
   }
 }
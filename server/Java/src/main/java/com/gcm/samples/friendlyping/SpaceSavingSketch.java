@@ -0,0 +1,174 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SpaceSavingSketch counts the most frequent items of a stream in constant memory, with the
+ * Space-Saving algorithm.
+ *
+ * At most capacity items are counted. When a new item arrives and the sketch is full, it replaces
+ * the item with the lowest count and takes over that count, which is remembered as its error.
+ * Every item seen more than n / capacity times in a stream of n items is in the sketch, and its
+ * count is over by at most its error. The counters are kept in a min-heap, so an item is counted
+ * in O(log capacity).
+ */
+public class SpaceSavingSketch {
+
+  /**
+   * An item and its estimated count.
+   */
+  public static class Counter {
+    public final String item;
+    // Estimated count, at most error more than the true count.
+    public final long count;
+    public final long error;
+
+    Counter(String item, long count, long error) {
+      this.item = item;
+      this.count = count;
+      this.error = error;
+    }
+  }
+
+  private final String[] items;
+  private final long[] counts;
+  private final long[] errors;
+  // Heap position of each counted item.
+  private final Map<String, Integer> positions;
+  private int size;
+  private long total;
+
+  /**
+   * @param capacity Most items counted, several times the number of top items asked for so that
+   *                 their counts are accurate.
+   */
+  public SpaceSavingSketch(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive.");
+    }
+    items = new String[capacity];
+    counts = new long[capacity];
+    errors = new long[capacity];
+    positions = new HashMap<String, Integer>(capacity * 2);
+  }
+
+  /**
+   * Count an occurrence of the item.
+   */
+  public synchronized void add(String item) {
+    total++;
+    Integer position = positions.get(item);
+    if (position != null) {
+      counts[position]++;
+      siftDown(position);
+    } else if (size < items.length) {
+      items[size] = item;
+      counts[size] = 1;
+      errors[size] = 0;
+      positions.put(item, size);
+      siftUp(size++);
+    } else {
+      // Replace the item with the lowest count, at the root of the heap.
+      positions.remove(items[0]);
+      items[0] = item;
+      errors[0] = counts[0];
+      counts[0]++;
+      positions.put(item, 0);
+      siftDown(0);
+    }
+  }
+
+  /**
+   * @return Number of occurrences counted.
+   */
+  public synchronized long getTotal() {
+    return total;
+  }
+
+  /**
+   * @param count Most items to return.
+   * @return The items with the highest estimated counts, highest first.
+   */
+  public List<Counter> getTop(int count) {
+    Counter[] counters;
+    synchronized (this) {
+      counters = new Counter[size];
+      for (int i = 0; i < size; i++) {
+        counters[i] = new Counter(items[i], counts[i], errors[i]);
+      }
+    }
+    Arrays.sort(counters, new Comparator<Counter>() {
+      @Override
+      public int compare(Counter a, Counter b) {
+        return Long.compare(b.count, a.count);
+      }
+    });
+    return new ArrayList<Counter>(
+        Arrays.asList(counters).subList(0, Math.min(count, counters.length)));
+  }
+
+  private void siftUp(int position) {
+    while (position > 0) {
+      int parent = (position - 1) / 2;
+      if (counts[parent] <= counts[position]) {
+        break;
+      }
+      swap(position, parent);
+      position = parent;
+    }
+  }
+
+  private void siftDown(int position) {
+    while (true) {
+      int smallest = position;
+      int left = 2 * position + 1;
+      int right = left + 1;
+      if (left < size && counts[left] < counts[smallest]) {
+        smallest = left;
+      }
+      if (right < size && counts[right] < counts[smallest]) {
+        smallest = right;
+      }
+      if (smallest == position) {
+        return;
+      }
+      swap(position, smallest);
+      position = smallest;
+    }
+  }
+
+  private void swap(int i, int j) {
+    String item = items[i];
+    items[i] = items[j];
+    items[j] = item;
+    long count = counts[i];
+    counts[i] = counts[j];
+    counts[j] = count;
+    long error = errors[i];
+    errors[i] = errors[j];
+    errors[j] = error;
+    positions.put(items[i], i);
+    positions.put(items[j], j);
+  }
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Tenant is one app served by a FriendlyPingServer: its GCM sender ID and API key, and the limits
+ * on what its server may use. Several tenants can be served in one process, see SharedExecutors.
+ *
+ * Tenants are read from a properties file that lists their names, each of which prefixes the
+ * tenant's settings:
+ *
+ * <pre>
+ * tenants=friendlyping,otherapp
+ * friendlyping.sender_id=123456789012
+ * friendlyping.api_key=AIza...
+ * friendlyping.max_in_flight=100
+ * otherapp.sender_id=210987654321
+ * otherapp.api_key=AIza...
+ * otherapp.ping_history_mb=8
+ * </pre>
+ *
+ * Limits left out take their single server defaults.
+ */
+public class Tenant {
+
+  // A tenant's name is used in directory and file names.
+  private static final String NAME_PATTERN = "[A-Za-z0-9_-]+";
+  // Direct buffers are indexed by int.
+  private static final int MAX_PING_HISTORY_MB = 1023;
+
+  private final String name;
+  private final String senderId;
+  private final String apiKey;
+  private final int maxInFlight;
+  private final int interactiveReserve;
+  private final int httpConnections;
+  private final int pingHistoryBytes;
+
+  /**
+   * Create a tenant with the default limits.
+   */
+  public Tenant(String name, String senderId, String apiKey) {
+    this(name, senderId, apiKey, OutboundQueue.DEFAULT_MAX_IN_FLIGHT,
+        OutboundQueue.DEFAULT_INTERACTIVE_RESERVE, GcmHttpSender.DEFAULT_CONNECTIONS,
+        FriendlyPingServer.PING_HISTORY_BYTES);
+  }
+
+  /**
+   * @param name Name of the tenant, letters, digits, '_' and '-' only.
+   * @param senderId GCM sender ID of the tenant's app.
+   * @param apiKey GCM server API key of the tenant's app.
+   * @param maxInFlight Size of the tenant's in-flight window, see OutboundQueue.
+   * @param interactiveReserve Part of the window only interactive messages may use.
+   * @param httpConnections Requests in flight at once when sending over HTTP, see GcmHttpSender.
+   * @param pingHistoryBytes Direct memory the tenant's ping history is stored in.
+   */
+  public Tenant(String name, String senderId, String apiKey, int maxInFlight,
+      int interactiveReserve, int httpConnections, int pingHistoryBytes) {
+    if (!name.matches(NAME_PATTERN)) {
+      throw new IllegalArgumentException("Invalid tenant name " + name);
+    }
+    if (interactiveReserve < 0 || interactiveReserve >= maxInFlight) {
+      throw new IllegalArgumentException("Reserve of tenant " + name
+          + " must be between 0 and the window size.");
+    }
+    if (httpConnections < 1 || pingHistoryBytes < 1) {
+      throw new IllegalArgumentException("Limits of tenant " + name + " must be positive.");
+    }
+    this.name = name;
+    this.senderId = senderId;
+    this.apiKey = apiKey;
+    this.maxInFlight = maxInFlight;
+    this.interactiveReserve = interactiveReserve;
+    this.httpConnections = httpConnections;
+    this.pingHistoryBytes = pingHistoryBytes;
+  }
+
+  /**
+   * Read the tenants in a properties file, see the class comment.
+   *
+   * @throws IllegalArgumentException if a tenant is missing its sender ID or API key, is listed
+   * twice or has an invalid limit.
+   */
+  public static List<Tenant> load(File file) throws IOException {
+    Properties properties = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    return parse(properties);
+  }
+
+  static List<Tenant> parse(Properties properties) {
+    String names = properties.getProperty("tenants", "").trim();
+    if (names.isEmpty()) {
+      throw new IllegalArgumentException("No tenants listed.");
+    }
+    List<Tenant> tenants = new ArrayList<Tenant>();
+    Set<String> seen = new HashSet<String>();
+    for (String name : names.split("\\s*,\\s*")) {
+      if (!seen.add(name)) {
+        throw new IllegalArgumentException("Tenant " + name + " is listed twice.");
+      }
+      int pingHistoryMb = intProperty(properties, name, "ping_history_mb",
+          FriendlyPingServer.PING_HISTORY_BYTES >> 20);
+      if (pingHistoryMb < 1 || pingHistoryMb > MAX_PING_HISTORY_MB) {
+        throw new IllegalArgumentException("ping_history_mb of tenant " + name
+            + " must be between 1 and " + MAX_PING_HISTORY_MB);
+      }
+      tenants.add(new Tenant(name, required(properties, name, "sender_id"),
+          required(properties, name, "api_key"),
+          intProperty(properties, name, "max_in_flight", OutboundQueue.DEFAULT_MAX_IN_FLIGHT),
+          intProperty(properties, name, "interactive_reserve",
+              OutboundQueue.DEFAULT_INTERACTIVE_RESERVE),
+          intProperty(properties, name, "http_connections", GcmHttpSender.DEFAULT_CONNECTIONS),
+          pingHistoryMb << 20));
+    }
+    return tenants;
+  }
+
+  private static String required(Properties properties, String name, String key) {
+    String value = properties.getProperty(name + "." + key);
+    if (value == null || value.trim().isEmpty()) {
+      throw new IllegalArgumentException("Tenant " + name + " has no " + key);
+    }
+    return value.trim();
+  }
+
+  private static int intProperty(Properties properties, String name, String key,
+      int defaultValue) {
+    String value = properties.getProperty(name + "." + key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid " + key + " of tenant " + name + ": " + value);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getSenderId() {
+    return senderId;
+  }
+
+  public String getApiKey() {
+    return apiKey;
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  public int getInteractiveReserve() {
+    return interactiveReserve;
+  }
+
+  public int getHttpConnections() {
+    return httpConnections;
+  }
+
+  public int getPingHistoryBytes() {
+    return pingHistoryBytes;
+  }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TimingWheel is a hierarchical timing wheel: it holds values until their deadline and hands them
+ * out when time is advanced past it, in ticks of tickMillis.
+ *
+ * Each level is a wheel of 64 slots, a slot of level n spanning 64^n ticks. A timeout is linked
+ * into the slot of the lowest level whose wheel reaches its deadline, so scheduling and
+ * cancelling are O(1) however many timeouts there are. When the level 0 wheel has gone round, the
+ * next slot of level 1 is emptied into level 0, and so on up, so every timeout is moved at most
+ * once per level before it expires. Deadlines beyond the top level are parked in its furthest
+ * slot and placed again when it is emptied.
+ *
+ * @param <T> Type of the values.
+ */
+public class TimingWheel<T> {
+
+  /**
+   * A scheduled value, which can be cancelled until it expires.
+   */
+  public static class Timeout<T> {
+    final T value;
+    final long deadlineTick;
+    // Neighbours in the slot's circular list, null once expired or cancelled.
+    Timeout<T> previous;
+    Timeout<T> next;
+
+    Timeout(T value, long deadlineTick) {
+      this.value = value;
+      this.deadlineTick = deadlineTick;
+    }
+
+    public T getValue() {
+      return value;
+    }
+  }
+
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+  // 64^6 ticks, over two thousand years of one second ticks.
+  private static final int LEVELS = 6;
+
+  private final long tickMillis;
+  private final int levels;
+  // Furthest a timeout can be placed from the current tick, the reach of the top level.
+  private final long maxDelta;
+  // Sentinels of the slots' circular lists, by level and slot.
+  private final Timeout<T>[][] slots;
+  private long currentTick;
+  private int size;
+
+  /**
+   * @param tickMillis Resolution of the wheel, timeouts expire up to a tick late.
+   * @param nowMillis Current time.
+   */
+  public TimingWheel(long tickMillis, long nowMillis) {
+    this(tickMillis, nowMillis, LEVELS);
+  }
+
+  /**
+   * Create a wheel with fewer levels, whose top level is reached after few enough ticks for tests
+   * to cover deadlines beyond it.
+   */
+  TimingWheel(long tickMillis, long nowMillis, int levels) {
+    if (tickMillis < 1) {
+      throw new IllegalArgumentException("Tick must be at least a millisecond.");
+    }
+    if (levels < 1 || levels > LEVELS) {
+      throw new IllegalArgumentException("Levels must be between 1 and " + LEVELS);
+    }
+    this.tickMillis = tickMillis;
+    this.levels = levels;
+    maxDelta = (1L << (levels * SLOT_BITS)) - 1;
+    currentTick = nowMillis / tickMillis;
+    // Generic arrays cannot be created. The array only ever holds Timeout<T> sentinels and never
+    // escapes the wheel, so the cast is safe.
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    Timeout<T>[][] sentinels = new Timeout[levels][SLOTS];
+    slots = sentinels;
+    for (int level = 0; level < levels; level++) {
+      for (int slot = 0; slot < SLOTS; slot++) {
+        Timeout<T> sentinel = new Timeout<T>(null, 0);
+        sentinel.previous = sentinel;
+        sentinel.next = sentinel;
+        slots[level][slot] = sentinel;
+      }
+    }
+  }
+
+  /**
+   * Schedule a value to expire once time is advanced past the deadline. A deadline already
+   * passed expires on the next tick.
+   */
+  public synchronized Timeout<T> schedule(T value, long deadlineMillis) {
+    // Rounded up, so a value never expires before its deadline.
+    long deadlineTick = deadlineMillis / tickMillis + (deadlineMillis % tickMillis > 0 ? 1 : 0);
+    Timeout<T> timeout = new Timeout<T>(value, deadlineTick);
+    place(timeout);
+    size++;
+    return timeout;
+  }
+
+  /**
+   * @return True if the timeout was cancelled, false if it had already expired or been cancelled.
+   */
+  public synchronized boolean cancel(Timeout<T> timeout) {
+    if (timeout.next == null) {
+      return false;
+    }
+    unlink(timeout);
+    size--;
+    return true;
+  }
+
+  /**
+   * @return Number of timeouts scheduled and not yet expired or cancelled.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return Values of the timeouts scheduled and not yet expired or cancelled, in no particular
+   * order.
+   */
+  public synchronized List<T> values() {
+    List<T> values = new ArrayList<T>(size);
+    for (Timeout<T>[] level : slots) {
+      for (Timeout<T> sentinel : level) {
+        for (Timeout<T> timeout = sentinel.next; timeout != sentinel; timeout = timeout.next) {
+          values.add(timeout.value);
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Advance time, expiring the timeouts whose deadline has passed.
+   *
+   * @return Values of the expired timeouts, in no particular order.
+   */
+  public synchronized List<T> advance(long nowMillis) {
+    List<T> expired = new ArrayList<T>();
+    long nowTick = nowMillis / tickMillis;
+    while (currentTick < nowTick) {
+      if (size == 0) {
+        currentTick = nowTick;
+        break;
+      }
+      currentTick++;
+      // Levels whose next slot is due, lowest first, then the level 0 slot of this tick.
+      for (int level = 1; level < levels; level++) {
+        if ((currentTick & ((1L << (level * SLOT_BITS)) - 1)) != 0) {
+          break;
+        }
+        empty(level, (int) ((currentTick >>> (level * SLOT_BITS)) & SLOT_MASK), expired);
+      }
+      empty(0, (int) (currentTick & SLOT_MASK), expired);
+    }
+    return expired;
+  }
+
+  /**
+   * Take every timeout out of a slot, expiring those that are due and placing the others in a
+   * lower level.
+   */
+  private void empty(int level, int slot, List<T> expired) {
+    Timeout<T> sentinel = slots[level][slot];
+    Timeout<T> timeout = sentinel.next;
+    sentinel.previous = sentinel;
+    sentinel.next = sentinel;
+    while (timeout != sentinel) {
+      Timeout<T> next = timeout.next;
+      if (timeout.deadlineTick <= currentTick) {
+        timeout.previous = null;
+        timeout.next = null;
+        size--;
+        expired.add(timeout.value);
+      } else {
+        place(timeout);
+      }
+      timeout = next;
+    }
+  }
+
+  private void place(Timeout<T> timeout) {
+    long delta = timeout.deadlineTick - currentTick;
+    long tick = timeout.deadlineTick;
+    if (delta < 1) {
+      tick = currentTick + 1;
+    } else if (delta > maxDelta) {
+      tick = currentTick + maxDelta;
+    }
+    int level = 0;
+    while (level < levels - 1 && tick - currentTick >= 1L << ((level + 1) * SLOT_BITS)) {
+      level++;
+    }
+    Timeout<T> sentinel = slots[level][(int) ((tick >>> (level * SLOT_BITS)) & SLOT_MASK)];
+    timeout.previous = sentinel.previous;
+    timeout.next = sentinel;
+    sentinel.previous.next = timeout;
+    sentinel.previous = timeout;
+  }
+
+  private static <T> void unlink(Timeout<T> timeout) {
+    timeout.previous.next = timeout.next;
+    timeout.next.previous = timeout.previous;
+    timeout.previous = null;
+    timeout.next = null;
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+/**
+ * TopicSegments splits clients into segments, each with its own new client topic. A new client
+ * is broadcast only to the topic of its segment, and is sent only the clients of its segment, so
+ * the fan-out of a registration and the devices it wakes grow with the segment rather than with
+ * the whole user base.
+ *
+ * Clients can be segmented by region, the country their device reports, by hash bucket of their
+ * registration token, or both, in which case a segment is a bucket within a region. Without
+ * either, every client is in the one global segment and its topic is NEW_CLIENT_TOPIC, as before
+ * topics were segmented.
+ */
+public class TopicSegments {
+
+  public static final String NEW_CLIENT_TOPIC = "/topics/newclient";
+  public static final TopicSegments GLOBAL = new TopicSegments(false, 0);
+
+  // Region of clients that report none, or not as an ISO 3166 country code.
+  static final String UNKNOWN_REGION = "ZZ";
+
+  private final boolean byRegion;
+  private final int buckets;
+
+  /**
+   * @param byRegion Whether clients are segmented by region.
+   * @param buckets Number of hash buckets clients are segmented into, 0 to not segment by bucket.
+   */
+  public TopicSegments(boolean byRegion, int buckets) {
+    if (buckets < 0) {
+      throw new IllegalArgumentException("Negative number of buckets " + buckets);
+    }
+    this.byRegion = byRegion;
+    this.buckets = buckets;
+  }
+
+  /**
+   * Parse segments given on the command line: "global", or "region", "bucket:N" or both
+   * separated by a comma.
+   *
+   * @throws IllegalArgumentException if the segments cannot be parsed.
+   */
+  public static TopicSegments parse(String spec) {
+    if (spec.equals("global")) {
+      return GLOBAL;
+    }
+    boolean byRegion = false;
+    int buckets = 0;
+    for (String part : spec.split(",")) {
+      if (part.equals("region")) {
+        byRegion = true;
+      } else if (part.startsWith("bucket:")) {
+        try {
+          buckets = Integer.parseInt(part.substring("bucket:".length()));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Invalid number of buckets in " + part);
+        }
+        if (buckets < 1) {
+          throw new IllegalArgumentException("Invalid number of buckets in " + part);
+        }
+      } else {
+        throw new IllegalArgumentException("Unknown segment " + part);
+      }
+    }
+    return new TopicSegments(byRegion, buckets);
+  }
+
+  public boolean isGlobal() {
+    return !byRegion && buckets == 0;
+  }
+
+  /**
+   * @param registrationToken Token of the client.
+   * @param region Country code reported by the client's device, may be null.
+   * @return New client topic of the client's segment.
+   */
+  public String topicOf(String registrationToken, String region) {
+    if (isGlobal()) {
+      return NEW_CLIENT_TOPIC;
+    }
+    StringBuilder topic = new StringBuilder(NEW_CLIENT_TOPIC.length() + 16);
+    topic.append(NEW_CLIENT_TOPIC);
+    if (byRegion) {
+      topic.append('-').append(normalizeRegion(region));
+    }
+    if (buckets > 0) {
+      // String.hashCode is specified, so a token stays in its bucket across restarts.
+      topic.append('-').append(Math.floorMod(registrationToken.hashCode(), buckets));
+    }
+    return topic.toString();
+  }
+
+  /**
+   * @return The region as an upper case two letter country code, which is also a valid part of a
+   * topic name, or UNKNOWN_REGION.
+   */
+  static String normalizeRegion(String region) {
+    if (region == null || region.length() != 2) {
+      return UNKNOWN_REGION;
+    }
+    char first = Character.toUpperCase(region.charAt(0));
+    char second = Character.toUpperCase(region.charAt(1));
+    if (first < 'A' || first > 'Z' || second < 'A' || second > 'Z') {
+      return UNKNOWN_REGION;
+    }
+    return new String(new char[] {first, second});
+  }
+}
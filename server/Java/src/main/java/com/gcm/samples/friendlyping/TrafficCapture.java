@@ -0,0 +1,273 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TrafficCapture records the stanzas a GcmServer receives from CCS, upstream messages and the
+ * acks and nacks of downstream messages, with the time each arrived, so that the traffic can be
+ * replayed later, see tools.TrafficReplay.
+ *
+ * Each stanza is a Stanza message of traffic_capture.proto, preceded by its length as a varint.
+ * Times are stored as the microseconds since the previous stanza, which usually fit in two or
+ * three bytes, and only the data payload of upstream messages is kept. Stanzas are buffered and
+ * written in order under a lock; the capture is not synced, a crash loses its buffered tail. If
+ * writing fails, capturing stops and the server carries on.
+ */
+public class TrafficCapture implements Closeable {
+
+  /**
+   * A stanza read back from a capture.
+   */
+  public static class Stanza {
+    // Microseconds from the start of the capture.
+    public final long timeMicros;
+    public final int type;
+    public final String from;
+    // Data payload of an upstream message as JSON, null otherwise.
+    public final String data;
+    // Error of a nack, null otherwise.
+    public final String error;
+
+    Stanza(long timeMicros, int type, String from, String data, String error) {
+      this.timeMicros = timeMicros;
+      this.type = type;
+      this.from = from;
+      this.data = data;
+      this.error = error;
+    }
+  }
+
+  private static final Logger logger = Logger.getLogger("TrafficCapture");
+
+  // Values of Stanza.Type in traffic_capture.proto.
+  public static final int TYPE_UPSTREAM = 1;
+  public static final int TYPE_ACK = 2;
+  public static final int TYPE_NACK = 3;
+
+  private static final int BUFFER_BYTES = 64 * 1024;
+  // Field numbers of Stanza in traffic_capture.proto.
+  private static final int DELTA_MICROS_FIELD = 1;
+  private static final int TYPE_FIELD = 2;
+  private static final int FROM_FIELD = 3;
+  private static final int DATA_FIELD = 4;
+  private static final int ERROR_FIELD = 5;
+
+  private final OutputStream file;
+  private final CodedOutputStream output;
+  private final long startNanos = System.nanoTime();
+  private long lastMicros;
+  private long count;
+  private boolean closed;
+
+  private TrafficCapture(File file) throws IOException {
+    this.file = new FileOutputStream(file);
+    output = CodedOutputStream.newInstance(this.file, BUFFER_BYTES);
+  }
+
+  /**
+   * Start a capture in the given file, replacing it if it exists.
+   */
+  public static TrafficCapture open(File file) throws IOException {
+    return new TrafficCapture(file);
+  }
+
+  /**
+   * Record an upstream message.
+   *
+   * @param data JSON of the message's data payload.
+   */
+  public void recordUpstream(String from, String data) {
+    record(TYPE_UPSTREAM, from, data, null);
+  }
+
+  /**
+   * Record the ack of a downstream message.
+   */
+  public void recordAck(String from) {
+    record(TYPE_ACK, from, null, null);
+  }
+
+  /**
+   * Record the nack of a downstream message.
+   */
+  public void recordNack(String from, String error) {
+    record(TYPE_NACK, from, null, error);
+  }
+
+  /**
+   * @return Number of stanzas captured.
+   */
+  public synchronized long getCount() {
+    return count;
+  }
+
+  private synchronized void record(int type, String from, String data, String error) {
+    if (closed) {
+      return;
+    }
+    // Taken under the lock, so times never go backwards.
+    long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    long deltaMicros = micros - lastMicros;
+    lastMicros = micros;
+    int size = CodedOutputStream.computeUInt64Size(DELTA_MICROS_FIELD, deltaMicros)
+        + CodedOutputStream.computeEnumSize(TYPE_FIELD, type);
+    if (from != null) {
+      size += CodedOutputStream.computeStringSize(FROM_FIELD, from);
+    }
+    if (data != null) {
+      size += CodedOutputStream.computeStringSize(DATA_FIELD, data);
+    }
+    if (error != null) {
+      size += CodedOutputStream.computeStringSize(ERROR_FIELD, error);
+    }
+    try {
+      output.writeRawVarint32(size);
+      output.writeUInt64(DELTA_MICROS_FIELD, deltaMicros);
+      output.writeEnum(TYPE_FIELD, type);
+      if (from != null) {
+        output.writeString(FROM_FIELD, from);
+      }
+      if (data != null) {
+        output.writeString(DATA_FIELD, data);
+      }
+      if (error != null) {
+        output.writeString(ERROR_FIELD, error);
+      }
+      count++;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to write traffic capture, capturing stopped.", e);
+      closeQuietly();
+    }
+  }
+
+  /**
+   * Write the buffered stanzas and close the capture.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      output.flush();
+    } finally {
+      file.close();
+    }
+  }
+
+  private void closeQuietly() {
+    try {
+      close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to close traffic capture.", e);
+    }
+  }
+
+  /**
+   * Read the stanzas of a capture, in the order they arrived. A partial stanza at the end, left
+   * by a crash, is ignored.
+   *
+   * @return Number of stanzas read.
+   */
+  public static long read(File file, Consumer<Stanza> consumer) throws IOException {
+    long count = 0;
+    long timeMicros = 0;
+    byte[] record = new byte[256];
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_BYTES))) {
+      while (true) {
+        int firstByte = input.read();
+        if (firstByte < 0) {
+          break;
+        }
+        int length;
+        try {
+          length = CodedInputStream.readRawVarint32(firstByte, input);
+          if (length > record.length) {
+            record = new byte[Math.max(length, record.length * 2)];
+          }
+          input.readFully(record, 0, length);
+        } catch (EOFException | InvalidProtocolBufferException e) {
+          // The file ends within the stanza.
+          break;
+        }
+        Stanza stanza = parseStanza(record, length, timeMicros);
+        timeMicros = stanza.timeMicros;
+        consumer.accept(stanza);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static Stanza parseStanza(byte[] record, int length, long previousMicros)
+      throws IOException {
+    CodedInputStream input = CodedInputStream.newInstance(record, 0, length);
+    long deltaMicros = 0;
+    int type = 0;
+    String from = null;
+    String data = null;
+    String error = null;
+    while (true) {
+      int tag = input.readTag();
+      if (tag == 0) {
+        break;
+      }
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case DELTA_MICROS_FIELD:
+          deltaMicros = input.readUInt64();
+          break;
+        case TYPE_FIELD:
+          type = input.readEnum();
+          break;
+        case FROM_FIELD:
+          from = input.readString();
+          break;
+        case DATA_FIELD:
+          data = input.readString();
+          break;
+        case ERROR_FIELD:
+          error = input.readString();
+          break;
+        default:
+          input.skipField(tag);
+          break;
+      }
+    }
+    return new Stanza(previousMicros + deltaMicros, type, from, data, error);
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping.tools;
+
+import com.gcm.samples.friendlyping.EventLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * EventLogReader prints the events of a FriendlyPingServer event log, oldest first, one per line:
+ * the time in milliseconds, then "ping" with the sender and recipient tokens or "registration"
+ * with the token and name of the client.
+ *
+ * --token keeps only the events of the given client, as sender, recipient or registered client,
+ * and --since only those at or after the given time. With --count only the number of matching
+ * events of each type is printed, along with how long the scan took. Segments are memory mapped,
+ * and a segment started before --since is still scanned, as it may hold later events.
+ *
+ * Usage: EventLogReader DIRECTORY [--token=TOKEN] [--since=MILLIS] [--count]
+ */
+public class EventLogReader {
+
+  private final String token;
+  private final long sinceMillis;
+  private final boolean countOnly;
+  private final PrintStream out;
+  private long pings;
+  private long registrations;
+
+  EventLogReader(String token, long sinceMillis, boolean countOnly, PrintStream out) {
+    this.token = token;
+    this.sinceMillis = sinceMillis;
+    this.countOnly = countOnly;
+    this.out = out;
+  }
+
+  void read(File directory) throws IOException {
+    long startNanos = System.nanoTime();
+    long scanned = 0;
+    List<File> segments = EventLog.segments(directory);
+    Consumer<EventLog.Event> consumer = new Consumer<EventLog.Event>() {
+      @Override
+      public void accept(EventLog.Event event) {
+        if (matches(event)) {
+          print(event);
+        }
+      }
+    };
+    for (File segment : segments) {
+      scanned += EventLog.read(segment, consumer);
+    }
+    if (countOnly) {
+      long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+      out.println(pings + " pings, " + registrations + " registrations, " + scanned
+          + " events scanned in " + segments.size() + " segments in " + elapsedMillis + " ms");
+    }
+  }
+
+  private boolean matches(EventLog.Event event) {
+    if (event.timeMillis < sinceMillis) {
+      return false;
+    }
+    return token == null || token.equals(event.token) || token.equals(event.recipient);
+  }
+
+  private void print(EventLog.Event event) {
+    if (event.type == EventLog.TYPE_PING) {
+      pings++;
+      if (!countOnly) {
+        out.println(event.timeMillis + " ping " + event.token + " " + event.recipient);
+      }
+    } else if (event.type == EventLog.TYPE_REGISTRATION) {
+      registrations++;
+      if (!countOnly) {
+        out.println(event.timeMillis + " registration " + event.token + " " + event.name);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    String directory = null;
+    String token = null;
+    long sinceMillis = Long.MIN_VALUE;
+    boolean countOnly = false;
+    for (String arg : args) {
+      if (arg.startsWith("--token=")) {
+        token = arg.substring("--token=".length());
+      } else if (arg.startsWith("--since=")) {
+        sinceMillis = Long.parseLong(arg.substring("--since=".length()));
+      } else if (arg.equals("--count")) {
+        countOnly = true;
+      } else if (!arg.startsWith("--") && directory == null) {
+        directory = arg;
+      } else {
+        System.err.println("Unrecognized argument " + arg);
+        System.exit(1);
+      }
+    }
+    if (directory == null) {
+      System.err.println(
+          "Usage: EventLogReader DIRECTORY [--token=TOKEN] [--since=MILLIS] [--count]");
+      System.exit(1);
+    }
+    new EventLogReader(token, sinceMillis, countOnly, System.out).read(new File(directory));
+  }
+}
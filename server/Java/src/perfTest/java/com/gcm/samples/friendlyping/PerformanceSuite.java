@@ -0,0 +1,395 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import com.gcm.samples.friendlyping.FriendlyPingServer.Client;
+import com.gcm.samples.friendlyping.tools.FakeCcsServer;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import javax.net.SocketFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the standard performance scenarios against a FriendlyPingServer connected to a local
+ * FakeCcsServer, and checks each against its throughput and p99 latency budgets:
+ *
+ * registrationBurst: devices register all at once with an empty registry. Latency is from the
+ * upstream registration until the device's client list reaches the stand-in.
+ *
+ * pingStorm: registered devices ping each other, inFlight pings at a time. Latency is from the
+ * upstream ping until the ping reaches the stand-in.
+ *
+ * broadcast: devices register all at once with a large registry, loaded without going through
+ * CCS. Latency is from the upstream registration until the new client broadcast reaches the
+ * stand-in; each registration also sends a client list of the whole registry.
+ *
+ * Sizes and budgets are read from perf-budgets.properties, or the file given with --budgets, and
+ * any of them can be overridden with --scenario.name=value. Throughput is in operations per
+ * second and latency in milliseconds. Every scenario starts a fresh server and stand-in. Results
+ * are written as JSON to the file given with --results, and the exit code is 1 if any scenario
+ * missed a budget or did not complete within --timeout seconds.
+ *
+ * Usage: PerformanceSuite [--budgets=FILE] [--results=FILE] [--timeout=SECONDS]
+ *                         [--scenario.name=value]...
+ */
+public class PerformanceSuite {
+
+  private static final String DEFAULT_BUDGETS = "perf-budgets.properties";
+  // Token of the built in server client, see FriendlyPingServer.createServerClient.
+  private static final String LARRY_TOKEN = "<SENDER_ID>@gcm.googleapis.com";
+
+  /**
+   * A scenario drives the server through the stand-in and records the latency of each operation.
+   */
+  private abstract static class Scenario implements FakeCcsServer.Listener {
+    final String name;
+    final Properties config;
+    final LatencyHistogram latency = new LatencyHistogram();
+    CountDownLatch completed;
+
+    Scenario(String name, Properties config) {
+      this.name = name;
+      this.config = config;
+    }
+
+    int intValue(String key) {
+      return Integer.parseInt(value(key));
+    }
+
+    double doubleValue(String key) {
+      return Double.parseDouble(value(key));
+    }
+
+    String value(String key) {
+      String value = config.getProperty(name + "." + key);
+      if (value == null) {
+        throw new IllegalArgumentException("Missing " + name + "." + key);
+      }
+      return value;
+    }
+
+    /**
+     * Load the server's state before it is started.
+     */
+    void prepare(FriendlyPingServer server) {
+    }
+
+    /**
+     * @return Number of operations the scenario completes.
+     */
+    abstract int operations();
+
+    /**
+     * Start the operations, counting down completed as each completes.
+     */
+    abstract void run(FakeCcsServer ccs) throws InterruptedException;
+  }
+
+  private static class RegistrationBurst extends Scenario {
+    // Start times of registrations, keyed by device token.
+    private final Map<String, Long> pending = new ConcurrentHashMap<String, Long>();
+
+    RegistrationBurst(Properties config) {
+      super("registrationBurst", config);
+    }
+
+    @Override
+    int operations() {
+      return intValue("devices");
+    }
+
+    @Override
+    void run(FakeCcsServer ccs) {
+      for (int i = 0; i < operations(); i++) {
+        String token = "device-" + i;
+        pending.put(token, System.nanoTime());
+        ccs.sendUpstream(token, registration(token));
+      }
+    }
+
+    @Override
+    public void onDownstream(String to, JsonObject message) {
+      if (action(message).equals("send_client_list")) {
+        Long start = pending.remove(to);
+        if (start != null) {
+          latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+          completed.countDown();
+        }
+      }
+    }
+  }
+
+  private static class PingStorm extends Scenario {
+    // Start times of pings, oldest first, keyed by recipient and sender of the expected ping.
+    private final Map<String, Queue<Long>> pending = new ConcurrentHashMap<String, Queue<Long>>();
+    private Semaphore inFlight;
+
+    PingStorm(Properties config) {
+      super("pingStorm", config);
+    }
+
+    @Override
+    int operations() {
+      return intValue("pings");
+    }
+
+    @Override
+    void prepare(FriendlyPingServer server) {
+      for (int i = 0; i < intValue("registrySize"); i++) {
+        server.addClient(client("device-" + i));
+      }
+    }
+
+    @Override
+    void run(FakeCcsServer ccs) throws InterruptedException {
+      int devices = intValue("registrySize");
+      inFlight = new Semaphore(intValue("inFlight"));
+      Random random = new Random(0);
+      for (int i = 0; i < operations(); i++) {
+        String sender = "device-" + random.nextInt(devices);
+        String to = "device-" + random.nextInt(devices);
+        JsonObject jData = new JsonObject();
+        jData.addProperty("action", "ping_client");
+        jData.addProperty("to", to);
+        jData.addProperty("sender", sender);
+        inFlight.acquire();
+        Queue<Long> starts = pending.get(to + "|" + sender);
+        if (starts == null) {
+          starts = new ConcurrentLinkedQueue<Long>();
+          Queue<Long> existing = pending.putIfAbsent(to + "|" + sender, starts);
+          if (existing != null) {
+            starts = existing;
+          }
+        }
+        starts.add(System.nanoTime());
+        ccs.sendUpstream(sender, jData);
+      }
+    }
+
+    @Override
+    public void onDownstream(String to, JsonObject message) {
+      if (action(message).equals("ping_client")) {
+        String sender = message.getAsJsonObject("data").get("sender").getAsString();
+        Queue<Long> starts = pending.get(to + "|" + sender);
+        Long start = starts != null ? starts.poll() : null;
+        if (start != null) {
+          latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+          inFlight.release();
+          completed.countDown();
+        }
+      }
+    }
+  }
+
+  private static class Broadcast extends Scenario {
+    // Start times of registrations, keyed by device token.
+    private final Map<String, Long> pending = new ConcurrentHashMap<String, Long>();
+
+    Broadcast(Properties config) {
+      super("broadcast", config);
+    }
+
+    @Override
+    int operations() {
+      return intValue("registrations");
+    }
+
+    @Override
+    void prepare(FriendlyPingServer server) {
+      for (int i = 0; i < intValue("registrySize"); i++) {
+        server.addClient(client("registered-" + i));
+      }
+    }
+
+    @Override
+    void run(FakeCcsServer ccs) {
+      for (int i = 0; i < operations(); i++) {
+        String token = "device-" + i;
+        pending.put(token, System.nanoTime());
+        ccs.sendUpstream(token, registration(token));
+      }
+    }
+
+    @Override
+    public void onDownstream(String to, JsonObject message) {
+      if (action(message).equals("broadcast_new_client")) {
+        String token = message.getAsJsonObject("data").getAsJsonObject("client")
+            .get("registration_token").getAsString();
+        Long start = pending.remove(token);
+        if (start != null) {
+          latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+          completed.countDown();
+        }
+      }
+    }
+  }
+
+  private static String action(JsonObject message) {
+    JsonObject jData = message.getAsJsonObject("data");
+    return jData != null && jData.has("action") ? jData.get("action").getAsString() : "";
+  }
+
+  private static JsonObject registration(String token) {
+    JsonObject jData = new JsonObject();
+    jData.addProperty("action", "register_new_client");
+    jData.addProperty("name", "Virtual " + token);
+    jData.addProperty("registration_token", token);
+    jData.addProperty("profile_picture_url", "https://example.com/" + token + ".jpg");
+    return jData;
+  }
+
+  private static Client client(String token) {
+    Client client = new Client();
+    client.name = "Virtual " + token;
+    client.registrationToken = token;
+    client.profilePictureUrl = "https://example.com/" + token + ".jpg";
+    return client;
+  }
+
+  /**
+   * Run a scenario on a fresh server and stand-in.
+   *
+   * @return The scenario's results, with failed set if it missed a budget.
+   */
+  private static JsonObject run(Scenario scenario, int timeoutSeconds) throws Exception {
+    FakeCcsServer ccs = new FakeCcsServer(0);
+    // Client lists of large registries are measured in full, rather than nacked as by CCS.
+    ccs.setMaxPayloadBytes(Integer.MAX_VALUE);
+    ccs.setListener(scenario);
+    ccs.start();
+    FriendlyPingServer server = new FriendlyPingServer("perf-key", "perf", "127.0.0.1",
+        ccs.getPort(), SocketFactory.getDefault());
+    scenario.prepare(server);
+    server.start().get(30, TimeUnit.SECONDS);
+
+    int operations = scenario.operations();
+    scenario.completed = new CountDownLatch(operations);
+    long startNanos = System.nanoTime();
+    scenario.run(ccs);
+    boolean done = scenario.completed.await(timeoutSeconds, TimeUnit.SECONDS);
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    server.stop(timeoutSeconds, TimeUnit.SECONDS);
+    ccs.close();
+
+    long completed = operations - scenario.completed.getCount();
+    double throughput = completed / seconds;
+    double p99Millis = scenario.latency.percentile(99) / 1000.0;
+    double minThroughput = scenario.doubleValue("minThroughput");
+    double maxP99Millis = scenario.doubleValue("maxP99Millis");
+    List<String> failures = new ArrayList<String>();
+    if (!done) {
+      failures.add("completed " + completed + " of " + operations + " operations");
+    }
+    if (throughput < minThroughput) {
+      failures.add(String.format("throughput %.1f/s below %.1f/s", throughput, minThroughput));
+    }
+    if (p99Millis > maxP99Millis) {
+      failures.add(String.format("p99 %.1f ms above %.1f ms", p99Millis, maxP99Millis));
+    }
+    System.out.printf("%-18s %8d ops %8.1f s %10.1f/s  p50 %8.1f ms  p99 %8.1f ms  %s%n",
+        scenario.name, completed, seconds, throughput, scenario.latency.percentile(50) / 1000.0,
+        p99Millis, failures.isEmpty() ? "ok" : "FAILED: " + failures);
+
+    JsonObject jResult = new JsonObject();
+    jResult.addProperty("scenario", scenario.name);
+    jResult.addProperty("operations", completed);
+    jResult.addProperty("seconds", seconds);
+    jResult.addProperty("throughput", throughput);
+    jResult.addProperty("p50_millis", scenario.latency.percentile(50) / 1000.0);
+    jResult.addProperty("p99_millis", p99Millis);
+    jResult.addProperty("max_millis", scenario.latency.max() / 1000.0);
+    jResult.addProperty("min_throughput", minThroughput);
+    jResult.addProperty("max_p99_millis", maxP99Millis);
+    jResult.addProperty("failed", !failures.isEmpty());
+    return jResult;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties config = new Properties();
+    String budgets = null;
+    String results = null;
+    int timeoutSeconds = 120;
+    Properties overrides = new Properties();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        System.err.println("Unrecognized argument " + arg + ", expected --name=value.");
+        System.exit(2);
+      }
+      String name = arg.substring(2, arg.indexOf('='));
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (name.equals("budgets")) {
+        budgets = value;
+      } else if (name.equals("results")) {
+        results = value;
+      } else if (name.equals("timeout")) {
+        timeoutSeconds = Integer.parseInt(value);
+      } else {
+        overrides.setProperty(name, value);
+      }
+    }
+    try (InputStream input = budgets != null ? new FileInputStream(budgets)
+        : PerformanceSuite.class.getResourceAsStream("/" + DEFAULT_BUDGETS)) {
+      if (input == null) {
+        throw new IOException(DEFAULT_BUDGETS + " is not on the classpath.");
+      }
+      config.load(input);
+    }
+    config.putAll(overrides);
+    // Per message logging from the server would dominate the measurement.
+    for (String name : new String[] {"FriendlyPingServer", "GcmServer", "SmackCssClient",
+        "FakeCcsServer", "PingScheduler", "org.jivesoftware"}) {
+      Logger.getLogger(name).setLevel(Level.SEVERE);
+    }
+
+    JsonArray jResults = new JsonArray();
+    boolean failed = false;
+    for (Scenario scenario : new Scenario[] {new RegistrationBurst(config), new PingStorm(config),
+        new Broadcast(config)}) {
+      JsonObject jResult = run(scenario, timeoutSeconds);
+      failed |= jResult.get("failed").getAsBoolean();
+      jResults.add(jResult);
+    }
+    if (results != null) {
+      File resultsFile = new File(results);
+      resultsFile.getAbsoluteFile().getParentFile().mkdirs();
+      try (Writer writer = new FileWriter(resultsFile)) {
+        new GsonBuilder().setPrettyPrinting().create().toJson(jResults, writer);
+      }
+    }
+    System.exit(failed ? 1 : 0);
+  }
+}
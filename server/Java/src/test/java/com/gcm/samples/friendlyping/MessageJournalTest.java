@@ -0,0 +1,226 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MessageJournalTest {
+
+  // Small segments, so that a few messages roll and recycle them.
+  private static final long SEGMENT_BYTES = 4096;
+  private static final DeliveryOptions OPTIONS =
+      new DeliveryOptions("ping", Lane.INTERACTIVE, 300, DeliveryOptions.PRIORITY_HIGH, false);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void recoversMessagesNotMarkedDone() throws IOException {
+    File directory = folder.newFolder();
+    MessageJournal journal = MessageJournal.open(directory, SEGMENT_BYTES);
+    journal.append("m1", json(1, 10), OPTIONS);
+    journal.append("m2", json(2, 10), OPTIONS);
+    journal.appendAll(Arrays.asList("m3", "m4"), Arrays.asList(json(3, 10), json(4, 10)),
+        OPTIONS);
+    journal.markDone("m2");
+    journal.close();
+
+    journal = MessageJournal.open(directory, SEGMENT_BYTES);
+    assertEquals(Arrays.asList("m1", "m3", "m4"), ids(journal.getRecoveredEntries()));
+    MessageJournal.Entry entry = journal.getRecoveredEntries().get(0);
+    assertEquals(json(1, 10), entry.json);
+    assertEquals("ping", entry.options.getName());
+    assertEquals(Lane.INTERACTIVE, entry.options.getLane());
+    assertEquals(300, entry.options.getTimeToLiveSeconds());
+    assertEquals(3, journal.getLiveCount());
+    journal.close();
+  }
+
+  @Test
+  public void recoveredMessagesSurviveAnotherRestart() throws IOException {
+    File directory = folder.newFolder();
+    MessageJournal journal = MessageJournal.open(directory, SEGMENT_BYTES);
+    journal.append("m1", json(1, 10), OPTIONS);
+    journal.append("m2", json(2, 10), OPTIONS);
+    journal.close();
+
+    journal = MessageJournal.open(directory, SEGMENT_BYTES);
+    journal.markDone("m1");
+    journal.close();
+
+    journal = MessageJournal.open(directory, SEGMENT_BYTES);
+    assertEquals(Arrays.asList("m2"), ids(journal.getRecoveredEntries()));
+    journal.close();
+  }
+
+  @Test
+  public void stopsAtTornTail() throws IOException {
+    File directory = folder.newFolder();
+    MessageJournal journal = MessageJournal.open(directory, SEGMENT_BYTES);
+    journal.append("m1", json(1, 10), OPTIONS);
+    journal.append("m2", json(2, 10), OPTIONS);
+    journal.append("m3", json(3, 10), OPTIONS);
+    journal.close();
+
+    // Corrupt the last byte of the last record, as if the crash tore its write.
+    File[] segments = segmentFiles(directory);
+    assertEquals(1, segments.length);
+    try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+      long last = 0;
+      long position = 0;
+      while (true) {
+        file.seek(position);
+        int length = file.readInt();
+        if (length == 0) {
+          break;
+        }
+        last = position + 8 + length - 1;
+        position += 8 + length;
+      }
+      file.seek(last);
+      int value = file.read();
+      file.seek(last);
+      file.write(value ^ 0xff);
+    }
+
+    journal = MessageJournal.open(directory, SEGMENT_BYTES);
+    assertEquals(Arrays.asList("m1", "m2"), ids(journal.getRecoveredEntries()));
+    journal.close();
+  }
+
+  @Test
+  public void ignoresStaleRecordsInRecycledFile() throws IOException {
+    File directory = folder.newFolder();
+    MessageJournal journal = MessageJournal.open(directory, SEGMENT_BYTES);
+    // Fill several segments, then mark every message done so their files are recycled. The DONE
+    // records go to the last segment, which is recycled too once the journal rolls past it, so
+    // the stale SEND records left in the files would be live on their own.
+    for (int i = 0; i < 40; i++) {
+      journal.append(String.format("old%02d", i), json(0, 200), OPTIONS);
+    }
+    for (int i = 0; i < 40; i++) {
+      journal.markDone(String.format("old%02d", i));
+    }
+    int freeCount = freeFiles(directory).length;
+    assertTrue("No segment was recycled", freeCount > 0);
+    // Records of the same size as the stale ones, so the stale records that follow them in a
+    // reused file start right where the new ones end.
+    List<String> expected = new ArrayList<String>();
+    int reusedAt = -1;
+    for (int i = 0; reusedAt < 0 || i < reusedAt + 3; i++) {
+      String messageId = String.format("new%02d", i);
+      journal.append(messageId, json(0, 200), OPTIONS);
+      expected.add(messageId);
+      if (reusedAt < 0 && freeFiles(directory).length < freeCount) {
+        reusedAt = i;
+      }
+    }
+    journal.close();
+
+    journal = MessageJournal.open(directory, SEGMENT_BYTES);
+    assertEquals(expected, ids(journal.getRecoveredEntries()));
+    journal.close();
+  }
+
+  @Test
+  public void appliesDoneRecordsAcrossSegments() throws IOException {
+    File directory = folder.newFolder();
+    MessageJournal journal = MessageJournal.open(directory, SEGMENT_BYTES);
+    // Large enough that the first segment is kept rather than carried over on the roll.
+    journal.append("m1", json(1, 1500), OPTIONS);
+    journal.append("m2", json(2, 1500), OPTIONS);
+    journal.append("m3", json(3, 1500), OPTIONS);
+    assertEquals(2, segmentFiles(directory).length);
+    // The DONE record of m1 is written to the second segment, its SEND is in the first.
+    journal.markDone("m1");
+    assertEquals(2, segmentFiles(directory).length);
+    journal.close();
+
+    journal = MessageJournal.open(directory, SEGMENT_BYTES);
+    assertEquals(Arrays.asList("m2", "m3"), ids(journal.getRecoveredEntries()));
+    journal.close();
+  }
+
+  @Test
+  public void carriesSlowMessagesOutOfOldestSegment() throws IOException {
+    File directory = folder.newFolder();
+    MessageJournal journal = MessageJournal.open(directory, SEGMENT_BYTES);
+    journal.append("slow", json(0, 10), OPTIONS);
+    for (int i = 0; i < 40; i++) {
+      journal.append("m" + i, json(i, 200), OPTIONS);
+      journal.markDone("m" + i);
+    }
+    // The slow message no longer pins the segment it was first journaled in.
+    assertEquals(1, segmentFiles(directory).length);
+    journal.close();
+
+    journal = MessageJournal.open(directory, SEGMENT_BYTES);
+    assertEquals(Arrays.asList("slow"), ids(journal.getRecoveredEntries()));
+    journal.close();
+  }
+
+  private static String json(int index, int padding) {
+    StringBuilder json = new StringBuilder("{\"data\":{\"index\":").append(index)
+        .append(",\"padding\":\"");
+    for (int i = 0; i < padding; i++) {
+      json.append('x');
+    }
+    return json.append("\"}}").toString();
+  }
+
+  private static List<String> ids(List<MessageJournal.Entry> entries) {
+    List<String> ids = new ArrayList<String>();
+    for (MessageJournal.Entry entry : entries) {
+      ids.add(entry.messageId);
+    }
+    return ids;
+  }
+
+  private static File[] segmentFiles(File directory) {
+    File[] files = directory.listFiles();
+    List<File> segments = new ArrayList<File>();
+    for (File file : files) {
+      if (file.getName().startsWith("journal-")) {
+        segments.add(file);
+      }
+    }
+    return segments.toArray(new File[segments.size()]);
+  }
+
+  private static File[] freeFiles(File directory) {
+    File[] files = directory.listFiles();
+    List<File> free = new ArrayList<File>();
+    for (File file : files) {
+      if (file.getName().startsWith("free-")) {
+        free.add(file);
+      }
+    }
+    return free.toArray(new File[free.size()]);
+  }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+public class PingSchedulerTest {
+
+  private static final long TICK_MILLIS = 10;
+  private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void recoversPingsNotFired() throws IOException {
+    File directory = folder.newFolder();
+    long nowMillis = System.currentTimeMillis();
+    PingScheduler scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    scheduler.schedule("to1", "from", nowMillis + 100);
+    scheduler.schedule("to2", "from", nowMillis + HOUR_MILLIS);
+    scheduler.schedule("to3", "from", nowMillis + 2 * HOUR_MILLIS);
+    assertEquals(list("to1"), fire(scheduler, nowMillis + 200));
+    scheduler.close();
+
+    scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    assertEquals(2, scheduler.getPendingCount());
+    assertEquals(list("to2", "to3"), fire(scheduler, nowMillis + 3 * HOUR_MILLIS));
+    scheduler.close();
+  }
+
+  @Test
+  public void pingsDueWhileClosedFireOnFirstTick() throws IOException {
+    File directory = folder.newFolder();
+    long nowMillis = System.currentTimeMillis();
+    PingScheduler scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    scheduler.schedule("to", "from", nowMillis - 1000);
+    scheduler.close();
+
+    scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    assertEquals(list("to"), fire(scheduler, System.currentTimeMillis() + TICK_MILLIS));
+    scheduler.close();
+  }
+
+  @Test
+  public void firedRecordsCoverEveryBatch() throws IOException {
+    File directory = folder.newFolder();
+    long nowMillis = System.currentTimeMillis();
+    PingScheduler scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    int count = 2 * PingScheduler.MAX_BATCH + 10;
+    for (int i = 0; i < count; i++) {
+      scheduler.schedule("to" + i, "from", nowMillis + 100);
+    }
+    final List<Integer> batchSizes = new ArrayList<Integer>();
+    scheduler.fireDue(nowMillis + 200, new Consumer<List<PingScheduler.ScheduledPing>>() {
+      @Override
+      public void accept(List<PingScheduler.ScheduledPing> batch) {
+        batchSizes.add(batch.size());
+      }
+    });
+    assertEquals(3, batchSizes.size());
+    scheduler.close();
+
+    scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    assertEquals(0, scheduler.getPendingCount());
+    scheduler.close();
+  }
+
+  @Test
+  public void newPingsDoNotReuseRecoveredIds() throws IOException {
+    File directory = folder.newFolder();
+    long nowMillis = System.currentTimeMillis();
+    PingScheduler scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    scheduler.schedule("to1", "from", nowMillis + HOUR_MILLIS);
+    scheduler.schedule("to2", "from", nowMillis + HOUR_MILLIS);
+    scheduler.close();
+
+    // Firing a new ping must not mark a recovered one fired.
+    scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    scheduler.schedule("to3", "from", nowMillis + 100);
+    assertEquals(list("to3"), fire(scheduler, nowMillis + 200));
+    scheduler.close();
+
+    scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    assertEquals(list("to1", "to2"), fire(scheduler, nowMillis + 2 * HOUR_MILLIS));
+    scheduler.close();
+  }
+
+  @Test
+  public void stopsAtTornTail() throws IOException {
+    File directory = folder.newFolder();
+    long nowMillis = System.currentTimeMillis();
+    PingScheduler scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    scheduler.schedule("to1", "from", nowMillis + HOUR_MILLIS);
+    scheduler.schedule("to2", "from", nowMillis + HOUR_MILLIS);
+    scheduler.schedule("to3", "from", nowMillis + HOUR_MILLIS);
+    scheduler.close();
+
+    // Cut the last record short, as if the crash tore its write.
+    File log = new File(directory, "scheduled-pings.log");
+    try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+      file.setLength(file.length() - 3);
+    }
+
+    scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    assertEquals(list("to1", "to2"), fire(scheduler, nowMillis + 2 * HOUR_MILLIS));
+    scheduler.close();
+  }
+
+  @Test
+  public void stopsAtCorruptRecord() throws IOException {
+    File directory = folder.newFolder();
+    long nowMillis = System.currentTimeMillis();
+    PingScheduler scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    scheduler.schedule("to1", "from", nowMillis + HOUR_MILLIS);
+    scheduler.schedule("to2", "from", nowMillis + HOUR_MILLIS);
+    scheduler.close();
+
+    File log = new File(directory, "scheduled-pings.log");
+    try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+      long last = file.length() - 1;
+      file.seek(last);
+      int value = file.read();
+      file.seek(last);
+      file.write(value ^ 0xff);
+    }
+
+    scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    assertEquals(list("to1"), fire(scheduler, nowMillis + 2 * HOUR_MILLIS));
+    scheduler.close();
+  }
+
+  @Test
+  public void ignoresCompactionInterruptedByCrash() throws IOException {
+    File directory = folder.newFolder();
+    long nowMillis = System.currentTimeMillis();
+    PingScheduler scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    scheduler.schedule("to1", "from", nowMillis + HOUR_MILLIS);
+    scheduler.close();
+
+    // A compacted file never moved into place is not the log.
+    File compacted = new File(directory, "scheduled-pings.compacted");
+    try (RandomAccessFile file = new RandomAccessFile(compacted, "rw")) {
+      file.write(new byte[] {0, 0, 0, 5, 1, 2, 3, 4, 9});
+    }
+
+    scheduler = PingScheduler.open(directory, TICK_MILLIS);
+    assertEquals(list("to1"), fire(scheduler, nowMillis + 2 * HOUR_MILLIS));
+    scheduler.close();
+  }
+
+  /**
+   * @return Recipients of the pings fired at the given time, sorted.
+   */
+  private static List<String> fire(PingScheduler scheduler, long nowMillis) throws IOException {
+    final List<String> recipients = new ArrayList<String>();
+    scheduler.fireDue(nowMillis, new Consumer<List<PingScheduler.ScheduledPing>>() {
+      @Override
+      public void accept(List<PingScheduler.ScheduledPing> batch) {
+        for (PingScheduler.ScheduledPing ping : batch) {
+          recipients.add(ping.toToken);
+        }
+      }
+    });
+    Collections.sort(recipients);
+    return recipients;
+  }
+
+  private static List<String> list(String... values) {
+    List<String> list = new ArrayList<String>();
+    Collections.addAll(list, values);
+    return list;
+  }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gcm.samples.friendlyping;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+public class TimingWheelTest {
+
+  private static final long SLOTS = 64;
+
+  @Test
+  public void expiresOnceDeadlinePassed() {
+    TimingWheel<String> wheel = new TimingWheel<String>(1000, 10000);
+    wheel.schedule("a", 12500);
+    assertTrue(wheel.advance(12999).isEmpty());
+    assertEquals(list("a"), wheel.advance(13000));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void passedDeadlineExpiresOnNextTick() {
+    TimingWheel<String> wheel = new TimingWheel<String>(10, 1000);
+    wheel.schedule("a", 500);
+    assertTrue(wheel.advance(1009).isEmpty());
+    assertEquals(list("a"), wheel.advance(1010));
+  }
+
+  @Test
+  public void cancelledTimeoutNeverExpires() {
+    TimingWheel<String> wheel = new TimingWheel<String>(1, 0);
+    TimingWheel.Timeout<String> timeout = wheel.schedule("a", 100);
+    assertTrue(wheel.cancel(timeout));
+    assertFalse(wheel.cancel(timeout));
+    assertTrue(wheel.advance(1000).isEmpty());
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void expiredTimeoutCannotBeCancelled() {
+    TimingWheel<String> wheel = new TimingWheel<String>(1, 0);
+    TimingWheel.Timeout<String> timeout = wheel.schedule("a", 5);
+    assertEquals(list("a"), wheel.advance(5));
+    assertFalse(wheel.cancel(timeout));
+  }
+
+  @Test
+  public void deadlineBeyondTopLevelIsHeldUntilDue() {
+    // Two levels reach 64^2 - 1 ticks, later deadlines are parked and placed again.
+    TimingWheel<String> wheel = new TimingWheel<String>(1, 0, 2);
+    long deadline = 3 * SLOTS * SLOTS + 17;
+    wheel.schedule("a", deadline);
+    assertTrue(wheel.advance(deadline - 1).isEmpty());
+    assertEquals(list("a"), wheel.values());
+    assertEquals(list("a"), wheel.advance(deadline));
+  }
+
+  @Test
+  public void distantDeadlineDoesNotOverflow() {
+    TimingWheel<String> wheel = new TimingWheel<String>(1, 0);
+    wheel.schedule("a", Long.MAX_VALUE / 2);
+    assertTrue(wheel.advance(SLOTS * SLOTS * SLOTS).isEmpty());
+    assertEquals(1, wheel.size());
+  }
+
+  @Test
+  public void matchesModelAcrossLevelWraps() {
+    for (int levels = 1; levels <= 4; levels++) {
+      for (long seed = 0; seed < 10; seed++) {
+        // Start just before the top level wraps, so cascades cross it.
+        long wrap = 1;
+        for (int level = 0; level < levels; level++) {
+          wrap *= SLOTS;
+        }
+        runAgainstModel(new Random(seed), levels, 1, 5 * wrap - 100);
+      }
+    }
+  }
+
+  @Test
+  public void matchesModelWithDefaultLevels() {
+    for (long seed = 0; seed < 10; seed++) {
+      Random random = new Random(seed);
+      long tickMillis = random.nextBoolean() ? 1 : 1 + random.nextInt(1000);
+      runAgainstModel(random, 6, tickMillis, random.nextInt(Integer.MAX_VALUE) * tickMillis);
+    }
+  }
+
+  /**
+   * Run random schedules, cancels and advances against the wheel and check it against a brute
+   * force model that expires every timeout whose deadline tick has passed.
+   */
+  private static void runAgainstModel(Random random, int levels, long tickMillis,
+      long startMillis) {
+    TimingWheel<Integer> wheel = new TimingWheel<Integer>(tickMillis, startMillis, levels);
+    long reach = 1;
+    for (int level = 0; level < levels; level++) {
+      reach *= SLOTS;
+    }
+    // Deadline ticks of the timeouts not yet expired or cancelled, by value.
+    Map<Integer, Long> deadlines = new HashMap<Integer, Long>();
+    Map<Integer, TimingWheel.Timeout<Integer>> timeouts =
+        new HashMap<Integer, TimingWheel.Timeout<Integer>>();
+    List<TimingWheel.Timeout<Integer>> gone = new ArrayList<TimingWheel.Timeout<Integer>>();
+    long nowMillis = startMillis;
+    long nowTick = startMillis / tickMillis;
+    int nextValue = 0;
+    for (int op = 0; op < 3000; op++) {
+      int choice = random.nextInt(10);
+      if (choice < 5) {
+        long deltaTicks;
+        switch (random.nextInt(5)) {
+          case 0:
+            deltaTicks = -random.nextInt(100);
+            break;
+          case 1:
+            deltaTicks = random.nextInt((int) SLOTS);
+            break;
+          case 2:
+            deltaTicks = random.nextInt((int) Math.min(SLOTS * SLOTS, 4 * reach));
+            break;
+          case 3:
+            deltaTicks = random.nextInt((int) Math.min(SLOTS * SLOTS * SLOTS, 4 * reach));
+            break;
+          default:
+            // Around the reach of the top level, and beyond it.
+            deltaTicks = reach - 50 + random.nextInt(100)
+                + (reach < SLOTS * SLOTS * SLOTS ? random.nextInt((int) (2 * reach)) : 0);
+            break;
+        }
+        long deadlineMillis = nowMillis + deltaTicks * tickMillis
+            + (tickMillis > 1 ? random.nextInt((int) tickMillis) : 0);
+        int value = nextValue++;
+        timeouts.put(value, wheel.schedule(value, deadlineMillis));
+        deadlines.put(value, ceilDiv(deadlineMillis, tickMillis));
+      } else if (choice < 7) {
+        if (!timeouts.isEmpty() && random.nextBoolean()) {
+          Integer value = new ArrayList<Integer>(timeouts.keySet())
+              .get(random.nextInt(timeouts.size()));
+          assertTrue(wheel.cancel(timeouts.remove(value)));
+          deadlines.remove(value);
+        } else if (!gone.isEmpty()) {
+          assertFalse(wheel.cancel(gone.get(random.nextInt(gone.size()))));
+        }
+      } else {
+        long stepTicks = random.nextInt(10) == 0
+            ? random.nextInt((int) Math.min(SLOTS * SLOTS * SLOTS, 2 * reach))
+            : random.nextInt((int) SLOTS);
+        nowMillis += stepTicks * tickMillis
+            + (tickMillis > 1 ? random.nextInt((int) tickMillis) : 0);
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        long tick = nowMillis / tickMillis;
+        if (tick > nowTick) {
+          for (Map.Entry<Integer, Long> entry : deadlines.entrySet()) {
+            if (entry.getValue() <= tick) {
+              expected.add(entry.getKey());
+            }
+          }
+          nowTick = tick;
+        }
+        assertEquals(expected, new TreeSet<Integer>(wheel.advance(nowMillis)));
+        for (Integer value : expected) {
+          deadlines.remove(value);
+          gone.add(timeouts.remove(value));
+        }
+      }
+      assertEquals(deadlines.size(), wheel.size());
+    }
+    assertEquals(deadlines.keySet(), new TreeSet<Integer>(wheel.values()));
+  }
+
+  private static long ceilDiv(long millis, long tickMillis) {
+    return millis / tickMillis + (millis % tickMillis > 0 ? 1 : 0);
+  }
+
+  private static List<String> list(String... values) {
+    List<String> list = new ArrayList<String>();
+    for (String value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+}